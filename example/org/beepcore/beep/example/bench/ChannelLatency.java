@@ -0,0 +1,343 @@
+/*
+ * ChannelLatency.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.InputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelException;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.profile.echo.EchoProfile;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the round trip latency of small messages on one channel of a
+ * <code>TCPSession</code>, first on an idle session and then while
+ * another channel keeps sending large messages as fast as it can. Large
+ * receive windows let the bulk channel queue a lot of frames ahead of
+ * the small messages, the session's writer interleaves them according
+ * to the channels' weights.
+ *
+ * The writer can only reorder frames it has not yet written. Frames
+ * already in the socket buffers are ahead of everything written later,
+ * so with large socket buffers, as loopback connections usually have,
+ * the latency is mostly the time to drain them. Use
+ * <code>-sockbuf</code> to limit them.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.ChannelLatency
+ * -weight 4</code>.
+ */
+public class ChannelLatency {
+
+    private static final String SINK_URI =
+        "http://beepcore.org/beep/bench/SINK";
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWindowSize(window);
+        tuning.setMaxFrameSize(frameSize);
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+        registry.addStartChannelListener(SINK_URI, new Sink(), null);
+
+        final ServerSocket server = ServerSocketChannel.open().socket();
+        if (socketBuffer > 0) {
+            server.setReceiveBufferSize(socketBuffer);
+        }
+        server.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread("ChannelLatency acceptor") {
+                public void run() {
+                    try {
+                        Socket s = server.accept();
+                        if (socketBuffer > 0) {
+                            s.setSendBufferSize(socketBuffer);
+                        }
+                        TCPSession.createListener(s, registry, tuning);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        SocketChannel sc = SocketChannel.open();
+        Socket sock = sc.socket();
+        if (socketBuffer > 0) {
+            sock.setSendBufferSize(socketBuffer);
+            sock.setReceiveBufferSize(socketBuffer);
+        }
+        sc.connect(new InetSocketAddress("localhost", port));
+        TCPSession session =
+            TCPSession.createInitiator(sock, registry, null, tuning);
+
+        acceptor.join();
+
+        Channel echo = session.startChannel(EchoProfile.ECHO_URI);
+        echo.setWeight(weight);
+
+        final Channel bulk = session.startChannel(SINK_URI);
+        final byte[] message = new byte[bulkSize * 1024 * 1024];
+        final boolean[] stop = new boolean[1];
+        final long[] sent = new long[1];
+
+        System.out.println("window: " + window + ", frame size: " + frameSize
+                           + ", weight: " + weight + ", socket buffers: " +
+                           (socketBuffer > 0 ?
+                            Integer.toString(socketBuffer) : "default"));
+
+        report("idle", ping(echo));
+
+        Thread sender = new Thread("ChannelLatency bulk sender") {
+                public void run() {
+                    try {
+                        while (stop[0] == false) {
+                            Reply reply = new Reply();
+                            bulk.sendMSG(new ByteOutputDataStream(message),
+                                         reply);
+                            reply.getNextReply();
+                            sent[0] += message.length;
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Error sending: " + e);
+                    }
+                }
+            };
+        sender.start();
+
+        // let the bulk channel fill the queue
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        long[] rtt = ping(echo);
+        long elapsed = System.currentTimeMillis() - start;
+
+        report("saturated", rtt);
+        System.out.println("bulk channel: " + sent[0] / 1024 / 1024 +
+                           "MB in about " + (elapsed + 500) + "ms");
+
+        stop[0] = true;
+        sender.join();
+
+        session.close();
+        server.close();
+    }
+
+    /**
+     * Returns the round trip times in microseconds, sorted.
+     */
+    private static long[] ping(Channel channel) throws Exception
+    {
+        String request = createRequest(size);
+        long[] rtt = new long[messages];
+
+        for (int i = 0; i < messages; ++i) {
+            long start = System.nanoTime();
+
+            Reply reply = new Reply();
+            channel.sendMSG(new StringOutputDataStream(request), reply);
+
+            InputStream is =
+                reply.getNextReply().getDataStream().getInputStream();
+            while (is.read() != -1) {
+            }
+
+            rtt[i] = (System.nanoTime() - start) / 1000;
+        }
+
+        Arrays.sort(rtt);
+
+        return rtt;
+    }
+
+    private static void report(String name, long[] rtt)
+    {
+        StringBuffer sb = new StringBuffer(name);
+        while (sb.length() < 12) {
+            sb.append(' ');
+        }
+
+        sb.append("p50 ").append(rtt[rtt.length / 2]).append("us");
+        while (sb.length() < 28) {
+            sb.append(' ');
+        }
+
+        sb.append("p99 ").append(rtt[rtt.length * 99 / 100]).append("us");
+        while (sb.length() < 44) {
+            sb.append(' ');
+        }
+
+        sb.append("max ").append(rtt[rtt.length - 1]).append("us");
+
+        System.out.println(sb);
+    }
+
+    private static String createRequest(int size)
+    {
+        StringBuffer sb = new StringBuffer(size);
+
+        for (int i = 0; i < size; ++i) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Discards the payload of each MSG and replies when it is complete.
+     */
+    private static class Sink implements StartChannelListener, RequestHandler
+    {
+        public boolean advertiseProfile(Session session)
+        {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            channel.setRequestHandler(null);
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            InputDataStream ds = message.getDataStream();
+
+            try {
+                BufferSegment b;
+
+                while ((b = ds.waitForNextSegment()) != null) {
+                    b.release();
+                }
+            } catch (InterruptedException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+                return;
+            }
+
+            try {
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (BEEPException e) {
+                try {
+                    message.sendERR(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                                    "Error sending RPY");
+                } catch (BEEPException x) {
+                    message.getChannel().getSession().terminate(
+                        x.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-messages")) {
+                messages = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-bulk")) {
+                bulkSize = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-window")) {
+                window = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-framesize")) {
+                frameSize = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-sockbuf")) {
+                socketBuffer = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-weight")) {
+                weight = Integer.parseInt(argv[++i]);
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return messages > 0 && weight > 0;
+    }
+
+    private static int port = 10295;
+    private static int messages = 2000;
+    private static int size = 64;
+    private static int bulkSize = 16;
+    private static int window = 4 * 1024 * 1024;
+    private static int frameSize = 16 * 1024;
+    private static int weight = Channel.DEFAULT_WEIGHT;
+    private static int socketBuffer = 0;
+
+    private static final String usage =
+        "usage: ChannelLatency [-messages count] [-size bytes] [-bulk MB] " +
+        "[-window bytes]\n" +
+        "                      [-framesize bytes] [-weight weight] " +
+        "[-sockbuf bytes] [-port port]\n\n" +
+        "options:\n" +
+        "    -messages     Small messages sent in each phase, default " +
+        "2000.\n" +
+        "    -size         Small message size, default 64.\n" +
+        "    -bulk         Bulk message size in megabytes, default 16.\n" +
+        "    -window       WINDOW_SIZE, default 4194304.\n" +
+        "    -framesize    MAX_FRAME_SIZE, default 16384.\n" +
+        "    -weight       Weight of the small message channel, " +
+        "default 1.\n" +
+        "    -sockbuf      Socket send and receive buffer sizes, default " +
+        "the system's.\n" +
+        "    -port port    Specifies the port number.\n";
+}
@@ -0,0 +1,213 @@
+/*
+ * ChannelStartup.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.profile.echo.EchoProfile;
+import org.beepcore.beep.transport.tcp.TCPSession;
+
+/**
+ * Starts <code>-channels</code> echo channels on a new
+ * <code>TCPSession</code> and reports how long it takes. With
+ * <code>-mode sync</code> each <code>startChannel</code> waits for its
+ * reply before the next <code>start</code> is sent, with
+ * <code>-mode async</code> all the requests are sent with
+ * <code>startChannelAsync</code> before waiting for any reply, and with
+ * <code>-mode batch</code> one <code>startChannels</code> call sends
+ * them all in one write. Use
+ * <code>-latency</code> to add a network round trip to the loopback
+ * connection.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.ChannelStartup
+ * -channels 256 -mode async</code>.
+ */
+public class ChannelStartup {
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        // the peer's channel zero is only read as fast as it replies
+        tuning.setWindowSize(window);
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+
+        final ServerSocket server = ServerSocketChannel.open().socket();
+        server.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread("ChannelStartup acceptor") {
+                public void run() {
+                    try {
+                        for (int i = 0; i < rounds; ++i) {
+                            TCPSession.createListener(server.accept(),
+                                                      registry, tuning);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        DelayProxy proxy = null;
+        int connectPort = port;
+        if (latency > 0) {
+            connectPort = port + 1;
+            proxy = new DelayProxy(connectPort, port, latency / 2);
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+
+        for (int i = 0; i < rounds; ++i) {
+            Socket sock =
+                SocketChannel.open(new InetSocketAddress("localhost",
+                                                         connectPort))
+                .socket();
+            TCPSession session =
+                TCPSession.createInitiator(sock, new ProfileRegistry(), null,
+                                           tuning);
+
+            long start = System.nanoTime();
+            startChannels(session);
+            long elapsed = (System.nanoTime() - start) / 1000;
+
+            best = Math.min(best, elapsed);
+            total += elapsed;
+
+            session.close();
+        }
+
+        acceptor.join();
+        server.close();
+        if (proxy != null) {
+            proxy.close();
+        }
+
+        System.out.println("mode:               " + mode);
+        System.out.println("channels:           " + channels);
+        System.out.println("round trip:         " + latency + "ms");
+        System.out.println("start time best:    " + best / 1000 + "ms");
+        System.out.println("start time mean:    " + total / rounds / 1000 +
+                           "ms");
+        System.out.println("per channel mean:   " +
+                           total / rounds / channels + "us");
+    }
+
+    private static void startChannels(TCPSession session) throws Exception
+    {
+        if (mode.equals("sync")) {
+            for (int i = 0; i < channels; ++i) {
+                session.startChannel(EchoProfile.ECHO_URI);
+            }
+        } else if (mode.equals("batch")) {
+            Channel[] started =
+                session.startChannels(EchoProfile.ECHO_URI, channels, null);
+
+            if (started.length != channels) {
+                throw new Exception("Started " + started.length + " of " +
+                                    channels + " channels");
+            }
+        } else {
+            CompletableFuture<?>[] started = new CompletableFuture<?>[channels];
+
+            for (int i = 0; i < channels; ++i) {
+                started[i] = session.startChannelAsync(EchoProfile.ECHO_URI,
+                                                       null);
+            }
+
+            CompletableFuture.allOf(started).get();
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-channels")) {
+                channels = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-rounds")) {
+                rounds = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-latency")) {
+                latency = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-window")) {
+                window = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-mode")) {
+                mode = argv[++i].toLowerCase();
+                if (mode.equals("sync") == false &&
+                    mode.equals("async") == false &&
+                    mode.equals("batch") == false)
+                {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return channels > 0 && rounds > 0 && latency >= 0;
+    }
+
+    private static int port = 10299;
+    private static int channels = 256;
+    private static int rounds = 10;
+    private static int window = 64 * 1024;
+    private static int latency = 0;
+    private static String mode = "async";
+
+    private static final String usage =
+        "usage: ChannelStartup [-mode sync|async|batch] " +
+        "[-channels count] [-rounds count]\n" +
+        "                      [-latency ms] [-window bytes] " +
+        "[-port port]\n\n" +
+        "options:\n" +
+        "    -mode         sync = startChannel for each channel.\n" +
+        "                  async = startChannelAsync for all channels, " +
+        "default.\n" +
+        "                  batch = one startChannels call.\n" +
+        "    -channels     Channels started on each session, default 256.\n" +
+        "    -rounds       Sessions started, default 10.\n" +
+        "    -latency      Round trip time added by a proxy, default 0.\n" +
+        "    -window       WINDOW_SIZE, default 65536.\n" +
+        "    -port port    Specifies the port number.\n";
+}
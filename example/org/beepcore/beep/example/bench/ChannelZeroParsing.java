@@ -0,0 +1,235 @@
+/*
+ * ChannelZeroParsing.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MimeHeaders;
+import org.beepcore.beep.core.serialize.ChannelZeroParser;
+import org.beepcore.beep.core.serialize.GreetingElement;
+import org.beepcore.beep.core.serialize.StartElement;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the time and the heap allocated to parse channel zero
+ * messages with <code>ChannelZeroParser</code> and, as a baseline, with
+ * a DOM <code>DocumentBuilder</code> reading the same fields the way
+ * the parser did before it used StAX.
+ *
+ * Messages are wrapped in an <code>InputDataStream</code> as they would
+ * be when received, its constructor is not public so it is called
+ * reflectively. Allocation is read from the HotSpot
+ * <code>com.sun.management.ThreadMXBean</code>, so this requires a
+ * HotSpot based JVM. Run with
+ * <code>java org.beepcore.beep.example.bench.ChannelZeroParsing</code>.
+ */
+public class ChannelZeroParsing {
+
+    private static final String START =
+        "<start number='1'><profile uri='http://iana.org/beep/TLS'>" +
+        "<![CDATA[<ready />]]></profile></start>";
+
+    private static final String GREETING =
+        "<greeting><profile uri='http://iana.org/beep/TLS' />" +
+        "<profile uri='http://iana.org/beep/SASL/ANONYMOUS' />" +
+        "<profile uri='http://xml.resource.org/profiles/NULL/ECHO' />" +
+        "</greeting>";
+
+    private static final String CLOSE =
+        "<close number='1' code='200' />";
+
+    public static void main(String[] argv) throws Exception
+    {
+        int iterations = 200000;
+
+        if (argv.length == 2 && argv[0].equalsIgnoreCase("-iterations")) {
+            iterations = Integer.parseInt(argv[1]);
+        } else if (argv.length != 0) {
+            System.out.println(usage);
+            return;
+        }
+
+        final ChannelZeroParser parser = new ChannelZeroParser();
+        final DocumentBuilder builder =
+            DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+        Case[] cases = {
+            new Case("StAX start", START) {
+                long run() throws Exception {
+                    StartElement start =
+                        (StartElement) parser.parseIndication(message());
+                    return start.getProfiles().size();
+                }
+            },
+            new Case("DOM start", START) {
+                long run() throws Exception {
+                    return dom(builder, message());
+                }
+            },
+            new Case("StAX greeting", GREETING) {
+                long run() throws Exception {
+                    GreetingElement greeting =
+                        parser.parseGreetingConfirmation(message());
+                    return greeting.getProfiles().size();
+                }
+            },
+            new Case("DOM greeting", GREETING) {
+                long run() throws Exception {
+                    return dom(builder, message());
+                }
+            },
+            new Case("StAX close", CLOSE) {
+                long run() throws Exception {
+                    return parser.parseIndication(message()).getType();
+                }
+            },
+            new Case("DOM close", CLOSE) {
+                long run() throws Exception {
+                    return dom(builder, message());
+                }
+            },
+        };
+
+        // warm up so the allocations of the JIT itself are not counted
+        for (int c = 0; c < cases.length; ++c) {
+            cases[c].measure(iterations);
+        }
+
+        System.out.println("iterations: " + iterations);
+        for (int c = 0; c < cases.length; ++c) {
+            cases[c].measure(iterations);
+            System.out.println(cases[c]);
+        }
+    }
+
+    /**
+     * Parses <code>message</code> into a DOM tree and reads the
+     * attributes and the profiles of the top element.
+     */
+    private static long dom(DocumentBuilder builder, InputDataStream message)
+        throws Exception
+    {
+        try {
+            Element top =
+                builder.parse(message.getInputStream()).getDocumentElement();
+            long n = top.getAttribute("number").length() +
+                top.getAttribute("code").length();
+
+            NodeList profiles = top.getElementsByTagName("profile");
+            for (int i = 0; i < profiles.getLength(); ++i) {
+                Element profile = (Element) profiles.item(i);
+
+                n += profile.getAttribute("uri").length();
+                if (profile.getFirstChild() != null) {
+                    n += profile.getFirstChild().getNodeValue().length();
+                }
+            }
+
+            return n;
+        } finally {
+            message.close();
+        }
+    }
+
+    private static abstract class Case {
+        private static Constructor<InputDataStream> ctor;
+
+        String name;
+        byte[] message;
+        double nanos;
+        double bytes;
+        long sink;
+
+        Case(String name, String xml) throws Exception
+        {
+            this.name = name;
+            this.message = (MimeHeaders.CONTENT_TYPE + ": " +
+                            MimeHeaders.BEEP_XML_CONTENT_TYPE + "\r\n\r\n" +
+                            xml).getBytes("US-ASCII");
+
+            if (ctor == null) {
+                ctor = InputDataStream.class.getDeclaredConstructor(
+                    new Class<?>[] {BufferSegment.class, Boolean.TYPE});
+                ctor.setAccessible(true);
+            }
+        }
+
+        abstract long run() throws Exception;
+
+        InputDataStream message() throws Exception
+        {
+            return ctor.newInstance(
+                new Object[] {new BufferSegment(message), Boolean.TRUE});
+        }
+
+        void measure(int iterations) throws Exception
+        {
+            com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+            long tid = Thread.currentThread().getId();
+
+            long allocated = mx.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+
+            for (int i = 0; i < iterations; ++i) {
+                sink += run();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            allocated = mx.getThreadAllocatedBytes(tid) - allocated;
+
+            nanos = (double) elapsed / iterations;
+            bytes = (double) allocated / iterations;
+        }
+
+        public String toString()
+        {
+            return pad(name, 20) + pad(format(nanos) + " ns/op", 16) +
+                format(bytes) + " bytes/op";
+        }
+
+        private static String format(double d)
+        {
+            return Double.toString(Math.round(d * 100) / 100.0);
+        }
+
+        private static String pad(String s, int width)
+        {
+            StringBuffer sb = new StringBuffer(s);
+            while (sb.length() < width) {
+                sb.append(' ');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final String usage =
+        "usage: ChannelZeroParsing [-iterations count]\n";
+}
@@ -0,0 +1,276 @@
+/*
+ * ConnectRate.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Initiates <code>-connections</code> sessions to an in-process listener
+ * and reports the connections per second and the connect latency, from
+ * the TCP connect to the session being active. With <code>-mode
+ * sync</code> one thread calls <code>TCPSessionCreator.initiate</code>
+ * for each session, with <code>-mode async</code> it calls
+ * <code>initiateAsync</code> keeping up to <code>-outstanding</code>
+ * greeting exchanges in flight. Use <code>-latency</code> to add a
+ * network round trip to the loopback connections.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.ConnectRate
+ * -connections 1000 -latency 2 -mode async</code>.
+ */
+public class ConnectRate {
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        final ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress("localhost", port), connections);
+
+        // the listener side waits for each greeting, do it in parallel so
+        // the listener is not what is measured
+        final ExecutorService listeners = Executors.newCachedThreadPool();
+
+        Thread acceptor = new Thread("ConnectRate acceptor") {
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket sock = server.accept();
+
+                            listeners.execute(new Runnable() {
+                                    public void run() {
+                                        try {
+                                            TCPSession.createListener(
+                                                sock, registry);
+                                        } catch (Exception e) {
+                                            System.err.println(
+                                                "Error accepting session: " +
+                                                e.getMessage());
+                                        }
+                                    }
+                                });
+                        }
+                    } catch (Exception e) {
+                        // closed
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        DelayProxy proxy = null;
+        int connectPort = port;
+        if (latency > 0) {
+            connectPort = port + 1;
+            proxy = new DelayProxy(connectPort, port, latency / 2);
+        }
+
+        InetAddress host = InetAddress.getByName("localhost");
+        Session[] sessions = new Session[connections];
+        long[] latencies = new long[connections];
+
+        long start = System.nanoTime();
+        int failed;
+
+        if (mode.equals("sync")) {
+            failed = connectSync(host, connectPort, sessions, latencies);
+        } else {
+            failed = connectAsync(host, connectPort, sessions, latencies);
+        }
+
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        close(sessions);
+        server.close();
+        listeners.shutdown();
+        if (proxy != null) {
+            proxy.close();
+        }
+
+        Arrays.sort(latencies);
+
+        System.out.println("mode:               " + mode);
+        System.out.println("round trip:         " + latency + "ms");
+        System.out.println("connections:        " + connections + " in " +
+                           elapsed + "ms");
+        System.out.println("connections/s:      " +
+                           (long) connections * 1000 / Math.max(elapsed, 1));
+        System.out.println("latency p50:        " +
+                           latencies[connections / 2] + "us");
+        System.out.println("latency p99:        " +
+                           latencies[(int) (connections * 0.99)] + "us");
+        System.out.println("latency max:        " +
+                           latencies[connections - 1] + "us");
+        System.out.println("failed:             " + failed);
+    }
+
+    private static int connectSync(InetAddress host, int port,
+                                   Session[] sessions, long[] latencies)
+    {
+        int failed = 0;
+
+        for (int i = 0; i < connections; ++i) {
+            long start = System.nanoTime();
+
+            try {
+                sessions[i] = TCPSessionCreator.initiate(host, port,
+                                                         new ProfileRegistry(),
+                                                         null);
+            } catch (Exception e) {
+                ++failed;
+            }
+
+            latencies[i] = (System.nanoTime() - start) / 1000;
+        }
+
+        return failed;
+    }
+
+    private static int connectAsync(InetAddress host, int port,
+                                    final Session[] sessions,
+                                    final long[] latencies)
+        throws InterruptedException
+    {
+        final Semaphore window = new Semaphore(outstanding);
+        final CountDownLatch done = new CountDownLatch(connections);
+        final AtomicInteger failed = new AtomicInteger();
+
+        for (int i = 0; i < connections; ++i) {
+            final int n = i;
+            final long start = System.nanoTime();
+
+            window.acquire();
+            TCPSessionCreator.initiateAsync(host, port, new ProfileRegistry(),
+                                            null)
+                .whenComplete(new BiConsumer<Session, Throwable>() {
+                        public void accept(Session session, Throwable t) {
+                            latencies[n] = (System.nanoTime() - start) / 1000;
+                            if (t != null) {
+                                failed.incrementAndGet();
+                            } else {
+                                sessions[n] = session;
+                            }
+
+                            window.release();
+                            done.countDown();
+                        }
+                    });
+        }
+
+        done.await();
+
+        return failed.get();
+    }
+
+    private static void close(Session[] sessions) throws InterruptedException
+    {
+        ExecutorService closers = Executors.newFixedThreadPool(32);
+
+        for (int i = 0; i < sessions.length; ++i) {
+            final Session session = sessions[i];
+
+            if (session == null) {
+                continue;
+            }
+
+            closers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            session.close();
+                        } catch (Exception e) {
+                            session.terminate(e.getMessage());
+                        }
+                    }
+                });
+        }
+
+        closers.shutdown();
+        closers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-connections")) {
+                connections = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-outstanding")) {
+                outstanding = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-latency")) {
+                latency = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-mode")) {
+                mode = argv[++i].toLowerCase();
+                if (mode.equals("sync") == false &&
+                    mode.equals("async") == false)
+                {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return connections > 0 && outstanding > 0 && latency >= 0;
+    }
+
+    private static int port = 10288;
+    private static int connections = 1000;
+    private static int outstanding = 64;
+    private static int latency = 0;
+    private static String mode = "async";
+
+    private static final String usage =
+        "usage: ConnectRate [-mode sync|async] [-connections count] " +
+        "[-outstanding count]\n" +
+        "                   [-latency ms] [-port port]\n\n" +
+        "options:\n" +
+        "    -mode         sync = initiate for each session.\n" +
+        "                  async = initiateAsync, default.\n" +
+        "    -connections  Sessions initiated, default 1000.\n" +
+        "    -outstanding  Greeting exchanges in flight with -mode async, " +
+        "default 64.\n" +
+        "    -latency      Round trip time added by a proxy, default 0.\n" +
+        "    -port port    Specifies the port number.\n";
+}
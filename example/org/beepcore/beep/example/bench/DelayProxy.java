@@ -0,0 +1,164 @@
+/*
+ * DelayProxy.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Forwards connections to another port on the local host, delaying the
+ * data in each direction by a fixed time, so the benchmarks can show the
+ * effect of a network round trip on a loopback connection.
+ */
+class DelayProxy {
+
+    private final ServerSocket server;
+    private final int target;
+    private final long delay;
+
+    /**
+     * @param port the port to accept connections on.
+     * @param target the port to forward them to.
+     * @param delay one way delay in milliseconds.
+     */
+    DelayProxy(int port, int target, long delay) throws IOException
+    {
+        this.server = new ServerSocket();
+        this.server.bind(new InetSocketAddress("localhost", port));
+        this.target = target;
+        this.delay = delay;
+
+        Thread acceptor = new Thread("DelayProxy acceptor") {
+                public void run() {
+                    accept();
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    void close() throws IOException
+    {
+        server.close();
+    }
+
+    private void accept()
+    {
+        try {
+            while (true) {
+                Socket client = server.accept();
+                Socket peer = new Socket("localhost", target);
+
+                client.setTcpNoDelay(true);
+                peer.setTcpNoDelay(true);
+
+                forward(client, peer);
+                forward(peer, client);
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Starts a thread reading from <code>from</code> and one writing what
+     * was read to <code>to</code> once it is <code>delay</code> old.
+     */
+    private void forward(final Socket from, final Socket to)
+        throws IOException
+    {
+        final InputStream in = from.getInputStream();
+        final OutputStream out = to.getOutputStream();
+        final LinkedBlockingQueue<Chunk> queue =
+            new LinkedBlockingQueue<Chunk>();
+
+        Thread reader = new Thread("DelayProxy reader") {
+                public void run() {
+                    byte[] buf = new byte[64 * 1024];
+                    int n;
+
+                    try {
+                        while ((n = in.read(buf)) != -1) {
+                            byte[] data = new byte[n];
+                            System.arraycopy(buf, 0, data, 0, n);
+                            queue.put(new Chunk(data));
+                        }
+                    } catch (Exception e) {
+                        // closed
+                    }
+
+                    try {
+                        queue.put(new Chunk(null));
+                    } catch (InterruptedException e) {
+                    }
+                }
+            };
+
+        Thread writer = new Thread("DelayProxy writer") {
+                public void run() {
+                    try {
+                        while (true) {
+                            Chunk c = queue.take();
+                            long wait = c.due - System.currentTimeMillis();
+
+                            if (wait > 0) {
+                                Thread.sleep(wait);
+                            }
+                            if (c.data == null) {
+                                break;
+                            }
+
+                            out.write(c.data);
+                        }
+                    } catch (Exception e) {
+                        // closed
+                    }
+
+                    try {
+                        to.shutdownOutput();
+                    } catch (IOException e) {
+                    }
+                }
+            };
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    private class Chunk {
+        final byte[] data;
+        final long due = System.currentTimeMillis() + delay;
+
+        Chunk(byte[] data)
+        {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * FileTransfer.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.FileOutputDataStream;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.MimeHeaders;
+import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelException;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the throughput of sending a large file as one message on a
+ * <code>TCPSession</code>, as a <code>FileOutputDataStream</code> and by
+ * reading the file into <code>byte[]</code> chunks added to an
+ * <code>OutputDataStream</code>. The peer discards the payload and
+ * replies with the number of bytes it received.
+ *
+ * The file is written before the first run, so it is usually read from
+ * the page cache. With <code>-socket channel</code> file regions of at
+ * least 16KB are sent with <code>transferTo</code>, smaller regions are
+ * staged and written with the frame headers, with <code>-socket
+ * plain</code> they are always copied.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.FileTransfer
+ * -size 1024 -socket channel</code>.
+ */
+public class FileTransfer {
+
+    private static final String SINK_URI =
+        "http://beepcore.org/beep/bench/SINK";
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        File file = File.createTempFile("FileTransfer", ".dat");
+        file.deleteOnExit();
+        createFile(file, (long) size * 1024 * 1024);
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(SINK_URI, new Sink(), null);
+
+        final ServerSocket server;
+        if (channelSockets) {
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
+        } else {
+            server = new ServerSocket(port);
+        }
+
+        final TCPSession[] listener = new TCPSession[1];
+        Thread acceptor = new Thread("FileTransfer acceptor") {
+                public void run() {
+                    try {
+                        listener[0] =
+                            TCPSession.createListener(server.accept(),
+                                                      registry);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket sock;
+        if (channelSockets) {
+            sock = SocketChannel.open(new InetSocketAddress("localhost",
+                                                            port)).socket();
+        } else {
+            sock = new Socket("localhost", port);
+        }
+
+        TCPSession session = TCPSession.createInitiator(sock, registry);
+
+        acceptor.join();
+
+        Channel channel = session.startChannel(SINK_URI);
+
+        System.out.println("socket: " + (channelSockets ? "channel" : "plain")
+                           + ", file: " + size + "MB, chunk: " + chunk);
+
+        for (int r = 0; r < runs; ++r) {
+            report("file stream", send(channel, file, true), file.length());
+            report("byte[] chunks", send(channel, file, false),
+                   file.length());
+        }
+
+        session.close();
+        server.close();
+        file.delete();
+    }
+
+    private static long send(Channel channel, File file, boolean fileStream)
+        throws Exception
+    {
+        Reply reply = new Reply();
+        long start = System.currentTimeMillis();
+
+        if (fileStream) {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                channel.sendMSG(
+                    new FileOutputDataStream(new MimeHeaders(),
+                                             fis.getChannel(), 0,
+                                             file.length()),
+                    reply);
+                check(reply, file.length());
+            } finally {
+                fis.close();
+            }
+        } else {
+            OutputDataStream ds = new OutputDataStream(new MimeHeaders());
+            InputStream is = new FileInputStream(file);
+
+            channel.sendMSG(ds, reply);
+            try {
+                while (true) {
+                    // keep a bounded number of chunks queued, the way an
+                    // application sending more than fits in memory must
+                    while (ds.getNumSegments() > MAX_QUEUED_CHUNKS) {
+                        Thread.sleep(1);
+                    }
+
+                    byte[] b = new byte[chunk];
+                    int n = is.read(b);
+                    if (n == -1) {
+                        break;
+                    }
+                    ds.add(new BufferSegment(b, 0, n));
+                }
+            } finally {
+                is.close();
+            }
+            ds.setComplete();
+            check(reply, file.length());
+        }
+
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void check(Reply reply, long expected) throws Exception
+    {
+        InputStream is = reply.getNextReply().getDataStream()
+            .getInputStream();
+        StringBuffer sb = new StringBuffer();
+        int c;
+
+        while ((c = is.read()) != -1) {
+            sb.append((char) c);
+        }
+
+        if (Long.parseLong(sb.toString()) != expected) {
+            throw new BEEPException("Peer received " + sb + " bytes, " +
+                                    "expected " + expected);
+        }
+    }
+
+    private static void report(String name, long elapsed, long bytes)
+    {
+        StringBuffer sb = new StringBuffer(name);
+        while (sb.length() < 16) {
+            sb.append(' ');
+        }
+
+        sb.append(elapsed).append("ms");
+        while (sb.length() < 28) {
+            sb.append(' ');
+        }
+
+        sb.append(bytes * 1000 / (1024 * 1024) / Math.max(elapsed, 1));
+        sb.append(" MB/s");
+
+        System.out.println(sb);
+    }
+
+    private static void createFile(File file, long length) throws Exception
+    {
+        byte[] b = new byte[64 * 1024];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) ('a' + (i % 26));
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            for (long n = 0; n < length; n += b.length) {
+                fos.write(b, 0, (int) Math.min(b.length, length - n));
+            }
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * Discards the payload of each MSG and replies with its length.
+     */
+    private static class Sink implements StartChannelListener, RequestHandler
+    {
+        public boolean advertiseProfile(Session session)
+        {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            channel.setRequestHandler(null);
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            InputDataStream ds = message.getDataStream();
+            long count = 0;
+
+            try {
+                BufferSegment b;
+
+                while ((b = ds.waitForNextSegment()) != null) {
+                    count += b.getLength();
+                    b.release();
+                }
+            } catch (InterruptedException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+                return;
+            }
+
+            // the default MIME headers are serialized as a single CRLF
+            count -= 2;
+
+            try {
+                message.sendRPY(new StringOutputDataStream(
+                                    Long.toString(count)));
+            } catch (BEEPException e) {
+                try {
+                    message.sendERR(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                                    "Error sending RPY");
+                } catch (BEEPException x) {
+                    message.getChannel().getSession().terminate(
+                        x.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-chunk")) {
+                chunk = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-runs")) {
+                runs = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-socket")) {
+                ++i;
+                if (argv[i].equalsIgnoreCase("channel")) {
+                    channelSockets = true;
+                } else if (argv[i].equalsIgnoreCase("plain")) {
+                    channelSockets = false;
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return size > 0 && chunk > 0;
+    }
+
+    private static final int MAX_QUEUED_CHUNKS = 16;
+
+    private static int port = 10292;
+    private static int size = 1024;
+    private static int chunk = 64 * 1024;
+    private static int runs = 3;
+    private static boolean channelSockets = true;
+
+    private static final String usage =
+        "usage: FileTransfer [-size MB] [-chunk bytes] [-runs count] " +
+        "[-socket channel|plain]\n" +
+        "                    [-port port]\n\n" +
+        "options:\n" +
+        "    -size         File size in megabytes, default 1024.\n" +
+        "    -chunk        Size of the byte[] chunks, default 65536.\n" +
+        "    -runs         Transfers with each method, default 3.\n" +
+        "    -socket       Socket type, default channel.\n" +
+        "    -port port    Specifies the port number.\n";
+}
@@ -0,0 +1,325 @@
+/*
+ * FrameSize.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.StringTokenizer;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelException;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the throughput and the CPU time per megabyte of sending a large
+ * message on a <code>TCPSession</code> over a loopback connection with
+ * each of the given maximum frame sizes and with automatically chosen
+ * frame sizes. A frame never holds more than the peer's window, so the
+ * receive window is set large enough not to limit the larger frames.
+ * Each session first sends an untimed message to warm up.
+ *
+ * The CPU time is that of all threads of both peers, threads that exit
+ * during a run are not counted.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.FrameSize
+ * -size 256 -frames 1400,16384,65536</code>.
+ */
+public class FrameSize {
+
+    private static final String SINK_URI =
+        "http://beepcore.org/beep/bench/SINK";
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        byte[] message = new byte[size * 1024 * 1024];
+
+        System.out.println("socket: " + (channelSockets ? "channel" : "plain")
+                           + ", message: " + size + "MB");
+
+        for (int r = 0; r < runs; ++r) {
+            for (int i = 0; i < frameSizes.length; ++i) {
+                send(Integer.toString(frameSizes[i]), message,
+                     frameSizes[i], false);
+            }
+            send("auto", message, 0, true);
+        }
+    }
+
+    private static void send(String name, byte[] message, int frameSize,
+                             boolean auto)
+        throws Exception
+    {
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWindowSize(window);
+        tuning.setFrameSizeAuto(auto);
+        if (auto == false) {
+            tuning.setMaxFrameSize(frameSize);
+        }
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(SINK_URI, new Sink(), null);
+
+        final ServerSocket server;
+        if (channelSockets) {
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
+        } else {
+            server = new ServerSocket(port);
+        }
+
+        Thread acceptor = new Thread("FrameSize acceptor") {
+                public void run() {
+                    try {
+                        TCPSession.createListener(server.accept(), registry,
+                                                  tuning);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket sock;
+        if (channelSockets) {
+            sock = SocketChannel.open(new InetSocketAddress("localhost",
+                                                            port)).socket();
+        } else {
+            sock = new Socket("localhost", port);
+        }
+
+        TCPSession session =
+            TCPSession.createInitiator(sock, registry, null, tuning);
+
+        acceptor.join();
+
+        Channel channel = session.startChannel(SINK_URI);
+
+        Reply reply = new Reply();
+        channel.sendMSG(new ByteOutputDataStream(message), reply);
+        reply.getNextReply();
+
+        long framesBefore = session.getFramesWritten();
+        long cpuBefore = getCpuTime();
+        long start = System.currentTimeMillis();
+
+        reply = new Reply();
+        channel.sendMSG(new ByteOutputDataStream(message), reply);
+        reply.getNextReply();
+
+        long elapsed = System.currentTimeMillis() - start;
+        long cpu = getCpuTime() - cpuBefore;
+        long frames = session.getFramesWritten() - framesBefore;
+
+        report(name + " (" + channel.getMaxFrameSize() + ")", elapsed, cpu,
+               frames, message.length);
+
+        session.close();
+        server.close();
+    }
+
+    /**
+     * Returns the CPU time of all live threads in nanoseconds.
+     */
+    private static long getCpuTime()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long total = 0;
+
+        for (int i = 0; i < ids.length; ++i) {
+            long t = threads.getThreadCpuTime(ids[i]);
+            if (t > 0) {
+                total += t;
+            }
+        }
+
+        return total;
+    }
+
+    private static void report(String name, long elapsed, long cpu,
+                               long frames, long bytes)
+    {
+        StringBuffer sb = new StringBuffer(name);
+        while (sb.length() < 20) {
+            sb.append(' ');
+        }
+
+        sb.append(elapsed).append("ms");
+        while (sb.length() < 30) {
+            sb.append(' ');
+        }
+
+        sb.append(bytes * 1000 / (1024 * 1024) / Math.max(elapsed, 1));
+        sb.append(" MB/s");
+        while (sb.length() < 42) {
+            sb.append(' ');
+        }
+
+        sb.append(cpu / 1000 / Math.max(bytes / (1024 * 1024), 1));
+        sb.append(" us CPU/MB");
+        while (sb.length() < 60) {
+            sb.append(' ');
+        }
+
+        sb.append(frames).append(" frames");
+
+        System.out.println(sb);
+    }
+
+    /**
+     * Discards the payload of each MSG and replies when it is complete.
+     */
+    private static class Sink implements StartChannelListener, RequestHandler
+    {
+        public boolean advertiseProfile(Session session)
+        {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            channel.setRequestHandler(null);
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            InputDataStream ds = message.getDataStream();
+
+            try {
+                BufferSegment b;
+
+                while ((b = ds.waitForNextSegment()) != null) {
+                    b.release();
+                }
+            } catch (InterruptedException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+                return;
+            }
+
+            try {
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (BEEPException e) {
+                try {
+                    message.sendERR(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                                    "Error sending RPY");
+                } catch (BEEPException x) {
+                    message.getChannel().getSession().terminate(
+                        x.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-frames")) {
+                StringTokenizer st = new StringTokenizer(argv[++i], ",");
+                frameSizes = new int[st.countTokens()];
+                for (int j = 0; j < frameSizes.length; ++j) {
+                    frameSizes[j] = Integer.parseInt(st.nextToken());
+                }
+            } else if (argv[i].equalsIgnoreCase("-window")) {
+                window = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-runs")) {
+                runs = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-socket")) {
+                ++i;
+                if (argv[i].equalsIgnoreCase("channel")) {
+                    channelSockets = true;
+                } else if (argv[i].equalsIgnoreCase("plain")) {
+                    channelSockets = false;
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return size > 0;
+    }
+
+    private static int port = 10294;
+    private static int size = 64;
+    private static int[] frameSizes = {
+        1400, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024
+    };
+    private static int window = 1024 * 1024;
+    private static int runs = 1;
+    private static boolean channelSockets = true;
+
+    private static final String usage =
+        "usage: FrameSize [-size MB] [-frames size,...] [-window bytes] " +
+        "[-runs count]\n" +
+        "                 [-socket channel|plain] [-port port]\n\n" +
+        "options:\n" +
+        "    -size         Message size in megabytes, default 64.\n" +
+        "    -frames       MAX_FRAME_SIZE values, default " +
+        "1400,4096,16384,65536,262144.\n" +
+        "    -window       WINDOW_SIZE, default 1048576.\n" +
+        "    -runs         Transfers with each setting, default 1.\n" +
+        "    -socket       Socket type, default channel.\n" +
+        "    -port port    Specifies the port number.\n";
+}
@@ -0,0 +1,412 @@
+/*
+ * HeaderEncoding.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.transport.nio.NIOSession;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.HeaderWriter;
+import org.beepcore.beep.util.StringUtil;
+
+/**
+ * Measures the time and the heap allocated per frame header for the
+ * <code>HeaderWriter</code>, writing into a reused array and into reused
+ * heap and direct <code>ByteBuffer</code>s, compared with building the
+ * header in a <code>StringBuffer</code> as frames used to.
+ *
+ * It then measures the same per frame, and per SEQ frame, sent through
+ * the transports: <code>sendFrame</code> and
+ * <code>updateMyReceiveBufferSize</code> of a <code>TCPSession</code>
+ * over a plain socket and over a socket channel, and of an
+ * <code>NIOSession</code>, connected to a peer that discards what it
+ * reads. These include formatting the header and writing the frame. The
+ * methods, and the constructors of the frame and its channel, are not
+ * public so they are called reflectively.
+ *
+ * Allocation is read from the HotSpot
+ * <code>com.sun.management.ThreadMXBean</code>, so this requires a
+ * HotSpot based JVM. Run with
+ * <code>java org.beepcore.beep.example.bench.HeaderEncoding</code>.
+ */
+public class HeaderEncoding {
+
+    private static final byte[] MSG = {'M', 'S', 'G'};
+
+    private static final int PAYLOAD_SIZE = 64;
+
+    /** each frame sent is a write, so send fewer than headers formatted */
+    private static final int SEND_SCALE = 50;
+
+    public static void main(String[] argv) throws Exception
+    {
+        int iterations = 5000000;
+
+        if (argv.length == 2 && argv[0].equalsIgnoreCase("-iterations")) {
+            iterations = Integer.parseInt(argv[1]);
+        } else if (argv.length != 0) {
+            System.out.println(usage);
+            return;
+        }
+
+        Case[] cases = {
+            new Case("HeaderWriter byte[]") {
+                byte[] buf = new byte[HEADER_SIZE];
+                int run(int i) {
+                    return HeaderWriter.writeHeader(buf, 0, MSG, i & 0xff, i,
+                                                    true, 4096L * i, 4096,
+                                                    HeaderWriter.NO_ANSNO);
+                }
+            },
+            new Case("HeaderWriter heap ByteBuffer") {
+                ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+                int run(int i) {
+                    buf.clear();
+                    HeaderWriter.writeHeader(buf, MSG, i & 0xff, i, true,
+                                             4096L * i, 4096,
+                                             HeaderWriter.NO_ANSNO);
+                    return buf.position();
+                }
+            },
+            new Case("HeaderWriter direct ByteBuffer") {
+                ByteBuffer buf = ByteBuffer.allocateDirect(HEADER_SIZE);
+                int run(int i) {
+                    buf.clear();
+                    HeaderWriter.writeHeader(buf, MSG, i & 0xff, i, true,
+                                             4096L * i, 4096,
+                                             HeaderWriter.NO_ANSNO);
+                    return buf.position();
+                }
+            },
+            new Case("HeaderWriter SEQ") {
+                byte[] buf = new byte[HeaderWriter.MAX_SEQ_HEADER_SIZE];
+                int run(int i) {
+                    return HeaderWriter.writeSEQ(buf, 0, i & 0xff, 4096L * i,
+                                                 4096);
+                }
+            },
+            new Case("StringBuffer (previous)") {
+                int run(int i) {
+                    StringBuffer header = new StringBuffer(HEADER_SIZE);
+
+                    header.append("MSG");
+                    header.append(' ');
+                    header.append(Integer.toString(i & 0xff));
+                    header.append(' ');
+                    header.append(i);
+                    header.append(' ');
+                    header.append('.');
+                    header.append(' ');
+                    header.append(4096L * i);
+                    header.append(' ');
+                    header.append(4096);
+                    header.append("\r\n");
+
+                    return StringUtil.stringBufferToAscii(header).length;
+                }
+            },
+        };
+
+        ServerSocket sink = startSink();
+        InetSocketAddress address =
+            new InetSocketAddress("localhost", sink.getLocalPort());
+
+        SessionImpl[] sessions = {
+            TCPSession.createInitiator(new Socket("localhost",
+                                                  sink.getLocalPort()),
+                                       new ProfileRegistry()),
+            TCPSession.createInitiator(SocketChannel.open(address).socket(),
+                                       new ProfileRegistry()),
+            NIOSession.createInitiator(SocketChannel.open(address),
+                                       new ProfileRegistry()),
+        };
+        String[] names = {
+            "TCPSession stream", "TCPSession channel", "NIOSession"
+        };
+
+        Case[] sendCases = new Case[sessions.length * 2];
+        for (int s = 0; s < sessions.length; ++s) {
+            sendCases[s * 2] = new SendFrame(names[s] + " frame", sessions[s]);
+            sendCases[s * 2 + 1] = new SendSEQ(names[s] + " SEQ", sessions[s]);
+        }
+
+        try {
+            // warm up so the allocations of the JIT itself are not counted
+            for (int c = 0; c < cases.length; ++c) {
+                cases[c].measure(iterations);
+            }
+            for (int c = 0; c < sendCases.length; ++c) {
+                sendCases[c].measure(iterations);
+            }
+
+            System.out.println("iterations: " + iterations);
+            for (int c = 0; c < cases.length; ++c) {
+                cases[c].measure(iterations);
+                System.out.println(cases[c]);
+            }
+
+            System.out.println("frames sent: " + iterations / SEND_SCALE);
+            for (int c = 0; c < sendCases.length; ++c) {
+                sendCases[c].measure(iterations);
+                System.out.println(sendCases[c]);
+            }
+        } finally {
+            for (int s = 0; s < sessions.length; ++s) {
+                sessions[s].terminate("done");
+            }
+            sink.close();
+        }
+    }
+
+    /**
+     * Accepts connections, sends each a greeting and discards whatever
+     * it reads.
+     */
+    private static ServerSocket startSink() throws IOException
+    {
+        final ServerSocket server = new ServerSocket(0);
+        String payload = "Content-Type: application/beep+xml\r\n\r\n" +
+            "<greeting />";
+        final byte[] greeting = ("RPY 0 0 . 0 " + payload.length() + "\r\n" +
+                                 payload + "END\r\n").getBytes("US-ASCII");
+
+        Thread acceptor = new Thread() {
+                public void run() {
+                    while (true) {
+                        final Socket socket;
+                        try {
+                            socket = server.accept();
+                        } catch (IOException e) {
+                            return;
+                        }
+
+                        Thread reader = new Thread() {
+                                public void run() {
+                                    byte[] b = new byte[64 * 1024];
+                                    try {
+                                        OutputStream os =
+                                            socket.getOutputStream();
+                                        os.write(greeting);
+                                        os.flush();
+
+                                        InputStream is =
+                                            socket.getInputStream();
+                                        while (is.read(b) != -1) {
+                                        }
+                                    } catch (IOException e) {
+                                    }
+                                }
+                            };
+                        reader.setDaemon(true);
+                        reader.start();
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return server;
+    }
+
+    private static abstract class Case {
+        static final int HEADER_SIZE = 61;
+
+        String name;
+        int scale;
+        double nanos;
+        double bytes;
+        long sink;
+
+        Case(String name)
+        {
+            this(name, 1);
+        }
+
+        /**
+         * @param scale divides the iterations of the case.
+         */
+        Case(String name, int scale)
+        {
+            this.name = name;
+            this.scale = scale;
+        }
+
+        abstract int run(int i);
+
+        void measure(int iterations)
+        {
+            iterations /= scale;
+
+            com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+            long tid = Thread.currentThread().getId();
+
+            long allocated = mx.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+
+            for (int i = 0; i < iterations; ++i) {
+                sink += run(i);
+            }
+
+            long elapsed = System.nanoTime() - start;
+            allocated = mx.getThreadAllocatedBytes(tid) - allocated;
+
+            nanos = (double) elapsed / iterations;
+            bytes = (double) allocated / iterations;
+        }
+
+        public String toString()
+        {
+            return pad(name, 32) + pad(format(nanos) + " ns/op", 14) +
+                format(bytes) + " bytes/op";
+        }
+
+        private static String format(double d)
+        {
+            return Double.toString(Math.round(d * 100) / 100.0);
+        }
+
+        private static String pad(String s, int width)
+        {
+            StringBuffer sb = new StringBuffer(s);
+            while (sb.length() < width) {
+                sb.append(' ');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Calls a method of a session reflectively with the same arguments
+     * each time.
+     */
+    private static class SessionCall extends Case {
+        private Method method;
+        private SessionImpl session;
+        private Object[] args;
+
+        SessionCall(String name, SessionImpl session, String method,
+                    Class<?>[] types, Object[] args)
+            throws Exception
+        {
+            super(name, SEND_SCALE);
+
+            this.method = session.getClass().getDeclaredMethod(method, types);
+            this.method.setAccessible(true);
+            this.session = session;
+            this.args = args;
+        }
+
+        int run(int i)
+        {
+            try {
+                method.invoke(session, args);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+
+            return 1;
+        }
+
+        /**
+         * Returns a channel of <code>session</code> that is not started,
+         * the peer does not look at what is sent.
+         */
+        static Channel channel(SessionImpl session) throws Exception
+        {
+            Class<?> c = Class.forName("org.beepcore.beep.core.ChannelImpl");
+            Constructor<?> ctor = c.getDeclaredConstructor(
+                new Class<?>[] {String.class, Integer.TYPE, SessionImpl.class});
+
+            ctor.setAccessible(true);
+            return (Channel) ctor.newInstance(
+                new Object[] {"bench", Integer.valueOf(1), session});
+        }
+    }
+
+    /**
+     * Sends the same frame with a small payload through
+     * <code>sendFrame</code>.
+     */
+    private static class SendFrame extends SessionCall {
+        SendFrame(String name, SessionImpl session) throws Exception
+        {
+            super(name, session, "sendFrame", new Class<?>[] {Frame.class},
+                  new Object[] {frame(channel(session))});
+        }
+
+        private static Frame frame(Channel channel) throws Exception
+        {
+            Constructor<Frame> ctor = Frame.class.getDeclaredConstructor(
+                new Class<?>[] {Integer.TYPE, channel.getClass(), Integer.TYPE,
+                             Boolean.TYPE, Long.TYPE, Integer.TYPE,
+                             Integer.TYPE});
+
+            ctor.setAccessible(true);
+            Frame f = ctor.newInstance(
+                new Object[] {Integer.valueOf(Message.MESSAGE_TYPE_MSG),
+                              channel, Integer.valueOf(1), Boolean.TRUE,
+                              Long.valueOf(0), Integer.valueOf(PAYLOAD_SIZE),
+                              Integer.valueOf(HeaderWriter.NO_ANSNO)});
+
+            f.addPayload(new BufferSegment(new byte[PAYLOAD_SIZE]));
+            return f;
+        }
+    }
+
+    /**
+     * Sends a SEQ frame through <code>updateMyReceiveBufferSize</code>.
+     * The reflective call boxes the <code>boolean</code> it returns, which
+     * is counted unless the JIT removes it.
+     */
+    private static class SendSEQ extends SessionCall {
+        SendSEQ(String name, SessionImpl session) throws Exception
+        {
+            super(name, session, "updateMyReceiveBufferSize",
+                  new Class<?>[] {Channel.class, Long.TYPE, Integer.TYPE},
+                  new Object[] {channel(session), Long.valueOf(4096),
+                                Integer.valueOf(4096)});
+        }
+    }
+
+    private static final String usage =
+        "usage: HeaderEncoding [-iterations count]\n";
+}
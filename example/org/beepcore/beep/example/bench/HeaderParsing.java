@@ -0,0 +1,209 @@
+/*
+ * HeaderParsing.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.lang.management.ManagementFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionCredential;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.HeaderParser;
+
+/**
+ * Measures the time and the heap allocated to parse an inbound frame
+ * header with <code>SessionImpl.createFrame</code>, which includes
+ * resolving the channel, and to parse a SEQ header with
+ * <code>HeaderParser</code>. Both reuse one parser, as the transports'
+ * frame decoders do.
+ *
+ * The session is an unconnected <code>SessionImpl</code> that only has
+ * channel zero. Allocation is read from the HotSpot
+ * <code>com.sun.management.ThreadMXBean</code>, so this requires a
+ * HotSpot based JVM. Run with
+ * <code>java org.beepcore.beep.example.bench.HeaderParsing</code>.
+ */
+public class HeaderParsing {
+
+    public static void main(String[] argv) throws Exception
+    {
+        int iterations = 5000000;
+
+        if (argv.length == 2 && argv[0].equalsIgnoreCase("-iterations")) {
+            iterations = Integer.parseInt(argv[1]);
+        } else if (argv.length != 0) {
+            System.out.println(usage);
+            return;
+        }
+
+        final BenchSession session = new BenchSession();
+        final HeaderParser seqParser = new HeaderParser();
+
+        Case[] cases = {
+            new Case("createFrame MSG", "MSG 0 12345 . 987654 1024") {
+                long run() throws BEEPException {
+                    return session.parse(header).getSize();
+                }
+            },
+            new Case("createFrame ANS", "ANS 0 1 * 4294967295 512 7") {
+                long run() throws BEEPException {
+                    return session.parse(header).getAnsno();
+                }
+            },
+            new Case("HeaderParser SEQ", "SEQ 0 4294967295 4096") {
+                long run() throws BEEPException {
+                    HeaderParser p = seqParser;
+
+                    p.reset(header, 0, header.length);
+                    p.parseType(SEQ);
+                    return p.parseInt() + p.parseUnsignedInt() +
+                        p.parseInt();
+                }
+            },
+        };
+
+        // warm up so the allocations of the JIT itself are not counted
+        for (int c = 0; c < cases.length; ++c) {
+            cases[c].measure(iterations);
+        }
+
+        System.out.println("iterations: " + iterations);
+        for (int c = 0; c < cases.length; ++c) {
+            cases[c].measure(iterations);
+            System.out.println(cases[c]);
+        }
+    }
+
+    private static final byte[][] SEQ = new byte[][] {{'S', 'E', 'Q'}};
+
+    /**
+     * A session without a transport, frames are only parsed.
+     */
+    private static class BenchSession extends SessionImpl {
+
+        /** reused like a transport's decoder reuses its parser */
+        private HeaderParser parser = new HeaderParser();
+
+        BenchSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+
+            // creates channel zero without waiting for a greeting
+            tuningInit();
+        }
+
+        Frame parse(byte[] header) throws BEEPException
+        {
+            parser.reset(header, 0, header.length);
+            return createFrame(parser);
+        }
+
+        protected void disableIO() {}
+
+        protected void enableIO() {}
+
+        protected int getMaxFrameSize()
+        {
+            return 4096;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry registry, Object argument)
+        {
+            return this;
+        }
+
+        protected void sendFrame(Frame f) {}
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+
+    private static abstract class Case {
+        String name;
+        byte[] header;
+        double nanos;
+        double bytes;
+        long sink;
+
+        Case(String name, String header)
+        {
+            this.name = name;
+            this.header = header.getBytes();
+        }
+
+        abstract long run() throws BEEPException;
+
+        void measure(int iterations) throws BEEPException
+        {
+            com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+            long tid = Thread.currentThread().getId();
+
+            long allocated = mx.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+
+            for (int i = 0; i < iterations; ++i) {
+                sink += run();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            allocated = mx.getThreadAllocatedBytes(tid) - allocated;
+
+            nanos = (double) elapsed / iterations;
+            bytes = (double) allocated / iterations;
+        }
+
+        public String toString()
+        {
+            return pad(name, 20) + pad(format(nanos) + " ns/op", 14) +
+                format(bytes) + " bytes/op";
+        }
+
+        private static String format(double d)
+        {
+            return Double.toString(Math.round(d * 100) / 100.0);
+        }
+
+        private static String pad(String s, int width)
+        {
+            StringBuffer sb = new StringBuffer(s);
+            while (sb.length() < width) {
+                sb.append(' ');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final String usage =
+        "usage: HeaderParsing [-iterations count]\n";
+}
@@ -0,0 +1,242 @@
+/*
+ * PipelinedRequests.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Random;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelException;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSession;
+
+/**
+ * Sends many requests at once on one channel of a <code>TCPSession</code>
+ * to a handler that takes a random time of up to <code>-delay</code>
+ * milliseconds for each, as a remote call would, and reports how long
+ * the replies take. The handler's channel hands <code>-depth</code>
+ * requests to it at a time. Each reply carries the number of its
+ * request, the replies must arrive in the order of the requests.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.PipelinedRequests
+ * -depth 16</code>.
+ */
+public class PipelinedRequests {
+
+    private static final String RPC_URI =
+        "http://beepcore.org/beep/bench/RPC";
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setDispatchExecutor(SessionTuningProperties.DISPATCH_FIXED);
+        tuning.setDispatchThreads(Math.max(depth, 1));
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(RPC_URI, new Server(), null);
+
+        final ServerSocket server = ServerSocketChannel.open().socket();
+        server.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread("PipelinedRequests acceptor") {
+                public void run() {
+                    try {
+                        TCPSession.createListener(server.accept(), registry,
+                                                  tuning);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket sock = SocketChannel.open(new InetSocketAddress("localhost",
+                                                               port)).socket();
+        TCPSession session =
+            TCPSession.createInitiator(sock, new ProfileRegistry(), null,
+                                       tuning);
+
+        acceptor.join();
+
+        Channel channel = session.startChannel(RPC_URI);
+        Reply[] replies = new Reply[messages];
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < messages; ++i) {
+            replies[i] = new Reply();
+            channel.sendMSG(new StringOutputDataStream(Integer.toString(i)),
+                            replies[i]);
+        }
+
+        int outOfOrder = 0;
+        for (int i = 0; i < messages; ++i) {
+            if (Integer.parseInt(read(replies[i].getNextReply()
+                                      .getDataStream())) != i)
+            {
+                ++outOfOrder;
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println("pipeline depth:     " + depth);
+        System.out.println("requests:           " + messages + " in " +
+                           elapsed + "ms");
+        System.out.println("requests/s:         " +
+                           (long) messages * 1000 / Math.max(elapsed, 1));
+        System.out.println("handler time:       " +
+                           (long) messages * delay / 2 +
+                           "ms expected if handled one at a time");
+        System.out.println("replies misordered: " + outOfOrder);
+
+        session.close();
+        server.close();
+    }
+
+    private static String read(InputDataStream ds) throws IOException
+    {
+        InputStream is = ds.getInputStream();
+        StringBuffer sb = new StringBuffer();
+        int c;
+
+        while ((c = is.read()) != -1) {
+            sb.append((char) c);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Replies to each MSG with its payload after a random delay.
+     */
+    private static class Server implements StartChannelListener,
+                                           RequestHandler
+    {
+        private final Random random = new Random();
+
+        public boolean advertiseProfile(Session session)
+        {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            channel.setRequestHandler(this);
+            channel.setPipelineDepth(depth);
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            channel.setRequestHandler(null);
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            try {
+                String request = read(message.getDataStream());
+                int wait;
+
+                synchronized (random) {
+                    wait = delay > 0 ? random.nextInt(delay + 1) : 0;
+                }
+                Thread.sleep(wait);
+
+                message.sendRPY(new StringOutputDataStream(request));
+            } catch (Exception e) {
+                try {
+                    message.sendERR(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                                    "Error sending RPY");
+                } catch (BEEPException x) {
+                    message.getChannel().getSession().terminate(
+                        x.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-messages")) {
+                messages = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-delay")) {
+                delay = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-depth")) {
+                depth = Integer.parseInt(argv[++i]);
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return messages > 0 && delay >= 0 && depth > 0;
+    }
+
+    private static int port = 10297;
+    private static int messages = 1000;
+    private static int delay = 10;
+    private static int depth = Channel.DEFAULT_PIPELINE_DEPTH;
+
+    private static final String usage =
+        "usage: PipelinedRequests [-messages count] [-delay ms] " +
+        "[-depth count] [-port port]\n\n" +
+        "options:\n" +
+        "    -messages     Requests sent, default 1000.\n" +
+        "    -delay        Longest time the handler takes for a request, " +
+        "default 10.\n" +
+        "    -depth        Pipeline depth of the handler's channel, " +
+        "default 1.\n" +
+        "    -port port    Specifies the port number.\n";
+}
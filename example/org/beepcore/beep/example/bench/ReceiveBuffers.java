@@ -0,0 +1,270 @@
+/*
+ * ReceiveBuffers.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.InputStream;
+
+import java.lang.management.ManagementFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionCredential;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.transport.tcp.FrameDecoder;
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.HeaderParser;
+
+/**
+ * Measures the heap allocated per received frame when frames are read
+ * and decoded the way <code>TCPSession</code> does, with and without a
+ * <code>BufferPool</code>. Each payload segment is released as soon as
+ * the frame is decoded, as an application consuming the message would.
+ *
+ * The frames come from memory, so this measures the receive path only.
+ * Allocation is read from the HotSpot
+ * <code>com.sun.management.ThreadMXBean</code>, so this requires a
+ * HotSpot based JVM. For example
+ * <code>java org.beepcore.beep.example.bench.ReceiveBuffers -size 1024</code>.
+ */
+public class ReceiveBuffers {
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        Case[] cases = {
+            new Case("heap buffers", null),
+            new Case("pooled buffers", new BufferPool()),
+        };
+
+        // warm up so the allocations of the JIT itself are not counted
+        for (int c = 0; c < cases.length; ++c) {
+            cases[c].measure(frames / 10);
+        }
+
+        System.out.println("frames: " + frames + ", payload: " + size);
+        for (int c = 0; c < cases.length; ++c) {
+            cases[c].measure(frames);
+            System.out.println(cases[c]);
+        }
+    }
+
+    /**
+     * Endlessly repeats MSG frames on channel zero.
+     */
+    private static class FrameStream extends InputStream {
+        private byte[] frame;
+        private int pos = 0;
+
+        FrameStream(int size)
+        {
+            StringBuffer sb = new StringBuffer();
+
+            sb.append("MSG 0 1 . 0 ").append(size).append("\r\n");
+            for (int i = 0; i < size; ++i) {
+                sb.append((char) ('a' + i % 26));
+            }
+            sb.append("END\r\n");
+
+            frame = sb.toString().getBytes();
+        }
+
+        public int read()
+        {
+            int b = frame[pos];
+            pos = (pos + 1) % frame.length;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len)
+        {
+            int n = 0;
+
+            while (n < len) {
+                int c = Math.min(len - n, frame.length - pos);
+
+                System.arraycopy(frame, pos, b, off + n, c);
+                n += c;
+                pos = (pos + c) % frame.length;
+            }
+
+            return n;
+        }
+    }
+
+    /**
+     * A session without a transport, frames are only parsed.
+     */
+    private static class BenchSession extends SessionImpl
+        implements FrameDecoder.Listener
+    {
+        long received = 0;
+
+        BenchSession() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+
+            // creates channel zero without waiting for a greeting
+            tuningInit();
+        }
+
+        public Frame createFrame(HeaderParser header) throws BEEPException
+        {
+            return super.createFrame(header);
+        }
+
+        public boolean receiveFrame(Frame f)
+        {
+            for (int i = 0; i < f.getPayloadCount(); ++i) {
+                f.getPayload(i).release();
+            }
+
+            ++received;
+            return true;
+        }
+
+        public void receiveSEQ(int channelNumber, long ackno, int window) {}
+
+        protected void disableIO() {}
+
+        protected void enableIO() {}
+
+        protected int getMaxFrameSize()
+        {
+            return 4096;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry registry, Object argument)
+        {
+            return this;
+        }
+
+        protected void sendFrame(Frame f) {}
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+
+    private static class Case {
+        String name;
+        BufferPool pool;
+        double nanos;
+        double bytes;
+
+        Case(String name, BufferPool pool)
+        {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        void measure(int count) throws Exception
+        {
+            BenchSession session = new BenchSession();
+            FrameDecoder decoder =
+                new FrameDecoder(session, FrameDecoder.DEFAULT_BUFFER_SIZE,
+                                 pool);
+            InputStream is = new FrameStream(size);
+
+            com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+            long tid = Thread.currentThread().getId();
+
+            long allocated = mx.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+
+            while (session.received < count) {
+                decoder.read(is);
+                decoder.decode();
+            }
+
+            long elapsed = System.nanoTime() - start;
+            allocated = mx.getThreadAllocatedBytes(tid) - allocated;
+
+            decoder.release();
+
+            nanos = (double) elapsed / session.received;
+            bytes = (double) allocated / session.received;
+        }
+
+        public String toString()
+        {
+            return pad(name, 20) + pad(format(nanos) + " ns/frame", 18) +
+                format(bytes) + " bytes/frame";
+        }
+
+        private static String format(double d)
+        {
+            return Double.toString(Math.round(d * 100) / 100.0);
+        }
+
+        private static String pad(String s, int width)
+        {
+            StringBuffer sb = new StringBuffer(s);
+            while (sb.length() < width) {
+                sb.append(' ');
+            }
+            return sb.toString();
+        }
+    }
+
+    private static boolean parseArgs(String[] argv)
+    {
+        for (int i = 0; i < argv.length; ++i) {
+            if (i + 1 == argv.length) {
+                return false;
+            }
+
+            if (argv[i].equalsIgnoreCase("-frames")) {
+                frames = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else {
+                return false;
+            }
+        }
+
+        return size > 0 && size <= 4096;
+    }
+
+    private static int frames = 1000000;
+    private static int size = 1024;
+
+    private static final String usage =
+        "usage: ReceiveBuffers [-frames count] [-size bytes]\n\n" +
+        "options:\n" +
+        "    -frames count  number of frames to decode\n" +
+        "    -size bytes    payload size of each frame, at most 4096\n";
+}
@@ -0,0 +1,268 @@
+/*
+ * RequestPipelining.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.InputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.profile.echo.EchoProfile;
+import org.beepcore.beep.transport.tcp.TCPSession;
+
+/**
+ * Sends echo requests on one channel of a <code>TCPSession</code> with
+ * <code>-outstanding</code> requests in flight, and reports the requests
+ * per second. With <code>-mode reply</code> each outstanding request
+ * has a thread sending it and waiting on a <code>Reply</code> as
+ * <code>Bing</code> does, with <code>-mode future</code> one thread
+ * sends them all and the reply futures count the replies.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.RequestPipelining
+ * -mode future -outstanding 64</code>.
+ */
+public class RequestPipelining {
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+
+        final ServerSocket server = ServerSocketChannel.open().socket();
+        server.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread("RequestPipelining acceptor") {
+                public void run() {
+                    try {
+                        TCPSession.createListener(server.accept(), registry,
+                                                  null);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket sock = SocketChannel.open(new InetSocketAddress("localhost",
+                                                               port)).socket();
+        TCPSession session =
+            TCPSession.createInitiator(sock, new ProfileRegistry(), null,
+                                       null);
+
+        acceptor.join();
+
+        Channel channel = session.startChannel(EchoProfile.ECHO_URI);
+        String request = createRequest(size);
+
+        // warm up
+        runFutures(channel, request, Math.min(messages, 1000));
+
+        long start = System.currentTimeMillis();
+        int failed;
+
+        if (future) {
+            failed = runFutures(channel, request, messages);
+        } else {
+            failed = runReplies(channel, request, messages);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        System.out.println("mode:               " +
+                           (future ? "future" : "reply"));
+        System.out.println("outstanding:        " + outstanding);
+        System.out.println("requests:           " + messages + " in " +
+                           elapsed + "ms");
+        System.out.println("requests/s:         " +
+                           (long) messages * 1000 / Math.max(elapsed, 1));
+        System.out.println("sending threads:    " +
+                           (future ? 1 : outstanding));
+        System.out.println("failed:             " + failed);
+
+        session.close();
+        server.close();
+    }
+
+    /**
+     * Sends the requests from this thread, waiting only while
+     * <code>outstanding</code> requests have not been replied to.
+     */
+    private static int runFutures(Channel channel, String request,
+                                  int count)
+        throws Exception
+    {
+        final Semaphore window = new Semaphore(outstanding);
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger failed = new AtomicInteger();
+
+        BiConsumer<Message, Throwable> counter =
+            new BiConsumer<Message, Throwable>() {
+                public void accept(Message reply, Throwable t) {
+                    if (t != null ||
+                        reply.getMessageType() != Message.MESSAGE_TYPE_RPY)
+                    {
+                        failed.incrementAndGet();
+                    } else {
+                        // runs on the session's reader, must not block
+                        reply.getDataStream().close();
+                    }
+
+                    window.release();
+                    done.countDown();
+                }
+            };
+
+        for (int i = 0; i < count; ++i) {
+            window.acquire();
+            channel.sendMSG(new StringOutputDataStream(request)).getReply()
+                .whenComplete(counter);
+        }
+
+        done.await();
+
+        return failed.get();
+    }
+
+    /**
+     * Sends the requests from <code>outstanding</code> threads, each
+     * waiting for the reply before sending its next request.
+     */
+    private static int runReplies(final Channel channel,
+                                  final String request, int count)
+        throws Exception
+    {
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicInteger failed = new AtomicInteger();
+        Thread[] threads = new Thread[outstanding];
+
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread("RequestPipelining sender " + i) {
+                    public void run() {
+                        while (remaining.getAndDecrement() > 0) {
+                            try {
+                                Reply reply = new Reply();
+                                channel.sendMSG(
+                                    new StringOutputDataStream(request),
+                                    reply);
+
+                                InputStream is = reply.getNextReply()
+                                    .getDataStream().getInputStream();
+                                while (is.read() != -1) {
+                                }
+                            } catch (Exception e) {
+                                failed.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+            threads[i].start();
+        }
+
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i].join();
+        }
+
+        return failed.get();
+    }
+
+    private static String createRequest(int size)
+    {
+        StringBuffer sb = new StringBuffer(size);
+
+        for (int i = 0; i < size; ++i) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-messages")) {
+                messages = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-outstanding")) {
+                outstanding = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-mode")) {
+                ++i;
+                if (argv[i].equalsIgnoreCase("future")) {
+                    future = true;
+                } else if (argv[i].equalsIgnoreCase("reply")) {
+                    future = false;
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return messages > 0 && size > 0 && outstanding > 0;
+    }
+
+    private static int port = 10298;
+    private static int messages = 100000;
+    private static int size = 64;
+    private static int outstanding = 64;
+    private static boolean future = true;
+
+    private static final String usage =
+        "usage: RequestPipelining [-mode future|reply] [-outstanding count] " +
+        "[-messages count]\n" +
+        "                         [-size bytes] [-port port]\n\n" +
+        "options:\n" +
+        "    -mode         future = one thread, replies complete futures.\n" +
+        "                  reply = a thread waiting on a Reply for each " +
+        "outstanding\n" +
+        "                  request, default future.\n" +
+        "    -outstanding  Requests in flight, default 64.\n" +
+        "    -messages     Requests sent, default 100000.\n" +
+        "    -size         Request size, default 64.\n" +
+        "    -port port    Specifies the port number.\n";
+}
@@ -0,0 +1,326 @@
+/*
+ * SendPipeline.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.OutputDataStream;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelException;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.core.WritabilityListener;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Streams one large message on each of several channels of a
+ * <code>TCPSession</code>, each from its own producer thread adding the
+ * message in chunks, and reports how long the producers spent in
+ * <code>OutputDataStream.add</code>. When the producers send the frames
+ * themselves they take turns on the channels' locks and the socket, with
+ * <code>-async</code> they only queue the chunks and wait for the
+ * stream's writability listener once too much is queued.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.SendPipeline
+ * -channels 16 -async true</code>.
+ */
+public class SendPipeline {
+
+    private static final String SINK_URI =
+        "http://beepcore.org/beep/bench/SINK";
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWindowSize(window);
+        tuning.setMaxFrameSize(frameSize);
+        tuning.setSendAsync(async);
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(SINK_URI, new Sink(), null);
+
+        final ServerSocket server = ServerSocketChannel.open().socket();
+        server.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread("SendPipeline acceptor") {
+                public void run() {
+                    try {
+                        TCPSession.createListener(server.accept(), registry,
+                                                  tuning);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket sock = SocketChannel.open(new InetSocketAddress("localhost",
+                                                               port)).socket();
+        TCPSession session =
+            TCPSession.createInitiator(sock, registry, null, tuning);
+
+        acceptor.join();
+
+        final Channel[] c = new Channel[channels];
+        for (int i = 0; i < channels; ++i) {
+            c[i] = session.startChannel(SINK_URI);
+        }
+
+        final byte[] chunk = new byte[chunkSize];
+        final int chunks = (int) ((long) size * 1024 * 1024 / chunkSize);
+        final long[][] addTimes = new long[channels][chunks];
+        final Throwable[] error = new Throwable[1];
+        Thread[] producers = new Thread[channels];
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < channels; ++i) {
+            final Channel channel = c[i];
+            final long[] times = addTimes[i];
+
+            producers[i] = new Thread("SendPipeline producer " + i) {
+                    public void run() {
+                        try {
+                            produce(channel, chunk, times);
+                        } catch (Throwable t) {
+                            error[0] = t;
+                        }
+                    }
+                };
+            producers[i].start();
+        }
+
+        for (int i = 0; i < channels; ++i) {
+            producers[i].join();
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        if (error[0] != null) {
+            System.err.println("Error sending messages: " + error[0]);
+        }
+
+        long[] all = new long[channels * chunks];
+        long total = 0;
+        for (int i = 0; i < channels; ++i) {
+            System.arraycopy(addTimes[i], 0, all, i * chunks, chunks);
+        }
+        Arrays.sort(all);
+        for (int i = 0; i < all.length; ++i) {
+            total += all[i];
+        }
+
+        System.out.println("mode:               " +
+                           (async ? "async, high water " + highWater :
+                            "sync"));
+        System.out.println("channels:           " + channels);
+        System.out.println("sent:               " +
+                           (long) channels * size + "MB in " + elapsed +
+                           "ms");
+        System.out.println("MB/s:               " +
+                           (long) channels * size * 1000 /
+                           Math.max(elapsed, 1));
+        System.out.println("add p50/p99/max:    " + all[all.length / 2] +
+                           "/" + all[all.length * 99 / 100] + "/" +
+                           all[all.length - 1] + "us");
+        System.out.println("time in add:        " +
+                           total / 1000 / channels + "ms per producer");
+
+        session.close();
+        server.close();
+    }
+
+    /**
+     * Adds the message to a stream sent on <code>channel</code>, waiting
+     * while the stream is not writable, and waits for the reply.
+     */
+    private static void produce(Channel channel, byte[] chunk, long[] times)
+        throws BEEPException, InterruptedException
+    {
+        final OutputDataStream ds = new OutputDataStream();
+        final Object lock = new Object();
+
+        if (async) {
+            ds.setWritabilityListener(new WritabilityListener() {
+                    public void writabilityChanged(OutputDataStream stream,
+                                                   boolean writable)
+                    {
+                        if (writable) {
+                            synchronized (lock) {
+                                lock.notifyAll();
+                            }
+                        }
+                    }
+                }, highWater, highWater / 2);
+        }
+
+        Reply reply = new Reply();
+        channel.sendMSG(ds, reply);
+
+        for (int i = 0; i < times.length; ++i) {
+            synchronized (lock) {
+                while (ds.isWritable() == false) {
+                    lock.wait();
+                }
+            }
+
+            long start = System.nanoTime();
+            ds.add(new BufferSegment(chunk));
+            times[i] = (System.nanoTime() - start) / 1000;
+        }
+        ds.setComplete();
+
+        reply.getNextReply();
+    }
+
+    /**
+     * Discards the payload of each MSG and replies when it is complete.
+     */
+    private static class Sink implements StartChannelListener, RequestHandler
+    {
+        public boolean advertiseProfile(Session session)
+        {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            channel.setRequestHandler(null);
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            InputDataStream ds = message.getDataStream();
+
+            try {
+                BufferSegment b;
+
+                while ((b = ds.waitForNextSegment()) != null) {
+                    b.release();
+                }
+            } catch (InterruptedException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+                return;
+            }
+
+            try {
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (BEEPException e) {
+                try {
+                    message.sendERR(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                                    "Error sending RPY");
+                } catch (BEEPException x) {
+                    message.getChannel().getSession().terminate(
+                        x.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-channels")) {
+                channels = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-chunk")) {
+                chunkSize = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-window")) {
+                window = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-framesize")) {
+                frameSize = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-async")) {
+                async = Boolean.valueOf(argv[++i]).booleanValue();
+            } else if (argv[i].equalsIgnoreCase("-highwater")) {
+                highWater = Integer.parseInt(argv[++i]);
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return channels > 0 && size > 0 && chunkSize > 0 && highWater > 1;
+    }
+
+    private static int port = 10296;
+    private static int channels = 8;
+    private static int size = 32;
+    private static int chunkSize = 16 * 1024;
+    private static int window = 256 * 1024;
+    private static int frameSize = 16 * 1024;
+    private static boolean async = false;
+    private static int highWater = 256 * 1024;
+
+    private static final String usage =
+        "usage: SendPipeline [-channels count] [-size MB] [-chunk bytes] " +
+        "[-window bytes]\n" +
+        "                    [-framesize bytes] [-async true|false] " +
+        "[-highwater bytes]\n" +
+        "                    [-port port]\n\n" +
+        "options:\n" +
+        "    -channels     Number of channels, each with a producer " +
+        "thread, default 8.\n" +
+        "    -size         Message size in megabytes, default 32.\n" +
+        "    -chunk        Bytes added at a time, default 16384.\n" +
+        "    -window       WINDOW_SIZE, default 262144.\n" +
+        "    -framesize    MAX_FRAME_SIZE, default 16384.\n" +
+        "    -async        SEND_ASYNC, default false.\n" +
+        "    -highwater    Queued bytes at which an async producer waits, " +
+        "default 262144.\n" +
+        "    -port port    Specifies the port number.\n";
+}
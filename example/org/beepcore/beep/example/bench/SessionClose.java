@@ -0,0 +1,180 @@
+/*
+ * SessionClose.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.profile.echo.EchoProfile;
+import org.beepcore.beep.transport.tcp.TCPSession;
+
+/**
+ * Starts <code>-channels</code> echo channels on a new
+ * <code>TCPSession</code> and reports how long it takes to close the
+ * channels and the session. With <code>-mode serial</code> each channel
+ * is closed with <code>Channel.close</code>, waiting for its reply,
+ * before the session is closed. With <code>-mode pipelined</code>
+ * <code>Session.close(timeout)</code> sends the close requests for all
+ * the channels at once. Use <code>-latency</code> to add a network round
+ * trip to the loopback connection.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.SessionClose
+ * -channels 64 -latency 10 -mode pipelined</code>.
+ */
+public class SessionClose {
+
+    private static final long CLOSE_TIMEOUT = 60000;
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+
+        final ServerSocket server = ServerSocketChannel.open().socket();
+        server.bind(new InetSocketAddress(port));
+
+        Thread acceptor = new Thread("SessionClose acceptor") {
+                public void run() {
+                    try {
+                        for (int i = 0; i < rounds; ++i) {
+                            TCPSession.createListener(server.accept(),
+                                                      registry);
+                        }
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        DelayProxy proxy = null;
+        int connectPort = port;
+        if (latency > 0) {
+            connectPort = port + 1;
+            proxy = new DelayProxy(connectPort, port, latency / 2);
+        }
+
+        long best = Long.MAX_VALUE;
+        long total = 0;
+
+        for (int i = 0; i < rounds; ++i) {
+            Socket sock =
+                SocketChannel.open(new InetSocketAddress("localhost",
+                                                         connectPort))
+                .socket();
+            TCPSession session =
+                TCPSession.createInitiator(sock, new ProfileRegistry());
+
+            Channel[] open =
+                session.startChannels(EchoProfile.ECHO_URI, channels, null);
+
+            long start = System.nanoTime();
+
+            if (mode.equals("serial")) {
+                for (int j = 0; j < open.length; ++j) {
+                    open[j].close();
+                }
+                session.close();
+            } else {
+                session.close(CLOSE_TIMEOUT);
+            }
+
+            long elapsed = (System.nanoTime() - start) / 1000;
+
+            best = Math.min(best, elapsed);
+            total += elapsed;
+        }
+
+        acceptor.join();
+        server.close();
+        if (proxy != null) {
+            proxy.close();
+        }
+
+        System.out.println("mode:               " + mode);
+        System.out.println("channels:           " + channels);
+        System.out.println("round trip:         " + latency + "ms");
+        System.out.println("close time best:    " + best / 1000 + "ms");
+        System.out.println("close time mean:    " + total / rounds / 1000 +
+                           "ms");
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-channels")) {
+                channels = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-rounds")) {
+                rounds = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-latency")) {
+                latency = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-mode")) {
+                mode = argv[++i].toLowerCase();
+                if (mode.equals("serial") == false &&
+                    mode.equals("pipelined") == false)
+                {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return channels > 0 && rounds > 0 && latency >= 0;
+    }
+
+    private static int port = 10286;
+    private static int channels = 64;
+    private static int rounds = 10;
+    private static int latency = 0;
+    private static String mode = "pipelined";
+
+    private static final String usage =
+        "usage: SessionClose [-mode serial|pipelined] [-channels count] " +
+        "[-rounds count]\n" +
+        "                    [-latency ms] [-port port]\n\n" +
+        "options:\n" +
+        "    -mode         serial = Channel.close for each channel, then " +
+        "Session.close.\n" +
+        "                  pipelined = Session.close(timeout), default.\n" +
+        "    -channels     Channels open on each session, default 64.\n" +
+        "    -rounds       Sessions closed, default 10.\n" +
+        "    -latency      Round trip time added by a proxy, default 0.\n" +
+        "    -port port    Specifies the port number.\n";
+}
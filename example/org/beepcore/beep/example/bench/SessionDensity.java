@@ -0,0 +1,198 @@
+/*
+ * SessionDensity.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.transport.nio.NIOSessionCreator;
+import org.beepcore.beep.transport.tcp.TCPSessionCreator;
+
+/**
+ * Measures the cost of idle sessions for a transport. Opens the requested
+ * number of sessions over loopback (both the initiating and the listening
+ * side live in this JVM) and reports the live thread count and the heap
+ * retained per session.
+ *
+ * Run with a large heap and a raised open file limit, for example
+ * <code>java -Xmx2g org.beepcore.beep.example.bench.SessionDensity
+ * -transport nio -sessions 10000</code>.
+ */
+public class SessionDensity {
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        final List<Session> listeners = new ArrayList<Session>(sessions);
+        List<Session> initiators = new ArrayList<Session>(sessions);
+
+        long heapBefore = usedHeap();
+        int threadsBefore = threadCount();
+
+        Thread acceptor = new Thread("SessionDensity acceptor") {
+                public void run() {
+                    try {
+                        for (int i = 0; i < sessions; ++i) {
+                            Session s;
+                            if (nio) {
+                                s = NIOSessionCreator.listen(port, registry);
+                            } else {
+                                s = TCPSessionCreator.listen(port, registry);
+                            }
+                            synchronized (listeners) {
+                                listeners.add(s);
+                            }
+                        }
+                    } catch (BEEPException e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // give the acceptor a chance to bind
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < sessions; ++i) {
+            try {
+                if (nio) {
+                    initiators.add(NIOSessionCreator.initiate("localhost",
+                                                              port,
+                                                              registry));
+                } else {
+                    initiators.add(TCPSessionCreator.initiate("localhost",
+                                                              port,
+                                                              registry));
+                }
+            } catch (BEEPException e) {
+                System.err.println("Error initiating session " + i + ": " +
+                                   e.getMessage() +
+                                   " (check the open file limit)");
+                break;
+            }
+        }
+
+        acceptor.join();
+
+        long elapsed = System.currentTimeMillis() - start;
+        int opened = initiators.size();
+
+        long heapAfter = usedHeap();
+        int threadsAfter = threadCount();
+
+        System.out.println("transport:            " + (nio ? "nio" : "tcp"));
+        System.out.println("sessions (each side): " + opened);
+        System.out.println("setup time:           " + elapsed + "ms");
+        System.out.println("threads:              " + threadsBefore + " -> " +
+                           threadsAfter);
+        if (opened > 0) {
+            System.out.println("heap per session:     " +
+                               ((heapAfter - heapBefore) / (opened * 2)) +
+                               " bytes");
+        }
+
+        start = System.currentTimeMillis();
+
+        for (Iterator<Session> i = initiators.iterator(); i.hasNext();) {
+            try {
+                i.next().close();
+            } catch (BEEPException e) {
+                System.err.println("Error closing session: " + e.getMessage());
+            }
+        }
+
+        System.out.println("close time:           " +
+                           (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime rt = Runtime.getRuntime();
+
+        for (int i = 0; i < 4; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static int threadCount()
+    {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (argv[i].equalsIgnoreCase("-port") && i + 1 < argv.length) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-sessions") &&
+                       i + 1 < argv.length)
+            {
+                sessions = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-transport") &&
+                       i + 1 < argv.length)
+            {
+                ++i;
+                if (argv[i].equalsIgnoreCase("nio")) {
+                    nio = true;
+                } else if (argv[i].equalsIgnoreCase("tcp")) {
+                    nio = false;
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return true;
+    }
+
+    private static boolean nio = true;
+    private static int port = 10290;
+    private static int sessions = 1000;
+
+    private static final String usage =
+        "usage: SessionDensity [-transport nio|tcp] [-sessions count] " +
+        "[-port port]\n\n" +
+        "options:\n" +
+        "    -transport    Transport to measure, default nio.\n" +
+        "    -sessions     Number of sessions to open, default 1000.\n" +
+        "    -port port    Specifies the port number.\n";
+}
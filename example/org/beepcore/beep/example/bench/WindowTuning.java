@@ -0,0 +1,328 @@
+/*
+ * WindowTuning.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.InputDataStream;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelException;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.transport.tcp.TCPSession;
+import org.beepcore.beep.util.BufferSegment;
+
+/**
+ * Measures the throughput of one channel sending a large message over a
+ * loopback connection with an injected round trip time, with fixed and
+ * with automatically tuned receive windows. The connection passes
+ * through a proxy that holds everything it forwards for half the round
+ * trip time in each direction.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.WindowTuning
+ * -rtt 40 -size 4</code>.
+ */
+public class WindowTuning {
+
+    private static final String SINK_URI =
+        "http://beepcore.org/beep/bench/SINK";
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        byte[] message = new byte[size * 1024 * 1024];
+
+        System.out.println("rtt: " + rtt + "ms, message: " + size + "MB");
+
+        for (int r = 0; r < runs; ++r) {
+            report("fixed window", send(message, false), message.length);
+            report("auto-tuned", send(message, true), message.length);
+        }
+    }
+
+    private static long send(byte[] message, boolean autoTune)
+        throws Exception
+    {
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWindowAutoTune(autoTune);
+        tuning.setWindowMaxSize(maxWindow);
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(SINK_URI, new Sink(), null);
+
+        final ServerSocket server = new ServerSocket(port);
+        final ServerSocket proxy = new ServerSocket(port + 1);
+
+        Thread acceptor = new Thread("WindowTuning acceptor") {
+                public void run() {
+                    try {
+                        TCPSession.createListener(server.accept(), registry,
+                                                  tuning);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Thread proxyAcceptor = new Thread("WindowTuning proxy") {
+                public void run() {
+                    try {
+                        Socket a = proxy.accept();
+                        Socket b = new Socket("localhost", port);
+
+                        new Delay(a, b, rtt / 2).start();
+                        new Delay(b, a, rtt / 2).start();
+                    } catch (IOException e) {
+                        System.err.println("Error accepting connection: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        proxyAcceptor.start();
+
+        TCPSession session =
+            TCPSession.createInitiator(new Socket("localhost", port + 1),
+                                       registry, null, tuning);
+
+        acceptor.join();
+
+        Channel channel = session.startChannel(SINK_URI);
+
+        Reply reply = new Reply();
+        long start = System.currentTimeMillis();
+
+        channel.sendMSG(new ByteOutputDataStream(message), reply);
+        reply.getNextReply();
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        session.close();
+        server.close();
+        proxy.close();
+
+        return elapsed;
+    }
+
+    private static void report(String name, long elapsed, long bytes)
+    {
+        StringBuffer sb = new StringBuffer(name);
+        while (sb.length() < 16) {
+            sb.append(' ');
+        }
+
+        sb.append(elapsed).append("ms");
+        while (sb.length() < 28) {
+            sb.append(' ');
+        }
+
+        sb.append(bytes * 1000 / 1024 / Math.max(elapsed, 1));
+        sb.append(" KB/s");
+
+        System.out.println(sb);
+    }
+
+    /**
+     * Forwards what it reads from one socket to another once it is
+     * <code>delay</code> milliseconds old.
+     */
+    private static class Delay extends Thread {
+        private InputStream in;
+        private OutputStream out;
+        private long delay;
+        private BlockingQueue<Object[]> queue =
+            new LinkedBlockingQueue<Object[]>();
+
+        Delay(Socket from, Socket to, long delay) throws IOException
+        {
+            super("WindowTuning delay");
+            setDaemon(true);
+
+            this.in = from.getInputStream();
+            this.out = to.getOutputStream();
+            this.delay = delay;
+        }
+
+        public void run()
+        {
+            Thread writer = new Thread("WindowTuning delay writer") {
+                    public void run() {
+                        try {
+                            while (true) {
+                                Object[] chunk = queue.take();
+                                byte[] b = (byte[]) chunk[1];
+
+                                long wait = ((Long) chunk[0]).longValue() -
+                                    System.currentTimeMillis();
+                                if (wait > 0) {
+                                    Thread.sleep(wait);
+                                }
+
+                                if (b == null) {
+                                    out.close();
+                                    return;
+                                }
+                                out.write(b);
+                            }
+                        } catch (Exception e) {
+                        }
+                    }
+                };
+            writer.setDaemon(true);
+            writer.start();
+
+            byte[] buf = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    byte[] b = new byte[n];
+                    System.arraycopy(buf, 0, b, 0, n);
+                    queue.put(new Object[] {
+                        new Long(System.currentTimeMillis() + delay), b
+                    });
+                }
+            } catch (Exception e) {
+            }
+
+            queue.add(new Object[] {
+                new Long(System.currentTimeMillis() + delay), null
+            });
+        }
+    }
+
+    /**
+     * Discards the payload of each MSG and replies when it is complete.
+     */
+    private static class Sink implements StartChannelListener, RequestHandler
+    {
+        public boolean advertiseProfile(Session session)
+        {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+            throws StartChannelException
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            channel.setRequestHandler(null);
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            InputDataStream ds = message.getDataStream();
+
+            try {
+                BufferSegment b;
+
+                while ((b = ds.waitForNextSegment()) != null) {
+                    b.release();
+                }
+            } catch (InterruptedException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+                return;
+            }
+
+            try {
+                message.sendRPY(new StringOutputDataStream("done"));
+            } catch (BEEPException e) {
+                try {
+                    message.sendERR(BEEPError.CODE_REQUESTED_ACTION_ABORTED,
+                                    "Error sending RPY");
+                } catch (BEEPException x) {
+                    message.getChannel().getSession().terminate(
+                        x.getMessage());
+                }
+            }
+        }
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-rtt")) {
+                rtt = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-maxwindow")) {
+                maxWindow = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-runs")) {
+                runs = Integer.parseInt(argv[++i]);
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return size > 0 && rtt >= 0;
+    }
+
+    private static int port = 10293;
+    private static int rtt = 40;
+    private static int size = 2;
+    private static int maxWindow =
+        SessionTuningProperties.DEFAULT_WINDOW_MAX_SIZE;
+    private static int runs = 1;
+
+    private static final String usage =
+        "usage: WindowTuning [-rtt ms] [-size MB] [-maxwindow bytes] " +
+        "[-runs count]\n" +
+        "                    [-port port]\n\n" +
+        "options:\n" +
+        "    -rtt          Injected round trip time, default 40.\n" +
+        "    -size         Message size in megabytes, default 2.\n" +
+        "    -maxwindow    WINDOW_MAX_SIZE, default 1048576.\n" +
+        "    -runs         Transfers with each setting, default 1.\n" +
+        "    -port port    Port of the listener, the proxy uses the " +
+        "next one.\n";
+}
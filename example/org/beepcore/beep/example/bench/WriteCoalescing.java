@@ -0,0 +1,289 @@
+/*
+ * WriteCoalescing.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.example.bench;
+
+import java.io.InputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StringOutputDataStream;
+import org.beepcore.beep.lib.Reply;
+import org.beepcore.beep.profile.echo.EchoProfile;
+import org.beepcore.beep.transport.tcp.TCPSession;
+
+/**
+ * Measures the message rate of many channels sending small messages on
+ * one <code>TCPSession</code> and how many frames share a write with the
+ * given write batching settings. Each channel has its own thread that
+ * sends a message to the echo profile and waits for the reply.
+ *
+ * The SEQ frames both peers send per kilobyte of data they receive are
+ * reported for the given window update policy.
+ *
+ * For example <code>java org.beepcore.beep.example.bench.WriteCoalescing
+ * -channels 64 -delay 1 -seqpolicy piggyback</code>.
+ */
+public class WriteCoalescing {
+
+    public static void main(String[] argv) throws Exception
+    {
+        if (parseArgs(argv) == false) {
+            System.out.println(usage);
+            return;
+        }
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+
+        final SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWriteMaxDelay(delay);
+        tuning.setWriteMaxBytes(maxBytes);
+        tuning.setWindowUpdatePolicy(seqPolicy);
+        tuning.setDispatchExecutor(dispatch);
+
+        final ServerSocket server;
+        if (channelSockets) {
+            server = ServerSocketChannel.open().socket();
+            server.bind(new InetSocketAddress(port));
+        } else {
+            server = new ServerSocket(port);
+        }
+
+        final TCPSession[] listener = new TCPSession[1];
+        Thread acceptor = new Thread("WriteCoalescing acceptor") {
+                public void run() {
+                    try {
+                        listener[0] =
+                            TCPSession.createListener(server.accept(),
+                                                      registry, tuning);
+                    } catch (Exception e) {
+                        System.err.println("Error accepting session: " +
+                                           e.getMessage());
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket sock;
+        if (channelSockets) {
+            sock = SocketChannel.open(new InetSocketAddress("localhost",
+                                                            port)).socket();
+        } else {
+            sock = new Socket("localhost", port);
+        }
+
+        TCPSession session =
+            TCPSession.createInitiator(sock, registry, null, tuning);
+
+        acceptor.join();
+
+        final Channel[] c = new Channel[channels];
+        for (int i = 0; i < channels; ++i) {
+            c[i] = session.startChannel(EchoProfile.ECHO_URI);
+        }
+
+        final String request = createRequest(size);
+        final Throwable[] error = new Throwable[1];
+        Thread[] senders = new Thread[channels];
+
+        long flushesBefore = session.getFlushCount();
+        long framesBefore = session.getFramesWritten();
+        long bytesBefore = session.getBytesWritten();
+        long seqsBefore = session.getWindowUpdatesSent() +
+            listener[0].getWindowUpdatesSent();
+        long receivedBefore = session.getPayloadBytesReceived() +
+            listener[0].getPayloadBytesReceived();
+        long dispatchesBefore = listener[0].getDispatchCount();
+        long dispatchLatencyBefore = listener[0].getDispatchLatency();
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < channels; ++i) {
+            final Channel channel = c[i];
+
+            senders[i] = new Thread("WriteCoalescing sender " + i) {
+                    public void run() {
+                        try {
+                            for (int j = 0; j < messages; ++j) {
+                                Reply reply = new Reply();
+
+                                channel.sendMSG(
+                                    new StringOutputDataStream(request),
+                                    reply);
+
+                                InputStream is = reply.getNextReply()
+                                    .getDataStream().getInputStream();
+                                while (is.read() != -1) {
+                                }
+                            }
+                        } catch (Throwable t) {
+                            error[0] = t;
+                        }
+                    }
+                };
+            senders[i].start();
+        }
+
+        for (int i = 0; i < channels; ++i) {
+            senders[i].join();
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        if (error[0] != null) {
+            System.err.println("Error sending messages: " + error[0]);
+        }
+
+        long flushes = session.getFlushCount() - flushesBefore;
+        long frames = session.getFramesWritten() - framesBefore;
+        long bytes = session.getBytesWritten() - bytesBefore;
+        long total = (long) channels * messages;
+        long seqs = session.getWindowUpdatesSent() +
+            listener[0].getWindowUpdatesSent() - seqsBefore;
+        long received = session.getPayloadBytesReceived() +
+            listener[0].getPayloadBytesReceived() - receivedBefore;
+        long dispatches = listener[0].getDispatchCount() - dispatchesBefore;
+        long dispatchLatency =
+            listener[0].getDispatchLatency() - dispatchLatencyBefore;
+
+        System.out.println("socket:             " +
+                           (channelSockets ? "channel" : "plain"));
+        System.out.println("channels:           " + channels);
+        System.out.println("max delay/bytes:    " + delay + "ms/" + maxBytes);
+        System.out.println("messages:           " + total + " in " +
+                           elapsed + "ms");
+        System.out.println("messages/sec:       " +
+                           (total * 1000 / Math.max(elapsed, 1)));
+        System.out.println("frames per flush:   " +
+                           (flushes == 0 ? 0 : (double) frames / flushes));
+        System.out.println("bytes per flush:    " +
+                           (flushes == 0 ? 0 : bytes / flushes));
+        System.out.println("SEQ policy:         " + seqPolicy);
+        System.out.println("SEQs per message:   " + (double) seqs / total);
+        System.out.println("SEQs per KB:        " +
+                           (received == 0 ? 0 :
+                            (double) seqs * 1024 / received));
+        System.out.println("dispatch executor:  " + dispatch);
+        System.out.println("dispatch wait:      " +
+                           (dispatches == 0 ? 0 :
+                            dispatchLatency / dispatches / 1000) +
+                           "us mean, " +
+                           listener[0].getMaxDispatchLatency() / 1000 +
+                           "us max");
+        System.out.println("dispatch queue max: " +
+                           listener[0].getMaxDispatchQueueDepth());
+
+        session.close();
+        server.close();
+    }
+
+    private static String createRequest(int size)
+    {
+        StringBuffer sb = new StringBuffer(size);
+
+        for (int i = 0; i < size; ++i) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+
+        return sb.toString();
+    }
+
+    private static boolean parseArgs(String[] argv) {
+        int i = 0;
+        while (i < argv.length) {
+            if (i + 1 >= argv.length) {
+                return false;
+            } else if (argv[i].equalsIgnoreCase("-port")) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-channels")) {
+                channels = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-messages")) {
+                messages = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-size")) {
+                size = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-delay")) {
+                delay = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-maxbytes")) {
+                maxBytes = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equalsIgnoreCase("-seqpolicy")) {
+                seqPolicy = argv[++i];
+            } else if (argv[i].equalsIgnoreCase("-dispatch")) {
+                dispatch = argv[++i];
+            } else if (argv[i].equalsIgnoreCase("-socket")) {
+                ++i;
+                if (argv[i].equalsIgnoreCase("channel")) {
+                    channelSockets = true;
+                } else if (argv[i].equalsIgnoreCase("plain")) {
+                    channelSockets = false;
+                } else {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            ++i;
+        }
+
+        return true;
+    }
+
+    private static int port = 10291;
+    private static int channels = 32;
+    private static int messages = 1000;
+    private static int size = 64;
+    private static int delay = SessionTuningProperties.DEFAULT_WRITE_MAX_DELAY;
+    private static int maxBytes =
+        SessionTuningProperties.DEFAULT_WRITE_MAX_BYTES;
+    private static boolean channelSockets = true;
+    private static String seqPolicy =
+        SessionTuningProperties.WINDOW_UPDATE_THRESHOLD_POLICY;
+    private static String dispatch = SessionTuningProperties.DISPATCH_SHARED;
+
+    private static final String usage =
+        "usage: WriteCoalescing [-channels count] [-messages count] " +
+        "[-size bytes]\n" +
+        "                       [-delay ms] [-maxbytes bytes] " +
+        "[-socket channel|plain] [-port port]\n" +
+        "                       [-seqpolicy policy] [-dispatch executor]\n\n" +
+        "options:\n" +
+        "    -channels     Number of channels, each with a sender thread, " +
+        "default 32.\n" +
+        "    -messages     Messages sent by each channel, default 1000.\n" +
+        "    -size         Message size, default 64.\n" +
+        "    -delay        WRITE_MAX_DELAY in milliseconds, default 0.\n" +
+        "    -maxbytes     WRITE_MAX_BYTES, default 65536.\n" +
+        "    -socket       Socket type, default channel.\n" +
+        "    -seqpolicy    WINDOW_UPDATE_POLICY, threshold, quantum, " +
+        "delayed or\n" +
+        "                  piggyback, default threshold.\n" +
+        "    -dispatch     DISPATCH_EXECUTOR of the listener, shared, " +
+        "fixed, caller or\n" +
+        "                  virtual, default shared.\n" +
+        "    -port port    Specifies the port number.\n";
+}
@@ -195,7 +195,7 @@ public class ByteOutputDataStream extends OutputDataStream {
      *
      * @throws BEEPException
      */
-    public Enumeration getHeaderNames() throws BEEPException
+    public Enumeration<String> getHeaderNames() throws BEEPException
     {
         return this.mimeHeaders.getHeaderNames();
     }
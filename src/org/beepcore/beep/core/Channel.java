@@ -36,6 +36,9 @@ public interface Channel {
     public static final int STATE_CLOSED = 7;
     public static final int STATE_ABORTED = 8;
 
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int DEFAULT_PIPELINE_DEPTH = 1;
+
     /**
      * Closes the channel.
      *
@@ -122,6 +125,25 @@ public interface Channel {
                                  ReplyListener replyListener)
             throws BEEPException;
 
+    /**
+     * Sends a MSG message without a reply listener. The RPY or ERR
+     * completes the future returned by the status'
+     * <code>getReply</code>, so many requests can be outstanding without
+     * a thread waiting for each. ANS replies are discarded, use a
+     * <code>ReplyListener</code> for one-to-many exchanges.
+     *
+     * @param stream Data contents of the MSG message to be sent.
+     *
+     * @see MessageStatus#getReply
+     * @see MessageStatus#getSent
+     *
+     * @return MessageStatus
+     *
+     * @throws BEEPException if an error is encoutered.
+     */
+    public MessageStatus sendMSG(OutputDataStream stream)
+            throws BEEPException;
+
     /**
      * @deprecated
      */
@@ -133,4 +155,56 @@ public interface Channel {
     public String getStartData();
 
     public String getProfile();
+
+    /**
+     * Returns the largest payload of the frames this channel sends, which
+     * is the session's unless set for this channel.
+     *
+     * @throws BEEPException if the session's frame size can not be
+     * determined.
+     */
+    public int getMaxFrameSize() throws BEEPException;
+
+    /**
+     * Sets the largest payload of the frames this channel sends. Large
+     * frames cost less per byte for bulk transfers, small frames keep
+     * a channel from holding up the session's other channels.
+     *
+     * @param size the frame size in bytes, or 0 to use the session's.
+     */
+    public void setMaxFrameSize(int size);
+
+    /**
+     * Returns this channel's share of the session's writes.
+     */
+    public int getWeight();
+
+    /**
+     * Sets this channel's share of the session's writes relative to the
+     * other channels with frames waiting to be written. A channel with a
+     * weight of 4 may write four times as much as a channel with the
+     * default weight of 1 while both have data to send. Frames of
+     * channel zero are always written first.
+     *
+     * @param weight the channel's weight, at least 1.
+     */
+    public void setWeight(int weight);
+
+    /**
+     * Returns the number of received MSGs this channel hands to its
+     * request handler at the same time.
+     */
+    public int getPipelineDepth();
+
+    /**
+     * Sets the number of received MSGs this channel hands to its request
+     * handler at the same time. By default a MSG is handled once the
+     * reply to the previous one has been sent. With a larger depth the
+     * handler must be thread safe, its replies are held back until the
+     * replies to the earlier MSGs are sent, so the peer still receives
+     * them in the order of the MSGs.
+     *
+     * @param depth the number of MSGs handled at a time, at least 1.
+     */
+    public void setPipelineDepth(int depth);
 }
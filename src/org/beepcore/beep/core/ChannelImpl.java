@@ -41,13 +41,21 @@ package org.beepcore.beep.core;
 
 import java.util.*;
 
-import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -61,19 +69,24 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @version $Revision: 1.12 $, $Date: 2006/02/25 17:48:37 $
  *
  */
-class ChannelImpl implements Channel, Runnable {
+class ChannelImpl implements Channel {
 
     // class variables
     private static final BufferSegment zeroLengthSegment =
         new BufferSegment(new byte[0]);
 
-    private static final PooledExecutor callbackQueue =
-        new PooledExecutor();
+    /** the default executor for received messages, see getDispatchExecutor */
+    private static ExecutorService sharedDispatchExecutor = null;
+
+    /** sends the SEQ frames held back by a delayed window update policy */
+    private static ScheduledExecutorService windowUpdateTimer = null;
 
     /** @todo check this */
 
     // default values for some variables
     static final int DEFAULT_WINDOW_SIZE = 4096;
+    static final WindowUpdatePolicy DEFAULT_WINDOW_UPDATE_POLICY =
+        WindowUpdatePolicy.threshold(50);
 
     static final RequestHandler defaultHandler = new DefaultMSGHandler();
 
@@ -88,7 +101,7 @@ class ChannelImpl implements Channel, Runnable {
     private String encoding;
 
     /** channel number on the session */
-    private String number;
+    private int number;
 
     /** Used to pass data sent on the Start Channel request */
     private String startData;
@@ -106,13 +119,37 @@ class ChannelImpl implements Channel, Runnable {
     private long recvSequence;
 
     /** messages waiting for replies */
-    private List sentMSGQueue;
+    private List<MessageStatus> sentMSGQueue;
 
     /** MSG we've received by awaiting proceesing of a former MSG */
-    private LinkedList recvMSGQueue;
+    private LinkedList<MessageMSGImpl> recvMSGQueue;
 
     /** messages queued to be sent */
-    private LinkedList pendingSendMessages;
+    private ConcurrentLinkedQueue<MessageStatus> pendingSendMessages;
+
+    /** hands received messages to the request handler, one at a time */
+    private volatile Executor dispatcher;
+
+    /** runs the request handler when more than one MSG is handled */
+    private volatile Executor pipelineExecutor;
+
+    /** MSGs that may be handled at the same time */
+    private volatile int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
+    /**
+     * number of MSGs at the head of recvMSGQueue handed to the handler,
+     * guarded by recvMSGQueue
+     */
+    private int dispatchedMSGs = 0;
+
+    /**
+     * passes replies to reply listeners, one at a time, or
+     * <code>null</code> to pass them on the reader thread
+     */
+    private volatile Executor replyDispatcher = null;
+
+    /** set while the channel is queued to the session's sender */
+    private final AtomicBoolean sendScheduled = new AtomicBoolean();
 
     /** session this channel sends through. */
     SessionImpl session;
@@ -136,6 +173,37 @@ class ChannelImpl implements Channel, Runnable {
 
     private AtomicInteger recvWindowFreed;
 
+    /** guards recvSequence and the receive window accounting */
+    private final Object recvLock = new Object();
+
+    /** sizes the receive window if the session auto-tunes windows */
+    private ReceiveWindowTuner windowTuner = null;
+
+    /** bytes the peer may send before it receives another SEQ */
+    private int recvAllowance = DEFAULT_WINDOW_SIZE;
+
+    /** the session's account if received data counts against a budget */
+    private ReceiveMemoryBudget.Account receiveMemory = null;
+
+    /** received bytes counted against the budget and not yet consumed */
+    private int receiveMemoryHeld = 0;
+
+    private boolean waitingForMemory = false;
+
+    private WindowUpdatePolicy windowUpdatePolicy =
+        DEFAULT_WINDOW_UPDATE_POLICY;
+
+    /** whether a delayed SEQ has been scheduled */
+    private boolean windowUpdateScheduled = false;
+
+    /** whether the peer has been told about a window larger than 4K */
+    private boolean windowAdvertised = true;
+
+    /** largest frame payload set for this channel, 0 for the session's */
+    private volatile int maxFrameSize = 0;
+
+    private volatile int weight = DEFAULT_WEIGHT;
+
     private Object applicationData = null;
 
     // tuningProfile indicates that the profile for this channel will
@@ -150,7 +218,7 @@ class ChannelImpl implements Channel, Runnable {
             + getStateString() + " on " + session.toString() + ")";
     }
     
-    ChannelImpl(String profile, String number,
+    ChannelImpl(String profile, int number,
                 RequestHandler handler, boolean tuningReset, SessionImpl session)
     {
         this.profile = profile;
@@ -162,18 +230,48 @@ class ChannelImpl implements Channel, Runnable {
         recvSequence = 0;
         lastMessageSent = 1;
 
-        pendingSendMessages = new LinkedList();
-        sentMSGQueue = Collections.synchronizedList(new LinkedList());
-        recvMSGQueue = new LinkedList();
+        pendingSendMessages = new ConcurrentLinkedQueue<MessageStatus>();
+        sentMSGQueue =
+            Collections.synchronizedList(new LinkedList<MessageStatus>());
+        recvMSGQueue = new LinkedList<MessageMSGImpl>();
         recvReplyQueue = new LinkedList();
         state = STATE_INITIALIZED;
         recvWindowUsed = new AtomicInteger(0);
         recvWindowFreed = new AtomicInteger(0);
         recvWindowSize = new AtomicInteger(DEFAULT_WINDOW_SIZE);
         peerWindowSize = new AtomicInteger(DEFAULT_WINDOW_SIZE);
+
+        SessionTuningProperties tuning =
+            session == null ? null : session.getTuningProperties();
+        int window = DEFAULT_WINDOW_SIZE;
+        if (number != 0 && tuning != null) {
+            window = tuning.getWindowSize();
+            recvWindowSize.set(window);
+            windowAdvertised = (window == DEFAULT_WINDOW_SIZE);
+        }
+
+        if (number != 0 && tuning != null && tuning.getWindowAutoTune()) {
+            windowTuner =
+                new ReceiveWindowTuner(window,
+                                       tuning.getWindowMaxSize(),
+                                       session.getTunedWindowGrowth(),
+                                       tuning.getSessionWindowMaxSize(),
+                                       System.nanoTime());
+        }
+
+        if (session != null && session.getReceiveMemory() != null) {
+            receiveMemory = session.getReceiveMemory();
+            receiveMemory.addChannel();
+        }
+
+        if (session != null) {
+            windowUpdatePolicy = session.getWindowUpdatePolicy();
+        }
+
+        setDispatcher();
     }
 
-    ChannelImpl(String profile, String number, SessionImpl session)
+    ChannelImpl(String profile, int number, SessionImpl session)
     {
         this(profile, number, defaultHandler, false, session);
     }
@@ -182,7 +280,7 @@ class ChannelImpl implements Channel, Runnable {
                                          ReplyListener reply,
                                          RequestHandler handler)
     {
-        ChannelImpl channel = new ChannelImpl(null, "0", handler,
+        ChannelImpl channel = new ChannelImpl(null, 0, handler,
                                               true, session);
 
         // Add a MSG to the SentMSGQueue to fake channel into accepting the
@@ -190,7 +288,10 @@ class ChannelImpl implements Channel, Runnable {
         channel.sentMSGQueue.add(new MessageStatus(channel,
                                                    Message.MESSAGE_TYPE_MSG, 0,
                                                    null, reply));
-        channel.recvMSGQueue.add(new MessageMSGImpl(channel, 0, null));
+        MessageMSGImpl greeting = new MessageMSGImpl(channel, 0, null);
+        greeting.replied = true;
+        channel.recvMSGQueue.add(greeting);
+        channel.dispatchedMSGs = 1;
 
         channel.state = STATE_ACTIVE;
 
@@ -261,11 +362,13 @@ class ChannelImpl implements Channel, Runnable {
      */
     public int getNumber()
     {
-        return Integer.parseInt(number);
+        return number;
     }
 
     /**
      * Sets the receive buffer size for this channel.  Default size is 4K.
+     * Setting the size turns off automatic tuning of the channel's
+     * window.
      *
      *
      * @param size
@@ -287,6 +390,13 @@ class ChannelImpl implements Channel, Runnable {
                     "currently in use.");
             }
 
+            synchronized (recvLock) {
+                if (windowTuner != null) {
+                    windowTuner.release();
+                    windowTuner = null;
+                }
+            }
+
             // set the new size and copy the buffer
             recvWindowSize.set(size);
 
@@ -347,18 +457,6 @@ class ChannelImpl implements Channel, Runnable {
         return this.session;
     }
 
-    public void run() {
-        MessageMSGImpl m;
-        synchronized (recvMSGQueue) {
-                m = (MessageMSGImpl) recvMSGQueue.getFirst();
-                synchronized (m) {
-                    m.setNotified();
-                }
-        }
-
-        handler.receiveMSG(m);
-    }
-
     /**
      * Sends a message of type MSG.
      *
@@ -388,7 +486,8 @@ class ChannelImpl implements Channel, Runnable {
             }
         }
 
-        synchronized (this) {
+        // not the channel's lock, which is held while frames are written
+        synchronized (sentMSGQueue) {
 
             // create a new request
             status = new MessageStatus(this, Message.MESSAGE_TYPE_MSG,
@@ -400,17 +499,29 @@ class ChannelImpl implements Channel, Runnable {
             // put this in the list of messages waiting
             // may want to put an expiration or something in here so they
             // don't just stay around taking up space.
-            // @todo it's a synchronized list, you don't have to sync
-            synchronized (sentMSGQueue) {
-                sentMSGQueue.add(status);
-            }
-            // send it on the session
-            sendToPeer(status);
+            sentMSGQueue.add(status);
+
+            // queue it in the same order as the message numbers
+            queueToPeer(status);
         }
 
+        // send it on the session
+        sendDataAvailable();
+
         return status;
     }
 
+    /**
+     * Sends a message of type MSG without a reply listener.
+     *
+     * @see Channel#sendMSG(OutputDataStream)
+     */
+    public MessageStatus sendMSG(OutputDataStream stream)
+            throws BEEPException
+    {
+        return sendMSG(stream, null);
+    }
+
     void abort()
     {
         setState(ChannelImpl.STATE_ABORTED);
@@ -418,13 +529,10 @@ class ChannelImpl implements Channel, Runnable {
 
     void addPiggybackedMSG(PiggybackedMSG msg) throws BEEPException
     {
-        recvMSGQueue.add(msg);
-        try {
-            callbackQueue.execute(this);
-        } catch (InterruptedException e) {
-            /** @TODO handle this better */
-            throw new BEEPException(e);
+        synchronized (recvMSGQueue) {
+            recvMSGQueue.add(msg);
         }
+        dispatchQueuedMSGs();
     }
 
     /**
@@ -433,7 +541,7 @@ class ChannelImpl implements Channel, Runnable {
      */
     String getNumberAsString()
     {
-        return number;
+        return Integer.toString(number);
     }
 
     public int getState()
@@ -472,12 +580,10 @@ class ChannelImpl implements Channel, Runnable {
         // if this is an incoming message rather than a reply to a
         // previously sent message
         if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG) {
-            boolean notify = false;
-
             synchronized (recvMSGQueue) {
                 MessageMSGImpl m = null;
                 if (recvMSGQueue.size() != 0) {
-                    m = (MessageMSGImpl) recvMSGQueue.getLast();
+                    m = recvMSGQueue.getLast();
 
                     if (m.getMsgno() != frame.getMsgno()) {
                         m = null;
@@ -515,17 +621,10 @@ class ChannelImpl implements Channel, Runnable {
                 }
 
                 recvMSGQueue.addLast(m);
-                
-                if (recvMSGQueue.size() == 1) {
-                    try {
-                        callbackQueue.execute(this);
-                    } catch (InterruptedException e) {
-                        /** @TODO handle this better */
-                        throw new BEEPException(e);
-                    }
-                }
             }
 
+            dispatchQueuedMSGs();
+
             return;
         }
 
@@ -543,7 +642,7 @@ class ChannelImpl implements Channel, Runnable {
                 // @todo shutdown session (we think)
             }
 
-            mstatus = (MessageStatus) sentMSGQueue.get(0);
+            mstatus = sentMSGQueue.get(0);
 
             if (mstatus.getMsgno() != frame.getMsgno()) {
 
@@ -560,12 +659,6 @@ class ChannelImpl implements Channel, Runnable {
 
         ReplyListener replyListener = mstatus.getReplyListener();
 
-        // error if they don't have either a frame or reply listener
-        if (replyListener == null) {
-
-            // @todo should we check this on sendMSG instead?
-        }
-
         if (frame.getMessageType() == Message.MESSAGE_TYPE_NUL) {
             synchronized (recvReplyQueue) {
                 if (recvReplyQueue.size() != 0) {
@@ -585,7 +678,7 @@ class ChannelImpl implements Channel, Runnable {
                 log.debug("Notifying reply listener for channel " + this.getNumber() + " => " + replyListener + " for NUL message");
             }
 
-            replyListener.receiveNUL(m);
+            notifyReplyListener(mstatus, m);
 
             return;
         }
@@ -677,13 +770,56 @@ class ChannelImpl implements Channel, Runnable {
 
         } // end sync
 
-        if (m.messageType == Message.MESSAGE_TYPE_RPY) {
-            replyListener.receiveRPY(m);
+        notifyReplyListener(mstatus, m);
+    }
+
+    private void notifyReplyListener(final MessageStatus status,
+                                     final MessageImpl m)
+        throws BEEPException
+    {
+        Executor executor = replyDispatcher;
+
+        if (executor == null) {
+            deliverReply(status, m);
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            deliverReply(status, m);
+                        } catch (AbortChannelException e) {
+                            session.terminate(e.getMessage());
+                        }
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    private static void deliverReply(MessageStatus status, MessageImpl m)
+        throws AbortChannelException
+    {
+        ReplyListener listener = status.getReplyListener();
+
+        if (listener == null) {
+            // nobody reads the data of an ANS sent without a listener
+            if (m.messageType == Message.MESSAGE_TYPE_ANS) {
+                m.getDataStream().close();
+            }
+        } else if (m.messageType == Message.MESSAGE_TYPE_RPY) {
+            listener.receiveRPY(m);
         } else if (m.messageType == Message.MESSAGE_TYPE_ERR) {
-            replyListener.receiveERR(m);
+            listener.receiveERR(m);
         } else if (m.messageType == Message.MESSAGE_TYPE_ANS) {
-            replyListener.receiveANS(m);
+            listener.receiveANS(m);
+        } else if (m.messageType == Message.MESSAGE_TYPE_NUL) {
+            listener.receiveNUL(m);
         }
+
+        status.replyReceived(m);
     }
 
     /**
@@ -704,7 +840,7 @@ class ChannelImpl implements Channel, Runnable {
 
         validateFrame(frame);
 
-	synchronized(session) {
+	synchronized(recvLock) {
 
 		recvSequence += frame.getSize();
 		if (recvSequence > frame.MAX_SEQUENCE_NUMBER)
@@ -715,11 +851,30 @@ class ChannelImpl implements Channel, Runnable {
 		// subtract this from the amount available in the buffer
 		recvWindowUsed.getAndAdd(frame.getSize());
 
+		recvAllowance -= frame.getSize();
+
+		session.payloadReceived(frame.getSize());
+
+		if (windowTuner != null) {
+		    windowTuner.frameReceived(frame.getSize(), System.nanoTime());
+		}
+
+		if (receiveMemory != null) {
+		    receiveMemory.add(frame.getSize());
+		    receiveMemoryHeld += frame.getSize();
+		}
+
 		// make sure we didn't overflow the buffer
 		if (recvWindowUsed.intValue() > recvWindowSize.intValue()) {
 		    throw new BEEPException("Channel window overflow");
 		}
 
+		// the peer knows about the channel once it sends on it
+		if (windowAdvertised == false) {
+		    windowAdvertised = true;
+		    sendWindowUpdate();
+		}
+
 	}
 
         receiveFrame(frame);
@@ -731,7 +886,12 @@ class ChannelImpl implements Channel, Runnable {
         }
     }
 
-    void sendMessage(MessageStatus m) throws BEEPException
+    /**
+     * Sends a reply to <code>msg</code>. Replies to a MSG received after
+     * one still waiting for its reply are held until that reply has been
+     * queued, so they are sent in the order of the MSGs.
+     */
+    void sendReply(MessageMSGImpl msg, MessageStatus m) throws BEEPException
     {
         if (state != STATE_ACTIVE && state != STATE_TUNING) {
             switch (state) {
@@ -742,46 +902,179 @@ class ChannelImpl implements Channel, Runnable {
             }
         }
 
+        synchronized (recvMSGQueue) {
+            if (isReplyHeld(msg)) {
+                if (msg.heldReplies == null) {
+                    msg.heldReplies = new LinkedList<MessageStatus>();
+                }
+                msg.heldReplies.add(m);
+
+                return;
+            }
+
+            queueToPeer(m);
+
+            if (isFinalReply(m)) {
+                msg.replied = true;
+                releaseHeldReplies();
+            }
+        }
+
         // send it on the session
-        sendToPeer(m);
+        sendDataAvailable();
     }
 
-    private void sendToPeer(MessageStatus status) throws BEEPException
+    /**
+     * Returns <code>true</code> if a MSG received before <code>msg</code>
+     * is still waiting for its reply. Called with recvMSGQueue locked.
+     */
+    private boolean isReplyHeld(MessageMSGImpl msg)
+    {
+        Iterator<MessageMSGImpl> i = recvMSGQueue.iterator();
+
+        while (i.hasNext()) {
+            MessageMSGImpl m = i.next();
+
+            if (m == msg) {
+                return false;
+            }
+            if (m.replied == false) {
+                return true;
+            }
+        }
+
+        // not received on this channel, e.g. the greeting
+        return false;
+    }
+
+    /**
+     * Queues the held replies of the MSGs whose earlier MSGs have all
+     * been replied to. Called with recvMSGQueue locked.
+     */
+    private void releaseHeldReplies()
     {
-        synchronized (pendingSendMessages) {
-            pendingSendMessages.add(status);
+        Iterator<MessageMSGImpl> i = recvMSGQueue.iterator();
+
+        while (i.hasNext()) {
+            MessageMSGImpl m = i.next();
+
+            if (m.heldReplies != null) {
+                Iterator<MessageStatus> r = m.heldReplies.iterator();
+
+                while (r.hasNext()) {
+                    MessageStatus reply = r.next();
+
+                    queueToPeer(reply);
+
+                    if (isFinalReply(reply)) {
+                        m.replied = true;
+                    }
+                }
+
+                m.heldReplies = null;
+            }
+
+            if (m.replied == false) {
+                return;
+            }
         }
+    }
+
+    private static boolean isFinalReply(MessageStatus m)
+    {
+        return m.getMessageType() == Message.MESSAGE_TYPE_RPY ||
+            m.getMessageType() == Message.MESSAGE_TYPE_ERR ||
+            m.getMessageType() == Message.MESSAGE_TYPE_NUL;
+    }
+
+    private void sendToPeer(MessageStatus status) throws BEEPException
+    {
+        queueToPeer(status);
+        sendDataAvailable();
+    }
+
+    private void queueToPeer(MessageStatus status)
+    {
+        pendingSendMessages.add(status);
         status.getMessageData().setChannel(this);
-        sendQueuedMessages();
+    }
+
+    /**
+     * Called when a message has been queued or data has been added to a
+     * queued message. Sends the queued messages on this thread, or if the
+     * session sends asynchronously, queues the channel to the session's
+     * sender unless it already is, so the caller never waits for the
+     * channel's lock or the transport.
+     */
+    void sendDataAvailable() throws BEEPException
+    {
+        // channel zero's replies must go out before the session acts on them
+        if (session.isSendAsync() == false || number == 0) {
+            sendQueuedMessages();
+        } else if (sendScheduled.compareAndSet(false, true)) {
+            session.scheduleSend(this);
+        }
+    }
+
+    /**
+     * Called by the session's sender for a channel queued by
+     * <code>sendDataAvailable</code>.
+     */
+    void sendScheduledMessages()
+    {
+        // data added from now on queues the channel again
+        sendScheduled.set(false);
+
+        try {
+            sendQueuedMessages();
+        } catch (BEEPException e) {
+            log.error("Error sending queued messages", e);
+        }
     }
 
     synchronized void sendQueuedMessages() throws BEEPException
     {
         synchronized(this) {
             while (true) {
-                MessageStatus status;
+                MessageStatus status = pendingSendMessages.peek();
 
-                synchronized (pendingSendMessages) {
-                    if (pendingSendMessages.isEmpty()) {
-                        return;
-                    }
-                    status = (MessageStatus) pendingSendMessages.removeFirst();
+                if (status == null) {
+                    return;
                 }
 
-                if (this.recvWindowFreed.intValue() != 0) {
-                    sendWindowUpdate();
+                int freed = this.recvWindowFreed.intValue();
+                if (freed != 0 &&
+                    windowUpdatePolicy.isUpdateDueBeforeMessage(
+                        freed, recvWindowSize.intValue()))
+                {
+                    // only hold the SEQ back if a frame is sure to follow
+                    OutputDataStream ds = status.getMessageData();
+                    sendWindowUpdate(windowUpdatePolicy.isPiggybacked() &&
+                                     peerWindowSize.intValue() > 0 &&
+                                     (ds.availableSegment() ||
+                                      ds.isComplete()));
+                }
+
+
+                try {
+                    sendFrames(status);
+                } catch (BEEPException e) {
+                    // a message that failed is not sent again
+                    pendingSendMessages.poll();
+                    status.getMessageData().discard();
+                    throw e;
                 }
-                
-                sendFrames(status);
 
                 if (status.getMessageStatus() !=
                     MessageStatus.MESSAGE_STATUS_SENT)
                 {
-                    synchronized (pendingSendMessages) {
-                        pendingSendMessages.addFirst(status);
-                    }
                     return;
                 }
+
+                pendingSendMessages.poll();
+
+                // a stage sending another message finds this one gone
+                status.completeSent();
             }
         }
     }
@@ -789,7 +1082,7 @@ class ChannelImpl implements Channel, Runnable {
     private void sendFrames(MessageStatus status)
         throws BEEPException
     {
-        int sessionBufferSize = session.getMaxFrameSize();
+        int sessionBufferSize = getMaxFrameSize();
         OutputDataStream ds = status.getMessageData();
 
         do {
@@ -838,6 +1131,7 @@ class ChannelImpl implements Channel, Runnable {
                 if (ds.isComplete() && ds.availableSegment() == false) {
                     frame.setLast();
                 }
+                frame.setSize(size);
 
                 try {
                     session.sendFrame(frame);
@@ -848,6 +1142,7 @@ class ChannelImpl implements Channel, Runnable {
                      */
                     log.error("sendFrames", e);
                     status.setMessageStatus(MessageStatus.MESSAGE_STATUS_NOT_SENT);
+                    status.fail(e);
 
                     throw e;
                 }
@@ -876,7 +1171,7 @@ class ChannelImpl implements Channel, Runnable {
 
     public void removeFirstPiggyback() throws BEEPException {
         synchronized(recvMSGQueue) {
-            MessageMSG m = (MessageMSGImpl) recvMSGQueue.getFirst();
+            MessageMSG m = recvMSGQueue.getFirst();
             if(m instanceof PiggybackedMSG) {
                 removeFirstFromMSGQueue();
             }
@@ -884,40 +1179,71 @@ class ChannelImpl implements Channel, Runnable {
     }
 
 	private void removeFirstFromMSGQueue() throws BEEPException {
-		MessageMSGImpl m;
 		synchronized (recvMSGQueue) {
-		    Object removeFirst = recvMSGQueue.removeFirst();
+		    recvMSGQueue.removeFirst();
+		    --dispatchedMSGs;
 
-		    if (recvMSGQueue.size() != 0) {
-		        m = (MessageMSGImpl) recvMSGQueue.getFirst();
-		        synchronized (m) {
-		            m.setNotified();
-		        }
-		    } else {
-		        m = null;
-		    }
+		    // a piggybacked MSG is removed without a queued reply
+		    releaseHeldReplies();
 		}
 
-		if (m != null) {
-		    try {
-		        callbackQueue.execute(this);
-		    } catch (InterruptedException e) {
-		        /** @TODO handle this better */
-		        throw new BEEPException(e);
-		    }
-		}
+		dispatchQueuedMSGs();
 	}
 
     private void sendWindowUpdate() throws BEEPException
     {
-	synchronized(session) {
-		if (session.updateMyReceiveBufferSize(this, recvSequence,
-						      recvWindowSize.intValue() -
-						      (recvWindowUsed.intValue() -
-						       recvWindowFreed.intValue())))
-		{
+        sendWindowUpdate(false);
+    }
+
+    /**
+     * @param piggyback whether the SEQ may wait for the next frame sent
+     * on the session.
+     */
+    private void sendWindowUpdate(boolean piggyback) throws BEEPException
+    {
+	synchronized(recvLock) {
+		int buffered = recvWindowUsed.intValue() -
+		    recvWindowFreed.intValue();
+		int size = recvWindowSize.intValue();
+
+		if (windowTuner != null) {
+		    size = windowTuner.getWindow(buffered);
+		}
+
+		int window = size - buffered;
+
+		if (receiveMemory != null) {
+		    int allowed =
+		        receiveMemory.getBudget().getWindow(receiveMemory, window);
+
+		    if (allowed < window) {
+		        // the peer may still send what it was allowed before
+		        window = Math.max(allowed, recvAllowance);
+
+		        if (waitingForMemory == false) {
+		            waitingForMemory = true;
+		            receiveMemory.getBudget().waitForMemory(this);
+		        }
+		    }
+		}
+
+		boolean sent = (piggyback ?
+		    session.queueMyReceiveBufferSize(this, recvSequence, window) :
+		    session.updateMyReceiveBufferSize(this, recvSequence, window));
+
+		if (sent) {
+		    session.windowUpdateSent();
+
+		    // frame headers are checked against the window without
+		    // the lock, so never let it look smaller than it is
 		    recvWindowUsed.getAndAdd(-1 * recvWindowFreed.intValue());
 		    recvWindowFreed.set(0);
+		    recvWindowSize.set(size);
+		    recvAllowance = window;
+
+		    if (windowTuner != null) {
+		        windowTuner.windowAdvertised(window, System.nanoTime());
+		    }
 		}
 	}
     }
@@ -931,23 +1257,195 @@ class ChannelImpl implements Channel, Runnable {
      * @throws BEEPException
      *
      */
-    synchronized void setState(int newState)
+    void setState(int newState)
+    {
+        synchronized (this) {
+            log.trace("CH" + number + " state=" + newState);
+
+            this.state = newState;
+
+            if (newState == STATE_CLOSED || newState == STATE_ABORTED) {
+                releaseReceiveWindow();
+            }
+
+            /**
+             * @todo state transition rules and error checking
+             */
+            if (false) {
+                session.terminate("Bad state transition in channel");
+            }
+        }
+
+        if (newState == STATE_CLOSED || newState == STATE_ABORTED) {
+            failPendingMSGs();
+            discardPendingSends();
+        }
+    }
+
+    /**
+     * Tells the messages not yet sent that they will not be.
+     */
+    private void discardPendingSends()
     {
-        log.trace("CH" + number + " state=" + newState);
+        Iterator<MessageStatus> i = pendingSendMessages.iterator();
 
-        this.state = newState;
+        while (i.hasNext()) {
+            i.next().getMessageData().discard();
+        }
+    }
+
+    /**
+     * Fails the futures of the MSGs still waiting for replies.
+     */
+    void failPendingMSGs()
+    {
+        BEEPException e =
+            new BEEPException("Channel closed before the reply was received");
+        Object[] pending;
 
-        /**
-         * @todo state transition rules and error checking
-         */
-        if (false) {
-            session.terminate("Bad state transition in channel");
+        // not while holding the queue, the futures run the callers' stages
+        synchronized (sentMSGQueue) {
+            pending = sentMSGQueue.toArray();
+        }
+
+        for (int i = 0; i < pending.length; ++i) {
+            ((MessageStatus) pending[i]).fail(e);
         }
     }
 
     void setProfile(String profile)
     {
         this.profile = profile;
+        setDispatcher();
+    }
+
+    /**
+     * Chooses the executor received messages are handled on: the one
+     * registered for the channel's profile, else the session's. Channel
+     * zero always uses the shared executor.
+     */
+    private void setDispatcher()
+    {
+        Executor executor = null;
+
+        if (number != 0 && session != null) {
+            ProfileRegistry registry = session.getProfileRegistry();
+
+            if (profile != null && registry != null) {
+                executor = registry.getExecutor(profile);
+            }
+            if (executor == null) {
+                executor = session.getDispatchExecutor();
+            }
+        }
+        if (executor == null) {
+            executor = getSharedDispatchExecutor();
+        }
+
+        dispatcher = new SerialExecutor(executor, session);
+        pipelineExecutor = executor;
+
+        // separate from the handlers, which may wait for these replies
+        if (number != 0 && session != null && session.isDispatchReplies()) {
+            replyDispatcher = new SerialExecutor(executor, session);
+        }
+    }
+
+    /**
+     * Hands the queued MSGs to the request handler while fewer than the
+     * pipeline depth are being handled.
+     */
+    private void dispatchQueuedMSGs() throws BEEPException
+    {
+        while (true) {
+            final MessageMSGImpl m;
+
+            synchronized (recvMSGQueue) {
+                if (dispatchedMSGs >= recvMSGQueue.size() ||
+                    dispatchedMSGs >= pipelineDepth)
+                {
+                    return;
+                }
+
+                m = recvMSGQueue.get(dispatchedMSGs);
+                ++dispatchedMSGs;
+
+                synchronized (m) {
+                    m.setNotified();
+                }
+            }
+
+            // outside the lock, the caller's executor runs the handler here
+            dispatch(m);
+        }
+    }
+
+    private void dispatch(final MessageMSGImpl m) throws BEEPException
+    {
+        Runnable task = new Runnable() {
+                public void run() {
+                    handler.receiveMSG(m);
+                }
+            };
+
+        try {
+            if (pipelineDepth == 1) {
+                dispatcher.execute(task);
+            } else {
+                pipelineExecutor.execute(new PipelinedTask(task));
+            }
+        } catch (RejectedExecutionException e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    /**
+     * Runs a handler outside the channel's serial executor, counting it
+     * in the session's dispatch metrics as the serial executor does.
+     */
+    private class PipelinedTask implements Runnable {
+        private final Runnable task;
+        private final long queued = System.nanoTime();
+
+        PipelinedTask(Runnable task)
+        {
+            this.task = task;
+            session.dispatchQueued();
+        }
+
+        public void run()
+        {
+            session.dispatchStarted(System.nanoTime() - queued);
+
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Dispatched task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the executor shared by sessions that do not set one,
+     * creating threads as needed. Each channel's serial executor keeps at
+     * most one task in it, or its pipeline depth, so the threads are
+     * bounded by the channels with messages to handle. They are daemon
+     * threads, an application is not kept alive by idle sessions.
+     */
+    static synchronized Executor getSharedDispatchExecutor()
+    {
+        if (sharedDispatchExecutor == null) {
+            sharedDispatchExecutor =
+                Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BEEP dispatch");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+
+        return sharedDispatchExecutor;
     }
 
     /**
@@ -958,6 +1456,59 @@ class ChannelImpl implements Channel, Runnable {
         return this.profile;
     }
 
+    public int getMaxFrameSize() throws BEEPException
+    {
+        if (maxFrameSize != 0) {
+            return maxFrameSize;
+        }
+
+        return session.getMaxFrameSize();
+    }
+
+    public void setMaxFrameSize(int size)
+    {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid frame size " + size);
+        }
+
+        maxFrameSize = size;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    public int getPipelineDepth()
+    {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int depth)
+    {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Invalid pipeline depth " +
+                                               depth);
+        }
+
+        pipelineDepth = depth;
+
+        try {
+            dispatchQueuedMSGs();
+        } catch (BEEPException e) {
+            log.error("Error dispatching queued messages", e);
+        }
+    }
+
+    public void setWeight(int weight)
+    {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Invalid weight " + weight);
+        }
+
+        this.weight = weight;
+    }
+
     synchronized void updatePeerReceiveBufferSize(long lastSeq, int size)
     {
         synchronized(this){
@@ -979,7 +1530,7 @@ class ChannelImpl implements Channel, Runnable {
 
             if ((previousPeerWindowSize == 0) && (peerWindowSize.intValue() > 0)) {
                 try {
-                    sendQueuedMessages();
+                    sendDataAvailable();
                 } catch (BEEPException e) {
                 }
             }
@@ -994,10 +1545,10 @@ class ChannelImpl implements Channel, Runnable {
                 // is the message number correct?
                 if (frame.getMessageType() == Message.MESSAGE_TYPE_MSG) {
                     synchronized (recvMSGQueue) {
-                        ListIterator i =
+                        ListIterator<MessageMSGImpl> i =
                             recvMSGQueue.listIterator(recvMSGQueue.size());
                         while (i.hasPrevious()) {
-                            if (((Message) i.previous()).getMsgno()
+                            if (i.previous().getMsgno()
                                 == frame.getMsgno())
                             {
                                 throw new BEEPException("Received a frame " +
@@ -1016,7 +1567,7 @@ class ChannelImpl implements Channel, Runnable {
                             throw new BEEPException("Received unsolicited reply");
                         }
 
-                        mstatus = (MessageStatus) sentMSGQueue.get(0);
+                        mstatus = sentMSGQueue.get(0);
                     }
 
                     if (frame.getMsgno() != mstatus.getMsgno()) {
@@ -1063,7 +1614,7 @@ class ChannelImpl implements Channel, Runnable {
                     throw new BEEPException("Received unsolicited reply");
                 }
 
-                mstatus = (MessageStatus) sentMSGQueue.get(0);
+                mstatus = sentMSGQueue.get(0);
 
                 if (mstatus.getMsgno() != frame.getMsgno()) {
                     throw new BEEPException("Received reply out of order");
@@ -1080,8 +1631,23 @@ class ChannelImpl implements Channel, Runnable {
         
     }
     
-    synchronized void freeReceiveBufferBytes(int size)
+    void freeReceiveBufferBytes(int size)
     {
+        ReceiveMemoryBudget budget = freeReceiveBuffer(size);
+
+        if (budget != null) {
+            budget.wakeWaiting();
+        }
+    }
+
+    /**
+     * Returns the receive memory budget if the channels waiting for it
+     * should be woken, <code>null</code> otherwise.
+     */
+    private synchronized ReceiveMemoryBudget freeReceiveBuffer(int size)
+    {
+        ReceiveMemoryBudget wake = null;
+
         synchronized(this){
             if (log.isTraceEnabled()) {
                 log.trace("Freed up " + size + " bytes on channel " + number);
@@ -1089,13 +1655,39 @@ class ChannelImpl implements Channel, Runnable {
 
             recvWindowFreed.getAndAdd(size);
 
+            boolean grown = false;
+            synchronized (recvLock) {
+                if (windowTuner != null) {
+                    grown = windowTuner.bytesConsumed(size, System.nanoTime());
+                }
+
+                if (receiveMemory != null) {
+                    int n = Math.min(size, receiveMemoryHeld);
+
+                    receiveMemoryHeld -= n;
+                    if (receiveMemory.release(n)) {
+                        wake = receiveMemory.getBudget();
+                    }
+
+                    // a cut window may be too small to ever free half
+                    // the window, ask again once it has been consumed
+                    if (waitingForMemory && receiveMemoryHeld == 0) {
+                        grown = true;
+                    }
+                }
+            }
+
             if (log.isTraceEnabled()) {
                 log.trace("recvWindowUsed = " + recvWindowUsed +
                           " recvWindowFreed = " + recvWindowFreed +
                           " recvWindowSize = " + recvWindowSize);
             }
 
-            if (state == ChannelImpl.STATE_ACTIVE && recvWindowFreed.intValue() >= recvWindowSize.intValue() / 2) {
+            if (state == ChannelImpl.STATE_ACTIVE &&
+                (grown ||
+                 windowUpdatePolicy.isUpdateDue(recvWindowFreed.intValue(),
+                                                recvWindowSize.intValue())))
+            {
                 try {
                     sendWindowUpdate();
                 } catch (BEEPException e) {
@@ -1103,6 +1695,96 @@ class ChannelImpl implements Channel, Runnable {
                     // do nothing
                     log.fatal("Error updating receive buffer size", e);
                 }
+            } else if (state == ChannelImpl.STATE_ACTIVE &&
+                       windowUpdatePolicy.getMaxDelay() > 0 &&
+                       windowUpdateScheduled == false)
+            {
+                windowUpdateScheduled = true;
+                getWindowUpdateTimer().schedule(new Runnable() {
+                        public void run() {
+                            sendDelayedWindowUpdate();
+                        }
+                    }, windowUpdatePolicy.getMaxDelay(),
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return wake;
+    }
+
+    /**
+     * Sends the SEQ held back by a delayed window update policy, unless
+     * it has been sent meanwhile.
+     */
+    private synchronized void sendDelayedWindowUpdate()
+    {
+        windowUpdateScheduled = false;
+
+        if (state != STATE_ACTIVE || recvWindowFreed.intValue() == 0) {
+            return;
+        }
+
+        try {
+            sendWindowUpdate();
+        } catch (BEEPException e) {
+            log.error("Error updating receive buffer size", e);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getWindowUpdateTimer()
+    {
+        if (windowUpdateTimer == null) {
+            windowUpdateTimer =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BEEP window updates");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+
+        return windowUpdateTimer;
+    }
+
+    /**
+     * Called by the receive memory budget once memory has been freed
+     * after the window of this channel was cut.
+     */
+    void receiveMemoryAvailable()
+    {
+        synchronized (recvLock) {
+            waitingForMemory = false;
+        }
+
+        if (state != STATE_ACTIVE) {
+            return;
+        }
+
+        try {
+            sendWindowUpdate();
+        } catch (BEEPException e) {
+            log.error("Error updating receive buffer size", e);
+        }
+    }
+
+    /**
+     * Returns what the channel holds of the session's window growth and
+     * the receive memory budget, called once the channel is closed.
+     */
+    void releaseReceiveWindow()
+    {
+        synchronized (recvLock) {
+            if (windowTuner != null) {
+                windowTuner.release();
+                windowTuner = null;
+            }
+
+            if (receiveMemory != null) {
+                receiveMemory.release(receiveMemoryHeld);
+                receiveMemory.removeChannel();
+                receiveMemoryHeld = 0;
+                receiveMemory = null;
             }
         }
     }
@@ -0,0 +1,267 @@
+/*
+ * ChannelTable.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * The open channels of a session keyed by channel number.
+ *
+ * This is an open addressing hash table with linear probing keyed by the
+ * primitive channel number, so looking up the channel of an inbound frame
+ * neither boxes the number nor allocates. Lookups do not lock, they read
+ * the slots of the current table with volatile semantics. Updates are
+ * serialized on the table. A removed channel leaves a tombstone behind
+ * so probe sequences stay intact; tombstones are dropped when the table
+ * is rebuilt, which replaces the slot array rather than modifying it so a
+ * concurrent lookup in the old array still sees a consistent table.
+ */
+class ChannelTable {
+
+    private static final int MIN_CAPACITY = 8;
+
+    /** marks a slot whose channel was removed */
+    private static final Entry REMOVED = new Entry(-1, null);
+
+    private volatile AtomicReferenceArray<Entry> slots;
+
+    /** number of channels in the table */
+    private volatile int size;
+
+    /** number of slots in use, channels and tombstones */
+    private int used;
+
+    ChannelTable()
+    {
+        this(MIN_CAPACITY);
+    }
+
+    ChannelTable(int expected)
+    {
+        slots = new AtomicReferenceArray<Entry>(capacityFor(expected));
+    }
+
+    /**
+     * Returns the channel with the given number or <code>null</code> if
+     * there is no such channel.
+     */
+    ChannelImpl get(int number)
+    {
+        if (number < 0) {
+            return null;
+        }
+
+        AtomicReferenceArray<Entry> s = slots;
+        int mask = s.length() - 1;
+
+        for (int i = index(number, mask); ; i = (i + 1) & mask) {
+            Entry e = s.get(i);
+
+            if (e == null) {
+                return null;
+            }
+
+            if (e.number == number) {
+                return e.channel;
+            }
+        }
+    }
+
+    /**
+     * Adds <code>channel</code> under its number, replacing the channel
+     * previously stored under that number.
+     */
+    synchronized void put(ChannelImpl channel)
+    {
+        int number = channel.getNumber();
+        Entry entry = new Entry(number, channel);
+        AtomicReferenceArray<Entry> s = slots;
+        int mask = s.length() - 1;
+        int free = -1;
+
+        for (int i = index(number, mask); ; i = (i + 1) & mask) {
+            Entry e = s.get(i);
+
+            if (e == null) {
+                break;
+            }
+
+            if (e.number == number) {
+                s.set(i, entry);
+                return;
+            }
+
+            if (e == REMOVED && free == -1) {
+                free = i;
+            }
+        }
+
+        if (free != -1) {
+            // reuse the first tombstone on the probe sequence
+            s.set(free, entry);
+            ++size;
+            return;
+        }
+
+        if ((used + 1) * 4 > s.length() * 3) {
+            rebuild(size + 1);
+            s = slots;
+            mask = s.length() - 1;
+        }
+
+        int i = index(number, mask);
+        while (s.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+
+        s.set(i, entry);
+        ++used;
+        ++size;
+    }
+
+    /**
+     * Removes the channel with the given number.
+     *
+     * @return the removed channel or <code>null</code> if there was none.
+     */
+    synchronized ChannelImpl remove(int number)
+    {
+        if (number < 0) {
+            return null;
+        }
+
+        AtomicReferenceArray<Entry> s = slots;
+        int mask = s.length() - 1;
+
+        for (int i = index(number, mask); ; i = (i + 1) & mask) {
+            Entry e = s.get(i);
+
+            if (e == null) {
+                return null;
+            }
+
+            if (e.number == number) {
+                s.set(i, REMOVED);
+                --size;
+                return e.channel;
+            }
+        }
+    }
+
+    /**
+     * Removes all channels.
+     */
+    synchronized void clear()
+    {
+        slots = new AtomicReferenceArray<Entry>(MIN_CAPACITY);
+        used = 0;
+        size = 0;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the channels in the table, which is not
+     * affected by later updates.
+     */
+    List<ChannelImpl> values()
+    {
+        AtomicReferenceArray<Entry> s = slots;
+        List<ChannelImpl> values = new ArrayList<ChannelImpl>(size);
+
+        for (int i = 0; i < s.length(); ++i) {
+            Entry e = s.get(i);
+
+            if (e != null && e != REMOVED) {
+                values.add(e.channel);
+            }
+        }
+
+        return values;
+    }
+
+    private void rebuild(int expected)
+    {
+        AtomicReferenceArray<Entry> old = slots;
+        AtomicReferenceArray<Entry> s =
+            new AtomicReferenceArray<Entry>(capacityFor(expected));
+        int mask = s.length() - 1;
+        int n = 0;
+
+        for (int j = 0; j < old.length(); ++j) {
+            Entry e = old.get(j);
+
+            if (e == null || e == REMOVED) {
+                continue;
+            }
+
+            int i = index(e.number, mask);
+            while (s.get(i) != null) {
+                i = (i + 1) & mask;
+            }
+
+            s.set(i, e);
+            ++n;
+        }
+
+        used = n;
+        slots = s;
+    }
+
+    private static int capacityFor(int expected)
+    {
+        int capacity = MIN_CAPACITY;
+
+        // keep the load factor at or below one half after a rebuild
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    private static int index(int number, int mask)
+    {
+        // each peer uses every other channel number, mix the bits so both
+        // odd and even numbers spread over the whole table
+        int h = number * 0x9E3779B9;
+
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static class Entry {
+        final int number;
+        final ChannelImpl channel;
+
+        Entry(int number, ChannelImpl channel)
+        {
+            this.number = number;
+            this.channel = channel;
+        }
+    }
+}
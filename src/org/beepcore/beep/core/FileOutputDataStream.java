@@ -0,0 +1,365 @@
+/*
+ * FileOutputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.BufferSegment;
+
+
+/**
+ * <code>FileOutputDataStream</code> represents a BEEP message's payload
+ * read from a file. The file is not read into memory, each frame's
+ * payload is a <code>BufferSegment</code> for a region of the file which
+ * is only read when the frame is written. The TCP transport sends these
+ * regions with <code>FileChannel.transferTo</code> when the session's
+ * socket has a <code>SocketChannel</code> and is not using TLS, otherwise
+ * they are copied like any other payload.
+ *
+ * A stream created from a <code>File</code> opens the file and closes it
+ * once the last region has been written, or once the message can no
+ * longer be sent because the channel was closed or a write failed. A
+ * stream that is never sent keeps the file open until it is garbage
+ * collected. The constructor taking a <code>FileChannel</code> never
+ * closes it, the caller must keep it open until the message has been
+ * sent and close it afterwards.
+ * <p>
+ * <b>Note that this implementation is not synchronized.</b> If multiple
+ * threads access a <code>FileOutputDataStream</code> concurrently, data
+ * may be inconsistent or lost.
+ *
+ * @see org.beepcore.beep.core.OutputDataStream
+ */
+public class FileOutputDataStream extends OutputDataStream {
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from a file with a
+     * content type of <code>DEFAULT_CONTENT_TYPE</code> and a transfer
+     * encoding of <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param file The file containing the message's payload.
+     *
+     * @throws FileNotFoundException if the file can not be opened.
+     */
+    public FileOutputDataStream(File file) throws IOException
+    {
+        this(new MimeHeaders(), file);
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> from a file with a
+     * specified content type and a transfer encoding of
+     * <code>DEFAULT_CONTENT_TRANSFER_ENCODING</code>.
+     *
+     * @param contentType Content type of the file.
+     * @param file The file containing the message's payload.
+     *
+     * @throws FileNotFoundException if the file can not be opened.
+     */
+    public FileOutputDataStream(String contentType, File file)
+        throws IOException
+    {
+        this(new MimeHeaders(contentType), file);
+    }
+
+    private FileOutputDataStream(MimeHeaders headers, File file)
+        throws IOException
+    {
+        this(headers, open(file));
+    }
+
+    private FileOutputDataStream(MimeHeaders headers, FileChannel file)
+        throws IOException
+    {
+        this(headers, file, 0, size(file), true);
+    }
+
+    /**
+     * Creates a <code>FileOutputDataStream</code> for <code>count</code>
+     * bytes of <code>file</code> starting at <code>position</code>. The
+     * file is read with positional reads, so its position is not changed.
+     * The stream does not close <code>file</code>.
+     *
+     * @param headers Mime headers to be prepended to the file's content.
+     * @param file The file containing the message's payload.
+     * @param position The position of the payload in the file.
+     * @param count The number of bytes to send.
+     */
+    public FileOutputDataStream(MimeHeaders headers, FileChannel file,
+                                long position, long count)
+    {
+        this(headers, file, position, count, false);
+    }
+
+    private FileOutputDataStream(MimeHeaders headers, FileChannel file,
+                                 long position, long count, boolean owned)
+    {
+        super(headers);
+
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid file region");
+        }
+
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+
+        // the stream holds the first reference, each region another one
+        this.references = owned ? new AtomicInteger(1) : null;
+    }
+
+    /**
+     * Returns <code>true</code> if no more bytes will be added to those
+     * currently available, if any, on this stream.  Returns
+     * <code>false</code> if more bytes are expected.
+     */
+    public boolean isComplete()
+    {
+        return true;
+    }
+
+    synchronized boolean availableSegment()
+    {
+        return (started == false && this.mimeHeaders != null) ||
+            super.availableSegment() || position < end;
+    }
+
+    synchronized protected BufferSegment getNextSegment(int maxLength)
+    {
+        // the headers and any segments added are sent before the file
+        if ((started == false && this.mimeHeaders != null) ||
+            super.availableSegment())
+        {
+            started = true;
+            BufferSegment b = super.getNextSegment(maxLength);
+
+            // an empty file is done once the headers are sent
+            if (position == end) {
+                done();
+            }
+
+            return b;
+        }
+
+        started = true;
+
+        int length = (int) Math.min(maxLength, end - position);
+        BufferSegment b;
+
+        if (references == null) {
+            b = new BufferSegment(file, position, length);
+        } else {
+            references.incrementAndGet();
+            b = new Region(position, length);
+        }
+
+        position += length;
+
+        if (position == end) {
+            done();
+        }
+
+        return b;
+    }
+
+    /**
+     * Closes the file once the regions handed out are released, the rest
+     * of the file will not be sent.
+     */
+    void discard()
+    {
+        done();
+    }
+
+    /**
+     * Drops the stream's reference to the file once no more regions will
+     * be handed out.
+     */
+    private void done()
+    {
+        if (references != null && handedOut.compareAndSet(false, true)) {
+            unreference();
+        }
+    }
+
+    private void unreference()
+    {
+        if (references.decrementAndGet() == 0) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.error("Error closing file", e);
+            }
+        }
+    }
+
+    private static FileChannel open(File file) throws IOException
+    {
+        return new FileInputStream(file).getChannel();
+    }
+
+    private static long size(FileChannel file) throws IOException
+    {
+        try {
+            return file.size();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the value of the MIME entity header <code>Content-Type</code>.
+     */
+    public String getContentType() throws BEEPException
+    {
+        return this.mimeHeaders.getContentType();
+    }
+
+    /**
+     * Sets the content type of a <code>DataStream</code>.
+     *
+     * @param contentType
+     */
+    public void setContentType(String contentType)
+    {
+        this.mimeHeaders.setContentType(contentType);
+    }
+
+    /**
+     * Returns the value of the MIME entity header
+     * <code>Content-Transfer-Encoding</code>.
+     */
+    public String getTransferEncoding() throws BEEPException
+    {
+        return this.mimeHeaders.getTransferEncoding();
+    }
+
+    /**
+     * Sets the content transfer encoding of a <code>DataStream</code>
+     *
+     * @param transferEncoding
+     */
+    public void setTransferEncoding(String transferEncoding)
+    {
+        this.mimeHeaders.setTransferEncoding(transferEncoding);
+    }
+
+    /**
+     * Returns an <code>Enumeration</code> of all the names of the MIME entity
+     * headers in this data stream.
+     *
+     * @return An <code>Enumeration</code> of all the MIME entity header
+     * names.
+     *
+     * @throws BEEPException
+     */
+    public Enumeration<String> getHeaderNames() throws BEEPException
+    {
+        return this.mimeHeaders.getHeaderNames();
+    }
+
+    /**
+     * Retrieves the correspoding <code>value</code> to a given a MIME entity
+     * header <code>name</code>.
+     *
+     * @param name Name of the MIME entity header.
+     * @return The <code>value</code> of the MIME entity header.
+     *
+     * @throws BEEPException
+     */
+    public String getHeaderValue(String name) throws BEEPException
+    {
+        return this.mimeHeaders.getHeaderValue(name);
+    }
+
+    /**
+     * Adds a MIME entity header to this data stream.
+     *
+     * @param name  Name of the MIME enitity header.
+     * @param value Value of the MIME entity header.
+     */
+    public void setHeaderValue(String name, String value)
+    {
+        this.mimeHeaders.setHeader(name, value);
+    }
+
+    /**
+     * Removes the <code>name</code> and <code>value</code> of a MIME entity
+     * header from the data stream.  Returns <code>true</code> if the
+     * <code>name</code> was successfully removed.
+     *
+     * @param name Name of the header to be removed from the data stream.
+     *
+     * @return Returns </code>true<code> if header was removed.  Otherwise,
+     * returns <code>false</code>.
+     */
+    public boolean removeHeader(String name)
+    {
+        return this.mimeHeaders.removeHeader(name);
+    }
+
+    private static Log log = LogFactory.getLog(FileOutputDataStream.class);
+
+    private final FileChannel file;
+    private final long end;
+    private long position;
+    private boolean started = false;
+
+    /** references to a file the stream opened, null if it is the caller's */
+    private final AtomicInteger references;
+    private final AtomicBoolean handedOut = new AtomicBoolean(false);
+
+    /**
+     * A region of a file the stream opened, the file is closed once all
+     * of them and the stream are done with it.
+     */
+    private class Region extends BufferSegment {
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Region(long position, int length)
+        {
+            super(file, position, length);
+        }
+
+        public void release()
+        {
+            super.release();
+
+            if (released.compareAndSet(false, true)) {
+                unreference();
+            }
+        }
+    }
+}
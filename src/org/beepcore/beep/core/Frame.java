@@ -18,15 +18,17 @@
 package org.beepcore.beep.core;
 
 
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import org.beepcore.beep.util.BufferSegment;
 import org.beepcore.beep.util.HeaderParser;
-import org.beepcore.beep.util.StringUtil;
+import org.beepcore.beep.util.HeaderWriter;
 
 /**
  * Frame encapsulates a BEEP protocol frame for MSG, RPY, ERR, ANS and NUL
@@ -85,7 +87,18 @@ public class Frame {
     private static final BufferSegment trailerBufferSegment =
         new BufferSegment(TRAILER.getBytes());
 
-    private Log log = LogFactory.getLog(this.getClass());
+    /** ASCII message types indexed by message type */
+    private static final byte[][] TYPES =
+        new byte[MessageType.types.length][];
+
+    static {
+        for (int i = 0; i < TYPES.length; ++i) {
+            TYPES[i] = MessageType.types[i].getBytes();
+        }
+    }
+
+    // shared, getLog is too expensive to call for every frame
+    private static Log log = LogFactory.getLog(Frame.class);
 
     /** BEEP message type of  <code>Frame</code>. */
     private int messageType;
@@ -120,7 +133,7 @@ public class Frame {
     /**
      * The payload of a BEEP message.
      */
-    private LinkedList payload = new LinkedList();
+    private ArrayList<BufferSegment> payload = new ArrayList<BufferSegment>(2);
 
     Frame(int messageType, ChannelImpl channel, int msgno, boolean last,
           long seqno, int size, int ansno)
@@ -154,14 +167,14 @@ public class Frame {
         this.size = 0;
 
         int j=1;
-        Iterator i = this.payload.iterator();
-        while (i.hasNext()) {
-            b[j] = (BufferSegment) i.next();
+        for (int i = 0; i < this.payload.size(); ++i) {
+            b[j] = this.payload.get(i);
             this.size += b[j].getLength();
             ++j;
         }
 
-        b[0] = new BufferSegment(buildHeader());
+        byte[] header = new byte[MAX_HEADER_SIZE];
+        b[0] = new BufferSegment(header, 0, writeHeader(header, 0));
         b[j] = trailerBufferSegment;
 
         return b;
@@ -178,6 +191,25 @@ public class Frame {
         return this.payload.iterator();
     }
 
+    /**
+     * Returns the number of <code>BufferSegment</code>s in the payload of
+     * this <code>Frame</code>.
+     */
+    public int getPayloadCount()
+    {
+        return this.payload.size();
+    }
+
+    /**
+     * Returns the <code>BufferSegment</code> at <code>index</code> in the
+     * payload of this <code>Frame</code>. Unlike iterating with
+     * <code>getPayload()</code> this does not allocate.
+     */
+    public BufferSegment getPayload(int index)
+    {
+        return this.payload.get(index);
+    }
+
     /**
      * Returns the message type of this <code>Frame</code>.
      */
@@ -252,48 +284,91 @@ public class Frame {
     }
 
     /**
-     * Builds a BEEP Header from the given <code>Frame</code> and returns it
-     * as a byte array.
+     * Sets the size of the payload once it has been added, so the header
+     * can be written without adding up the payload again.
+     */
+    void setSize(int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Writes the BEEP header of this <code>Frame</code>, including the
+     * CRLF, to <code>buf</code> without allocating. The header is at most
+     * <code>MAX_HEADER_SIZE</code> bytes.
      *
-     * @param f <code>Frame</code> from which we derive the BEEP Header.
+     * @return the offset following the header.
      */
-    byte[] buildHeader()
+    public int writeHeader(byte[] buf, int offset)
     {
-        StringBuffer header = new StringBuffer(Frame.MAX_HEADER_SIZE);
-
-        // Create header
-        header.append(MessageType.getMessageType(this.messageType));
-        header.append(' ');
-        header.append(this.channel.getNumberAsString());
-        header.append(' ');
-        header.append(this.msgno);
-        header.append(' ');
-        header.append((this.last ? '.' : '*'));
-        header.append(' ');
-        header.append(this.seqno);
-        header.append(' ');
-        header.append(this.size);
-
-        if (this.messageType == Message.MESSAGE_TYPE_ANS) {
-            header.append(' ');
-            header.append(this.ansno);
+        int end = HeaderWriter.writeHeader(buf, offset,
+                                           TYPES[this.messageType],
+                                           this.channel.getNumber(),
+                                           this.msgno, this.last,
+                                           this.seqno, this.size,
+                                           (this.messageType ==
+                                            Message.MESSAGE_TYPE_ANS ?
+                                            this.ansno :
+                                            HeaderWriter.NO_ANSNO));
+
+        if (log.isTraceEnabled()) {
+            log.trace(new String(buf, offset, end - offset));
         }
 
-        header.append(Frame.CRLF);
+        return end;
+    }
+
+    /**
+     * Writes the BEEP header of this <code>Frame</code>, including the
+     * CRLF, at the position of <code>buf</code> and advances the position.
+     *
+     * @see #writeHeader(byte[], int)
+     */
+    public void writeHeader(ByteBuffer buf)
+    {
+        int start = buf.position();
+
+        HeaderWriter.writeHeader(buf, TYPES[this.messageType],
+                                 this.channel.getNumber(), this.msgno,
+                                 this.last, this.seqno, this.size,
+                                 (this.messageType == Message.MESSAGE_TYPE_ANS ?
+                                  this.ansno : HeaderWriter.NO_ANSNO));
 
         if (log.isTraceEnabled()) {
-            log.trace(header);
+            ByteBuffer b = buf.duplicate();
+            byte[] header = new byte[buf.position() - start];
+
+            b.position(start);
+            b.get(header);
+            log.trace(new String(header));
         }
-        return StringUtil.stringBufferToAscii(header);
     }
 
     static Frame parseHeader(SessionImpl session, byte[] headerBuffer, int length)
         throws BEEPException
     {
-        HeaderParser header = new HeaderParser(headerBuffer, length);
+        return parseHeader(session, headerBuffer, 0, length);
+    }
+
+    static Frame parseHeader(SessionImpl session, byte[] headerBuffer,
+                             int offset, int length)
+        throws BEEPException
+    {
+        return parseHeader(session,
+                           new HeaderParser(headerBuffer, offset, length));
+    }
 
-        int msgType =
-            MessageType.getMessageType(new String(header.parseType()));
+    /**
+     * Parses the header <code>header</code> is set to, transports reuse
+     * one parser for all the headers they read.
+     */
+    static Frame parseHeader(SessionImpl session, HeaderParser header)
+        throws BEEPException
+    {
+        int msgType = header.parseType(TYPES);
+        if (msgType == -1) {
+            msgType = Message.MESSAGE_TYPE_UNK;
+        }
         int channelNum = header.parseInt();
         int msgNum = header.parseInt();
         boolean last = header.parseLast();
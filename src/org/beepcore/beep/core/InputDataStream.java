@@ -18,6 +18,8 @@ package org.beepcore.beep.core;
 
 
 import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.beepcore.beep.util.BufferSegment;
 
@@ -29,6 +31,10 @@ import org.beepcore.beep.util.BufferSegment;
  * <b>Note that this implementation is not synchronized.</b> If
  * multiple threads access a <code>InputDataStream</code>
  * concurrently, data may be inconsistent or lost.
+ * <p>
+ * Threads waiting for data wait on a <code>java.util.concurrent</code>
+ * lock rather than a monitor, so virtual threads do not pin their
+ * carrier thread while they wait.
  *
  * @see org.beepcore.beep.util.BufferSegment
  *
@@ -81,82 +87,102 @@ public class InputDataStream {
 
     void add(BufferSegment segment)
     {
-        synchronized(this.buffers) {
+        lock.lock();
+        try {
             if(this.closed) {
                 if (this.channel != null) {
                     this.channel.freeReceiveBufferBytes(segment.getLength());
                 }
+                segment.release();
                 return;
             }
             this.buffers.addLast(segment);
             this.availableBytes += segment.getLength();
-            this.buffers.notify();
+            this.changed.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
-    synchronized public int available()
+    public int available()
     {
-        return this.availableBytes;
-//         int bytesAvailable = 0;
-
-//         synchronized (this.buffers) {
-//             Iterator i = this.buffers.iterator();
-//             while (i.hasNext()) {
-//                 bytesAvailable += ((BufferSegment) i.next()).getLength();
-//             }
-//         }
-
-//         return bytesAvailable;
+        lock.lock();
+        try {
+            return this.availableBytes;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Returns <code>true</code> if a <code>BufferSegment</code> is available
      * to receive.
      */
-    synchronized public boolean availableSegment() {
-        return (this.buffers.isEmpty() == false);
+    public boolean availableSegment() {
+        lock.lock();
+        try {
+            return (this.buffers.isEmpty() == false);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Indicates that the application is finished receiving data from this
-     * stream. If there is more data available the data will be discarded.
+     * stream. If there is more data available the data will be discarded
+     * and its buffers released.
      */
-    synchronized public void close() {
-        this.closed = true;
-        while (this.availableSegment()) {
-            this.getNextSegment();
+    public void close() {
+        lock.lock();
+        try {
+            this.closed = true;
+            while (this.availableSegment()) {
+                this.getNextSegment().release();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
      * Returns an <code>InputStream</code> for reading the data in this stream.
      */
-    synchronized public InputDataStreamAdapter getInputStream()
+    public InputDataStreamAdapter getInputStream()
     {
-        if (stream == null) {
-            stream = new InputDataStreamAdapter(this);
-        }
+        lock.lock();
+        try {
+            if (stream == null) {
+                stream = new InputDataStreamAdapter(this);
+            }
 
-        return stream;
+            return stream;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Returns the next <code>BufferSegment</code> in this stream.
+     * Returns the next <code>BufferSegment</code> in this stream. The
+     * segment belongs to the caller, who should release it once done
+     * with the data.
      *
+     * @see BufferSegment#release()
      */
-    synchronized public BufferSegment getNextSegment() {
+    public BufferSegment getNextSegment() {
         BufferSegment b;
 
-        synchronized (buffers) {
-            b = (BufferSegment) buffers.removeFirst();
-        }
+        lock.lock();
+        try {
+            b = buffers.removeFirst();
+            this.availableBytes -= b.getLength();
 
-        if (this.channel != null) {
-            this.channel.freeReceiveBufferBytes(b.getLength());
+            if (this.channel != null) {
+                this.channel.freeReceiveBufferBytes(b.getLength());
+            }
+        } finally {
+            lock.unlock();
         }
 
-        this.availableBytes -= b.getLength();
-
         return b;
     }
 
@@ -164,14 +190,37 @@ public class InputDataStream {
      *
      * @return null if isComplete() is true.
      */
-    synchronized public BufferSegment waitForNextSegment() throws InterruptedException {
-            while (availableSegment() == false) {
-                if (isComplete() == true) {
-                    return null;
-                }
-                buffers.wait();
+    public BufferSegment waitForNextSegment() throws InterruptedException {
+        lock.lock();
+        try {
+            if (awaitSegment() == false) {
+                return null;
             }
             return getNextSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a segment is available or the stream is complete.
+     *
+     * @return <code>false</code> if the stream is complete and no
+     * segment is available.
+     */
+    boolean awaitSegment() throws InterruptedException {
+        lock.lock();
+        try {
+            while (buffers.isEmpty()) {
+                if (this.complete == true) {
+                    return false;
+                }
+                changed.await();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean isClosed() {
@@ -183,21 +232,30 @@ public class InputDataStream {
      * those currently available on this stream.  Returns
      * <code>false</code> if more bytes are expected.
      */
-    synchronized public boolean isComplete() {
+    public boolean isComplete() {
         return this.complete;
     }
 
     void setComplete() {
-        synchronized (this.buffers) {
+        lock.lock();
+        try {
             this.complete = true;
-            this.buffers.notify();
+            this.changed.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
-    LinkedList buffers = new LinkedList();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** signalled when a segment is added or the stream is completed */
+    private final Condition changed = lock.newCondition();
+
+    private LinkedList<BufferSegment> buffers =
+        new LinkedList<BufferSegment>();
     private int availableBytes = 0;
     private ChannelImpl channel = null;
-    private boolean closed = false;
-    private boolean complete = false;
+    private volatile boolean closed = false;
+    private volatile boolean complete = false;
     private InputDataStreamAdapter stream = null;
 }
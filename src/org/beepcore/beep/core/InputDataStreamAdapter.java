@@ -55,6 +55,10 @@ public class InputDataStreamAdapter extends java.io.InputStream {
 
     public void close()
     {
+        curBuf.release();
+        curBuf = zeroLength;
+        pos = 0;
+
         ids.close();
     }
 
@@ -369,11 +373,15 @@ public class InputDataStreamAdapter extends java.io.InputStream {
     }
 
     /**
-     * If there are no bytes remaining in the current buffer move to
-     * the next one if it exists.
+     * If there are no bytes remaining in the current buffer release it
+     * and move to the next one if it exists.
      */
     private boolean setNextBuffer() {
         while (pos == curBuf.getLength()) {
+            curBuf.release();
+            curBuf = zeroLength;
+            pos = 0;
+
             if (ids.availableSegment() == false) {
                 return false;
             }
@@ -395,27 +403,25 @@ public class InputDataStreamAdapter extends java.io.InputStream {
             return n;
         }
 
-        synchronized (ids.buffers) {
-            while ((n = available()) == 0) {
+        while ((n = available()) == 0) {
 
-                if (ids.isComplete() == true) {
-
-                    // no more bytes to read() and none are
-                    // expected, return -1
-                    return -1;
-                }
+            if (ids.isComplete() == true) {
 
-                // no bytes available to read, but more are
-                // expected... block
-                try {
-                    ids.buffers.wait();
-                } catch (InterruptedException e) {
-                    log.error("waiting for buffer", e);
-                }
+                // no more bytes to read() and none are
+                // expected, return -1
+                return -1;
             }
 
-            return n;
+            // no bytes available to read, but more are
+            // expected... block
+            try {
+                ids.awaitSegment();
+            } catch (InterruptedException e) {
+                log.error("waiting for buffer", e);
+            }
         }
+
+        return n;
     }
 
     private static final BufferSegment zeroLength =
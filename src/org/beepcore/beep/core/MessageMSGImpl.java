@@ -17,6 +17,8 @@
  */
 package org.beepcore.beep.core;
 
+import java.util.LinkedList;
+
 import org.beepcore.beep.core.serialize.ErrorElement;
 
 /**
@@ -32,6 +34,15 @@ import org.beepcore.beep.core.serialize.ErrorElement;
  */
 class MessageMSGImpl extends MessageImpl implements MessageMSG
 {
+    /**
+     * replies sent while an earlier MSG on the channel was still waiting
+     * for its reply, guarded by the channel's received MSG queue
+     */
+    LinkedList<MessageStatus> heldReplies = null;
+
+    /** whether the final reply has been queued to the peer */
+    boolean replied = false;
+
     MessageMSGImpl(ChannelImpl channel, int msgno, InputDataStream data) {
         super(channel, msgno, data, Message.MESSAGE_TYPE_MSG);
     }
@@ -62,7 +73,7 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
                                   this.msgno, this.ansno, stream);
         }
 
-        this.channel.sendMessage(m);
+        this.channel.sendReply(this, m);
         return m;
     }
 
@@ -84,11 +95,12 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
             channel.session.parser.serializeError(new ErrorElement(error.getCode(),
                     error.getXMLLang(), error.getDiagnostic()));
         OutputDataStream stream =
-            new ByteOutputDataStream(errorString);
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     errorString);
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_ERR,
                                             this.msgno, stream);
-        this.channel.sendMessage(m);
+        this.channel.sendReply(this, m);
         return m;
     }
 
@@ -109,11 +121,13 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
     {
         ErrorElement error = new ErrorElement(code, diagnostic);
         byte[] errorString = channel.session.parser.serializeError(error);
+        OutputDataStream stream =
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     errorString);
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_ERR,
-                                            this.msgno,
-                                            new ByteOutputDataStream(errorString));
-        this.channel.sendMessage(m);
+                                            this.msgno, stream);
+        this.channel.sendReply(this, m);
         return m;
     }
 
@@ -136,11 +150,13 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
     {
         ErrorElement error = new ErrorElement(code, xmlLang, diagnostic);
         byte[] errorString = channel.session.parser.serializeError(error);
+        OutputDataStream stream =
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     errorString);
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_ERR,
-                                            this.msgno,
-                                            new ByteOutputDataStream(errorString));
-        this.channel.sendMessage(m);
+                                            this.msgno, stream);
+        this.channel.sendReply(this, m);
         return m;
     }
     
@@ -150,7 +166,7 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
                                             Message.MESSAGE_TYPE_ERR,
                                             this.msgno,
                                             stream);
-        this.channel.sendMessage(m);
+        this.channel.sendReply(this, m);
         return m;
     }
 
@@ -169,7 +185,7 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_NUL,
                                             this.msgno, NULDataStream);
-        this.channel.sendMessage(m);
+        this.channel.sendReply(this, m);
         return m;
     }
 
@@ -190,7 +206,7 @@ class MessageMSGImpl extends MessageImpl implements MessageMSG
         MessageStatus m = new MessageStatus(this.channel,
                                             Message.MESSAGE_TYPE_RPY,
                                             this.msgno, stream);
-        this.channel.sendMessage(m);
+        this.channel.sendReply(this, m);
         return m;
     }
 
@@ -17,7 +17,14 @@
 package org.beepcore.beep.core;
 
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+
 /**
+ * Tracks a message sent on a channel. Besides the polled status it
+ * provides futures completed when the message has been written and, for
+ * a MSG, when its reply arrives.
  *
  * @author Eric Dixon
  * @author Huston Franklin
@@ -43,13 +50,16 @@ public class MessageStatus {
     public static final int MESSAGE_STATUS_RECEIVED_ERROR = 4;
 
     /** Status of message. */
-    private int messageStatus = MESSAGE_STATUS_UNK;
+    private volatile int messageStatus = MESSAGE_STATUS_UNK;
     private Channel channel;
     private int messageType;
     private int msgno;
     private int ansno;
     private OutputDataStream data;
     private ReplyListener replyListener;
+    private final CompletableFuture<MessageStatus> sent =
+        new CompletableFuture<MessageStatus>();
+    private final CompletableFuture<Message> reply;
 
     MessageStatus(Channel channel, int messageType, int msgno,
                   OutputDataStream data)
@@ -79,6 +89,8 @@ public class MessageStatus {
         this.ansno = ansno;
         this.data = data;
         this.replyListener = replyListener;
+        this.reply = (messageType == Message.MESSAGE_TYPE_MSG ?
+                      new CompletableFuture<Message>() : null);
     }
 
     /**
@@ -117,6 +129,32 @@ public class MessageStatus {
         return this.messageStatus;
     }
 
+    /**
+     * Returns a stage completed with this status once the whole message
+     * has been handed to the session's transport, or completed
+     * exceptionally if it could not be sent.
+     */
+    public CompletionStage<MessageStatus> getSent()
+    {
+        return this.sent;
+    }
+
+    /**
+     * Returns a future completed with the RPY or ERR received for this
+     * MSG, or with the NUL ending a one-to-many exchange. The future is
+     * completed exceptionally if the message could not be sent or the
+     * channel closes first. It is completed on the thread passing
+     * replies to reply listeners, stages that block should use one of
+     * the asynchronous variants with their own executor.
+     *
+     * @return the future, or <code>null</code> if this is not the status
+     *         of a MSG.
+     */
+    public CompletableFuture<Message> getReply()
+    {
+        return this.reply;
+    }
+
     /**
      * Returns the message number.
      *
@@ -143,6 +181,39 @@ public class MessageStatus {
         this.messageStatus = status;
     }
 
+    /**
+     * Completes the sent stage, once the message has left the channel's
+     * queue.
+     */
+    void completeSent()
+    {
+        sent.complete(this);
+    }
+
+    /**
+     * Completes the reply future with a received RPY, ERR or NUL.
+     */
+    void replyReceived(Message message)
+    {
+        if (reply != null &&
+            message.getMessageType() != Message.MESSAGE_TYPE_ANS)
+        {
+            reply.complete(message);
+        }
+    }
+
+    /**
+     * Completes the futures not yet completed exceptionally.
+     */
+    void fail(BEEPException e)
+    {
+        sent.completeExceptionally(e);
+
+        if (reply != null) {
+            reply.completeExceptionally(e);
+        }
+    }
+
     /**
      * Method getListener
      *
@@ -49,8 +49,8 @@ public class MimeHeaders {
     // length of header portion of data stream
     private int lenHeaders = HEADER_SUFFIX.length();
 
-    private Hashtable mimeHeadersTable =
-        new Hashtable(DEFAULT_HEADER_TABLE_SIZE);
+    private Hashtable<String, String> mimeHeadersTable =
+        new Hashtable<String, String>(DEFAULT_HEADER_TABLE_SIZE);
 
     /**
      * Creates <code>MimeHeaders</code> using the default content type
@@ -101,7 +101,7 @@ public class MimeHeaders {
      */
     public String getHeaderValue(String name)
     {
-        return (String) this.mimeHeadersTable.get(name);
+        return this.mimeHeadersTable.get(name);
     }
 
     /**
@@ -113,7 +113,7 @@ public class MimeHeaders {
      * @return An <code>Enumeration</code> of all the MIME entity header
      * names.
      */
-    public Enumeration getHeaderNames()
+    public Enumeration<String> getHeaderNames()
     {
         return this.mimeHeadersTable.keys();
     }
@@ -139,7 +139,7 @@ public class MimeHeaders {
      */
     public boolean removeHeader(String name)
     {
-        String value = (String) mimeHeadersTable.get(name);
+        String value = mimeHeadersTable.get(name);
 
         /**
          * @todo change to not allow the removal of content-type and
@@ -217,11 +217,11 @@ public class MimeHeaders {
         int offsetHeaders = 0;
 
         // read the headers
-        Enumeration headers = mimeHeadersTable.keys();
+        Enumeration<String> headers = mimeHeadersTable.keys();
 
         while (headers.hasMoreElements()) {
-            String name = (String) headers.nextElement();
-            String value = (String) mimeHeadersTable.get(name);
+            String name = headers.nextElement();
+            String value = mimeHeadersTable.get(name);
 
             if ((name.equals(CONTENT_TYPE) &&
                  value.equals(DEFAULT_CONTENT_TYPE)) ||
@@ -37,7 +37,8 @@
  */
 package org.beepcore.beep.core;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.beepcore.beep.util.BufferSegment;
 
@@ -45,6 +46,13 @@ import org.beepcore.beep.util.BufferSegment;
  * <code>OutputDataStream</code> represents a BEEP message's payload as a
  * stream.
  *
+ * Adding data does not lock the stream or the channel. Unless the
+ * session sends asynchronously, the thread adding data goes on to send
+ * it and may wait for the peer's window or the transport. A
+ * <code>WritabilityListener</code> lets producers stop adding data while
+ * too much of it is waiting to be sent.
+ *
+ * @see SessionTuningProperties#setSendAsync
  * @author Huston Franklin
  * @version $Revision: 1.5 $, $Date: 2003/04/21 15:09:11 $
  */
@@ -87,13 +95,16 @@ public class OutputDataStream {
     }
 
     public void add(BufferSegment segment) {
-        synchronized(this) {
-            this.buffers.addLast(segment);
-        }
-        // Need to release lock before calling sendQueuedMessages, which is why entire method is not synchronized
+        this.buffers.add(segment);
+
+        queuedBytes.addAndGet(segment.getLength());
+        updateWritability();
+
+        // Must not hold any lock when calling sendDataAvailable
+        ChannelImpl channel = this.channel;
         if (channel != null) {
             try {
-                channel.sendQueuedMessages();
+                channel.sendDataAvailable();
             } catch (BEEPException e) {
             }
         }
@@ -111,73 +122,175 @@ public class OutputDataStream {
      * those currently available on this stream.  Returns
      * <code>false</code> if more bytes are expected.
      */
-    synchronized public boolean isComplete() {
+    public boolean isComplete() {
         return this.complete;
     }
 
     public void setComplete() {
-        synchronized(this) {
-            this.complete = true;
-        }
-        // Need to release lock before calling sendQueuedMessages, which is why entire method is not synchronized
+        this.complete = true;
+
+        // Must not hold any lock when calling sendDataAvailable
+        ChannelImpl channel = this.channel;
         if (channel != null) {
             try {
-                channel.sendQueuedMessages();
+                channel.sendDataAvailable();
             } catch (BEEPException e) {
             }
         }
     }
 
-    synchronized boolean availableSegment() {
-        return (buffers.isEmpty() == false);
+    /**
+     * Sets the listener told when the bytes added to this stream and not
+     * yet sent reach <code>highWaterMark</code>, and when they have then
+     * fallen to <code>lowWaterMark</code>. It is called on the thread
+     * adding data or sending it, one call at a time, and must not block
+     * or add data to this stream.
+     *
+     * @param listener the listener, or <code>null</code> for none.
+     */
+    public void setWritabilityListener(WritabilityListener listener,
+                                       int highWaterMark, int lowWaterMark)
+    {
+        if (lowWaterMark < 0 || highWaterMark <= lowWaterMark) {
+            throw new IllegalArgumentException("Invalid water marks " +
+                                               highWaterMark + ", " +
+                                               lowWaterMark);
+        }
+
+        synchronized (writabilityLock) {
+            this.highWaterMark = highWaterMark;
+            this.lowWaterMark = lowWaterMark;
+            this.writabilityListener = listener;
+        }
+    }
+
+    /**
+     * Returns <code>false</code> if the bytes waiting to be sent have
+     * reached the high water mark and not yet fallen to the low water
+     * mark. Always <code>true</code> without a writability listener.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Returns the number of bytes added and not yet sent, not counting
+     * the mime headers.
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    boolean availableSegment() {
+        return (headers != null || buffers.isEmpty() == false);
     }
 
     /**
      * Get the number of <code>BufferSegment</code>s held.
      *
-     * @return the number of <code>BufferSegment</code>s in the buffers LinkedList.
+     * @return the number of <code>BufferSegment</code>s in the buffers queue.
      */
-    synchronized public int getNumSegments() {
+    public int getNumSegments() {
         return this.buffers.size();
     }
 
     synchronized protected BufferSegment getNextSegment(int maxLength) {
         if (this.headersSent == false) {
             if (this.mimeHeaders != null) {
-                this.buffers.addFirst(mimeHeaders.getBufferSegment());
+                this.headers = mimeHeaders.getBufferSegment();
             }
             this.headersSent = true;
         }
 
-        BufferSegment b = (BufferSegment)buffers.getFirst();
+        boolean header = (headers != null);
+        BufferSegment b =
+            header ? headers : buffers.peek();
 
         if (curOffset != 0 || maxLength < b.getLength()) {
 
             int origLength = b.getLength();
 
-            b = new BufferSegment(b.getData(), b.getOffset() + curOffset,
-                                  Math.min(maxLength, origLength - curOffset));
+            b = b.slice(curOffset, Math.min(maxLength, origLength - curOffset));
 
             if (curOffset + b.getLength() != origLength) {
                 curOffset += b.getLength();
+                if (header == false) {
+                    sent(b.getLength());
+                }
                 return b;
             }
         }
-        buffers.removeFirst();
+
+        if (header) {
+            headers = null;
+        } else {
+            buffers.poll();
+            sent(b.getLength());
+        }
         curOffset = 0;
 
         return b;
     }
-    
+
+    private void sent(int length) {
+        queuedBytes.addAndGet(-length);
+        updateWritability();
+    }
+
+    /**
+     * Moves to the state for the bytes queued now. Each change to
+     * <code>queuedBytes</code> is followed by a call, and the calls are
+     * serialized, so the last one always sees the final count and a
+     * change made by a racing thread is never lost.
+     */
+    private void updateWritability() {
+        if (writabilityListener == null) {
+            return;
+        }
+
+        synchronized (writabilityLock) {
+            WritabilityListener listener = writabilityListener;
+            long queued = queuedBytes.get();
+
+            if (listener == null) {
+                return;
+            } else if (writable && queued >= highWaterMark) {
+                writable = false;
+                listener.writabilityChanged(this, false);
+            } else if (writable == false && queued <= lowWaterMark) {
+                writable = true;
+                listener.writabilityChanged(this, true);
+            }
+        }
+    }
+
+    /**
+     * Called when the rest of the message will not be sent because the
+     * channel was closed or sending failed.
+     */
+    void discard() {
+    }
+
     synchronized void setChannel(ChannelImpl channel) {
         this.channel = channel;
     }
 
     protected final MimeHeaders mimeHeaders;
 
-    private LinkedList buffers = new LinkedList();
-    private boolean complete = false;
+    /** added by producers, removed by the channel sending the message */
+    private ConcurrentLinkedQueue<BufferSegment> buffers =
+        new ConcurrentLinkedQueue<BufferSegment>();
+    private volatile boolean complete = false;
     private boolean headersSent = false;
+    private volatile BufferSegment headers = null;
     private int curOffset = 0;
-    private ChannelImpl channel = null;
+    private volatile ChannelImpl channel = null;
+
+    /** guards the water marks and the changes to writable */
+    private final Object writabilityLock = new Object();
+    private volatile WritabilityListener writabilityListener = null;
+    private int highWaterMark;
+    private int lowWaterMark;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean writable = true;
 }
@@ -102,7 +102,7 @@ class PiggybackedMSG extends MessageMSGImpl implements MessageMSG {
         while (stream.availableSegment()) {
             BufferSegment b = stream.getNextSegment(MAX_PCDATA_SIZE);
 
-            tmp.write(b.getData(), 0, b.getLength());
+            tmp.write(b.getData(), b.getOffset(), b.getLength());
         }
 
         try {
@@ -27,6 +27,7 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.beepcore.beep.util.StringUtil;
 
@@ -50,6 +51,7 @@ public class ProfileRegistry implements Cloneable {
     private class InternalProfile {
         StartChannelListener listener;
         SessionTuningProperties tuning;
+        Executor executor;
     }
 
     private Hashtable profileListeners;
@@ -157,6 +159,31 @@ public class ProfileRegistry implements Cloneable {
                                 StartChannelListener listener,
                                 SessionTuningProperties tuning)
     {
+        return addStartChannelListener(profile, listener, tuning, null);
+    }
+
+    /**
+     * Add the <code>StartChannelListener</code> for the specified URI,
+     * with the executor channels of the profile hand received messages
+     * to their request handlers on instead of the session's.
+     *
+     *
+     * @param profile
+     * @param listener
+     * @param tuning
+     * @param executor the executor, or <code>null</code> for the
+     *                 session's.
+     *
+     * @return the previously registered <code>StartChannelListener</code>
+     *
+     * @see SessionTuningProperties#getDispatchExecutor
+     */
+    public synchronized StartChannelListener
+        addStartChannelListener(String profile,
+                                StartChannelListener listener,
+                                SessionTuningProperties tuning,
+                                Executor executor)
+    {
 
         // Replace semantics - change this if we want to prevent clobbering.
         StartChannelListener temp = null;
@@ -171,11 +198,24 @@ public class ProfileRegistry implements Cloneable {
 
         tempProfile.tuning = tuning;
 
+        tempProfile.executor = executor;
+
         profileListeners.put(profile, tempProfile);
 
         return temp;
     }
 
+    /**
+     * Returns the executor registered for the specified URI, or
+     * <code>null</code> if its channels use the session's.
+     */
+    public Executor getExecutor(String uri)
+    {
+        InternalProfile profile = (InternalProfile) profileListeners.get(uri);
+
+        return profile == null ? null : profile.executor;
+    }
+
     /**
      * Remove the <code>StartChannelListener</code> for the specified uri.
      *
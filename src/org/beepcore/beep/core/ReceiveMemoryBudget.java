@@ -0,0 +1,248 @@
+/*
+ * ReceiveMemoryBudget.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Limits the data received but not yet consumed by the application across
+ * all sessions using the budget.
+ *
+ * Each frame received counts against the budget until the application
+ * reads it from the message's <code>InputDataStream</code>. While less
+ * than half of the limit is in use channels advertise their full receive
+ * windows. Beyond that each session is entitled to an equal share of the
+ * limit, split evenly between its channels, and windows are cut to what
+ * is left of the share. Channels whose windows were cut advertise them
+ * again as the application consumes data.
+ *
+ * Windows only shrink as far as BEEP allows, data the peer was already
+ * allowed to send is still accepted, so the limit may be exceeded by up
+ * to the windows advertised before it was reached.
+ *
+ * @see SessionTuningProperties#setReceiveMemoryBudget
+ */
+public class ReceiveMemoryBudget {
+
+    private static ReceiveMemoryBudget defaultBudget = null;
+
+    private volatile long limit;
+
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicLong throttleCount = new AtomicLong();
+    private final AtomicLong releasedSinceWake = new AtomicLong();
+
+    /** channels with windows cut, waiting for memory to be freed */
+    private final ConcurrentLinkedQueue<ChannelImpl> waiting =
+        new ConcurrentLinkedQueue<ChannelImpl>();
+
+    /**
+     * @param limit the number of bytes received data may use.
+     */
+    public ReceiveMemoryBudget(long limit)
+    {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the budget shared by sessions that enable a receive memory
+     * budget. Its limit is initially a quarter of the maximum heap size.
+     */
+    public static synchronized ReceiveMemoryBudget getDefault()
+    {
+        if (defaultBudget == null) {
+            defaultBudget =
+                new ReceiveMemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+        }
+
+        return defaultBudget;
+    }
+
+    /**
+     * Returns the number of bytes received data may use.
+     */
+    public long getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Sets the number of bytes received data may use.
+     */
+    public void setLimit(long limit)
+    {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the number of bytes received and not yet consumed.
+     */
+    public long getBuffered()
+    {
+        return buffered.get();
+    }
+
+    /**
+     * Returns the number of sessions with received data not yet
+     * consumed.
+     */
+    public int getSessionCount()
+    {
+        return sessions.get();
+    }
+
+    /**
+     * Returns the number of times a channel's window was cut.
+     */
+    public long getThrottleCount()
+    {
+        return throttleCount.get();
+    }
+
+    Account newAccount()
+    {
+        return new Account();
+    }
+
+    /**
+     * Returns the window the channel may advertise, at most
+     * <code>window</code>.
+     */
+    int getWindow(Account account, int window)
+    {
+        long total = buffered.get();
+        long limit = this.limit;
+
+        if (total < limit / 2) {
+            return window;
+        }
+
+        long own = account.buffered.get();
+        int n = sessions.get() + (own == 0 ? 1 : 0);
+
+        long room = Math.min(limit / Math.max(n, 1) - own, limit - total);
+        long share = Math.max(room, 0) / Math.max(account.channels.get(), 1);
+
+        if (share >= window) {
+            return window;
+        }
+
+        throttleCount.incrementAndGet();
+
+        return (int) share;
+    }
+
+    /**
+     * Queues <code>channel</code> to advertise its window again once
+     * enough memory has been freed.
+     */
+    void waitForMemory(ChannelImpl channel)
+    {
+        waiting.add(channel);
+    }
+
+    /**
+     * Lets the channels waiting for memory advertise their windows again.
+     * Must not be called with any channel's locks held.
+     */
+    void wakeWaiting()
+    {
+        // channels still cut wait again, they are woken next time
+        for (int n = waiting.size(); n > 0; --n) {
+            ChannelImpl channel = waiting.poll();
+
+            if (channel == null) {
+                return;
+            }
+
+            channel.receiveMemoryAvailable();
+        }
+    }
+
+    /**
+     * The received data of one session.
+     */
+    class Account {
+        private final AtomicLong buffered = new AtomicLong();
+        private final AtomicInteger channels = new AtomicInteger();
+
+        ReceiveMemoryBudget getBudget()
+        {
+            return ReceiveMemoryBudget.this;
+        }
+
+        void addChannel()
+        {
+            channels.incrementAndGet();
+        }
+
+        void removeChannel()
+        {
+            channels.decrementAndGet();
+        }
+
+        void add(int bytes)
+        {
+            if (buffered.getAndAdd(bytes) == 0 && bytes > 0) {
+                sessions.incrementAndGet();
+            }
+
+            ReceiveMemoryBudget.this.buffered.addAndGet(bytes);
+        }
+
+        /**
+         * Returns <code>true</code> if enough memory has been freed to
+         * wake the channels waiting for it.
+         */
+        boolean release(int bytes)
+        {
+            if (bytes == 0) {
+                return false;
+            }
+
+            if (buffered.addAndGet(-bytes) == 0) {
+                sessions.decrementAndGet();
+            }
+
+            long total = ReceiveMemoryBudget.this.buffered.addAndGet(-bytes);
+
+            if (waiting.isEmpty()) {
+                return false;
+            }
+
+            long limit = ReceiveMemoryBudget.this.limit;
+
+            if (total < limit / 2 ||
+                releasedSinceWake.addAndGet(bytes) >= limit / 16)
+            {
+                releasedSinceWake.set(0);
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
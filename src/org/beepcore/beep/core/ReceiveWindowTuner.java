@@ -0,0 +1,226 @@
+/*
+ * ReceiveWindowTuner.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sizes the receive window of a channel to about twice the data the
+ * application consumes in one round trip, the bandwidth-delay product of
+ * the path as far as the application can keep up with it.
+ *
+ * The round trip time is measured from each SEQ frame sent to the first
+ * data received beyond what the peer was allowed to send before that
+ * SEQ. The consumption rate is sampled once per round trip from the
+ * bytes the application frees. A window-limited channel consumes a whole
+ * window per round trip, so its window doubles until it reaches the
+ * channel's ceiling, the session's ceiling or the rate the application
+ * consumes data at. A channel that uses less than a quarter of its window
+ * has it halved.
+ *
+ * The window never shrinks below the data buffered plus what the peer
+ * may still send under the last window advertised, so a smaller window
+ * takes effect as the peer catches up.
+ *
+ * All methods are called with the channel's receive lock held.
+ */
+class ReceiveWindowTuner {
+
+    private final int minWindow;
+    private final int maxWindow;
+    private final AtomicLong sessionGrowth;
+    private final long sessionMaxGrowth;
+
+    /** the window the channel should advertise */
+    private int target;
+
+    /** bytes the peer may send before it receives another SEQ */
+    private long allowance;
+
+    /** smoothed round trip time in nanoseconds, 0 until measured */
+    private long rtt = 0;
+
+    /** time the SEQ being timed was sent, 0 if none */
+    private long probeSent = 0;
+
+    /** bytes to receive before data sent after the timed SEQ arrives */
+    private long probeRemaining;
+
+    private long intervalStart;
+    private long intervalBytes = 0;
+
+    /**
+     * @param initialWindow the window the channel starts with, it is
+     * never tuned below this.
+     * @param maxWindow the channel's ceiling.
+     * @param sessionGrowth the growth beyond their initial window of the
+     * tuned windows of all channels of the session.
+     * @param sessionMaxGrowth the ceiling of <code>sessionGrowth</code>.
+     * @param now current time in nanoseconds
+     */
+    ReceiveWindowTuner(int initialWindow, int maxWindow,
+                       AtomicLong sessionGrowth, long sessionMaxGrowth,
+                       long now)
+    {
+        this.minWindow = initialWindow;
+        this.maxWindow = Math.max(initialWindow, maxWindow);
+        this.sessionGrowth = sessionGrowth;
+        this.sessionMaxGrowth = sessionMaxGrowth;
+        this.target = initialWindow;
+        this.allowance = initialWindow;
+        this.intervalStart = now;
+    }
+
+    /**
+     * Returns the window the tuner is aiming for.
+     */
+    int getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Returns the smoothed round trip time in nanoseconds, or 0 if it has
+     * not been measured yet.
+     */
+    long getRoundTripTime()
+    {
+        return rtt;
+    }
+
+    /**
+     * Returns the window to advertise next, the target window unless the
+     * peer may still send more than that.
+     *
+     * @param buffered bytes received but not yet freed by the
+     * application.
+     */
+    int getWindow(int buffered)
+    {
+        long floor = buffered + allowance;
+
+        return (int) Math.max(target, Math.min(floor, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Called for each frame received.
+     */
+    void frameReceived(int size, long now)
+    {
+        allowance -= size;
+
+        if (probeSent != 0) {
+            probeRemaining -= size;
+
+            if (probeRemaining < 0) {
+                long sample = Math.max(now - probeSent, 1);
+
+                if (rtt == 0 || sample < rtt) {
+                    rtt = sample;
+                } else {
+                    rtt += (sample - rtt) / 8;
+                }
+
+                probeSent = 0;
+            }
+        }
+    }
+
+    /**
+     * Called once a SEQ frame allowing the peer to send
+     * <code>window</code> bytes has been sent.
+     */
+    void windowAdvertised(int window, long now)
+    {
+        if (probeSent == 0 && allowance < window) {
+            probeSent = now;
+            probeRemaining = allowance;
+        }
+
+        allowance = window;
+    }
+
+    /**
+     * Called as the application frees <code>size</code> bytes, returns
+     * <code>true</code> if the target window has grown.
+     */
+    boolean bytesConsumed(int size, long now)
+    {
+        intervalBytes += size;
+
+        long elapsed = now - intervalStart;
+        if (rtt == 0 || elapsed < rtt) {
+            return false;
+        }
+
+        // bytes consumed per round trip over the last interval
+        long perRtt = (long) (intervalBytes * ((double) rtt / elapsed));
+
+        intervalStart = now;
+        intervalBytes = 0;
+
+        int old = target;
+
+        if (perRtt * 2 > target) {
+            setTarget((int) Math.min(perRtt * 2, maxWindow));
+        } else if (perRtt * 4 < target) {
+            setTarget((int) Math.max(perRtt * 2, target / 2));
+        }
+
+        return target > old;
+    }
+
+    /**
+     * Returns the growth of this window to the session, called when the
+     * channel is closed.
+     */
+    void release()
+    {
+        sessionGrowth.addAndGet(minWindow - target);
+        target = minWindow;
+    }
+
+    private void setTarget(int window)
+    {
+        window = Math.max(window, minWindow);
+
+        int delta = window - target;
+
+        if (delta > 0) {
+            // take what the session's ceiling still allows
+            long growth;
+            do {
+                growth = sessionGrowth.get();
+                delta = (int) Math.min(delta, sessionMaxGrowth - growth);
+                if (delta <= 0) {
+                    return;
+                }
+            } while (sessionGrowth.compareAndSet(growth, growth + delta)
+                     == false);
+        } else {
+            sessionGrowth.addAndGet(delta);
+        }
+
+        target += delta;
+    }
+}
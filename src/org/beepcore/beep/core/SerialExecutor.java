@@ -0,0 +1,124 @@
+/*
+ * SerialExecutor.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on another
+ * executor. Channels dispatch through one each so the messages of a
+ * channel are handled in order whatever executor the session uses, while
+ * different channels still run in parallel.
+ *
+ * Only one task of the executor is submitted to the underlying executor
+ * at a time. It runs a single task and submits itself again if more are
+ * queued, so a busy channel does not keep a thread from other channels.
+ */
+class SerialExecutor implements Executor {
+
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final Executor executor;
+    private final SessionImpl session;
+    private final ConcurrentLinkedQueue<Task> tasks =
+        new ConcurrentLinkedQueue<Task>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable runner = new Runnable() {
+            public void run() {
+                runNext();
+            }
+        };
+
+    /**
+     * @param executor the executor running the tasks.
+     * @param session the session counting the dispatches, or
+     *                <code>null</code>.
+     */
+    SerialExecutor(Executor executor, SessionImpl session)
+    {
+        this.executor = executor;
+        this.session = session;
+    }
+
+    public void execute(Runnable task)
+    {
+        tasks.add(new Task(task));
+
+        if (session != null) {
+            session.dispatchQueued();
+        }
+
+        schedule();
+    }
+
+    private void schedule()
+    {
+        if (tasks.isEmpty() || scheduled.compareAndSet(false, true) == false) {
+            return;
+        }
+
+        try {
+            executor.execute(runner);
+        } catch (RuntimeException e) {
+            // a rejected task would leave the channel stalled for good
+            scheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void runNext()
+    {
+        Task task = tasks.poll();
+
+        try {
+            if (task != null) {
+                if (session != null) {
+                    session.dispatchStarted(System.nanoTime() - task.queued);
+                }
+
+                task.task.run();
+            }
+        } catch (RuntimeException e) {
+            log.error("Dispatched task failed", e);
+        } finally {
+            scheduled.set(false);
+            schedule();
+        }
+    }
+
+    private static class Task {
+        final Runnable task;
+        final long queued = System.nanoTime();
+
+        Task(Runnable task)
+        {
+            this.task = task;
+        }
+    }
+}
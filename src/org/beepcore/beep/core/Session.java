@@ -18,6 +18,7 @@ package org.beepcore.beep.core;
 
 
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
 
 import org.beepcore.beep.core.event.ChannelListener;
 import org.beepcore.beep.core.event.SessionListener;
@@ -69,6 +70,39 @@ public interface Session {
      */
     public void close() throws BEEPException;
 
+    /**
+     * Same as <code>closeAsync</code> but waits for this
+     * <code>Session</code> to be closed. If it is not closed within
+     * <code>timeout</code> milliseconds the <code>Session</code> is
+     * terminated.
+     *
+     * @param timeout the longest time to wait for all the replies, in
+     *                milliseconds.
+     *
+     * @throws BEEPError Thrown if the remote peer refused to close a
+     *                   <code>Channel</code> or this <code>Session</code>.
+     * @throws BEEPException
+     */
+    public void close(long timeout) throws BEEPException;
+
+    /**
+     * Request to close this <code>Session</code> gracefully without
+     * waiting for the remote peer. The profiles of the open
+     * <code>Channels</code> on this <code>Session</code> may veto the
+     * close request. A close request for each open <code>Channel</code>
+     * is sent at once, and once all of them are closed channel zero is
+     * closed. Until the close completes or is refused, requests to start
+     * new <code>Channels</code> from either peer are refused.
+     *
+     * @return a future completed with this <code>Session</code> once it
+     *         is closed. It is completed exceptionally with a
+     *         <code>BEEPError</code> if the remote peer refused to close
+     *         a <code>Channel</code> or this <code>Session</code>, in
+     *         which case the <code>Session</code> stays open, or with a
+     *         <code>BEEPException</code> for other errors.
+     */
+    public CompletableFuture<Session> closeAsync();
+
     /**
      * Get the <code>SessionCredential</code> used to authenticate this peer
      * of this Session.
@@ -228,6 +262,62 @@ public interface Session {
     public Channel startChannel(Collection profiles, RequestHandler handler)
         throws BEEPException, BEEPError;
 
+    /**
+     * Sends a request to start a new Channel on this Session for the
+     * specified profile without waiting for the reply. Several requests
+     * may be outstanding at once, channel zero sends them back to back.
+     *
+     * @param profile The URI of the profile for the new Channel.
+     * @param handler A <code>RequestHandler</code> to receive MSG messages
+     *                sent by the remote peer of this Session.
+     *
+     * @return a future completed with the started Channel. It is
+     *         completed exceptionally with a <code>BEEPError</code> if
+     *         the remote peer refuses to start the Channel, or with a
+     *         <code>BEEPException</code> for other errors.
+     */
+    public CompletableFuture<Channel> startChannelAsync(String profile,
+                                                        RequestHandler handler);
+
+    /**
+     * Sends a start channel request using the given list of profiles
+     * without waiting for the reply.
+     *
+     * @param profiles A collection of <code>StartChannelProfile</code>(s).
+     * @param handler A <code>RequestHandler</code> to receive MSG messages
+     *                sent by the remote peer of this Session.
+     *
+     * @return a future completed with the started Channel.
+     * @see #startChannelAsync(String, RequestHandler)
+     */
+    public CompletableFuture<Channel> startChannelAsync(
+        Collection<StartChannelProfile> profiles, RequestHandler handler);
+
+    /**
+     * Starts <code>count</code> Channels for the specified profile. All
+     * the start requests are sent together before waiting for any
+     * reply, so starting many channels takes about as long as starting
+     * one.
+     *
+     * @param profile The URI of the profile for the new Channels.
+     * @param count The number of Channels to start.
+     * @param handler A <code>RequestHandler</code> to receive MSG messages
+     *                sent by the remote peer on each of the Channels.
+     *
+     * @return the Channels that were started, in the order of the
+     *         requests. Channels the remote peer refused to start are
+     *         left out.
+     *
+     * @throws BEEPError Thrown if the remote peer is unable or refuses to
+     *                   start any of the Channels.
+     * @throws BEEPException Thrown if none of the Channels could be
+     *                       started for other reasons.
+     * @see #startChannelAsync(String, RequestHandler)
+     */
+    public Channel[] startChannels(String profile, int count,
+                                   RequestHandler handler)
+        throws BEEPException, BEEPError;
+
     /**
      * This method is used to terminate the session when there is an
      * non-recoverable error.
@@ -22,12 +22,29 @@ package org.beepcore.beep.core;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -44,6 +61,7 @@ import org.beepcore.beep.core.event.SessionListener;
 
 import org.beepcore.beep.core.serialize.*;
 
+import org.beepcore.beep.util.HeaderParser;
 import org.beepcore.beep.util.StringUtil;
 
 
@@ -84,13 +102,10 @@ public abstract class SessionImpl implements Session {
 
     private static final int DEFAULT_CHANNELS_SIZE = 4;
     private static final int DEFAULT_PROPERTIES_SIZE = 4;
-    private static final int DEFAULT_POLL_INTERVAL = 500;
+    private static final int TLS_RECORD_SIZE = 16 * 1024;
 
-    /** @todo check this */
-    private static final int MAX_START_CHANNEL_WAIT = 60000;
-    private static final int MAX_START_CHANNEL_INTERVAL = 100;
+    protected static final int MAX_GREETING_WAIT = 60000;
 
-    private static final String CHANNEL_ZERO = "0";
 
     private static final String ERR_MALFORMED_XML_MSG = "Malformed XML";
     private static final String ERR_UNKNOWN_OPERATION_ELEMENT_MSG =
@@ -107,7 +122,11 @@ public abstract class SessionImpl implements Session {
     private int state;
     private long nextChannelNumber = 0;
     private ChannelImpl zero;
-    private Hashtable channels = null;
+    /** completed once the peer's greeting has been received */
+    private final CompletableFuture<Session> greeted =
+        new CompletableFuture<Session>();
+    /** open channels keyed by channel number */
+    private ChannelTable channels = null;
     private Hashtable properties = null;
     private List sessionListenerList =
         Collections.synchronizedList(new LinkedList());
@@ -124,6 +143,37 @@ public abstract class SessionImpl implements Session {
     private String serverName;
     private boolean sentServerName = false;
     private boolean requiresTLS = false;
+    private final AtomicLong tunedWindowGrowth = new AtomicLong();
+    private ReceiveMemoryBudget.Account receiveMemory = null;
+    private WindowUpdatePolicy windowUpdatePolicy;
+    private final AtomicLong windowUpdatesSent = new AtomicLong();
+    private final AtomicLong payloadBytesReceived = new AtomicLong();
+    private boolean sendAsync;
+
+    /** channels with data to send, queued by producers for the sender */
+    private final ConcurrentLinkedQueue<ChannelImpl> sendReady =
+        new ConcurrentLinkedQueue<ChannelImpl>();
+
+    /** set while a sender is draining <code>sendReady</code> */
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    private final Runnable sender = new Runnable() {
+            public void run() {
+                drainSendReady();
+            }
+        };
+
+    private static ExecutorService sendExecutor = null;
+
+    private static ScheduledThreadPoolExecutor greetingTimer = null;
+
+    private Executor dispatchExecutor;
+    private boolean dispatchReplies;
+    private final AtomicInteger dispatchQueueDepth = new AtomicInteger();
+    private volatile int maxDispatchQueueDepth = 0;
+    private final AtomicLong dispatchCount = new AtomicLong();
+    private final AtomicLong dispatchLatency = new AtomicLong();
+    private volatile long maxDispatchLatency = 0;
 
     /**
      * Default Session Constructor.  A relationship between peers - a session -
@@ -151,11 +201,25 @@ public abstract class SessionImpl implements Session {
         nextChannelNumber = firstChannel;
         overflow = false;
         profileRegistry = registry;
-        channels = new Hashtable(DEFAULT_CHANNELS_SIZE);
+        channels = new ChannelTable(DEFAULT_CHANNELS_SIZE);
         properties = new Hashtable(DEFAULT_PROPERTIES_SIZE);
         tuningProperties = tuning;
         this.serverName = serverName;
 
+        if (tuning != null && tuning.getReceiveMemoryBudget() != null) {
+            receiveMemory = tuning.getReceiveMemoryBudget().newAccount();
+        }
+
+        windowUpdatePolicy = (tuning == null ?
+                              ChannelImpl.DEFAULT_WINDOW_UPDATE_POLICY :
+                              tuning.getWindowUpdatePolicy());
+
+        sendAsync = (tuning != null && tuning.getSendAsync());
+
+        dispatchExecutor = (tuning == null ?
+                            ChannelImpl.getSharedDispatchExecutor() :
+                            tuning.getDispatchExecutor());
+        dispatchReplies = (tuning != null && tuning.getDispatchReplies());
     }
 
     /**
@@ -166,42 +230,12 @@ public abstract class SessionImpl implements Session {
      */
     protected void init() throws BEEPException
     {
-        this.peerSupportedProfiles = null;
-
-        GreetingListener greetingListener = new GreetingListener();
-
-        zero = ChannelImpl.createChannelZero(this, greetingListener,
-                                             new ChannelZeroListener());
-
-        channels.put(CHANNEL_ZERO, zero);
-
-        // send greeting
-        sendGreeting();
-        changeState(Session.SESSION_STATE_GREETING_SENT);
-
-        // start our listening thread we can now receive a greeting
-        this.enableIO();
+        CompletableFuture<Session> greeting = initAsync();
 
         // blocks until greeting is received or MAX_GREETING_WAIT is reached
-        int waitCount = 0;
-
-        while ((state < SESSION_STATE_ACTIVE)
-                && (waitCount < MAX_START_CHANNEL_WAIT)) {
-            try {
-                synchronized (greetingListener) {
-
-                    //zero.wait(MAX_START_CHANNEL_INTERVAL);
-                    greetingListener.wait(MAX_START_CHANNEL_INTERVAL);
-
-                    waitCount += MAX_START_CHANNEL_INTERVAL;
-                }
-            } catch (InterruptedException e) {
-                waitCount += MAX_START_CHANNEL_INTERVAL;
-            }
-        }
-
-        // check the channel state and return the appropriate exception
-        if (state != SESSION_STATE_ACTIVE) {
+        try {
+            greeting.get(MAX_GREETING_WAIT, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
             throw new BEEPException("Greeting exchange failed");
         }
     }
@@ -217,13 +251,28 @@ public abstract class SessionImpl implements Session {
     {
         log.debug("Session.tuningInit");
 
+        initAsync();
+    }
+
+    /**
+     * Initializes Channel Zero and its listener and sends a greeting
+     * without waiting for the peer's greeting.
+     *
+     * @return a future completed with this session once the peer's
+     * greeting has been received, or failed if the session is
+     * terminated first.
+     *
+     * @throws BEEPException
+     */
+    private CompletableFuture<Session> initAsync() throws BEEPException
+    {
         this.peerSupportedProfiles = null;
 
         GreetingListener greetingListener = new GreetingListener();
 
         zero = ChannelImpl.createChannelZero(this, greetingListener,
                                              new ChannelZeroListener());
-        channels.put(CHANNEL_ZERO, zero);
+        channels.put(zero);
 
         // send greeting
         sendGreeting();
@@ -231,6 +280,61 @@ public abstract class SessionImpl implements Session {
 
         // start our listening thread we can now receive a greeting
         this.enableIO();
+
+        return greeted;
+    }
+
+    /**
+     * Returns a future completed with this session once the peer's
+     * greeting has been received, or failed if the session is terminated
+     * first. Lets transports hand out sessions initialized with
+     * <code>tuningInit</code> before the greeting exchange is done.
+     *
+     * @param timeout milliseconds to wait for the greeting, the session
+     * is terminated if it has not been received by then.
+     */
+    protected CompletableFuture<Session> getGreetingFuture(long timeout)
+    {
+        if (greeted.isDone()) {
+            return greeted;
+        }
+
+        final ScheduledFuture<?> deadline =
+            getGreetingTimer().schedule(new Runnable() {
+                    public void run() {
+                        if (greeted.isDone() == false) {
+                            terminate("Greeting exchange timed out");
+                        }
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+
+        greeted.whenComplete(new BiConsumer<Session, Throwable>() {
+                public void accept(Session s, Throwable t) {
+                    deadline.cancel(false);
+                }
+            });
+
+        return greeted;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor
+        getGreetingTimer()
+    {
+        if (greetingTimer == null) {
+            greetingTimer =
+                new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BEEP greeting timer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+
+            // most greetings arrive, don't keep their deadlines around
+            greetingTimer.setRemoveOnCancelPolicy(true);
+        }
+
+        return greetingTimer;
     }
 
     /**
@@ -273,16 +377,150 @@ public abstract class SessionImpl implements Session {
 
         changeState(SESSION_STATE_CLOSE_PENDING);
 
-        Iterator i = channels.values().iterator();
+        try {
+            approveClose();
+        } catch (BEEPException e) {
+            changeState(SESSION_STATE_ACTIVE);
+            // @todo rollback notification
+            throw e;
+        }
+
+        changeState(SESSION_STATE_CLOSING);
+
+        try {
+            // check with the peer to see if it is ok to close the channel
+            zero.close();
+        } catch (BEEPError e) {
+            changeState(SESSION_STATE_ACTIVE);
+            throw e;
+        } catch (BEEPException e) {
+            terminate(e.getMessage());
+            log.error("Error sending close", e);
+            throw e;
+        }
+
+        this.disableIO();
+        // @todo close the socket
+
+        releaseChannels();
+        zero = null;
+
+        this.changeState(SESSION_STATE_CLOSED);
+        fireSessionTerminated();
+    }
+
+    /**
+     * Same as <code>closeAsync</code> but waits for the session to be
+     * closed. If it is not closed within <code>timeout</code>
+     * milliseconds the session is terminated.
+     *
+     * @throws BEEPException
+     */
+    public void close(long timeout) throws BEEPException
+    {
+        try {
+            closeAsync().get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            terminate("Timed out closing the session");
+            throw new BEEPException("Timed out closing the session");
+        } catch (InterruptedException e) {
+            log.error("Interrupted waiting for reply", e);
+            throw new BEEPException("Interrupted waiting for reply");
+        } catch (ExecutionException e) {
+            throw toBEEPException(e.getCause());
+        }
+    }
+
+    public CompletableFuture<Session> closeAsync()
+    {
+        final CompletableFuture<Session> closed =
+            new CompletableFuture<Session>();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Closing Session with " + channels.size() + " channels");
+        }
+
+        try {
+            changeState(SESSION_STATE_CLOSE_PENDING);
+        } catch (BEEPException e) {
+            closed.completeExceptionally(e);
+            return closed;
+        }
+
+        try {
+            ChannelImpl[] open = approveClose();
+            CompletableFuture<?>[] closes =
+                new CompletableFuture<?>[open.length];
+
+            holdWrites();
+            try {
+                for (int i = 0; i < open.length; ++i) {
+                    closes[i] = sendCloseRequest(open[i],
+                                                 BEEPError.CODE_SUCCESS,
+                                                 null, true);
+                }
+            } finally {
+                releaseWrites();
+            }
+
+            CompletableFuture.allOf(closes).whenComplete(
+                new BiConsumer<Void, Throwable>() {
+                    public void accept(Void v, Throwable t) {
+                        if (t != null) {
+                            cancelClose();
+                            closed.completeExceptionally(toBEEPException(t));
+                        } else {
+                            closeChannelZero(closed);
+                        }
+                    }
+                });
+        } catch (BEEPException e) {
+            cancelClose();
+            closed.completeExceptionally(e);
+        }
+
+        return closed;
+    }
+
+    /**
+     * Returns the session to the active state after the close was
+     * refused, unless it has ended in the meantime.
+     */
+    private synchronized void cancelClose()
+    {
+        if (state != SESSION_STATE_CLOSE_PENDING) {
+            return;
+        }
+
+        try {
+            changeState(SESSION_STATE_ACTIVE);
+        } catch (BEEPException e) {
+            log.error("Error changing state", e);
+        }
+    }
+
+    /**
+     * Asks the profiles of the open channels if they may be closed.
+     *
+     * @return the open channels other than channel zero.
+     *
+     * @throws BEEPException if a profile refused.
+     */
+    private ChannelImpl[] approveClose() throws BEEPException
+    {
+        LinkedList<ChannelImpl> open = new LinkedList<ChannelImpl>();
+        Iterator<ChannelImpl> i = channels.values().iterator();
 
         while (i.hasNext()) {
-            ChannelImpl ch = (ChannelImpl) i.next();
+            ChannelImpl ch = i.next();
 
             // if this channel is not zero, call the channel's scl
             if (ch.getNumber() == 0) {
                 continue;
             }
 
+            open.add(ch);
+
             StartChannelListener scl =
                 profileRegistry.getStartChannelListener(this.tuningProperties,
                                                         ch.getProfile());
@@ -295,35 +533,59 @@ public abstract class SessionImpl implements Session {
             try {
                 scl.closeChannel(ch);
             } catch (CloseChannelException cce) {
-                changeState(SESSION_STATE_ACTIVE);
-                // @todo rollback notification
                 throw new BEEPException("Close Session rejected by local "
                                         + "channel " + ch.getProfile());
             }
         }
 
-        changeState(SESSION_STATE_CLOSING);
+        return open.toArray(new ChannelImpl[open.size()]);
+    }
 
+    /**
+     * The last step of <code>closeAsync</code>, once the other channels
+     * are closed.
+     */
+    private void closeChannelZero(final CompletableFuture<Session> closed)
+    {
         try {
-            // check with the peer to see if it is ok to close the channel
-            zero.close();
-        } catch (BEEPError e) {
-            changeState(SESSION_STATE_ACTIVE);
-            throw e;
+            changeState(SESSION_STATE_CLOSING);
+
+            sendCloseRequest(zero, BEEPError.CODE_SUCCESS, null, true)
+                .whenComplete(new BiConsumer<Channel, Throwable>() {
+                        public void accept(Channel ch, Throwable t) {
+                            if (t instanceof BEEPError) {
+                                try {
+                                    changeState(SESSION_STATE_ACTIVE);
+                                } catch (BEEPException e) {
+                                    terminate(e.getMessage());
+                                }
+                                closed.completeExceptionally(t);
+                                return;
+                            } else if (t != null) {
+                                terminate(t.getMessage());
+                                closed.completeExceptionally(t);
+                                return;
+                            }
+
+                            disableIO();
+                            releaseChannels();
+                            zero = null;
+
+                            try {
+                                changeState(SESSION_STATE_CLOSED);
+                            } catch (BEEPException e) {
+                                closed.completeExceptionally(e);
+                                return;
+                            }
+                            fireSessionTerminated();
+
+                            closed.complete(SessionImpl.this);
+                        }
+                    });
         } catch (BEEPException e) {
             terminate(e.getMessage());
-            log.error("Error sending close", e);
-            throw e;
+            closed.completeExceptionally(e);
         }
-
-        this.disableIO();
-        // @todo close the socket
-
-        channels.clear();
-        zero = null;
-
-        this.changeState(SESSION_STATE_CLOSED);
-        fireSessionTerminated();
     }
 
     /**
@@ -464,20 +726,165 @@ public abstract class SessionImpl implements Session {
         return startChannelRequest(profiles, handler, false);
     }
 
+    public CompletableFuture<Channel> startChannelAsync(String profile,
+                                                        RequestHandler handler)
+    {
+        LinkedList<StartChannelProfile> l =
+            new LinkedList<StartChannelProfile>();
+
+        l.add(new StartChannelProfile(profile));
+
+        return startChannelAsync(l, handler);
+    }
+
+    public CompletableFuture<Channel> startChannelAsync(
+        Collection<StartChannelProfile> profiles, RequestHandler handler)
+    {
+        try {
+            return sendStartRequest(profiles, handler, false, true);
+        } catch (BEEPException e) {
+            CompletableFuture<Channel> failed =
+                new CompletableFuture<Channel>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
     Channel startChannelRequest(Collection profiles, RequestHandler handler,
                                 boolean tuning)
             throws BEEPException, BEEPError
     {
+        Channel ch =
+            awaitChannel(sendStartRequest(profiles, handler, tuning, false));
+
+        fireChannelStarted(ch);
+        return ch;
+    }
+
+    public Channel[] startChannels(String profile, int count,
+                                   RequestHandler handler)
+            throws BEEPException, BEEPError
+    {
+        if (count < 1) {
+            throw new IllegalArgumentException("Invalid channel count " +
+                                               count);
+        }
+
+        List<CompletableFuture<Channel>> requests =
+            new ArrayList<CompletableFuture<Channel>>(count);
+        BEEPException failure = null;
+        int sent = 0;
+
+        holdWrites();
+        try {
+            for (; sent < count; ++sent) {
+                LinkedList<StartChannelProfile> l =
+                    new LinkedList<StartChannelProfile>();
+
+                l.add(new StartChannelProfile(profile));
+
+                requests.add(sendStartRequest(l, handler, false, false));
+            }
+        } catch (BEEPException e) {
+            // wait for the requests already sent
+            failure = e;
+        } finally {
+            try {
+                releaseWrites();
+            } catch (BEEPException e) {
+                // the socket failed, fail the outstanding requests
+                failure = e;
+                terminate("Unable to send start requests: " + e.getMessage());
+            }
+        }
+
+        LinkedList<Channel> started = new LinkedList<Channel>();
+
+        for (int i = 0; i < sent; ++i) {
+            try {
+                Channel ch = awaitChannel(requests.get(i));
+
+                fireChannelStarted(ch);
+                started.add(ch);
+            } catch (BEEPException e) {
+                if (requests.get(i).isDone() == false) {
+                    // interrupted
+                    throw e;
+                }
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (started.isEmpty()) {
+            throw failure;
+        }
+
+        return started.toArray(new Channel[started.size()]);
+    }
+
+    /**
+     * Waits for the reply to a <code>start</code> or <code>close</code>
+     * sent with <code>sendStartRequest</code> or
+     * <code>sendCloseRequest</code>.
+     */
+    private Channel awaitChannel(CompletableFuture<Channel> reply)
+            throws BEEPException, BEEPError
+    {
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            log.error("Interrupted waiting for reply", e);
+            throw new BEEPException("Interrupted waiting for reply");
+        } catch (ExecutionException e) {
+            throw toBEEPException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the <code>BEEPException</code> a future failed with, with
+     * the stack trace of the caller rather than the reader.
+     */
+    private static BEEPException toBEEPException(Throwable t)
+    {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+
+        if (t instanceof BEEPException) {
+            t.fillInStackTrace();
+            return (BEEPException) t;
+        }
+
+        return new BEEPException(t);
+    }
+
+    /**
+     * Sends a <code>start</code> on channel zero and returns a future
+     * completed once the reply has been processed.
+     *
+     * @param fire whether the reply fires the channel started event,
+     *             otherwise the caller fires it.
+     */
+    private CompletableFuture<Channel> sendStartRequest(Collection<?> profiles,
+                                                        RequestHandler handler,
+                                                        boolean tuning,
+                                                        boolean fire)
+            throws BEEPException
+    {
+        if (isClosing()) {
+            throw new BEEPException("Session is closing");
+        }
 
-        String channelNumber = getNextFreeChannelNumber();
+        int channelNumber = getNextFreeChannelNumber();
 
         StartElement start;
         
         if (sentServerName) {
-            start = new StartElement(Integer.parseInt(channelNumber), profiles);
+            start = new StartElement(channelNumber, profiles);
         } else {
-            start = new StartElement(Integer.parseInt(channelNumber),
-                                     serverName, profiles);
+            start = new StartElement(channelNumber, serverName, profiles);
         }
         
         // @todo handle the data element
@@ -497,38 +904,22 @@ public abstract class SessionImpl implements Session {
         }
 
         // Tell Channel Zero to start us up
-        StartReplyListener reply = new StartReplyListener(ch);
-        synchronized (reply) {
-            this.zero.sendMSG(ds, reply);
-            try {
-                reply.wait();
-            } catch (InterruptedException e) {
-                log.error("Interrupted waiting for reply", e);
-                throw new BEEPException("Interrupted waiting for reply");
-            }
-        }
-
-        // check the channel state and return the appropriate exception
-        if (reply.isError()) {
-            reply.getError().fillInStackTrace();
-            throw reply.getError();
-        }
-
-        if (ch.getState() != ChannelImpl.STATE_ACTIVE) {
-            throw new BEEPException("Error channel state (" +
-                                    ch.getState() + ")");
-        }
-
-        if (tuning) {
-            ch.setState(ChannelImpl.STATE_TUNING);
-        }
+        final StartReplyListener reply =
+            new StartReplyListener(ch, tuning, fire);
+        MessageStatus status = this.zero.sendMSG(ds, reply);
+
+        // the session ended, the request could not be sent or the peer
+        // answered with ANS or NUL, the listener has already run
+        status.getReply().whenComplete(new BiConsumer<Message, Throwable>() {
+                public void accept(Message m, Throwable t) {
+                    if (t == null) {
+                        t = new BEEPException("Unexpected reply to start");
+                    }
+                    reply.started.completeExceptionally(t);
+                }
+            });
 
-        if (serverName != null) {
-            sentServerName = true;
-        }
-    
-        fireChannelStarted(ch);
-        return ch;
+        return reply.started;
     }
 
     /**
@@ -551,13 +942,34 @@ public abstract class SessionImpl implements Session {
         }
 
         this.disableIO();
-        channels.clear();
+        releaseChannels();
 
         zero = null;
 
+        greeted.completeExceptionally(new BEEPException(reason));
+
         fireSessionTerminated();
     }
     
+    /**
+     * Forgets the channels once the session is over, returning what they
+     * still hold of the receive window and memory budgets and failing
+     * the futures of MSGs that will not get a reply.
+     */
+    private void releaseChannels()
+    {
+        Iterator<ChannelImpl> i = channels.values().iterator();
+
+        while (i.hasNext()) {
+            ChannelImpl ch = i.next();
+
+            ch.releaseReceiveWindow();
+            ch.failPendingMSGs();
+        }
+
+        channels.clear();
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -591,7 +1003,36 @@ public abstract class SessionImpl implements Session {
     protected Frame createFrame(byte[] header, int headerLength)
             throws BEEPException
     {
-        Frame f = Frame.parseHeader(this, header, headerLength);
+        return createFrame(header, 0, headerLength);
+    }
+
+    /**
+     * Same as <code>createFrame(byte[], int)</code> for a header that
+     * starts at <code>offset</code> in <code>header</code>, which lets
+     * transports parse headers in place in their read buffers.
+     *
+     * @return a <code>Frame</code> for the specified values
+     *
+     * @throws BEEPException
+     */
+    protected Frame createFrame(byte[] header, int offset, int headerLength)
+            throws BEEPException
+    {
+        return createFrame(new HeaderParser(header, offset, headerLength));
+    }
+
+    /**
+     * Same as <code>createFrame(byte[], int)</code> for the header
+     * <code>header</code> is set to, which lets transports parse all
+     * headers with one parser.
+     *
+     * @return a <code>Frame</code> for the specified values
+     *
+     * @throws BEEPException
+     */
+    protected Frame createFrame(HeaderParser header) throws BEEPException
+    {
+        Frame f = Frame.parseHeader(this, header);
         int windowSize = ((ChannelImpl)f.getChannel()).getAvailableWindow();
         int frameSize = f.getSize();
         // The window size and frame size have nothing in common.
@@ -623,7 +1064,7 @@ public abstract class SessionImpl implements Session {
      */
     protected int getChannelAvailableWindow(int channel) throws BEEPException
     {
-        ChannelImpl ch = (ChannelImpl) channels.get(Integer.toString(channel));
+        ChannelImpl ch = channels.get(channel);
 
         if (ch == null) {
             throw new BEEPException("Session call on nonexistent channel.");
@@ -654,6 +1095,42 @@ public abstract class SessionImpl implements Session {
      */
     protected abstract int getMaxFrameSize() throws BEEPException;
 
+    /**
+     * Returns the maximum frame size set in the tuning properties or, if
+     * it is chosen automatically, half the socket's send buffer so the
+     * next frame can be queued while one is in the buffer. TLS splits
+     * writes into records of 16KB, larger frames save nothing, so with
+     * TLS frames are at most that. Transports call this once their socket
+     * is set up. Channels never send more than the peer's window in
+     * one frame whatever the frame size.
+     *
+     * @param sendBufferSize size of the socket's send buffer.
+     * @param tls whether the socket uses TLS.
+     */
+    protected int chooseMaxFrameSize(int sendBufferSize, boolean tls)
+    {
+        SessionTuningProperties tuning = getTuningProperties();
+
+        if (tuning == null) {
+            return SessionTuningProperties.DEFAULT_MAX_FRAME_SIZE;
+        }
+
+        int max = tuning.getMaxFrameSize();
+
+        if (tuning.getFrameSizeAuto() == false) {
+            return max;
+        }
+
+        int size = Math.max(sendBufferSize / 2,
+                            SessionTuningProperties.DEFAULT_MAX_FRAME_SIZE);
+
+        if (tls) {
+            size = Math.min(size, TLS_RECORD_SIZE);
+        }
+
+        return Math.min(size, max);
+    }
+
     /**
      * Method postFrame
      *
@@ -702,6 +1179,39 @@ public abstract class SessionImpl implements Session {
      */
     protected abstract void sendFrame(Frame f) throws BEEPException;
 
+    /**
+     * Called before channel zero sends a close, or the ok to a close, of
+     * <code>channel</code>. Transports that write the frames of different
+     * channels in a different order than they were sent must write the
+     * frames already sent on the channel, or on all channels if it is
+     * channel zero, before any frame of channel zero sent after this. The
+     * default implementation does nothing.
+     */
+    protected void channelClosing(Channel channel)
+    {
+    }
+
+    /**
+     * Called before a burst of frames is sent, such as the
+     * <code>start</code> requests of <code>startChannels</code>.
+     * Transports may hold the frames sent until
+     * <code>releaseWrites</code> is called and then write them together.
+     * Calls may nest. The default implementation does nothing.
+     */
+    protected void holdWrites()
+    {
+    }
+
+    /**
+     * Ends a <code>holdWrites</code>. The default implementation does
+     * nothing.
+     *
+     * @throws BEEPException if the held frames could not be written.
+     */
+    protected void releaseWrites() throws BEEPException
+    {
+    }
+
     /**
      * Method setLocalCredential
      *
@@ -741,6 +1251,207 @@ public abstract class SessionImpl implements Session {
         return tuningProperties;
     }
 
+    /**
+     * Returns how far the automatically tuned receive windows of this
+     * session's channels have grown beyond their default size in total.
+     */
+    AtomicLong getTunedWindowGrowth()
+    {
+        return tunedWindowGrowth;
+    }
+
+    /**
+     * Returns the account of this session's received data in the receive
+     * memory budget, or <code>null</code> if it has no budget.
+     */
+    ReceiveMemoryBudget.Account getReceiveMemory()
+    {
+        return receiveMemory;
+    }
+
+    /**
+     * Returns the policy deciding when this session's channels send SEQ
+     * frames.
+     */
+    WindowUpdatePolicy getWindowUpdatePolicy()
+    {
+        return windowUpdatePolicy;
+    }
+
+    /**
+     * Returns the number of SEQ frames sent on this session. The number
+     * of SEQ frames per byte of data received is this divided by
+     * <code>getPayloadBytesReceived()</code>.
+     */
+    public long getWindowUpdatesSent()
+    {
+        return windowUpdatesSent.get();
+    }
+
+    /**
+     * Returns the number of payload bytes received on all channels of
+     * this session.
+     */
+    public long getPayloadBytesReceived()
+    {
+        return payloadBytesReceived.get();
+    }
+
+    /**
+     * Returns <code>true</code> if this session's channels leave building
+     * and writing frames to a sender thread.
+     */
+    boolean isSendAsync()
+    {
+        return sendAsync;
+    }
+
+    /**
+     * Queues <code>channel</code> to send its queued messages on the
+     * session's sender, starting one if none is running. At most one
+     * sender runs per session, so frames are written by one thread at a
+     * time and the producers never wait for the transport.
+     */
+    void scheduleSend(ChannelImpl channel)
+    {
+        sendReady.add(channel);
+
+        if (sending.compareAndSet(false, true)) {
+            getSendExecutor().execute(sender);
+        }
+    }
+
+    private void drainSendReady()
+    {
+        while (true) {
+            ChannelImpl channel;
+
+            while ((channel = sendReady.poll()) != null) {
+                channel.sendScheduledMessages();
+            }
+
+            sending.set(false);
+
+            // a channel queued after the last poll found sending still set
+            if (sendReady.isEmpty() ||
+                sending.compareAndSet(false, true) == false)
+            {
+                return;
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getSendExecutor()
+    {
+        if (sendExecutor == null) {
+            sendExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BEEP sender");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
+        return sendExecutor;
+    }
+
+    /**
+     * Returns the executor this session's channels hand received messages
+     * to their request handlers on, unless their profile has one.
+     */
+    Executor getDispatchExecutor()
+    {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Returns <code>true</code> if this session's channels call reply
+     * listeners on the dispatch executor.
+     */
+    boolean isDispatchReplies()
+    {
+        return dispatchReplies;
+    }
+
+    /**
+     * Returns the number of received messages handed to the executor and
+     * not yet started. A channel hands over a message once the previous
+     * one has been replied to, so there is at most one per channel.
+     * Replies passed to listeners on the executor count as well.
+     */
+    public int getDispatchQueueDepth()
+    {
+        return dispatchQueueDepth.get();
+    }
+
+    /**
+     * Returns the largest number of received messages handed to the
+     * executor and not yet started at any time.
+     */
+    public int getMaxDispatchQueueDepth()
+    {
+        return maxDispatchQueueDepth;
+    }
+
+    /**
+     * Returns the number of received messages handed to request handlers.
+     */
+    public long getDispatchCount()
+    {
+        return dispatchCount.get();
+    }
+
+    /**
+     * Returns the total time in nanoseconds received messages waited for
+     * the executor to start them. The mean wait is this divided by
+     * <code>getDispatchCount()</code>.
+     */
+    public long getDispatchLatency()
+    {
+        return dispatchLatency.get();
+    }
+
+    /**
+     * Returns the longest time in nanoseconds a received message waited
+     * for the executor to start it.
+     */
+    public long getMaxDispatchLatency()
+    {
+        return maxDispatchLatency;
+    }
+
+    void dispatchQueued()
+    {
+        int depth = dispatchQueueDepth.incrementAndGet();
+
+        // racy, the maximum may miss a concurrent peak
+        if (depth > maxDispatchQueueDepth) {
+            maxDispatchQueueDepth = depth;
+        }
+    }
+
+    void dispatchStarted(long latency)
+    {
+        dispatchQueueDepth.decrementAndGet();
+        dispatchCount.incrementAndGet();
+        dispatchLatency.addAndGet(latency);
+
+        if (latency > maxDispatchLatency) {
+            maxDispatchLatency = latency;
+        }
+    }
+
+    void windowUpdateSent()
+    {
+        windowUpdatesSent.incrementAndGet();
+    }
+
+    void payloadReceived(int size)
+    {
+        payloadBytesReceived.addAndGet(size);
+    }
+
     public String getServerName()
     {
         return serverName;
@@ -772,6 +1483,22 @@ public abstract class SessionImpl implements Session {
                                                          int currentAvail)
         throws BEEPException;
 
+    /**
+     * Like <code>updateMyReceiveBufferSize</code> but the SEQ frame may be
+     * held back and written together with the next frame sent on the
+     * session. The caller sends a frame right after this returns. The
+     * default implementation sends the SEQ frame at once.
+     *
+     * @see #updateMyReceiveBufferSize
+     */
+    protected boolean queueMyReceiveBufferSize(Channel channel,
+                                               long currentSeq,
+                                               int currentAvail)
+        throws BEEPException
+    {
+        return updateMyReceiveBufferSize(channel, currentSeq, currentAvail);
+    }
+
     // @todo update the java-doc to correctly identify the params
 
     /**
@@ -808,6 +1535,30 @@ public abstract class SessionImpl implements Session {
     void closeChannel(ChannelImpl channel, int code, String xmlLang)
             throws BEEPException
     {
+        awaitChannel(sendCloseRequest(channel, code, xmlLang, false));
+
+        // check the channel state and return the appropriate exception
+        if (channel.getState() != ChannelImpl.STATE_CLOSED) {
+            throw new BEEPException("Error channel state (" +
+                                    channel.getState() + ")");
+        }
+
+        fireChannelClosed(channel);
+    }
+
+    /**
+     * Sends a <code>close</code> on channel zero and returns a future
+     * completed once the reply has been processed.
+     *
+     * @param fire whether the reply fires the channel closed event,
+     *             otherwise the caller fires it.
+     */
+    private CompletableFuture<Channel> sendCloseRequest(ChannelImpl channel,
+                                                        int code,
+                                                        String xmlLang,
+                                                        boolean fire)
+            throws BEEPException
+    {
 
         // Construct Message
         StringBuffer closeBuffer = new StringBuffer();
@@ -824,42 +1575,36 @@ public abstract class SessionImpl implements Session {
 
         closeBuffer.append("' />");
 
-        // Lock necessary because we have to know the msgNo
-        // before we send the message, in order to be able
-        // to associate the reply with this start request
-        CloseReplyListener reply = new CloseReplyListener(channel);
-        synchronized (reply) {
-            OutputDataStream ds =
-                new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
-                                         StringUtil.stringBufferToAscii(closeBuffer));
-
-            this.zero.sendMSG(ds,
-                              reply);
-            try {
-                reply.wait();
-            } catch (InterruptedException e) {
-                log.error("Error waiting for reply", e);
-                throw new BEEPException("Interrupted waiting for reply");
-            }
-        }
+        final CloseReplyListener reply = new CloseReplyListener(channel, fire);
+        OutputDataStream ds =
+            new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
+                                     StringUtil.stringBufferToAscii(closeBuffer));
 
-        // check the channel state and return the appropriate exception
-        if (reply.isError()) {
-            reply.getError().fillInStackTrace();
-            throw reply.getError();
+        // data queued to the sender goes out ahead of the close
+        if (sendAsync) {
+            channel.sendQueuedMessages();
         }
+        channelClosing(channel);
 
-        if (channel.getState() != ChannelImpl.STATE_CLOSED) {
-            throw new BEEPException("Error channel state (" +
-                                    channel.getState() + ")");
-        }
+        MessageStatus status = this.zero.sendMSG(ds, reply);
 
-        fireChannelClosed(channel);
+        // the session ended, the request could not be sent or the peer
+        // answered with ANS or NUL
+        status.getReply().whenComplete(new BiConsumer<Message, Throwable>() {
+                public void accept(Message m, Throwable t) {
+                    if (t == null) {
+                        t = new BEEPException("Unexpected reply to close");
+                    }
+                    reply.closed.completeExceptionally(t);
+                }
+            });
+
+        return reply.closed;
     }
 
     ChannelImpl getValidChannel(int number) throws BEEPException
     {
-        ChannelImpl ch = (ChannelImpl) channels.get(Integer.toString(number));
+        ChannelImpl ch = channels.get(number);
 
         if (ch == null) {
             throw new BEEPException("Session call on nonexistent channel.");
@@ -878,7 +1623,7 @@ public abstract class SessionImpl implements Session {
                                      parser.serializeProfile(p));
 
         // Store the Channel
-        channels.put(ch.getNumberAsString(), ch);
+        channels.put(ch);
         ((MessageMSG)zero.getAppData()).sendRPY(ds);
     }
 
@@ -965,13 +1710,13 @@ public abstract class SessionImpl implements Session {
      *
      * @throws BEEPException
      */
-    private void receiveCloseChannel(String channelNumber, int code,
+    private void receiveCloseChannel(int channelNumber, int code,
                                      String xmlLang, String diagnostic)
         throws BEEPError
     {
 
         // @todo fix close channel
-        if (channelNumber.equals(CHANNEL_ZERO)) {
+        if (channelNumber == 0) {
             receiveCloseChannelZero();
 
             return;
@@ -979,7 +1724,7 @@ public abstract class SessionImpl implements Session {
 
         enableIO();
                 
-        ChannelImpl channel = (ChannelImpl) channels.get(channelNumber);
+        ChannelImpl channel = channels.get(channelNumber);
 
         if (channel == null) {
             throw new BEEPError(BEEPError.CODE_PARAMETER_INVALID,
@@ -1004,6 +1749,17 @@ public abstract class SessionImpl implements Session {
             new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
                                      OK_ELEMENT);
 
+        if (sendAsync) {
+            try {
+                channel.sendQueuedMessages();
+            } catch (BEEPException x) {
+                terminate("Error sending queued messages before <close>");
+
+                return;
+            }
+        }
+        channelClosing(channel);
+
         try {
             ((MessageMSG)zero.getAppData()).sendRPY(sds);
         } catch (BEEPException x) {
@@ -1014,7 +1770,7 @@ public abstract class SessionImpl implements Session {
 
         // We're past the CCL approval
         channel.setState(ChannelImpl.STATE_CLOSED);
-        channels.remove(channel.getNumberAsString());
+        channels.remove(channel.getNumber());
         fireChannelClosed(channel);
     }
 
@@ -1036,10 +1792,10 @@ public abstract class SessionImpl implements Session {
             return;
         }
 
-        Iterator i = channels.values().iterator();
+        Iterator<ChannelImpl> i = channels.values().iterator();
 
         while (i.hasNext()) {
-            ChannelImpl ch = (ChannelImpl) i.next();
+            ChannelImpl ch = i.next();
 
             // if this channel is not zero, call the channel's scl
             if (ch.getNumber() == 0) {
@@ -1074,6 +1830,8 @@ public abstract class SessionImpl implements Session {
             new ByteOutputDataStream(MimeHeaders.BEEP_XML_CONTENT_TYPE,
                                      OK_ELEMENT);
 
+        channelClosing(zero);
+
         try {
             ((MessageMSG)zero.getAppData()).sendRPY(sds);
         } catch (BEEPException x) {
@@ -1092,10 +1850,10 @@ public abstract class SessionImpl implements Session {
     }
 
     /**
-     * Returns the next free channel number as a string.
+     * Returns the next free channel number.
      * @return Channel number.
      */
-    private synchronized String getNextFreeChannelNumber()
+    private synchronized int getNextFreeChannelNumber()
     {
         long i;
 
@@ -1107,7 +1865,7 @@ public abstract class SessionImpl implements Session {
             nextChannelNumber += 2;
         }
 
-        String nextChannel = Long.toString(i);
+        int nextChannel = (int) i;
 
         if (overflow) {
 
@@ -1127,6 +1885,13 @@ public abstract class SessionImpl implements Session {
         return nextChannel;
     }
     
+    private synchronized boolean isClosing() {
+        int s = state;
+
+        return s == SESSION_STATE_CLOSE_PENDING ||
+            s == SESSION_STATE_CLOSING;
+    }
+
     private String getStateString() {
         switch (state) {
             case SESSION_STATE_INITIALIZED:
@@ -1156,7 +1921,7 @@ public abstract class SessionImpl implements Session {
      *  Listener oriented Start Channel call, a call here means that
      *  we've received a start channel request over the wire.
      */
-    private void processStartChannel(String channelNumber,
+    private void processStartChannel(int channelNumber,
                                      Collection profiles)
             throws BEEPError
     {
@@ -1312,14 +2077,20 @@ public abstract class SessionImpl implements Session {
             }
             
             if (indication.getType() == ChannelIndication.START) {
+                if (isClosing()) {
+                    enableIO();
+                    throw new BEEPError(BEEPError.CODE_REQUESTED_ACTION_NOT_TAKEN2,
+                                        "Session is closing");
+                }
+
                 StartElement start = (StartElement)indication;
                 SessionImpl.this.zero.setAppData(message);
-                SessionImpl.this.processStartChannel(Integer.toString(start.getChannelNumber()),
+                SessionImpl.this.processStartChannel(start.getChannelNumber(),
                                                      start.getProfiles());
             } else {
                 CloseElement close = (CloseElement)indication;
                 SessionImpl.this.zero.setAppData(message);
-                SessionImpl.this.receiveCloseChannel(Integer.toString(close.getChannelNumber()),
+                SessionImpl.this.receiveCloseChannel(close.getChannelNumber(),
                                                      close.getCode(),
                                                      close.getXmlLang(),
                                                      close.getDiagnostic());
@@ -1342,11 +2113,10 @@ public abstract class SessionImpl implements Session {
                 changeState(Session.SESSION_STATE_ACTIVE);
             } catch (BEEPException e) {
                 terminate("Problem with RPY: " + e.getMessage());
+                return;
             }
 
-            synchronized (this) {
-                this.notifyAll();
-            }
+            greeted.complete(SessionImpl.this);
         }
 
         public void receiveERR(Message message)
@@ -1368,20 +2138,18 @@ public abstract class SessionImpl implements Session {
     private class StartReplyListener implements ReplyListener {
 
         ChannelImpl channel;
-        BEEPError error;
+        boolean tuning;
+        boolean fire;
 
-        StartReplyListener(ChannelImpl channel)
+        /** completed once the reply has been processed */
+        final CompletableFuture<Channel> started =
+            new CompletableFuture<Channel>();
+
+        StartReplyListener(ChannelImpl channel, boolean tuning, boolean fire)
         {
             this.channel = channel;
-            this.error = null;
-        }
-
-        boolean isError() {
-            return this.error != null;
-        }
-
-        BEEPError getError() {
-            return this.error;
+            this.tuning = tuning;
+            this.fire = fire;
         }
 
         public void receiveRPY(Message message)
@@ -1391,6 +2159,7 @@ public abstract class SessionImpl implements Session {
                 profile =
                     parser.parseStartConfirmation(message.getDataStream());
             } catch (BEEPException e) {
+                started.completeExceptionally(e);
                 terminate("Problem with RPY: " + e.getMessage());
                 return;
             }
@@ -1401,17 +2170,26 @@ public abstract class SessionImpl implements Session {
 
             // set the state
             channel.setState(ChannelImpl.STATE_ACTIVE);
-            channels.put(channel.getNumberAsString(), channel);
+            channels.put(channel);
 
             /**
              * @todo something with data
              */
 
-            // release the block waiting for the channel
-            // to start or close
-            synchronized (this) {
-                this.notify();
+            if (tuning) {
+                channel.setState(ChannelImpl.STATE_TUNING);
+            }
+
+            if (serverName != null) {
+                sentServerName = true;
             }
+
+            if (fire) {
+                fireChannelStarted(channel);
+            }
+
+            // release the block waiting for the channel to start
+            started.complete(channel);
         }
 
         public void receiveERR(Message message)
@@ -1424,6 +2202,7 @@ public abstract class SessionImpl implements Session {
                 err = new BEEPError(error.getCode(), error.getDiagnostic(),
                         error.getXmlLang());
             } catch (BEEPException e) {
+                started.completeExceptionally(e);
                 terminate(e.getMessage());
 
                 return;
@@ -1432,15 +2211,11 @@ public abstract class SessionImpl implements Session {
             log.error("Received an error in response to a start. code="
                       + err.getCode() + " diagnostic=" + err.getDiagnostic());
 
-            this.error = err;
-
             channel.setState(ChannelImpl.STATE_CLOSED);
-            channels.remove(channel.getNumberAsString());
+            channels.remove(channel.getNumber());
 
-            // release the block waiting for the channel to start or close
-            synchronized (this) {
-                this.notify();
-            }
+            // release the block waiting for the channel to start
+            started.completeExceptionally(err);
         }
 
         public void receiveANS(Message message)
@@ -1457,20 +2232,16 @@ public abstract class SessionImpl implements Session {
     private class CloseReplyListener implements ReplyListener {
 
         ChannelImpl channel;
-        BEEPError error;
+        boolean fire;
+
+        /** completed once the reply has been processed */
+        final CompletableFuture<Channel> closed =
+            new CompletableFuture<Channel>();
 
-        CloseReplyListener(ChannelImpl channel)
+        CloseReplyListener(ChannelImpl channel, boolean fire)
         {
             this.channel = channel;
-            this.error = null;
-        }
-
-        boolean isError() {
-            return this.error != null;
-        }
-
-        BEEPError getError() {
-            return this.error;
+            this.fire = fire;
         }
 
         public void receiveRPY(Message message)
@@ -1479,20 +2250,22 @@ public abstract class SessionImpl implements Session {
                 parser.parseCloseConfirmation(message.getDataStream());
                     log.debug("Received an OK for channel close");
             } catch (BEEPException e) {
+                closed.completeExceptionally(e);
                 terminate("Problem with RPY: " + e.getMessage());
+                return;
             }
 
             // @todo we should fire an event instead.
             // set the state
             channel.setState(ChannelImpl.STATE_CLOSING);
-            channels.remove(channel.getNumberAsString());
+            channels.remove(channel.getNumber());
             channel.setState(ChannelImpl.STATE_CLOSED);
 
-            // release the block waiting for the channel to
-            // start or close
-            synchronized (this) {
-                this.notify();
+            if (fire) {
+                fireChannelClosed(channel);
             }
+
+            closed.complete(channel);
         }
 
         public void receiveERR(Message message)
@@ -1505,6 +2278,7 @@ public abstract class SessionImpl implements Session {
                 err = new BEEPError(error.getCode(), error.getDiagnostic(),
                         error.getXmlLang());
             } catch (BEEPException e) {
+                closed.completeExceptionally(e);
                 terminate(e.getMessage());
 
                 return;
@@ -1513,16 +2287,11 @@ public abstract class SessionImpl implements Session {
             log.debug("Received an error in response to a close. code="
                       + err.getCode() + " diagnostic=" + err.getDiagnostic());
 
-            this.error = err;
-
             // set the state
             channel.setState(ChannelImpl.STATE_ACTIVE);
-            channels.remove(channel.getNumberAsString());
+            channels.remove(channel.getNumber());
 
-            // release the block waiting for the channel to start or close
-            synchronized (this) {
-                this.notify();
-            }
+            closed.completeExceptionally(err);
         }
 
         public void receiveANS(Message message)
@@ -1662,10 +2431,9 @@ public abstract class SessionImpl implements Session {
         }
 
         public boolean postFrame(SessionImpl s, Frame f) throws BEEPException {
-            // If we're in an error state
-            log.debug("Dropping a frame because the Session state is " +
-                      "no longer active.");
-            return false;
+            // the replies to the channel closes sent by closeAsync, new
+            // channels are refused while the close is pending
+            return ((ChannelImpl)f.getChannel()).postFrame(f);
         }
 
         private Log log = LogFactory.getLog(this.getClass());
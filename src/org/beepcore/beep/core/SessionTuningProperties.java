@@ -17,8 +17,22 @@
 package org.beepcore.beep.core;
 
 
+import java.lang.reflect.Method;
+
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.util.BufferPool;
 
 
 /**
@@ -36,6 +50,68 @@ public class SessionTuningProperties {
     public final static String ENCRYPTION = "ENCRYPTION";
     public final static String[] STANDARD_PROPERTIES = { ENCRYPTION };
 
+    // Transport settings, these are local and not used to select profiles
+    public final static String WRITE_MAX_DELAY = "WRITE_MAX_DELAY";
+    public final static String WRITE_MAX_BYTES = "WRITE_MAX_BYTES";
+    public final static String BUFFER_POOL = "BUFFER_POOL";
+    public final static String WINDOW_SIZE = "WINDOW_SIZE";
+    public final static String WINDOW_AUTO_TUNE = "WINDOW_AUTO_TUNE";
+    public final static String WINDOW_MAX_SIZE = "WINDOW_MAX_SIZE";
+    public final static String SESSION_WINDOW_MAX_SIZE =
+        "SESSION_WINDOW_MAX_SIZE";
+    public final static String RECEIVE_MEMORY_BUDGET = "RECEIVE_MEMORY_BUDGET";
+    public final static String WINDOW_UPDATE_POLICY = "WINDOW_UPDATE_POLICY";
+    public final static String WINDOW_UPDATE_THRESHOLD =
+        "WINDOW_UPDATE_THRESHOLD";
+    public final static String WINDOW_UPDATE_QUANTUM = "WINDOW_UPDATE_QUANTUM";
+    public final static String WINDOW_UPDATE_DELAY = "WINDOW_UPDATE_DELAY";
+    public final static String MAX_FRAME_SIZE = "MAX_FRAME_SIZE";
+    public final static String FRAME_SIZE_AUTO = "FRAME_SIZE_AUTO";
+    public final static String SEND_ASYNC = "SEND_ASYNC";
+    public final static String DISPATCH_EXECUTOR = "DISPATCH_EXECUTOR";
+    public final static String DISPATCH_THREADS = "DISPATCH_THREADS";
+    public final static String DISPATCH_QUEUE = "DISPATCH_QUEUE";
+    public final static String DISPATCH_REPLIES = "DISPATCH_REPLIES";
+
+    /** values of the BUFFER_POOL property */
+    public final static String BUFFER_POOL_NONE = "none";
+    public final static String BUFFER_POOL_HEAP = "heap";
+
+    /** values of the RECEIVE_MEMORY_BUDGET property */
+    public final static String RECEIVE_MEMORY_BUDGET_NONE = "none";
+    public final static String RECEIVE_MEMORY_BUDGET_GLOBAL = "global";
+
+    /**
+     * values of the WINDOW_UPDATE_POLICY property, which may also be the
+     * name of a <code>WindowUpdatePolicy</code> subclass
+     */
+    public final static String WINDOW_UPDATE_THRESHOLD_POLICY = "threshold";
+    public final static String WINDOW_UPDATE_QUANTUM_POLICY = "quantum";
+    public final static String WINDOW_UPDATE_DELAYED_POLICY = "delayed";
+    public final static String WINDOW_UPDATE_PIGGYBACK_POLICY = "piggyback";
+
+    /**
+     * values of the DISPATCH_EXECUTOR property, which may also be the
+     * name of an <code>Executor</code> class or an <code>Executor</code>
+     */
+    public final static String DISPATCH_SHARED = "shared";
+    public final static String DISPATCH_FIXED = "fixed";
+    public final static String DISPATCH_CALLER = "caller";
+    public final static String DISPATCH_VIRTUAL = "virtual";
+
+    public final static int DEFAULT_WRITE_MAX_DELAY = 0;
+    public final static int DEFAULT_WRITE_MAX_BYTES = 64 * 1024;
+    public final static int DEFAULT_WINDOW_SIZE = 4096;
+    public final static int DEFAULT_WINDOW_MAX_SIZE = 1024 * 1024;
+    public final static int DEFAULT_SESSION_WINDOW_MAX_SIZE = 16 * 1024 * 1024;
+    public final static int DEFAULT_WINDOW_UPDATE_THRESHOLD = 50;
+    public final static int DEFAULT_WINDOW_UPDATE_QUANTUM = 16 * 1024;
+    public final static int DEFAULT_WINDOW_UPDATE_DELAY = 10;
+    public final static int DEFAULT_MAX_FRAME_SIZE = 1400;
+    public final static int DEFAULT_AUTO_MAX_FRAME_SIZE = 256 * 1024;
+    public final static int DEFAULT_DISPATCH_THREADS = 16;
+    public final static int DEFAULT_DISPATCH_QUEUE = 1024;
+
     // Pretty Print Crap
     public static final String LEFT = "[";
     public static final String RIGHT = "]";
@@ -48,7 +124,15 @@ public class SessionTuningProperties {
         new SessionTuningProperties();
 
     // Data
-    private Hashtable properties;
+    private static Log log = LogFactory.getLog(SessionTuningProperties.class);
+
+    private Hashtable<String, Object> properties;
+
+    /**
+     * the pool created for <code>DISPATCH_FIXED</code> or the instance of
+     * the named class, shared by the sessions using these properties
+     */
+    private Executor createdDispatchExecutor = null;
 
     /**
      * Constructor SessionTuningProperties
@@ -57,7 +141,7 @@ public class SessionTuningProperties {
      */
     public SessionTuningProperties()
     {
-        properties = new Hashtable();
+        properties = new Hashtable<String, Object>();
     }
 
     /**
@@ -87,9 +171,10 @@ public class SessionTuningProperties {
      * to use the standard methods for standard properties and that
      * these methods only be used for non standard properties.
      */
-    public void setProperty(String property, String value)
+    public synchronized void setProperty(String property, String value)
     {
         properties.put(property, value);
+        createdDispatchExecutor = null;
     }
 
     /**
@@ -108,6 +193,462 @@ public class SessionTuningProperties {
         properties.put(ENCRYPTION, "true");
     }
 
+    /**
+     * gets the number of milliseconds the transport may wait for more
+     * frames to be queued before writing, 0 writes as soon as possible.
+     * The transport waits on its own writer, the threads sending frames
+     * return as soon as their frames are queued whether or not
+     * <code>SEND_ASYNC</code> is set.
+     */
+    public int getWriteMaxDelay()
+    {
+        return getIntProperty(WRITE_MAX_DELAY, DEFAULT_WRITE_MAX_DELAY);
+    }
+
+    /**
+     * sets the number of milliseconds the transport may wait for more
+     * frames to be queued before writing
+     */
+    public void setWriteMaxDelay(int millis)
+    {
+        properties.put(WRITE_MAX_DELAY, Integer.toString(millis));
+    }
+
+    /**
+     * gets the number of bytes after which the transport writes queued
+     * frames without waiting any longer, this also limits the size of a
+     * single write
+     */
+    public int getWriteMaxBytes()
+    {
+        return getIntProperty(WRITE_MAX_BYTES, DEFAULT_WRITE_MAX_BYTES);
+    }
+
+    /**
+     * sets the number of bytes after which the transport writes queued
+     * frames
+     */
+    public void setWriteMaxBytes(int bytes)
+    {
+        properties.put(WRITE_MAX_BYTES, Integer.toString(bytes));
+    }
+
+    /**
+     * gets the pool the transport allocates receive buffers from, or
+     * <code>null</code> if buffers are not pooled, which is the default
+     */
+    public BufferPool getBufferPool()
+    {
+        if (BUFFER_POOL_HEAP.equals(properties.get(BUFFER_POOL))) {
+            return BufferPool.getDefault();
+        }
+
+        return null;
+    }
+
+    /**
+     * sets whether the transport allocates receive buffers from the
+     * shared pool, either <code>BUFFER_POOL_NONE</code> or
+     * <code>BUFFER_POOL_HEAP</code>
+     */
+    public void setBufferPool(String pool)
+    {
+        properties.put(BUFFER_POOL, pool);
+    }
+
+    /**
+     * gets the receive window of the session's channels other than
+     * channel zero, by default 4096 bytes which BEEP starts each channel
+     * with. A larger window is advertised once the channel receives data,
+     * a smaller one is not allowed.
+     */
+    public int getWindowSize()
+    {
+        return Math.max(getIntProperty(WINDOW_SIZE, DEFAULT_WINDOW_SIZE),
+                        DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * sets the receive window of the session's channels other than
+     * channel zero
+     */
+    public void setWindowSize(int bytes)
+    {
+        properties.put(WINDOW_SIZE, Integer.toString(bytes));
+    }
+
+    /**
+     * gets whether the receive windows of the session's channels grow
+     * and shrink with the measured throughput and round trip time, the
+     * default is <code>false</code>
+     */
+    public boolean getWindowAutoTune()
+    {
+        return "true".equals(properties.get(WINDOW_AUTO_TUNE));
+    }
+
+    /**
+     * sets whether the receive windows of the session's channels are
+     * tuned automatically
+     */
+    public void setWindowAutoTune(boolean autoTune)
+    {
+        properties.put(WINDOW_AUTO_TUNE, autoTune ? "true" : "false");
+    }
+
+    /**
+     * gets the size an automatically tuned receive window may grow to
+     */
+    public int getWindowMaxSize()
+    {
+        return getIntProperty(WINDOW_MAX_SIZE, DEFAULT_WINDOW_MAX_SIZE);
+    }
+
+    /**
+     * sets the size an automatically tuned receive window may grow to
+     */
+    public void setWindowMaxSize(int bytes)
+    {
+        properties.put(WINDOW_MAX_SIZE, Integer.toString(bytes));
+    }
+
+    /**
+     * gets the number of bytes the automatically tuned receive windows of
+     * all of a session's channels together may grow beyond their default
+     * size
+     */
+    public int getSessionWindowMaxSize()
+    {
+        return getIntProperty(SESSION_WINDOW_MAX_SIZE,
+                              DEFAULT_SESSION_WINDOW_MAX_SIZE);
+    }
+
+    /**
+     * sets the number of bytes the automatically tuned receive windows of
+     * a session's channels together may grow beyond their default size
+     */
+    public void setSessionWindowMaxSize(int bytes)
+    {
+        properties.put(SESSION_WINDOW_MAX_SIZE, Integer.toString(bytes));
+    }
+
+    /**
+     * gets the budget that limits the received data the session's
+     * channels buffer, or <code>null</code> if there is no limit, which
+     * is the default
+     */
+    public ReceiveMemoryBudget getReceiveMemoryBudget()
+    {
+        if (RECEIVE_MEMORY_BUDGET_GLOBAL.equals(
+                properties.get(RECEIVE_MEMORY_BUDGET)))
+        {
+            return ReceiveMemoryBudget.getDefault();
+        }
+
+        return null;
+    }
+
+    /**
+     * sets whether the received data the session's channels buffer counts
+     * against the JVM wide budget, either
+     * <code>RECEIVE_MEMORY_BUDGET_NONE</code> or
+     * <code>RECEIVE_MEMORY_BUDGET_GLOBAL</code>
+     */
+    public void setReceiveMemoryBudget(String budget)
+    {
+        properties.put(RECEIVE_MEMORY_BUDGET, budget);
+    }
+
+    /**
+     * gets the policy deciding when the session's channels advertise
+     * freed receive buffer space, by default a SEQ is sent once half the
+     * window has been freed and before each message sent
+     *
+     * @throws BEEPException if the policy is not one of the standard
+     * ones and can not be instantiated as a class.
+     */
+    public WindowUpdatePolicy getWindowUpdatePolicy() throws BEEPException
+    {
+        String policy = (String) properties.get(WINDOW_UPDATE_POLICY);
+        int threshold = getIntProperty(WINDOW_UPDATE_THRESHOLD,
+                                       DEFAULT_WINDOW_UPDATE_THRESHOLD);
+
+        try {
+            if (policy == null ||
+                policy.equals(WINDOW_UPDATE_THRESHOLD_POLICY))
+            {
+                return WindowUpdatePolicy.threshold(threshold);
+            } else if (policy.equals(WINDOW_UPDATE_QUANTUM_POLICY)) {
+                return WindowUpdatePolicy.quantum(
+                    getIntProperty(WINDOW_UPDATE_QUANTUM,
+                                   DEFAULT_WINDOW_UPDATE_QUANTUM));
+            } else if (policy.equals(WINDOW_UPDATE_DELAYED_POLICY)) {
+                return WindowUpdatePolicy.delayed(
+                    threshold, getIntProperty(WINDOW_UPDATE_DELAY,
+                                              DEFAULT_WINDOW_UPDATE_DELAY));
+            } else if (policy.equals(WINDOW_UPDATE_PIGGYBACK_POLICY)) {
+                return WindowUpdatePolicy.piggyback(threshold);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new BEEPException(e.getMessage());
+        }
+
+        try {
+            return (WindowUpdatePolicy)
+                Class.forName(policy).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new BEEPException("Invalid window update policy " + policy,
+                                    e);
+        }
+    }
+
+    /**
+     * sets the policy deciding when the session's channels advertise
+     * freed receive buffer space, one of
+     * <code>WINDOW_UPDATE_THRESHOLD_POLICY</code>,
+     * <code>WINDOW_UPDATE_QUANTUM_POLICY</code>,
+     * <code>WINDOW_UPDATE_DELAYED_POLICY</code> and
+     * <code>WINDOW_UPDATE_PIGGYBACK_POLICY</code>, or the name of a
+     * <code>WindowUpdatePolicy</code> subclass
+     */
+    public void setWindowUpdatePolicy(String policy)
+    {
+        properties.put(WINDOW_UPDATE_POLICY, policy);
+    }
+
+    /**
+     * sets the percentage of the window freed after which the threshold,
+     * delayed and piggyback policies send a SEQ
+     */
+    public void setWindowUpdateThreshold(int percent)
+    {
+        properties.put(WINDOW_UPDATE_THRESHOLD, Integer.toString(percent));
+    }
+
+    /**
+     * sets the number of bytes freed after which the quantum policy sends
+     * a SEQ
+     */
+    public void setWindowUpdateQuantum(int bytes)
+    {
+        properties.put(WINDOW_UPDATE_QUANTUM, Integer.toString(bytes));
+    }
+
+    /**
+     * sets the number of milliseconds the delayed policy holds back a SEQ
+     */
+    public void setWindowUpdateDelay(int millis)
+    {
+        properties.put(WINDOW_UPDATE_DELAY, Integer.toString(millis));
+    }
+
+    /**
+     * gets the largest payload of a frame the session's channels send, by
+     * default 1400 bytes, or 256KB if frame sizes are chosen
+     * automatically
+     */
+    public int getMaxFrameSize()
+    {
+        return getIntProperty(MAX_FRAME_SIZE,
+                              getFrameSizeAuto() ?
+                              DEFAULT_AUTO_MAX_FRAME_SIZE :
+                              DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * sets the largest payload of a frame the session's channels send
+     */
+    public void setMaxFrameSize(int bytes)
+    {
+        properties.put(MAX_FRAME_SIZE, Integer.toString(bytes));
+    }
+
+    /**
+     * gets whether the frame size is derived from the socket's send
+     * buffer and whether TLS is in use, up to
+     * <code>getMaxFrameSize()</code>, the default is <code>false</code>
+     */
+    public boolean getFrameSizeAuto()
+    {
+        return "true".equals(properties.get(FRAME_SIZE_AUTO));
+    }
+
+    /**
+     * sets whether the frame size is chosen automatically
+     */
+    public void setFrameSizeAuto(boolean auto)
+    {
+        properties.put(FRAME_SIZE_AUTO, auto ? "true" : "false");
+    }
+
+    /**
+     * gets whether frames are built and written by a sender thread of the
+     * session rather than by the threads adding data, false by default
+     */
+    public boolean getSendAsync()
+    {
+        return "true".equals(properties.get(SEND_ASYNC));
+    }
+
+    /**
+     * sets whether frames are built and written by a sender thread of the
+     * session rather than by the threads adding data
+     */
+    public void setSendAsync(boolean async)
+    {
+        properties.put(SEND_ASYNC, async ? "true" : "false");
+    }
+
+    /**
+     * gets the executor the session's channels hand received messages to
+     * their request handlers on. By default this is a pool shared by all
+     * sessions, creating threads as needed. Each channel still handles
+     * its messages one at a time and in order.
+     *
+     * With <code>DISPATCH_FIXED</code> the sessions using these
+     * properties share a pool of <code>DISPATCH_THREADS</code> threads,
+     * created the first time this is called. Once
+     * <code>DISPATCH_QUEUE</code> messages wait for a thread, the thread
+     * handing over the next one, usually the transport's reader, handles
+     * it itself and does not read meanwhile. An <code>Executor</code>
+     * class named instead is also instantiated once and shared.
+     * <code>DISPATCH_CALLER</code>
+     * handles messages on the transport's reader thread, which only
+     * suits handlers that do not wait for more of the message or for
+     * replies on the same session. <code>DISPATCH_VIRTUAL</code> starts a
+     * virtual thread for each message, it needs Java 21 or later. Before
+     * Java 24 a virtual thread sending frames pins its carrier thread
+     * while it writes a batch to a <code>TCPSession</code>'s socket, as
+     * the channel's monitor is held meanwhile. With
+     * <code>SEND_ASYNC</code> the session's sender writes instead.
+     *
+     * @throws BEEPException if the executor is not one of the standard
+     * ones and can not be instantiated as a class, or virtual threads are
+     * not available.
+     */
+    public synchronized Executor getDispatchExecutor() throws BEEPException
+    {
+        Object executor = properties.get(DISPATCH_EXECUTOR);
+
+        if (executor instanceof Executor) {
+            return (Executor) executor;
+        } else if (executor == null || executor.equals(DISPATCH_SHARED)) {
+            return ChannelImpl.getSharedDispatchExecutor();
+        } else if (executor.equals(DISPATCH_CALLER)) {
+            return CALLER_RUNS;
+        } else if (executor.equals(DISPATCH_VIRTUAL)) {
+            return getVirtualThreadExecutor();
+        }
+
+        // later sessions using these properties share the executor, it is
+        // not put in the properties, which may be the caller's table
+        if (createdDispatchExecutor != null) {
+            return createdDispatchExecutor;
+        }
+
+        if (executor.equals(DISPATCH_FIXED)) {
+            int threads = getIntProperty(DISPATCH_THREADS,
+                                         DEFAULT_DISPATCH_THREADS);
+            int queue = getIntProperty(DISPATCH_QUEUE,
+                                       DEFAULT_DISPATCH_QUEUE);
+
+            ThreadFactory factory = new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BEEP dispatch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                };
+
+            // a full queue slows the readers down rather than failing
+            RejectedExecutionHandler full =
+                new ThreadPoolExecutor.CallerRunsPolicy();
+
+            ThreadPoolExecutor pool =
+                new ThreadPoolExecutor(threads, threads, 60,
+                                       TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(queue),
+                                       factory, full);
+            pool.allowCoreThreadTimeOut(true);
+
+            createdDispatchExecutor = pool;
+        } else {
+            try {
+                createdDispatchExecutor =
+                    (Executor) Class.forName((String) executor)
+                        .getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new BEEPException("Invalid dispatch executor " +
+                                        executor, e);
+            }
+        }
+
+        return createdDispatchExecutor;
+    }
+
+    /**
+     * sets the executor the session's channels hand received messages to
+     * their request handlers on, one of <code>DISPATCH_SHARED</code>,
+     * <code>DISPATCH_FIXED</code>, <code>DISPATCH_CALLER</code> and
+     * <code>DISPATCH_VIRTUAL</code>, or
+     * the name of an <code>Executor</code> class with a public
+     * constructor without arguments
+     */
+    public synchronized void setDispatchExecutor(String executor)
+    {
+        properties.put(DISPATCH_EXECUTOR, executor);
+        createdDispatchExecutor = null;
+    }
+
+    /**
+     * sets the executor the session's channels hand received messages to
+     * their request handlers on
+     */
+    public synchronized void setDispatchExecutor(Executor executor)
+    {
+        properties.put(DISPATCH_EXECUTOR, executor);
+        createdDispatchExecutor = null;
+    }
+
+    /**
+     * sets the number of threads of the <code>DISPATCH_FIXED</code> pool
+     */
+    public synchronized void setDispatchThreads(int threads)
+    {
+        properties.put(DISPATCH_THREADS, Integer.toString(threads));
+        createdDispatchExecutor = null;
+    }
+
+    /**
+     * sets the number of messages that may wait for a thread of the
+     * <code>DISPATCH_FIXED</code> pool
+     */
+    public synchronized void setDispatchQueue(int messages)
+    {
+        properties.put(DISPATCH_QUEUE, Integer.toString(messages));
+        createdDispatchExecutor = null;
+    }
+
+    /**
+     * gets whether the session's channels also call reply listeners on
+     * the dispatch executor rather than on the transport's reader thread,
+     * false by default. Replies to a channel's messages are still passed
+     * to the listeners one at a time and in order.
+     */
+    public boolean getDispatchReplies()
+    {
+        return "true".equals(properties.get(DISPATCH_REPLIES));
+    }
+
+    /**
+     * sets whether the session's channels also call reply listeners on
+     * the dispatch executor
+     */
+    public void setDispatchReplies(boolean dispatch)
+    {
+        properties.put(DISPATCH_REPLIES, dispatch ? "true" : "false");
+    }
+
     /**
      * Method toString
      *
@@ -115,18 +656,19 @@ public class SessionTuningProperties {
     public String toString()
     {
         StringBuffer b = new StringBuffer(1024);
-        String key, value;
+        String key;
+        Object value;
         int i = 0;
 
         if (properties.size() == 0) {
             return NO_PROPERTIES;
         }
 
-        Enumeration e = properties.keys();
+        Enumeration<String> e = properties.keys();
 
         while (e.hasMoreElements()) {
-            key = (String) e.nextElement();
-            value = (String) properties.get(key);
+            key = e.nextElement();
+            value = properties.get(key);
 
             b.append(LEFT);
             b.append(i);
@@ -140,6 +682,65 @@ public class SessionTuningProperties {
         return b.toString();
     }
 
+    private static Executor virtualThreadExecutor = null;
+
+    /**
+     * Returns an executor starting a virtual thread for each task, found
+     * by reflection as this is built for older Java versions.
+     */
+    private static synchronized Executor getVirtualThreadExecutor()
+        throws BEEPException
+    {
+        if (virtualThreadExecutor == null) {
+            Method m;
+
+            try {
+                m = Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor", new Class<?>[0]);
+            } catch (NoSuchMethodException e) {
+                throw new BEEPException("Virtual threads need Java 21 or " +
+                                        "later");
+            }
+
+            try {
+                virtualThreadExecutor = (Executor) m.invoke(null,
+                                                            new Object[0]);
+            } catch (Exception e) {
+                throw new BEEPException("Error creating virtual thread " +
+                                        "executor", e);
+            }
+        }
+
+        return virtualThreadExecutor;
+    }
+
+    private static final Executor CALLER_RUNS = new Executor() {
+            public void execute(Runnable task) {
+                task.run();
+            }
+
+            public String toString() {
+                return DISPATCH_CALLER;
+            }
+        };
+
+    private int getIntProperty(String property, int defaultValue)
+    {
+        String value = (String) properties.get(property);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value " + value + " for " + property +
+                     ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     boolean isEmpty() {
         return properties.isEmpty();
     }
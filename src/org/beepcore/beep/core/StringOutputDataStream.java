@@ -196,7 +196,7 @@ public class StringOutputDataStream extends OutputDataStream {
      *
      * @throws BEEPException
      */
-    public Enumeration getHeaderNames() throws BEEPException
+    public Enumeration<String> getHeaderNames() throws BEEPException
     {
         return this.mimeHeaders.getHeaderNames();
     }
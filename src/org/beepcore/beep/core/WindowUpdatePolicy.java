@@ -0,0 +1,225 @@
+/*
+ * WindowUpdatePolicy.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+/**
+ * Decides when a channel sends a SEQ frame advertising the receive buffer
+ * space the application has freed.
+ *
+ * A channel asks the policy each time the application frees received
+ * data and before each message it sends. Each SEQ is a frame of its own
+ * and usually a write of its own, sending fewer of them saves packets
+ * and system calls, sending them too late stalls the peer. Whatever the
+ * policy, a SEQ is also sent when an automatically tuned window grows and
+ * when a window cut by the receive memory budget has been consumed.
+ *
+ * Policies are shared by all channels of a session and must not keep
+ * per channel state. A policy named by class in the
+ * <code>WINDOW_UPDATE_POLICY</code> tuning property needs a public
+ * constructor without arguments.
+ *
+ * @see SessionTuningProperties#setWindowUpdatePolicy
+ */
+public abstract class WindowUpdatePolicy {
+
+    /**
+     * Returns a policy sending a SEQ once <code>percent</code> percent of
+     * the window has been freed, and before each message sent on the
+     * channel if anything has been freed. With 50 percent this is the
+     * default.
+     */
+    public static WindowUpdatePolicy threshold(int percent)
+    {
+        return new Threshold(percent);
+    }
+
+    /**
+     * Returns a policy sending a SEQ once <code>bytes</code> bytes, or
+     * half the window if that is less, have been freed, whether or not a
+     * message is about to be sent.
+     */
+    public static WindowUpdatePolicy quantum(int bytes)
+    {
+        return new Quantum(bytes);
+    }
+
+    /**
+     * Returns a policy sending a SEQ once <code>percent</code> percent of
+     * the window has been freed, or <code>millis</code> milliseconds
+     * after data was first freed, so the data freed meanwhile is
+     * advertised by one SEQ.
+     */
+    public static WindowUpdatePolicy delayed(int percent, long millis)
+    {
+        return new Delayed(percent, millis);
+    }
+
+    /**
+     * Returns a policy sending a SEQ once <code>percent</code> percent of
+     * the window has been freed, and otherwise with the next message sent
+     * on the channel, in the same write as the message's first frame.
+     */
+    public static WindowUpdatePolicy piggyback(int percent)
+    {
+        return new Piggyback(percent);
+    }
+
+    /**
+     * Returns <code>true</code> if a SEQ should be sent now that the
+     * application has freed data.
+     *
+     * @param freed bytes freed since the last SEQ.
+     * @param window size of the channel's receive window.
+     */
+    public abstract boolean isUpdateDue(int freed, int window);
+
+    /**
+     * Returns <code>true</code> if a SEQ should be sent ahead of a message
+     * about to be sent on the channel. By default anything freed is
+     * advertised.
+     *
+     * @param freed bytes freed since the last SEQ, never 0.
+     * @param window size of the channel's receive window.
+     */
+    public boolean isUpdateDueBeforeMessage(int freed, int window)
+    {
+        return true;
+    }
+
+    /**
+     * Returns the number of milliseconds after data is first freed that a
+     * SEQ is sent even if it is not yet due, or 0 to wait until it is
+     * due. The default is 0.
+     */
+    public long getMaxDelay()
+    {
+        return 0;
+    }
+
+    /**
+     * Returns <code>true</code> if a SEQ sent ahead of a message may be
+     * held back and written together with the message. The default is
+     * <code>false</code>.
+     */
+    public boolean isPiggybacked()
+    {
+        return false;
+    }
+
+    private static class Threshold extends WindowUpdatePolicy {
+        private final int percent;
+
+        Threshold(int percent)
+        {
+            if (percent <= 0 || percent > 100) {
+                throw new IllegalArgumentException("Invalid threshold " +
+                                                   percent);
+            }
+            this.percent = percent;
+        }
+
+        public boolean isUpdateDue(int freed, int window)
+        {
+            return freed >= (long) window * percent / 100;
+        }
+
+        public String toString()
+        {
+            return "threshold " + percent + "%";
+        }
+    }
+
+    private static class Quantum extends WindowUpdatePolicy {
+        private final int bytes;
+
+        Quantum(int bytes)
+        {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Invalid quantum " +
+                                                   bytes);
+            }
+            this.bytes = bytes;
+        }
+
+        public boolean isUpdateDue(int freed, int window)
+        {
+            // a quantum larger than the window would stall the peer
+            return freed >= Math.min(bytes, window / 2);
+        }
+
+        public boolean isUpdateDueBeforeMessage(int freed, int window)
+        {
+            return isUpdateDue(freed, window);
+        }
+
+        public String toString()
+        {
+            return "quantum " + bytes;
+        }
+    }
+
+    private static class Delayed extends Threshold {
+        private final long millis;
+
+        Delayed(int percent, long millis)
+        {
+            super(percent);
+
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Invalid delay " + millis);
+            }
+            this.millis = millis;
+        }
+
+        public boolean isUpdateDueBeforeMessage(int freed, int window)
+        {
+            return isUpdateDue(freed, window);
+        }
+
+        public long getMaxDelay()
+        {
+            return millis;
+        }
+
+        public String toString()
+        {
+            return super.toString() + " or " + millis + "ms";
+        }
+    }
+
+    private static class Piggyback extends Threshold {
+        Piggyback(int percent)
+        {
+            super(percent);
+        }
+
+        public boolean isPiggybacked()
+        {
+            return true;
+        }
+
+        public String toString()
+        {
+            return super.toString() + " or piggybacked";
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * WritabilityListener.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+
+/**
+ * Told when too much data added to an <code>OutputDataStream</code> is
+ * waiting to be sent, and when enough of it has been sent to add more.
+ *
+ * @see OutputDataStream#setWritabilityListener
+ */
+public interface WritabilityListener {
+
+    /**
+     * Called with <code>false</code> when the data waiting to be sent
+     * reaches the stream's high water mark and with <code>true</code>
+     * when it has fallen to the low water mark again. Must not block.
+     */
+    public void writabilityChanged(OutputDataStream stream, boolean writable);
+}
@@ -19,21 +19,13 @@
  */
 package org.beepcore.beep.core.serialize;
 
-import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.beepcore.beep.core.BEEPError;
 import org.beepcore.beep.core.BEEPException;
@@ -42,6 +34,14 @@ import org.beepcore.beep.core.MimeHeaders;
 import org.beepcore.beep.util.StringUtil;
 
 /**
+ * Parses and serializes the channel zero elements.
+ *
+ * The elements are read with a streaming parser straight into
+ * <code>StartElement</code>, <code>CloseElement</code> and the other
+ * element classes, no document tree is built. DTDs and external
+ * entities are not supported, a message declaring either is malformed.
+ * As with a DOM <code>getAttribute</code>, a missing attribute reads
+ * as an empty string.
  *
  * @author Huston Franklin
  * @version $Revision: 1.1 $, $Date: 2006/02/25 18:02:49 $
@@ -51,19 +51,47 @@ public class ChannelZeroParser {
     private static final String ERR_MALFORMED_XML_MSG = "Malformed XML";
     private static final String ERR_UNKNOWN_OPERATION_ELEMENT_MSG =
         "Unknown operation element";
+    private static final String REUSE_INSTANCE = "reuse-instance";
+
+    /**
+     * One factory per thread. Where the StAX implementation supports it
+     * the factory hands out the same reader again once the previous one
+     * is done, creating a reader costs more than parsing a message.
+     */
+    private static final ThreadLocal<XMLInputFactory> factories =
+        new ThreadLocal<XMLInputFactory>() {
+            protected XMLInputFactory initialValue() {
+                return createFactory();
+            }
+        };
 
-    private DocumentBuilder builder;    // generic XML parser
-    
     public ChannelZeroParser() throws BEEPException {
-        try {
-            builder =
-                DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new BEEPException("Invalid parser configuration");
+    }
+
+    private static XMLInputFactory createFactory()
+    {
+        XMLInputFactory f = XMLInputFactory.newFactory();
+
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                      Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+
+        if (f.isPropertySupported(REUSE_INSTANCE)) {
+            f.setProperty(REUSE_INSTANCE, Boolean.TRUE);
         }
+
+        return f;
     }
 
-    private Element processMessage(InputDataStream message) throws BEEPException
+    /**
+     * Returns a reader positioned on the top element of
+     * <code>message</code>. The caller closes <code>message</code> once
+     * it is done with the reader.
+     */
+    private XMLStreamReader processMessage(InputDataStream message)
+        throws BEEPException, XMLStreamException
     {
 
         // check the message content type
@@ -72,33 +100,95 @@ public class ChannelZeroParser {
         }
 
         // parse the stream
-        Document doc;
+        XMLStreamReader reader =
+            factories.get().createXMLStreamReader(message.getInputStream());
 
-        try {
-            doc = builder.parse(message.getInputStream());
-        } catch (SAXException e) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG, e);
-        } catch (IOException e) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG, e);
+        int event = reader.getEventType();
+
+        while (event != XMLStreamConstants.START_ELEMENT) {
+            if (event == XMLStreamConstants.END_DOCUMENT) {
+                throw new BEEPException(ERR_MALFORMED_XML_MSG);
+            }
+            event = reader.next();
         }
 
-        if (doc == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
+        return reader;
+    }
+
+    /**
+     * Reads the rest of the document, so that it is checked to be well
+     * formed and the message is consumed, and closes the reader.
+     */
+    private static void finish(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        while (reader.getEventType() != XMLStreamConstants.END_DOCUMENT) {
+            reader.next();
         }
 
-        Element topElement = doc.getDocumentElement();
+        reader.close();
+    }
+
+    private static String getAttribute(XMLStreamReader reader, String name)
+    {
+        for (int i = 0; i < reader.getAttributeCount(); ++i) {
+            String prefix = reader.getAttributePrefix(i);
+            String attr = reader.getAttributeLocalName(i);
+
+            if (prefix != null && prefix.length() != 0) {
+                attr = prefix + ":" + attr;
+            }
 
-        if (topElement == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
+            if (attr.equals(name)) {
+                return reader.getAttributeValue(i);
+            }
         }
 
-        return topElement;
+        return "";
     }
-    
-    private StartElement parseStartIndication(Element topElement)
-        throws BEEPError
+
+    /**
+     * Returns the text the current element starts with, or
+     * <code>null</code> if it starts with an element or is empty, and
+     * moves to the end of the element.
+     */
+    private static String readText(XMLStreamReader reader)
+        throws XMLStreamException
     {
-        String channelNumberString = topElement.getAttribute("number");
+        String text = null;
+        boolean first = true;
+        int depth = 1;
+
+        while (depth > 0) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                ++depth;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                --depth;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (first) {
+                    text = reader.getText();
+                }
+                break;
+            default:
+                // comments and processing instructions
+                continue;
+            }
+
+            first = false;
+        }
+
+        return text;
+    }
+
+    private StartElement parseStartIndication(XMLStreamReader reader)
+        throws BEEPError, XMLStreamException
+    {
+        String channelNumberString = getAttribute(reader, "number");
 
         if (channelNumberString == null) {
             throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
@@ -118,28 +208,25 @@ public class ChannelZeroParser {
                                 "Malformed <start>: invalid channel number");
         }
 
-        String serverName = topElement.getAttribute("serverName");
+        String serverName = getAttribute(reader, "serverName");
         
-        NodeList profiles =
-            topElement.getElementsByTagName("profile");
-
-        if (profiles == null) {
-            throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
-                                "Malformed <start>: no profiles");
-        }
-
         LinkedList profileList = new LinkedList();
 
-        for (int i = 0; i < profiles.getLength(); i++) {
-            Element profile = (Element) profiles.item(i);
-            String uri = profile.getAttribute("uri");
+        while (reader.next() != XMLStreamConstants.END_DOCUMENT) {
+            if (reader.getEventType() != XMLStreamConstants.START_ELEMENT ||
+                reader.getLocalName().equals("profile") == false)
+            {
+                continue;
+            }
+
+            String uri = getAttribute(reader, "uri");
 
             if (uri == null) {
                 throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
                                     "no uri in profile");
             }
 
-            String encoding = profile.getAttribute("encoding");
+            String encoding = getAttribute(reader, "encoding");
             boolean b64;
 
             if ((encoding == null) || encoding.equals("")) {
@@ -153,12 +240,9 @@ public class ChannelZeroParser {
                                     "unknown encoding in start");
             }
 
-            String data = null;
-            Node dataNode = profile.getFirstChild();
-
-            if (dataNode != null) {
-                data = dataNode.getNodeValue();
+            String data = readText(reader);
 
+            if (data != null) {
                 if (data.length() > MAX_PROFILE_CONTENT_LENGTH) {
                     throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
                                         "Element's PCDATA exceeds " +
@@ -169,14 +253,16 @@ public class ChannelZeroParser {
             profileList.add(new ProfileElement(uri, b64, data));
         }
 
+        reader.close();
+
         return new StartElement(channelNumber,
                                           serverName, profileList);
     }
     
-    private CloseElement parseCloseIndication(Element topElement)
-        throws BEEPError
+    private CloseElement parseCloseIndication(XMLStreamReader reader)
+        throws BEEPError, XMLStreamException
     {
-        String channelNumberString = topElement.getAttribute("number");
+        String channelNumberString = getAttribute(reader, "number");
 
         int channelNumber = 0;
         
@@ -189,7 +275,7 @@ public class ChannelZeroParser {
             }
         }
 
-        String codeString = topElement.getAttribute("code");
+        String codeString = getAttribute(reader, "code");
 
         if (codeString == null) {
             throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
@@ -205,19 +291,18 @@ public class ChannelZeroParser {
         }
 
         // this attribute is implied
-        String xmlLang = topElement.getAttribute("xml:lang");
-        String data = null;
-        Node dataNode = topElement.getFirstChild();
-
-        if (dataNode != null) {
-            data = dataNode.getNodeValue();
+        String xmlLang = getAttribute(reader, "xml:lang");
+        String data = readText(reader);
 
+        if (data != null) {
             if (data.length() > MAX_PROFILE_CONTENT_LENGTH) {
                 throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
                                     "Element's PCDATA exceeds " +
                                     "the maximum size");
             }
         }
+
+        finish(reader);
         
         return new CloseElement(channelNumber, code, xmlLang, data);
     }
@@ -225,181 +310,174 @@ public class ChannelZeroParser {
     public ChannelIndication parseIndication(InputDataStream data)
         throws BEEPError
     {
-        Element topElement;
-
         try {
-            topElement = processMessage(data);
+            XMLStreamReader reader = processMessage(data);
+            String elementName = reader.getLocalName();
+
+            if (elementName.equals("start")) {
+                return parseStartIndication(reader);
+            } else if (elementName.equals("close")) {
+                return parseCloseIndication(reader);
+            } else {
+                throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
+                                    ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
+            }
+        } catch (BEEPError e) {
+            throw e;
         } catch (BEEPException e) {
             throw new BEEPError(BEEPError.CODE_GENERAL_SYNTAX_ERROR,
                                 ERR_MALFORMED_XML_MSG);
-        }
-
-        String elementName = topElement.getTagName();
-
-        if (elementName == null) {
-            throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
+        } catch (XMLStreamException e) {
+            throw new BEEPError(BEEPError.CODE_GENERAL_SYNTAX_ERROR,
                                 ERR_MALFORMED_XML_MSG);
-        }
-
-        if (elementName.equals("start")) {
-            return parseStartIndication(topElement);
-        } else if (elementName.equals("close")) {
-            return parseCloseIndication(topElement);
-        } else {
-            throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
-                                ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
+        } finally {
+            data.close();
         }
     }
 
     public GreetingElement parseGreetingConfirmation(InputDataStream data)
         throws BEEPException
     {
-        Element topElement = processMessage(data);
-
-        String elementName = topElement.getTagName();
-
-        if (elementName == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
-        } else if (!elementName.equals("greeting")) {
-            throw new BEEPException(ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
-        }
-
-        // this attribute is implied
-        String features = topElement.getAttribute("features");
+        try {
+            XMLStreamReader reader = processMessage(data);
 
-        // This attribute has a default value
-        String localize = topElement.getAttribute("localize");
+            if (!reader.getLocalName().equals("greeting")) {
+                throw new BEEPException(ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
+            }
 
-        // Read the profiles - note, the greeting is valid
-        // with 0 profiles
-        NodeList profiles =
-            topElement.getElementsByTagName("profile");
+            // this attribute is implied
+            String features = getAttribute(reader, "features");
 
-        LinkedList profileList = new LinkedList();
+            // This attribute has a default value
+            String localize = getAttribute(reader, "localize");
 
-        for (int i = 0; i < profiles.getLength(); i++) {
-            Element profile = (Element) profiles.item(i);
-            String uri = profile.getAttribute("uri");
+            // Read the profiles - note, the greeting is valid
+            // with 0 profiles
+            LinkedList<String> profileList = new LinkedList<String>();
 
-            if (uri == null) {
-                throw new BEEPException("Malformed profile");
+            while (reader.next() != XMLStreamConstants.END_DOCUMENT) {
+                if (reader.getEventType() ==
+                        XMLStreamConstants.START_ELEMENT &&
+                    reader.getLocalName().equals("profile"))
+                {
+                    // Since <profile> elements in greetings cannot contain
+                    // pigggyback'd data there won't be an encoding attribute
+                    profileList.add(getAttribute(reader, "uri"));
+                }
             }
 
-            // Since <profile> elements in greetings cannot contain
-            // pigggyback'd data there won't be an encoding attribute
-            profileList.add(i, uri);
+            reader.close();
+
+            return new GreetingElement(features, localize, profileList);
+        } catch (XMLStreamException e) {
+            throw new BEEPException(ERR_MALFORMED_XML_MSG, e);
+        } finally {
+            data.close();
         }
-        
-        return new GreetingElement(features, localize, profileList);
     }
     
     public ProfileElement parseStartConfirmation(InputDataStream is)
         throws BEEPException
     {
-        Element topElement = processMessage(is);
+        try {
+            XMLStreamReader reader;
 
-        String elementName = topElement.getTagName();
+            try {
+                reader = processMessage(is);
+            } catch (XMLStreamException e) {
+                throw new BEEPException(ERR_MALFORMED_XML_MSG, e);
+            }
 
-        if (elementName == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
-        } 
+            if (reader.getLocalName().equals("profile") == false) {
+                throw new BEEPException(ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
+            }
 
-        if (elementName.equals("profile") == false) {
-            throw new BEEPException(ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
-        }
+            try {
+                String uri = getAttribute(reader, "uri");
 
-        try {
-            String uri = topElement.getAttribute("uri");
+                if (uri == null) {
+                    throw new BEEPException("Malformed profile");
+                }
 
-            if (uri == null) {
-                throw new BEEPException("Malformed profile");
-            }
+                String encoding = getAttribute(reader, "encoding");
 
-            String encoding = topElement.getAttribute("encoding");
+                boolean base64 = false;
+                if (encoding != null && encoding.equals("base64")) {
+                    base64 = true;
+                }
 
-            boolean base64 = false;
-            if (encoding != null && encoding.equals("base64")) {
-                base64 = true;
-            }
+                String data = readText(reader);
 
-            Node dataNode = topElement.getFirstChild();
-            String data = null;
+                if (data != null) {
+                    if (data.length() > MAX_PROFILE_CONTENT_LENGTH) {
+                        throw new BEEPException("Element's PCDATA " +
+                                                "exceeds the " +
+                                                "maximum size");
+                    }
+                }
 
-            if (dataNode != null) {
-                data = dataNode.getNodeValue();
+                finish(reader);
 
-                if (data.length() > MAX_PROFILE_CONTENT_LENGTH) {
-                    throw new BEEPException("Element's PCDATA " +
-                                            "exceeds the " +
-                                            "maximum size");
-                }
+                return new ProfileElement(uri, base64, data);
+            } catch (Exception x) {
+                throw new BEEPException(x);
             }
-
-            return new ProfileElement(uri, base64, data);
-        } catch (Exception x) {
-            throw new BEEPException(x);
+        } finally {
+            is.close();
         }
     }
 
     public void parseCloseConfirmation(InputDataStream is)
         throws BEEPException
     {
-        Element topElement = processMessage(is);
-        String elementName = topElement.getTagName();
+        try {
+            XMLStreamReader reader = processMessage(is);
 
-        if (elementName == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
-        }
-        
-        if (elementName.equals("ok") == false) {
-            throw new BEEPException(ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
-        }
+            if (reader.getLocalName().equals("ok") == false) {
+                throw new BEEPException(ERR_UNKNOWN_OPERATION_ELEMENT_MSG);
+            }
 
-        return;
+            finish(reader);
+        } catch (XMLStreamException e) {
+            throw new BEEPException(ERR_MALFORMED_XML_MSG, e);
+        } finally {
+            is.close();
+        }
     }
 
     public ErrorElement parseError(InputDataStream is)
         throws BEEPException
     {
-        Element topElement = processMessage(is);
-        
-        if (topElement == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
-        }
-        
-        // check for <error>
-        String elementName = topElement.getTagName();
-        
-        if (elementName == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
-        } else if (!elementName.equals("error")) {
-            throw new BEEPException("Unknown operation element");
-        }
-        
-        String codeString = topElement.getAttribute("code");
-        
-        if (codeString == null) {
-            throw new BEEPException(ERR_MALFORMED_XML_MSG);
-        }
-        
-        int code;
         try {
-            code = Integer.parseInt(codeString);
-        } catch (NumberFormatException e) {
-            throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
-                                "Malformed <close>: bad code");
-        }
+            XMLStreamReader reader = processMessage(is);
 
-        // this attribute is implied
-        String xmlLang = topElement.getAttribute("xml:lang");
-        Node dataNode = topElement.getFirstChild();
-        String data = null;
-        
-        if (dataNode != null) {
-            data = dataNode.getNodeValue();
-        }
+            // check for <error>
+            if (!reader.getLocalName().equals("error")) {
+                throw new BEEPException("Unknown operation element");
+            }
+
+            String codeString = getAttribute(reader, "code");
+
+            int code;
+            try {
+                code = Integer.parseInt(codeString);
+            } catch (NumberFormatException e) {
+                throw new BEEPError(BEEPError.CODE_PARAMETER_ERROR,
+                                    "Malformed <close>: bad code");
+            }
 
-        return new ErrorElement(code, xmlLang, data);
+            // this attribute is implied
+            String xmlLang = getAttribute(reader, "xml:lang");
+            String data = readText(reader);
+
+            finish(reader);
+
+            return new ErrorElement(code, xmlLang, data);
+        } catch (XMLStreamException e) {
+            throw new BEEPException(ERR_MALFORMED_XML_MSG, e);
+        } finally {
+            is.close();
+        }
     }
 
     public byte[] serializeStart(StartElement start)
@@ -19,6 +19,8 @@ package org.beepcore.beep.lib;
 
 
 import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -46,6 +48,8 @@ public class MessageQueue implements RequestHandler {
     private Log log = LogFactory.getLog(this.getClass());
 
     private LinkedList queue = new LinkedList();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition added = lock.newCondition();
 
     /**
      * Gets the next message on the queue blocking if none are available.
@@ -53,20 +57,26 @@ public class MessageQueue implements RequestHandler {
     public MessageMSG getNextMessage() throws InterruptedException
     {
         log.trace("getNextMessage: entry");
-        synchronized (this) {
-            if (queue.size() == 0) {
-                this.wait();
+        lock.lock();
+        try {
+            while (queue.size() == 0) {
+                added.await();
             }
             return (MessageMSG) queue.removeFirst();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void receiveMSG(MessageMSG message)
     {
         log.trace("receiveMSG: entry");
-        synchronized (this) {
+        lock.lock();
+        try {
             queue.addLast(message);
-            this.notify();
+            added.signal();
+        } finally {
+            lock.unlock();
         }
     }
 }
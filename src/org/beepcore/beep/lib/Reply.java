@@ -22,6 +22,8 @@ import java.lang.InterruptedException;
 
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.beepcore.beep.core.BEEPInterruptedException;
 import org.beepcore.beep.core.Message;
@@ -38,6 +40,10 @@ import org.beepcore.beep.core.ReplyListener;
  * Please note that the other Channel send operations do NOT
  * return this class as a result.
  *
+ * Callers wait on a <code>java.util.concurrent</code> lock rather than a
+ * monitor, so virtual threads do not pin their carrier thread while they
+ * wait.
+ *
  * @see org.beepcore.beep.core.Channel#sendMSG
  *
  * @author Eric Dixon
@@ -53,7 +59,9 @@ public class Reply implements ReplyListener {
 
     // Data
     private boolean complete = false;
-    private LinkedList replies = new LinkedList();
+    private LinkedList<Message> replies = new LinkedList<Message>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
 
     /**
      * Returns the reply corresponding to a <code>Channel.sendMSG</code>
@@ -74,27 +82,32 @@ public class Reply implements ReplyListener {
      * <code>Message</code>s can be returned.
      *
      */
-    synchronized public Message getNextReply() throws BEEPInterruptedException
+    public Message getNextReply() throws BEEPInterruptedException
     {
-        if (this.replies.size() == 0) {
-            if (this.complete) {
-                throw new NoSuchElementException();
+        lock.lock();
+        try {
+            while (this.replies.size() == 0) {
+                if (this.complete) {
+                    throw new NoSuchElementException();
+                }
+
+                try {
+                    changed.await();
+                } catch (InterruptedException x) {
+                    throw new BEEPInterruptedException(x.getMessage());
+                }
             }
 
-            try {
-                this.wait();
-            } catch (InterruptedException x) {
-                throw new BEEPInterruptedException(x.getMessage());
-            }
-        }
+            Message message = this.replies.removeFirst();
 
-        Message message = (Message) this.replies.removeFirst();
+            if (message.getMessageType() != Message.MESSAGE_TYPE_ANS) {
+                this.complete = true;
+            }
 
-        if (message.getMessageType() != Message.MESSAGE_TYPE_ANS) {
-            this.complete = true;
+            return message;
+        } finally {
+            lock.unlock();
         }
-
-        return message;
     }
 
     /**
@@ -106,23 +119,31 @@ public class Reply implements ReplyListener {
      * @see #getNextReply
      *
      */
-    synchronized public boolean hasNext() throws BEEPInterruptedException
+    public boolean hasNext() throws BEEPInterruptedException
     {
+        lock.lock();
         try {
             while (replies.size() == 0 && complete == false) {
-                this.wait();
+                changed.await();
             }
+
+            return replies.size() > 0;
         } catch (InterruptedException x) {
             throw new BEEPInterruptedException(x.getMessage());
+        } finally {
+            lock.unlock();
         }
-
-        return replies.size() > 0;
     }
 
-    private synchronized void setMessage(Message message)
+    private void setMessage(Message message)
     {
-        this.replies.add(message);
-        notify();
+        lock.lock();
+        try {
+            this.replies.add(message);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     // Implementation of method declared in ReplyListener
@@ -144,9 +165,14 @@ public class Reply implements ReplyListener {
     }
 
     // Implementation of method declared in ReplyListener
-    public synchronized void receiveNUL(Message message)
+    public void receiveNUL(Message message)
     {
-        this.complete = true;
-        notify();
+        lock.lock();
+        try {
+            this.complete = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 }
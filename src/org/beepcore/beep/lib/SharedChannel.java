@@ -102,6 +102,12 @@ public class SharedChannel implements Channel {
         return channel.sendMSG(stream, replyListener);
     }
 
+    public MessageStatus sendMSG(OutputDataStream stream)
+            throws BEEPException
+    {
+        return channel.sendMSG(stream);
+    }
+
     public RequestHandler getRequestHandler()
     {
         return channel.getRequestHandler();
@@ -180,6 +186,36 @@ public class SharedChannel implements Channel {
         return channel.getStartData();
     }
 
+    public int getMaxFrameSize() throws BEEPException
+    {
+        return channel.getMaxFrameSize();
+    }
+
+    public void setMaxFrameSize(int size)
+    {
+        channel.setMaxFrameSize(size);
+    }
+
+    public int getWeight()
+    {
+        return channel.getWeight();
+    }
+
+    public void setWeight(int weight)
+    {
+        channel.setWeight(weight);
+    }
+
+    public int getPipelineDepth()
+    {
+        return channel.getPipelineDepth();
+    }
+
+    public void setPipelineDepth(int depth)
+    {
+        channel.setPipelineDepth(depth);
+    }
+
     public Object getAppData()
     {
         return channel.getAppData();
@@ -0,0 +1,495 @@
+/*
+ * NIOConnection.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.HeaderWriter;
+
+
+/**
+ * The non-blocking socket underneath one or more <code>NIOSession</code>s.
+ * A tuning reset creates a new session over the same connection, so the
+ * socket, its selection key, unconsumed input and queued output live
+ * here rather than in the session.
+ *
+ * Writes never block. Whatever the socket does not accept immediately is
+ * queued and written by the selector loop when the socket becomes
+ * writable. The amount queued is bounded by the peer's channel windows.
+ *
+ * Frames and SEQ frames are formatted into an output buffer that is
+ * reused as long as the socket takes each write completely, so writing
+ * them allocates nothing. A buffer whose data is queued is left to the
+ * queue and a new one is used for the next write.
+ */
+class NIOConnection {
+
+    // Constants
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] TRAILER = Frame.TRAILER.getBytes();
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private SocketChannel channel;
+    private SelectorLoop loop;
+    private SelectionKey key;
+    private volatile NIOSession session;
+
+    private ReentrantLock writeLock = new ReentrantLock();
+    private Condition drained = writeLock.newCondition();
+    private LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+    private boolean writeInterest = false;
+    private boolean closed = false;
+
+    /** reused for frames written while nothing is queued */
+    private ByteBuffer outputBuf = null;
+
+    /** Input read but not consumed by a session, only used by the loop. */
+    private ByteBuffer pendingInput = null;
+
+    NIOConnection(SocketChannel channel) throws IOException
+    {
+        this.channel = channel;
+        this.loop = SelectorLoop.next();
+
+        channel.configureBlocking(false);
+
+        // frames are batched by the write queue, Nagle would only delay them
+        try {
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException x) {
+            log.debug("Socket doesn't support disabling Nagle's algorithm");
+        }
+
+        final IOException[] error = new IOException[1];
+        final CountDownLatch registered = new CountDownLatch(1);
+
+        loop.execute(new Runnable() {
+                public void run() {
+                    try {
+                        key = NIOConnection.this.channel.register(
+                                      loop.getSelector(), 0,
+                                      NIOConnection.this);
+                    } catch (ClosedChannelException e) {
+                        error[0] = e;
+                    }
+                    registered.countDown();
+                }
+            });
+
+        try {
+            registered.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted registering connection");
+        }
+
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    void setSession(NIOSession session)
+    {
+        this.session = session;
+    }
+
+    /**
+     * Starts or stops reading from the socket. Input that was read while
+     * reading was being disabled is handed to the session first when
+     * reading is enabled again.
+     */
+    void setReadInterest(final boolean read)
+    {
+        loop.execute(new Runnable() {
+                public void run() {
+                    if (key.isValid() == false) {
+                        return;
+                    }
+
+                    if (read == false) {
+                        key.interestOps(key.interestOps() &
+                                        ~SelectionKey.OP_READ);
+                        return;
+                    }
+
+                    if (pendingInput != null) {
+                        ByteBuffer input = pendingInput;
+
+                        pendingInput = null;
+                        try {
+                            deliver(input, false);
+                        } catch (Throwable t) {
+                            log.error("Error processing input", t);
+                            abort(t.getMessage());
+                            return;
+                        }
+                    }
+
+                    if (pendingInput == null && key.isValid()) {
+                        key.interestOps(key.interestOps() |
+                                        SelectionKey.OP_READ);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Writes <code>buffers</code> or queues what the socket does not
+     * accept right away.
+     */
+    void write(ByteBuffer[] buffers) throws IOException
+    {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+
+            if (writeQueue.isEmpty()) {
+                writeFully(buffers);
+            }
+
+            boolean queued = false;
+            for (int i = 0; i < buffers.length; ++i) {
+                if (buffers[i].hasRemaining()) {
+                    writeQueue.add(buffers[i]);
+                    queued = true;
+                }
+            }
+
+            if (queued) {
+                requestWrite();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the header, payload and trailer of <code>frame</code> or
+     * queues what the socket does not accept right away. File regions
+     * are read, but not released.
+     *
+     * @throws IOException if the connection is closed or a file region
+     * can not be read.
+     */
+    void write(Frame frame) throws IOException
+    {
+        int length = Frame.MAX_HEADER_SIZE + TRAILER.length;
+        for (int i = 0; i < frame.getPayloadCount(); ++i) {
+            length += frame.getPayload(i).getLength();
+        }
+
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+
+            ByteBuffer b = outputBuffer(length);
+
+            frame.writeHeader(b);
+            for (int i = 0; i < frame.getPayloadCount(); ++i) {
+                frame.getPayload(i).copyTo(b);
+            }
+            b.put(TRAILER);
+            b.flip();
+
+            if (log.isTraceEnabled()) {
+                ByteBuffer d = b.duplicate();
+                byte[] data = new byte[d.remaining()];
+
+                d.get(data);
+                log.trace("Writing the following\n" + new String(data));
+            }
+
+            write(b);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a SEQ frame or queues what the socket does not accept right
+     * away.
+     */
+    void writeSEQ(int channel, long ackno, int window) throws IOException
+    {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+
+            ByteBuffer b = outputBuffer(HeaderWriter.MAX_SEQ_HEADER_SIZE);
+
+            HeaderWriter.writeSEQ(b, channel, ackno, window);
+            b.flip();
+
+            write(b);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to <code>timeout</code> milliseconds for queued output to
+     * be written. Returns immediately when called from the selector loop.
+     */
+    void flush(long timeout)
+    {
+        if (loop.inLoop()) {
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (writeQueue.isEmpty() == false && closed == false) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return;
+                }
+                drained.await(wait, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void close()
+    {
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writeQueue.clear();
+            drained.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+
+        loop.execute(new Runnable() {
+                public void run() {
+                    key.cancel();
+                }
+            });
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    void abort(String reason)
+    {
+        close();
+
+        NIOSession s = session;
+        if (s != null) {
+            s.terminate(reason);
+        }
+    }
+
+    void handleWritable() throws IOException
+    {
+        writeLock.lock();
+        try {
+            if (writeQueue.isEmpty() == false) {
+                ByteBuffer[] buffers =
+                    writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+
+                writeFully(buffers);
+
+                while (writeQueue.isEmpty() == false &&
+                       writeQueue.getFirst().hasRemaining() == false)
+                {
+                    writeQueue.removeFirst();
+                }
+            }
+
+            if (writeQueue.isEmpty()) {
+                writeInterest = false;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                drained.signalAll();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    void handleReadable(ByteBuffer readBuffer) throws Exception
+    {
+        NIOSession s = session;
+
+        if (pendingInput != null || s.isReading() == false) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return;
+        }
+
+        readBuffer.clear();
+
+        int n = channel.read(readBuffer);
+
+        if (n == -1) {
+            close();
+            s.remoteClosed();
+            return;
+        }
+
+        readBuffer.flip();
+
+        deliver(readBuffer, true);
+    }
+
+    /**
+     * Hands <code>input</code> to the current session and keeps whatever
+     * it did not consume because reading was disabled. Input in the
+     * loop's shared buffer has to be copied.
+     */
+    private void deliver(ByteBuffer input, boolean shared) throws Exception
+    {
+        session.processInput(input);
+
+        if (input.hasRemaining()) {
+            if (shared == false) {
+                pendingInput = input;
+            } else {
+                pendingInput = ByteBuffer.allocate(input.remaining());
+                pendingInput.put(input);
+                pendingInput.flip();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Returns an empty buffer with room for <code>length</code> bytes, the
+     * output buffer unless output is queued or it is too small. Called
+     * with the write lock held.
+     */
+    private ByteBuffer outputBuffer(int length)
+    {
+        if (writeQueue.isEmpty() == false || length > OUTPUT_BUFFER_SIZE) {
+            return ByteBuffer.allocate(length);
+        }
+
+        if (outputBuf == null) {
+            outputBuf = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+        }
+
+        outputBuf.clear();
+        return outputBuf;
+    }
+
+    /**
+     * Writes <code>b</code>, unless output is queued, and queues what the
+     * socket does not accept. Called with the write lock held.
+     */
+    private void write(ByteBuffer b) throws IOException
+    {
+        if (writeQueue.isEmpty()) {
+            while (b.hasRemaining() && channel.write(b) != 0) {
+            }
+        }
+
+        if (b.hasRemaining()) {
+            // the queue owns the buffer now
+            if (b == outputBuf) {
+                outputBuf = null;
+            }
+
+            writeQueue.add(b);
+            requestWrite();
+        }
+    }
+
+    /**
+     * Has the selector loop write the queue once the socket is writable.
+     * Called with the write lock held.
+     */
+    private void requestWrite()
+    {
+        if (writeInterest) {
+            return;
+        }
+
+        writeInterest = true;
+        loop.execute(new Runnable() {
+                public void run() {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() |
+                                        SelectionKey.OP_WRITE);
+                    }
+                }
+            });
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException
+    {
+        long remaining = 0;
+
+        for (int i = 0; i < buffers.length; ++i) {
+            remaining += buffers[i].remaining();
+        }
+
+        while (remaining > 0) {
+            long n = channel.write(buffers);
+
+            if (n == 0) {
+                return;
+            }
+
+            remaining -= n;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * NIOSession.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.core.SessionCredential;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.HeaderParser;
+import org.beepcore.beep.transport.tcp.FrameDecoder;
+
+
+/**
+ * Provides the TCP transport mapping for BEEP according to RFC 3081
+ * using non-blocking <code>SocketChannel</code>s. Unlike
+ * <code>TCPSession</code>, which dedicates a thread to reading each
+ * session, NIO sessions are serviced by a small pool of selector threads
+ * shared by all sessions in the JVM.
+ *
+ * Frames are decoded with the <code>FrameDecoder</code> shared with
+ * <code>TCPSession</code> and posted to the channels from a selector
+ * thread so <code>ReplyListener</code>s on NIO sessions must not block.
+ *
+ * The TLS profile requires a <code>TCPSession</code> and can not be used
+ * with NIO sessions.
+ *
+ * @see TCPSession
+ */
+public class NIOSession extends SessionImpl {
+
+    // Constants
+    private static final int MAX_RECEIVE_BUFFER_SIZE = 64 * 1024;
+
+    private static final int CHANNEL_START_ODD = 1;
+    private static final int CHANNEL_START_EVEN = 2;
+
+    private static final long CLOSE_FLUSH_TIMEOUT = 5000;
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private NIOConnection connection;
+    private volatile boolean reading = false;
+
+    /**
+     * Incremented by enableIO. Channel zero pauses reading by returning
+     * false from postFrame, but the MSG may already have been processed
+     * and reading enabled again by the time postFrame returns.
+     */
+    private int enableCount = 0;
+    private Object ioLock = new Object();
+
+    /** only used by the selector thread */
+    private FrameDecoder decoder;
+
+    private int maxFrameSize = SessionTuningProperties.DEFAULT_MAX_FRAME_SIZE;
+
+    private NIOSession(NIOConnection connection, ProfileRegistry registry,
+                       int firstChannel, SessionCredential localCred,
+                       SessionCredential peerCred,
+                       SessionTuningProperties tuning, String servername)
+            throws BEEPException
+    {
+        super(registry, firstChannel, localCred, peerCred, tuning, servername);
+
+        decoder = new FrameDecoder(new DecoderListener(),
+                                   FrameDecoder.DEFAULT_BUFFER_SIZE,
+                                   tuning == null ? null : tuning.getBufferPool());
+
+        this.connection = connection;
+        connection.setSession(this);
+
+        try {
+            maxFrameSize = chooseMaxFrameSize(
+                connection.getChannel().socket().getSendBufferSize(), false);
+        } catch (SocketException x) {
+            log.debug("Unable to get the socket's send buffer size");
+        }
+
+        if ((peerCred != null) || (localCred != null) || (tuning != null)) {
+            tuningInit();
+        } else {
+            init();
+        }
+    }
+
+    /**
+     * Creates a NIOSession for a SocketChannel that was created by
+     * initiating a connection.
+     *
+     * @param sock
+     * @param registry
+     * @param servername
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createInitiator(SocketChannel sock,
+                                             ProfileRegistry registry,
+                                             String servername)
+            throws BEEPException
+    {
+        return new NIOSession(createConnection(sock),
+                              (ProfileRegistry) registry.clone(),
+                              CHANNEL_START_ODD, null, null, null, servername);
+    }
+
+    /**
+     * Creates a NIOSession for a SocketChannel that was created by
+     * initiating a connection.
+     *
+     * @param sock
+     * @param registry
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createInitiator(SocketChannel sock,
+                                             ProfileRegistry registry)
+            throws BEEPException
+    {
+        return createInitiator(sock, registry, null);
+    }
+
+    /**
+     * Creates a NIOSession for a SocketChannel that was created by
+     * listening and accepting a connection.
+     *
+     * @param sock
+     * @param registry
+     *
+     * @throws BEEPException
+     */
+    public static NIOSession createListener(SocketChannel sock,
+                                            ProfileRegistry registry)
+            throws BEEPException
+    {
+        return new NIOSession(createConnection(sock),
+                              (ProfileRegistry) registry.clone(),
+                              CHANNEL_START_EVEN, null, null, null, null);
+    }
+
+    // Overrides method in Session
+    public synchronized void close() throws BEEPException
+    {
+        super.close();
+
+        connection.flush(CLOSE_FLUSH_TIMEOUT);
+        connection.close();
+    }
+
+    // Overrides method in Session
+    public CompletableFuture<Session> closeAsync()
+    {
+        return super.closeAsync().thenApply(new Function<Session, Session>() {
+                public Session apply(Session session) {
+                    connection.flush(CLOSE_FLUSH_TIMEOUT);
+                    connection.close();
+                    return session;
+                }
+            });
+    }
+
+    public SocketChannel getSocketChannel()
+    {
+        return connection.getChannel();
+    }
+
+    // Overrides method in Session
+    public void terminate(String reason)
+    {
+        super.terminate(reason);
+
+        connection.close();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        Socket socket = connection.getChannel().socket();
+
+        return super.toString() + " (" +
+            socket.getLocalAddress() + ":" + socket.getLocalPort() + "-" +
+            socket.getInetAddress() + ":" + socket.getPort() + ")";
+    }
+
+    // Implementation of method declared in Session
+    protected void disableIO()
+    {
+        synchronized (ioLock) {
+            reading = false;
+        }
+        connection.setReadInterest(false);
+    }
+
+    // Implementation of method declared in Session
+    protected void enableIO()
+    {
+        synchronized (ioLock) {
+            reading = true;
+            ++enableCount;
+        }
+        connection.setReadInterest(true);
+    }
+
+    // Implementation of method declared in Session
+    protected int getMaxFrameSize()
+    {
+        return maxFrameSize;
+    }
+
+    /**
+     * Writes the header, payload and trailer of <code>f</code> to the
+     * socket with a single write from the connection's output buffer. Any
+     * part the socket does not accept immediately is written later by the
+     * selector thread.
+     *
+     * @param f the Frame to send.
+     *
+     * @throws BEEPException
+     */
+    protected void sendFrame(Frame f) throws BEEPException
+    {
+        // file regions are read into the output buffer
+        try {
+            connection.write(f);
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        } finally {
+            for (int i = 0; i < f.getPayloadCount(); ++i) {
+                BufferSegment b = f.getPayload(i);
+
+                if (b.isFileRegion()) {
+                    b.release();
+                }
+            }
+        }
+    }
+
+    // Implementation of method declared in Session
+    protected Session reset(SessionCredential localCred,
+                            SessionCredential peerCred,
+                            SessionTuningProperties tuning,
+                            ProfileRegistry reg, Object argument)
+            throws BEEPException
+    {
+        if (log.isTraceEnabled()) {
+            log.trace("Reset as "
+                      + (isInitiator() ? "INITIATOR" : "LISTENER"));
+        }
+
+        if (reg == null) {
+            reg = this.getProfileRegistry();
+        }
+
+        Session newSession = new NIOSession(connection, reg,
+                                            (isInitiator() ? CHANNEL_START_ODD:
+                                             CHANNEL_START_EVEN),
+                                            localCred, peerCred, tuning, null);
+
+        this.fireSessionReset(newSession);
+
+        return newSession;
+    }
+
+    /**
+     * Update the channel window size with the remote peer by sending
+     * SEQ frames as per RFC 3081.
+     *
+     * @return true if the Receive Buffer Size was updated
+     *
+     * @throws BEEPException if the SEQ frame could not be written.
+     */
+    protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                long currentSeq,
+                                                int currentAvail)
+            throws BEEPException
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote: SEQ " + channel.getNumber() + " " + currentSeq +
+                      " " + currentAvail);
+        }
+
+        try {
+            connection.writeSEQ(channel.getNumber(), currentSeq, currentAvail);
+        } catch (IOException x) {
+            throw new BEEPException("Unable to send SEQ", x);
+        }
+
+        return true;
+    }
+
+    boolean isReading()
+    {
+        return reading;
+    }
+
+    /**
+     * Called by the selector thread when the peer closed the connection.
+     */
+    void remoteClosed()
+    {
+        if (getState() == SESSION_STATE_CLOSED ||
+            getState() == SESSION_STATE_ABORTED)
+        {
+            return;
+        }
+
+        terminate("Session aborted by remote peer.");
+    }
+
+    /**
+     * Decodes as many frames from <code>input</code> as it holds, keeping
+     * partial frames across calls. Stops early if reading is disabled,
+     * leaving the rest of the input in the buffer.
+     */
+    void processInput(ByteBuffer input) throws BEEPException
+    {
+        decoder.decode(input);
+    }
+
+    /**
+     * Hands the decoded frames to the session.
+     */
+    private class DecoderListener implements FrameDecoder.Listener {
+
+        public Frame createFrame(HeaderParser header) throws BEEPException
+        {
+            if (log.isTraceEnabled()) {
+                log.trace(header.toString());
+            }
+
+            return NIOSession.super.createFrame(header);
+        }
+
+        public boolean receiveFrame(Frame f) throws BEEPException
+        {
+            int enabled;
+            synchronized (ioLock) {
+                enabled = enableCount;
+            }
+
+            if (NIOSession.super.postFrame(f) == false) {
+                synchronized (ioLock) {
+                    if (enabled == enableCount) {
+                        reading = false;
+                    }
+                }
+            }
+
+            return reading;
+        }
+
+        public void receiveSEQ(int channelNum, long ackNum, int window)
+            throws BEEPException
+        {
+            log.debug("Read: SEQ " + channelNum + " " + ackNum + " " +
+                      window);
+
+            // update the channel with the new receive window size
+            NIOSession.this.updatePeerReceiveBufferSize(channelNum, ackNum,
+                                                        window);
+        }
+    }
+
+    private static NIOConnection createConnection(SocketChannel sock)
+            throws BEEPException
+    {
+        try {
+            sock.socket().setReceiveBufferSize(MAX_RECEIVE_BUFFER_SIZE);
+        } catch (Exception x) {
+            // Socket doesn't support setting receive buffer size
+        }
+
+        try {
+            return new NIOConnection(sock);
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+    }
+}
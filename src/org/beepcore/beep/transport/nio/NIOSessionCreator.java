@@ -0,0 +1,283 @@
+/*
+ * NIOSessionCreator.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.Hashtable;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ProfileRegistry;
+
+
+/**
+ * This class provides a means for applications or other libraries to create
+ * a BEEP Session over a non-blocking TCP connection with another BEEP peer.
+ * It mirrors <code>TCPSessionCreator</code>.
+ *
+ * @see org.beepcore.beep.transport.tcp.TCPSessionCreator
+ */
+public class NIOSessionCreator {
+
+    // Constants
+    private static final int DEFAULT_TABLE_SIZE = 4;
+    private static final int DEFAULT_BACKLOG_SIZE = 100;
+
+    // Data
+    private static Hashtable<Integer, ServerSocketChannel> listenerSockets =
+        null;
+
+    /**
+     * Sets the number of selector threads shared by all NIO sessions. The
+     * default is the number of available processors. Must be called
+     * before the first NIO session is created to have any effect.
+     *
+     * @param count
+     */
+    public static void setSelectorThreads(int count)
+    {
+        SelectorLoop.setLoopCount(count);
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port)
+            throws BEEPException
+    {
+        return initiate(host, port, new ProfileRegistry(), null);
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry,
+                                      String servername)
+            throws BEEPException
+    {
+        try {
+            SocketChannel sock =
+                SocketChannel.open(new InetSocketAddress(host, port));
+
+            return NIOSession.createInitiator(sock, registry, servername);
+        } catch (IOException x) {
+            throw new BEEPException(x);
+        }
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(InetAddress host, int port,
+                                      ProfileRegistry registry)
+        throws BEEPException
+    {
+        return initiate(host, port, registry, null);
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(String host, int port)
+        throws BEEPException
+    {
+        try {
+            return initiate(InetAddress.getByName(host), port);
+        } catch (UnknownHostException x) {
+            throw new BEEPException("Unable to connect, unkown host");
+        }
+    }
+
+    /**
+     * Method initiate
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession initiate(String host, int port,
+                                      ProfileRegistry registry)
+        throws BEEPException
+    {
+        try {
+            return initiate(InetAddress.getByName(host), port, registry);
+        } catch (UnknownHostException x) {
+            throw new BEEPException("Unable to connect, unkown host");
+        }
+    }
+
+    public static NIOSession initiate(String host, int port,
+                                      ProfileRegistry registry,
+                                      String servername)
+        throws BEEPException
+    {
+        try {
+            return initiate(InetAddress.getByName(host), port, registry,
+                            servername);
+        } catch (UnknownHostException x) {
+            throw new BEEPException("Unable to connect, unkown host");
+        }
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(int port, ProfileRegistry registry)
+            throws BEEPException
+    {
+        InetAddress temp = null;
+
+        return listen(temp, port, registry);
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param localInterface
+     * @param port
+     * @param registry
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(InetAddress localInterface, int port,
+                                    ProfileRegistry registry)
+            throws BEEPException
+    {
+        ServerSocketChannel socket = null;
+        SocketChannel peer = null;
+
+        synchronized (NIOSessionCreator.class) {
+            if (listenerSockets == null) {
+                listenerSockets =
+                    new Hashtable<Integer, ServerSocketChannel>(
+                        DEFAULT_TABLE_SIZE);
+            }
+
+            socket = listenerSockets.get(port);
+
+            // Bind if we're not listening on this port
+            if (socket == null) {
+
+                // Bind to interface/port pair
+                try {
+                    socket = ServerSocketChannel.open();
+                    socket.socket().bind(new InetSocketAddress(localInterface,
+                                                               port),
+                                         DEFAULT_BACKLOG_SIZE);
+
+                    listenerSockets.put(port, socket);
+                } catch (Exception x) {
+                    throw new BEEPException(x);
+                }
+            }
+        }
+
+        // Listen
+        try {
+            peer = socket.accept();
+
+            return NIOSession.createListener(peer, registry);
+        } catch (Exception e) {
+            throw new BEEPException(e);
+        }
+    }
+
+    /**
+     * Method listen
+     *
+     *
+     * @param port
+     * @param registry
+     * @param localInterface
+     *
+     * @throws BEEPException
+     *
+     */
+    public static NIOSession listen(String localInterface, int port,
+                                    ProfileRegistry registry)
+            throws BEEPException
+    {
+        try {
+            InetAddress addr = null;
+
+            if (localInterface != null) {
+                addr = InetAddress.getByName(localInterface);
+            }
+
+            return listen(addr, port, registry);
+        } catch (UnknownHostException x) {
+            throw new BEEPException(x);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * SelectorLoop.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.nio;
+
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * An event loop that multiplexes the sockets of many
+ * <code>NIOConnection</code>s over a single <code>Selector</code> and
+ * thread. Loops are shared by all NIO sessions in the JVM and handed out
+ * round robin.
+ *
+ * All selection key manipulation happens on the loop thread, other
+ * threads hand work to the loop with <code>execute</code>.
+ */
+class SelectorLoop implements Runnable {
+
+    // Constants
+    private static final String THREAD_NAME = "NIOSession Selector #";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Class Data
+    private static SelectorLoop[] loops = null;
+    private static int loopCount = Runtime.getRuntime().availableProcessors();
+    private static int nextLoop = 0;
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private Selector selector;
+    private Thread thread;
+    private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+    /**
+     * Shared by every connection on this loop, bytes that can not be
+     * consumed right away are copied out by the connection.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private SelectorLoop(int number) throws IOException
+    {
+        selector = Selector.open();
+
+        thread = new Thread(this, THREAD_NAME + number);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets the number of selector threads used by NIO sessions. Only
+     * takes effect if called before the first NIO session is created.
+     */
+    static synchronized void setLoopCount(int count)
+    {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+
+        if (loops == null) {
+            loopCount = count;
+        }
+    }
+
+    /**
+     * Returns the next loop in round robin order, starting the loops
+     * the first time it is called.
+     */
+    static synchronized SelectorLoop next() throws IOException
+    {
+        if (loops == null) {
+            SelectorLoop[] l = new SelectorLoop[loopCount];
+
+            for (int i = 0; i < l.length; ++i) {
+                l[i] = new SelectorLoop(i);
+            }
+
+            loops = l;
+        }
+
+        SelectorLoop loop = loops[nextLoop];
+
+        nextLoop = (nextLoop + 1) % loops.length;
+
+        return loop;
+    }
+
+    Selector getSelector()
+    {
+        return selector;
+    }
+
+    boolean inLoop()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs <code>task</code> on the loop thread. If called from the loop
+     * thread the task is run immediately.
+     */
+    void execute(Runnable task)
+    {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("Selector failed", e);
+                continue;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+
+                NIOConnection connection = (NIOConnection) key.attachment();
+
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWritable();
+                    }
+
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleReadable(readBuffer);
+                    }
+                } catch (CancelledKeyException e) {
+                    // connection closed while we were processing it
+                } catch (Throwable t) {
+                    log.error("Error processing connection", t);
+                    connection.abort(t.getMessage());
+                }
+            }
+        }
+    }
+
+    private void runTasks()
+    {
+        while (true) {
+            Runnable task;
+
+            synchronized (tasks) {
+                if (tasks.isEmpty()) {
+                    return;
+                }
+
+                task = tasks.removeFirst();
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Error running selector task", t);
+            }
+        }
+    }
+}
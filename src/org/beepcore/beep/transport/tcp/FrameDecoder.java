@@ -0,0 +1,458 @@
+/*
+ * FrameDecoder.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.HeaderParser;
+import org.beepcore.beep.util.PooledBuffer;
+
+
+/**
+ * Incrementally decodes the frames and SEQ frames of the TCP mapping
+ * (RFC 3081) from a byte stream. The decoder keeps its state between
+ * calls so input may be split at any point.
+ *
+ * Headers are parsed in place and payloads are handed to the
+ * <code>Frame</code>s as <code>BufferSegment</code>s that slice the read
+ * buffer rather than being copied. A buffer is never written again once a
+ * payload has been sliced from it.
+ *
+ * Blocking transports read with <code>read(InputStream)</code> into the
+ * decoder's buffer, which is reused until a payload is handed out from
+ * it. Non-blocking transports pass what they read to
+ * <code>decode(ByteBuffer)</code>.
+ *
+ * If the decoder is given a <code>BufferPool</code> its buffers come from
+ * the pool and each payload segment holds a reference to the buffer it
+ * was sliced from, so the buffer goes back to the pool once the decoder
+ * has moved on and all the segments have been released.
+ *
+ * A decoder is not thread safe, it is meant to be used by the one thread
+ * reading a session.
+ */
+public class FrameDecoder {
+
+    /**
+     * Receives the decoded frames.
+     */
+    public interface Listener {
+
+        /**
+         * Creates the frame for the header <code>header</code> is set
+         * to, which does not include the CRLF. The parser is the
+         * decoder's and is reused for the next header.
+         */
+        public Frame createFrame(HeaderParser header) throws BEEPException;
+
+        /**
+         * Called once the payload and trailer of <code>f</code> have
+         * been read.
+         *
+         * @return false to stop decoding after this frame.
+         */
+        public boolean receiveFrame(Frame f) throws BEEPException;
+
+        public void receiveSEQ(int channelNumber, long ackno, int window)
+            throws BEEPException;
+    }
+
+    // Constants
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] SEQ = new byte[] {'S', 'E', 'Q'};
+    private static final byte[][] SEQ_TYPE = new byte[][] {SEQ};
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_PAYLOAD = 1;
+    private static final int STATE_TRAILER = 2;
+
+    // Instance Data
+    private Listener listener;
+    private int bufferSize;
+    private int minReadSize;
+    private BufferPool pool;
+
+    private byte[] buf = null;
+    /** the buffer <code>buf</code> belongs to if it came from the pool */
+    private PooledBuffer pooled = null;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean sliced = false;
+
+    private int state = STATE_HEADER;
+    private boolean paused = false;
+
+    /** header that did not arrive in one read */
+    private byte[] header = new byte[Frame.MAX_HEADER_SIZE];
+    private int headerLength = 0;
+
+    /** parses every header read, reset for each */
+    private HeaderParser parser = new HeaderParser();
+
+    private Frame frame;
+    private int payloadRemaining;
+    private int trailerLength;
+
+    public FrameDecoder(Listener listener)
+    {
+        this(listener, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameDecoder(Listener listener, int bufferSize)
+    {
+        this(listener, bufferSize, null);
+    }
+
+    /**
+     * @param pool the pool to allocate buffers from or <code>null</code>
+     * to allocate them on the heap.
+     */
+    public FrameDecoder(Listener listener, int bufferSize, BufferPool pool)
+    {
+        this.listener = listener;
+        this.bufferSize = bufferSize;
+        this.minReadSize = bufferSize / 8;
+        this.pool = pool;
+    }
+
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns <code>true</code> if decoding was stopped by the listener
+     * before all the data that has been read was decoded. Otherwise the
+     * decoder needs more input.
+     */
+    public boolean hasRemaining()
+    {
+        return paused && pos < limit;
+    }
+
+    /**
+     * Reads once from <code>is</code> into the decoder's buffer.
+     *
+     * @return the number of bytes read or -1 at the end of the stream.
+     */
+    public int read(InputStream is) throws IOException
+    {
+        if (buf == null) {
+            newBuffer(bufferSize);
+        } else if (buf.length - limit < minReadSize) {
+            rotate();
+        }
+
+        int n = is.read(buf, limit, buf.length - limit);
+
+        if (n > 0) {
+            limit += n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Decodes the data read with <code>read(InputStream)</code>.
+     *
+     * @return false if the listener stopped decoding, any data left is
+     *         decoded by the next call.
+     */
+    public boolean decode() throws BEEPException
+    {
+        paused = false;
+
+        process(false);
+
+        return paused == false;
+    }
+
+    /**
+     * Decodes <code>input</code>. The data is copied once into a buffer
+     * owned by the decoder and sliced from there. If the listener stops
+     * decoding the position of <code>input</code> is left at the first
+     * byte that was not decoded.
+     *
+     * @return false if the listener stopped decoding.
+     */
+    public boolean decode(ByteBuffer input) throws BEEPException
+    {
+        paused = false;
+
+        int n = input.remaining();
+        if (n == 0) {
+            return true;
+        }
+
+        newBuffer(n);
+        pos = 0;
+        limit = n;
+        sliced = false;
+
+        input.get(buf, 0, n);
+
+        try {
+            process(true);
+        } finally {
+            input.position(input.position() - (limit - pos));
+
+            releaseBuffer();
+            pos = limit = 0;
+        }
+
+        return paused == false;
+    }
+
+    /**
+     * @param partial hand out payload that has only partly arrived
+     *                instead of waiting for the rest of it.
+     */
+    private void process(boolean partial) throws BEEPException
+    {
+        while (paused == false && pos < limit) {
+            switch (state) {
+            case STATE_HEADER:
+                if (headerLength == 0) {
+                    decodeHeader();
+                } else {
+                    continueHeader();
+                }
+                break;
+            case STATE_PAYLOAD:
+                int n = limit - pos;
+
+                if (n >= payloadRemaining) {
+                    addPayload(payloadRemaining);
+                    state = STATE_TRAILER;
+                } else if (partial) {
+                    addPayload(n);
+                } else {
+                    return;
+                }
+                break;
+            case STATE_TRAILER:
+                decodeTrailer();
+                break;
+            }
+        }
+    }
+
+    private void decodeHeader() throws BEEPException
+    {
+        int end = Math.min(limit, pos + Frame.MAX_HEADER_SIZE);
+
+        for (int i = pos; i < end; ++i) {
+            if (buf[i] == '\n') {
+                int start = pos;
+
+                pos = i + 1;
+                processHeader(buf, start, pos - start);
+                return;
+            }
+        }
+
+        if (end - pos == Frame.MAX_HEADER_SIZE) {
+            throw new BEEPException("Malformed BEEP header, no CRLF");
+        }
+
+        // keep the start of the header until the rest is read
+        headerLength = limit - pos;
+        System.arraycopy(buf, pos, header, 0, headerLength);
+        pos = limit;
+    }
+
+    private void continueHeader() throws BEEPException
+    {
+        while (pos < limit) {
+            if (headerLength == header.length) {
+                throw new BEEPException("Malformed BEEP header, no CRLF");
+            }
+
+            byte b = buf[pos++];
+
+            header[headerLength++] = b;
+
+            if (b == '\n') {
+                int length = headerLength;
+
+                headerLength = 0;
+                processHeader(header, 0, length);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param length the length of the header including the CRLF
+     */
+    private void processHeader(byte[] b, int offset, int length)
+        throws BEEPException
+    {
+        if (length < 2 || b[offset + length - 2] != '\r') {
+            throw new BEEPException("Malformed BEEP header");
+        }
+
+        length -= 2;
+
+        parser.reset(b, offset, length);
+
+        if (b[offset] == SEQ[0]) {
+            processSEQ(parser);
+            return;
+        }
+
+        frame = listener.createFrame(parser);
+        payloadRemaining = frame.getSize();
+        trailerLength = 0;
+
+        state = payloadRemaining == 0 ? STATE_TRAILER : STATE_PAYLOAD;
+    }
+
+    private void processSEQ(HeaderParser header) throws BEEPException
+    {
+        if (header.parseType(SEQ_TYPE) == -1) {
+            throw new BEEPException("Malformed BEEP header");
+        }
+
+        int channelNum = header.parseInt();
+        long ackNum = header.parseUnsignedInt();
+        int window = header.parseInt();
+
+        if (header.hasMoreTokens()) {
+            throw new BEEPException("Malformed BEEP Header");
+        }
+
+        listener.receiveSEQ(channelNum, ackNum, window);
+    }
+
+    private void addPayload(int n)
+    {
+        if (pooled != null) {
+            frame.addPayload(new BufferSegment(pooled, pos, n));
+        } else {
+            frame.addPayload(new BufferSegment(buf, pos, n));
+        }
+
+        sliced = true;
+        pos += n;
+        payloadRemaining -= n;
+    }
+
+    private void decodeTrailer() throws BEEPException
+    {
+        while (pos < limit) {
+            if (buf[pos++] != (byte) Frame.TRAILER.charAt(trailerLength)) {
+                throw new BEEPException("Malformed BEEP frame, "
+                                        + "invalid trailer");
+            }
+
+            if (++trailerLength == Frame.TRAILER.length()) {
+                Frame f = frame;
+
+                frame = null;
+                state = STATE_HEADER;
+
+                if (listener.receiveFrame(f) == false) {
+                    paused = true;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes room for the next read. Payload that has partly arrived is
+     * handed out so the buffer can be replaced, a buffer nothing has been
+     * sliced from is reused.
+     */
+    private void rotate()
+    {
+        if (state == STATE_PAYLOAD && pos < limit) {
+            addPayload(limit - pos);
+        }
+
+        if (pos < limit) {
+            // only possible if decoding was stopped by the listener
+            if (sliced) {
+                byte[] old = buf;
+                PooledBuffer oldPooled = pooled;
+
+                newBuffer(bufferSize);
+                System.arraycopy(old, pos, buf, 0, limit - pos);
+
+                if (oldPooled != null) {
+                    oldPooled.release();
+                }
+            } else {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+            }
+            limit -= pos;
+        } else {
+            if (sliced) {
+                releaseBuffer();
+                newBuffer(bufferSize);
+            }
+            limit = 0;
+        }
+
+        pos = 0;
+        sliced = false;
+    }
+
+    /**
+     * Releases the decoder's buffer, discarding any data that has been
+     * read but not decoded. Called once the session is done reading.
+     */
+    public void release()
+    {
+        releaseBuffer();
+        pos = limit = 0;
+    }
+
+    private void newBuffer(int size)
+    {
+        if (pool != null) {
+            pooled = pool.allocate(size);
+            buf = pooled.getData();
+        } else {
+            buf = new byte[size];
+        }
+    }
+
+    private void releaseBuffer()
+    {
+        if (pooled != null) {
+            pooled.release();
+            pooled = null;
+        }
+
+        buf = null;
+    }
+}
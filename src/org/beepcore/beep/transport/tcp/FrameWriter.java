@@ -0,0 +1,1178 @@
+/*
+ * FrameWriter.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.HeaderWriter;
+
+
+/**
+ * The outbound queue of a <code>TCPSession</code>. Frames and SEQ frames
+ * from all channels are queued and written in batches, so many channels
+ * sending small frames share one write and flush.
+ *
+ * A thread that writes a frame while no other thread is writing writes
+ * one batch itself and, if frames are left queued, hands the rest of the
+ * queue to a writer task running on a shared pool. The other threads
+ * return as soon as their frame is queued, so a thread is never kept
+ * writing frames of other channels for longer than one batch. Frames and
+ * SEQ frames that are posted are always left to the writer task, the
+ * session's reader thread posts so it never blocks in a socket write
+ * while the peer's reader may be blocked writing to it.
+ *
+ * Frames of channel zero and SEQ frames are written before all others.
+ * The frames of the other channels are queued per channel and taken in
+ * deficit round robin order, each channel with frames queued may write
+ * <code>QUANTUM</code> bytes times its weight per round, so a channel
+ * sending a lot of data does not hold up the others for longer than a
+ * round. The frames of a channel are written in the order they were
+ * queued. Before channel zero closes a channel its queued frames are
+ * moved ahead with <code>expedite</code>.
+ *
+ * Between <code>hold</code> and <code>release</code> frames are only
+ * queued, so a burst of small frames sent together, such as several
+ * <code>start</code> requests, goes out in one write.
+ *
+ * With a <code>maxDelay</code> every frame is left to the writer task,
+ * which waits up to <code>maxDelay</code> milliseconds for
+ * <code>maxBytes</code> to be queued before it starts writing, trading
+ * latency for larger writes. The calling thread never waits. A batch
+ * never holds more than <code>maxBytes</code> unless a single frame is
+ * larger.
+ *
+ * The queue is guarded by a <code>java.util.concurrent</code> lock
+ * rather than a monitor, so a virtual thread waiting for it, or in
+ * <code>flush</code>, does not pin its carrier thread.
+ *
+ * A queued frame holds its header, already formatted, and the payload
+ * segments of the <code>Frame</code>. Queued frames are reused once
+ * written, so writing a frame allocates nothing once the writer has
+ * queued as many frames at a time before.
+ *
+ * Without a socket channel, e.g. for an <code>SSLSocket</code>, each
+ * batch is copied into one buffer and written with one call. With a
+ * channel the headers, trailers and array backed payloads are copied into
+ * a direct staging buffer, the JVM would copy heap buffers into a
+ * temporary direct buffer for the write anyway, and written together
+ * with the direct buffer payloads in gathering writes. Payload segments
+ * that are regions of a file are sent with
+ * <code>FileChannel.transferTo</code> when the socket has a channel and
+ * the region is at least <code>MIN_TRANSFER_SIZE</code> bytes. Smaller
+ * regions are read into the staging buffer, one <code>transferTo</code>
+ * per small frame costs more than the copy. File regions are released
+ * once they have been written, or once a write has failed.
+ */
+class FrameWriter {
+
+    // Constants
+    private static final int MAX_OUTPUT_BUFFER_SIZE = 64 * 1024;
+    static final int MIN_TRANSFER_SIZE = 16 * 1024;
+    private static final int STAGING_BUFFER_SIZE = 64 * 1024;
+    static final int QUANTUM = 16 * 1024;
+
+    /** most written frames, and emptied channel queues, kept for reuse */
+    private static final int MAX_FREE_FRAMES = 256;
+
+    /** most buffers passed to one gathering write */
+    private static final int MAX_GATHER = 64;
+
+    private static final byte[] TRAILER = Frame.TRAILER.getBytes();
+
+    // Class Data
+    private static ExecutorService writerExecutor = null;
+
+    // Instance Data
+    private Log log = LogFactory.getLog(this.getClass());
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** signalled when a write ends or maxBytes are queued */
+    private final Condition changed = lock.newCondition();
+
+    private Socket socket;
+    private int maxDelay;
+    private int maxBytes;
+
+    /** frames of channel zero and SEQ frames */
+    private ArrayDeque<QueuedFrame> expedited = new ArrayDeque<QueuedFrame>();
+
+    /** the ChannelQueue of each channel with frames queued */
+    private ChannelQueueTable channels = new ChannelQueueTable();
+
+    /** the ChannelQueues with frames queued in round robin order */
+    private ArrayDeque<ChannelQueue> active = new ArrayDeque<ChannelQueue>();
+
+    /** written frames to reuse */
+    private ArrayDeque<QueuedFrame> free = new ArrayDeque<QueuedFrame>();
+
+    /** emptied ChannelQueues to reuse */
+    private ArrayDeque<ChannelQueue> freeQueues =
+        new ArrayDeque<ChannelQueue>();
+
+    private int queuedFrames = 0;
+    private int queuedBytes = 0;
+    private boolean writing = false;
+    private int held = 0;
+    private IOException failure = null;
+
+    /** the frames being written, only used by the writer */
+    private List<QueuedFrame> batch = new ArrayList<QueuedFrame>();
+
+    /** the socket's stream, getOutputStream allocates on every call */
+    private OutputStream outputStream = null;
+
+    private byte[] outputBuf = new byte[0];
+    private ByteBuffer stagingBuf = null;
+
+    /** the buffers of the next gathering write, only used by the writer */
+    private ByteBuffer[] gather = null;
+    private int gatherCount = 0;
+
+    /** views of the staging buffer, one for each slot of gather */
+    private ByteBuffer[] stagingViews = null;
+
+    /** start of the staged data not yet in gather */
+    private int stagingStart = 0;
+
+    private long flushCount = 0;
+    private long frameCount = 0;
+    private long byteCount = 0;
+
+    private Runnable writerTask = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+
+    FrameWriter(Socket socket, SessionTuningProperties tuning)
+    {
+        this.socket = socket;
+
+        if (tuning == null) {
+            tuning = new SessionTuningProperties();
+        }
+        this.maxDelay = tuning.getWriteMaxDelay();
+        this.maxBytes = tuning.getWriteMaxBytes();
+    }
+
+    /**
+     * Queues <code>frame</code> of channel <code>channel</code> and,
+     * unless another thread is already writing, writes a batch of the
+     * queue. The header is formatted now, the payload is written from the
+     * frame's segments.
+     *
+     * @param weight the channel's share of the writes relative to the
+     * other channels with frames queued.
+     *
+     * @throws IOException if this or an earlier write failed.
+     */
+    void write(Frame frame, int channel, int weight) throws IOException
+    {
+        QueuedFrame f = allocate();
+        f.setFrame(frame);
+
+        write(f, channel, weight, false);
+    }
+
+    /**
+     * Queues <code>frame</code> like <code>write</code> but leaves writing
+     * it to the writer task.
+     *
+     * @throws IOException if an earlier write failed.
+     */
+    void post(Frame frame, int channel, int weight) throws IOException
+    {
+        QueuedFrame f = allocate();
+        f.setFrame(frame);
+
+        write(f, channel, weight, true);
+    }
+
+    /**
+     * Queues a frame of channel <code>channel</code> whose segments
+     * already hold the header and trailer and, unless another thread is
+     * already writing, writes a batch of the queue.
+     *
+     * @throws IOException if this or an earlier write failed.
+     */
+    void write(BufferSegment[] frame, int channel, int weight)
+        throws IOException
+    {
+        QueuedFrame f = allocate();
+        f.setSegments(frame);
+
+        write(f, channel, weight, false);
+    }
+
+    /**
+     * Queues a SEQ frame and, unless another thread is already writing,
+     * writes a batch of the queue.
+     *
+     * @throws IOException if this or an earlier write failed.
+     */
+    void writeSEQ(int channel, long ackno, int window) throws IOException
+    {
+        QueuedFrame f = allocate();
+        f.setSEQ(channel, ackno, window);
+
+        write(f, 0, 1, false);
+    }
+
+    /**
+     * Queues a SEQ frame and leaves writing it to the writer task.
+     *
+     * @throws IOException if an earlier write failed.
+     */
+    void postSEQ(int channel, long ackno, int window) throws IOException
+    {
+        QueuedFrame f = allocate();
+        f.setSEQ(channel, ackno, window);
+
+        write(f, 0, 1, true);
+    }
+
+    /**
+     * Queues a SEQ frame to be written by the current writer or with the
+     * next frame written, the caller must write another frame soon.
+     *
+     * @throws IOException if an earlier write failed.
+     */
+    void queueSEQ(int channel, long ackno, int window) throws IOException
+    {
+        QueuedFrame f = allocate();
+        f.setSEQ(channel, ackno, window);
+
+        lock.lock();
+        try {
+            if (failure != null) {
+                recycle(f);
+                throw failure;
+            }
+
+            enqueue(f, 0, 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the frames written from now on without writing them until
+     * a matching <code>release</code>.
+     */
+    void hold()
+    {
+        lock.lock();
+        try {
+            ++held;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Undoes a <code>hold</code> and, once no hold is left, writes a
+     * batch of the queue unless another thread is already writing.
+     *
+     * @throws IOException if this or an earlier write failed.
+     */
+    void release() throws IOException
+    {
+        lock.lock();
+        try {
+            --held;
+
+            if (startWriting(false) == false) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        writeBatch();
+    }
+
+    /**
+     * Moves the frames queued for <code>channel</code>, or for all
+     * channels if it is 0, ahead of the frames of channel zero queued
+     * from now on.
+     */
+    void expedite(int channel)
+    {
+        lock.lock();
+        try {
+            if (channel == 0) {
+                while (active.isEmpty() == false) {
+                    promote(active.getFirst());
+                }
+                return;
+            }
+
+            ChannelQueue q = channels.get(channel);
+            if (q != null) {
+                promote(q);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to <code>timeout</code> milliseconds for the queue to be
+     * written.
+     */
+    void flush(long timeout)
+    {
+        lock.lock();
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while ((writing || queuedFrames != 0) && failure == null) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return;
+                }
+
+                try {
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getFlushCount()
+    {
+        lock.lock();
+        try {
+            return flushCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getFrameCount()
+    {
+        lock.lock();
+        try {
+            return frameCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getByteCount()
+    {
+        lock.lock();
+        try {
+            return byteCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(QueuedFrame f, int channel, int weight,
+                       boolean handOff)
+        throws IOException
+    {
+        lock.lock();
+        try {
+            if (failure != null) {
+                recycle(f);
+                throw failure;
+            }
+
+            enqueue(f, channel, weight);
+
+            if (startWriting(handOff) == false) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        writeBatch();
+    }
+
+    /**
+     * Claims the writing of the queue for the calling thread, unless
+     * another thread is writing, writes are held or the writing has to
+     * be left to the writer task, in which case the task is started.
+     * Called with the lock held.
+     *
+     * @return <code>true</code> if the caller is to write a batch.
+     */
+    private boolean startWriting(boolean handOff)
+    {
+        if (writing || held != 0 || queuedFrames == 0) {
+            if (queuedBytes >= maxBytes) {
+                changed.signalAll();
+            }
+            return false;
+        }
+
+        writing = true;
+
+        if (handOff || maxDelay > 0) {
+            getWriterExecutor().execute(writerTask);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes one batch on the calling thread, which has claimed the
+     * writing, and hands what is left queued to the writer task.
+     */
+    private void writeBatch() throws IOException
+    {
+        int n;
+
+        lock.lock();
+        try {
+            n = nextBatch(batch);
+        } finally {
+            lock.unlock();
+        }
+
+        output(n);
+
+        lock.lock();
+        try {
+            written(n);
+
+            if (queuedFrames == 0) {
+                writing = false;
+                changed.signalAll();
+            } else {
+                getWriterExecutor().execute(writerTask);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The writer task, writes the queue until it is empty. With a
+     * <code>maxDelay</code> it first waits for <code>maxBytes</code> to
+     * be queued.
+     */
+    private void drain()
+    {
+        lock.lock();
+        try {
+            if (maxDelay > 0 && queuedBytes < maxBytes) {
+                long deadline = System.currentTimeMillis() + maxDelay;
+                long wait;
+
+                while (queuedBytes < maxBytes && failure == null &&
+                       (wait = deadline - System.currentTimeMillis()) > 0)
+                {
+                    try {
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // not kept, an interrupted thread can't write
+                        // to a socket channel
+                        break;
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        while (true) {
+            int n;
+
+            lock.lock();
+            try {
+                if (queuedFrames == 0) {
+                    writing = false;
+                    changed.signalAll();
+                    return;
+                }
+
+                n = nextBatch(batch);
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                output(n);
+            } catch (IOException e) {
+                // the caller of the next write gets the failure
+                log.debug("Error writing frames", e);
+                return;
+            }
+
+            lock.lock();
+            try {
+                written(n);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the batch of <code>n</code> bytes. If the write fails the
+     * batch and the queue are discarded and every later write fails.
+     */
+    private void output(int n) throws IOException
+    {
+        try {
+            SocketChannel channel = socket.getChannel();
+
+            if (channel != null) {
+                writeGathering(channel, batch);
+            } else {
+                if (outputStream == null) {
+                    outputStream = socket.getOutputStream();
+                }
+                writeCopy(outputStream, batch, n);
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < gatherCount; ++i) {
+                gather[i] = null;
+            }
+            gatherCount = 0;
+
+            lock.lock();
+            try {
+                failure = e;
+                recycle(batch);
+                while (expedited.isEmpty() == false) {
+                    recycle(expedited.removeFirst());
+                }
+                while (active.isEmpty() == false) {
+                    ChannelQueue q = active.removeFirst();
+
+                    while (q.frames.isEmpty() == false) {
+                        recycle(q.frames.removeFirst());
+                    }
+                    recycle(q);
+                }
+                channels.clear();
+                queuedFrames = 0;
+                queuedBytes = 0;
+                writing = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    /** Counts the batch of <code>n</code> bytes written and recycles it. */
+    private void written(int n)
+    {
+        ++flushCount;
+        frameCount += batch.size();
+        byteCount += n;
+        recycle(batch);
+    }
+
+    private static synchronized ExecutorService getWriterExecutor()
+    {
+        if (writerExecutor == null) {
+            writerExecutor =
+                Executors.newCachedThreadPool(new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BEEP writer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+
+        return writerExecutor;
+    }
+
+    private QueuedFrame allocate()
+    {
+        lock.lock();
+        try {
+            QueuedFrame f = free.pollFirst();
+
+            return f != null ? f : new QueuedFrame();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the file regions of a frame that has been written or will
+     * not be, so the stream they came from can close its file, and keeps
+     * the frame for reuse.
+     */
+    private void recycle(QueuedFrame f)
+    {
+        for (int i = 0; i < f.segmentCount; ++i) {
+            if (f.segments[i].isFileRegion()) {
+                f.segments[i].release();
+            }
+        }
+
+        f.clear();
+
+        if (free.size() < MAX_FREE_FRAMES) {
+            free.addFirst(f);
+        }
+    }
+
+    private void recycle(ChannelQueue q)
+    {
+        q.deficit = 0;
+        q.inRound = false;
+
+        if (freeQueues.size() < MAX_FREE_FRAMES) {
+            freeQueues.addFirst(q);
+        }
+    }
+
+    private void recycle(List<QueuedFrame> frames)
+    {
+        for (int i = 0; i < frames.size(); ++i) {
+            recycle(frames.get(i));
+        }
+        frames.clear();
+    }
+
+    private void enqueue(QueuedFrame frame, int channel, int weight)
+    {
+        if (channel == 0) {
+            expedited.addLast(frame);
+        } else {
+            ChannelQueue q = channels.get(channel);
+
+            if (q == null) {
+                q = freeQueues.pollFirst();
+                if (q == null) {
+                    q = new ChannelQueue();
+                }
+                q.number = channel;
+                channels.put(q);
+                active.addLast(q);
+            }
+
+            q.weight = weight;
+            q.frames.addLast(frame);
+        }
+
+        ++queuedFrames;
+        queuedBytes += frame.length;
+    }
+
+    private void promote(ChannelQueue q)
+    {
+        while (q.frames.isEmpty() == false) {
+            expedited.addLast(q.frames.removeFirst());
+        }
+        active.remove(q);
+        channels.remove(q.number);
+        recycle(q);
+    }
+
+    /**
+     * Moves the next frames to write to <code>batch</code>, at least one
+     * and no more once <code>maxBytes</code> is reached, and returns
+     * their length.
+     */
+    private int nextBatch(List<QueuedFrame> batch)
+    {
+        int n = 0;
+
+        while (expedited.isEmpty() == false && n < maxBytes) {
+            QueuedFrame frame = expedited.removeFirst();
+
+            batch.add(frame);
+            n += dequeued(frame);
+        }
+
+        while (active.isEmpty() == false && n < maxBytes) {
+            ChannelQueue q = active.getFirst();
+            QueuedFrame frame = q.frames.getFirst();
+
+            if (q.inRound == false) {
+                q.deficit += (long) QUANTUM * q.weight;
+                q.inRound = true;
+            }
+
+            if (q.deficit < frame.length) {
+                // the rest of the deficit is kept for the next round
+                q.inRound = false;
+                active.removeFirst();
+                active.addLast(q);
+                continue;
+            }
+
+            q.frames.removeFirst();
+            q.deficit -= frame.length;
+
+            batch.add(frame);
+            n += dequeued(frame);
+
+            if (q.frames.isEmpty()) {
+                active.removeFirst();
+                channels.remove(q.number);
+                recycle(q);
+            }
+        }
+
+        return n;
+    }
+
+    private int dequeued(QueuedFrame frame)
+    {
+        --queuedFrames;
+        queuedBytes -= frame.length;
+
+        return frame.length;
+    }
+
+    /**
+     * Writes the batch with gathering writes. The headers, trailers and
+     * array backed or small file region payloads are copied into the
+     * staging buffer, direct buffer payloads are written from their own
+     * buffers. Large file regions are transferred between the gathering
+     * writes.
+     */
+    private void writeGathering(SocketChannel channel,
+                                List<QueuedFrame> batch)
+        throws IOException
+    {
+        if (stagingBuf == null) {
+            stagingBuf = ByteBuffer.allocateDirect(STAGING_BUFFER_SIZE);
+            gather = new ByteBuffer[MAX_GATHER];
+            stagingViews = new ByteBuffer[MAX_GATHER];
+
+            for (int i = 0; i < stagingViews.length; ++i) {
+                stagingViews[i] = stagingBuf.duplicate();
+            }
+        }
+
+        stagingBuf.clear();
+        stagingStart = 0;
+
+        for (int i = 0; i < batch.size(); ++i) {
+            QueuedFrame f = batch.get(i);
+
+            stage(channel, f.header, f.headerLength);
+
+            for (int j = 0; j < f.segmentCount; ++j) {
+                BufferSegment b = f.segments[j];
+                int length = b.getLength();
+
+                if (b.isFileRegion() && length >= MIN_TRANSFER_SIZE) {
+                    writeGathered(channel);
+                    b.transferTo(channel);
+                } else if ((b.hasArray() || b.isFileRegion()) &&
+                           length <= STAGING_BUFFER_SIZE)
+                {
+                    if (stagingBuf.remaining() < length) {
+                        writeGathered(channel);
+                    }
+                    b.copyTo(stagingBuf);
+                } else {
+                    gather(channel, b.asByteBuffer());
+                }
+            }
+
+            if (f.trailer) {
+                stage(channel, TRAILER, TRAILER.length);
+            }
+        }
+
+        writeGathered(channel);
+    }
+
+    /**
+     * Copies <code>length</code> bytes of <code>b</code> into the staging
+     * buffer, writing what is gathered first if it is full.
+     */
+    private void stage(SocketChannel channel, byte[] b, int length)
+        throws IOException
+    {
+        if (stagingBuf.remaining() < length) {
+            writeGathered(channel);
+        }
+
+        stagingBuf.put(b, 0, length);
+    }
+
+    /**
+     * Adds <code>b</code> to the next gathering write, behind the data
+     * staged so far.
+     */
+    private void gather(SocketChannel channel, ByteBuffer b)
+        throws IOException
+    {
+        // one slot for the staged data, one for b and one left for the
+        // data staged after b
+        if (gatherCount + 3 > gather.length) {
+            writeGathered(channel);
+        }
+
+        addStaged();
+        gather[gatherCount++] = b;
+    }
+
+    /**
+     * Adds the data staged since the last call to the next gathering
+     * write, through the view of the staging buffer for the next slot.
+     */
+    private void addStaged()
+    {
+        int end = stagingBuf.position();
+
+        if (end == stagingStart) {
+            return;
+        }
+
+        ByteBuffer view = stagingViews[gatherCount];
+        view.limit(end);
+        view.position(stagingStart);
+
+        gather[gatherCount++] = view;
+        stagingStart = end;
+    }
+
+    /**
+     * Writes the gathered buffers and the staged data, the staging buffer
+     * may be reused afterwards.
+     */
+    private void writeGathered(SocketChannel channel) throws IOException
+    {
+        addStaged();
+
+        long remaining = 0;
+        for (int i = 0; i < gatherCount; ++i) {
+            remaining += gather[i].remaining();
+        }
+
+        while (remaining > 0) {
+            remaining -= channel.write(gather, 0, gatherCount);
+        }
+
+        for (int i = 0; i < gatherCount; ++i) {
+            gather[i] = null;
+        }
+        gatherCount = 0;
+
+        stagingBuf.clear();
+        stagingStart = 0;
+    }
+
+    /**
+     * Used when the socket has no channel, e.g. an <code>SSLSocket</code>.
+     */
+    private void writeCopy(OutputStream os, List<QueuedFrame> batch, int n)
+        throws IOException
+    {
+        /* Inspite of the extra data copy if is faster to have
+         * a single call to write() (at least with the JVMs we
+         * have tested with).
+         */
+        byte[] b = outputBuf;
+        if (n > b.length) {
+            b = new byte[n];
+
+            // don't hold on to buffers for unusually large batches
+            if (n <= MAX_OUTPUT_BUFFER_SIZE) {
+                outputBuf = b;
+            }
+        }
+
+        int off = 0;
+
+        for (int i = 0; i < batch.size(); ++i) {
+            QueuedFrame f = batch.get(i);
+
+            System.arraycopy(f.header, 0, b, off, f.headerLength);
+            off += f.headerLength;
+
+            for (int j = 0; j < f.segmentCount; ++j) {
+                BufferSegment bs = f.segments[j];
+
+                if (bs.hasArray()) {
+                    System.arraycopy(bs.getData(), bs.getOffset(),
+                                     b, off, bs.getLength());
+                } else {
+                    bs.copyTo(ByteBuffer.wrap(b, off, bs.getLength()));
+                }
+
+                off += bs.getLength();
+            }
+
+            if (f.trailer) {
+                System.arraycopy(TRAILER, 0, b, off, TRAILER.length);
+                off += TRAILER.length;
+            }
+        }
+
+        os.write(b, 0, n);
+        os.flush();
+    }
+
+    /**
+     * A frame in the queue, the header is formatted into the frame's own
+     * buffer when it is queued and the payload is written from the
+     * segments it was given.
+     */
+    private static class QueuedFrame {
+        final byte[] header = new byte[Frame.MAX_HEADER_SIZE];
+        int headerLength = 0;
+        BufferSegment[] segments = new BufferSegment[4];
+        int segmentCount = 0;
+        boolean trailer = false;
+
+        /** the number of bytes written for the frame */
+        int length = 0;
+
+        void setFrame(Frame frame)
+        {
+            headerLength = frame.writeHeader(header, 0);
+            setSegments(frame);
+            trailer = true;
+            length += headerLength + TRAILER.length;
+        }
+
+        void setSEQ(int channel, long ackno, int window)
+        {
+            headerLength = HeaderWriter.writeSEQ(header, 0, channel, ackno,
+                                                 window);
+            length = headerLength;
+        }
+
+        void setSegments(BufferSegment[] frame)
+        {
+            reserve(frame.length);
+            length = 0;
+            for (int i = 0; i < frame.length; ++i) {
+                segments[i] = frame[i];
+                length += frame[i].getLength();
+            }
+            segmentCount = frame.length;
+        }
+
+        void clear()
+        {
+            for (int i = 0; i < segmentCount; ++i) {
+                segments[i] = null;
+            }
+            segmentCount = 0;
+            headerLength = 0;
+            trailer = false;
+            length = 0;
+        }
+
+        private void setSegments(Frame frame)
+        {
+            int count = frame.getPayloadCount();
+
+            reserve(count);
+            length = 0;
+            for (int i = 0; i < count; ++i) {
+                segments[i] = frame.getPayload(i);
+                length += segments[i].getLength();
+            }
+            segmentCount = count;
+        }
+
+        private void reserve(int count)
+        {
+            if (segments.length < count) {
+                segments = new BufferSegment[count];
+            }
+        }
+    }
+
+    /**
+     * The frames queued for one channel other than channel zero, reused
+     * for another channel once emptied.
+     */
+    private static class ChannelQueue {
+        int number;
+        final ArrayDeque<QueuedFrame> frames = new ArrayDeque<QueuedFrame>();
+        int weight = 1;
+        long deficit = 0;
+        boolean inRound = false;
+    }
+
+    /**
+     * The ChannelQueues keyed by channel number, an open addressing hash
+     * table with linear probing like the session's channel table, so
+     * queuing a frame neither boxes the channel number nor allocates.
+     * Only used with the writer locked.
+     */
+    private static class ChannelQueueTable {
+        private static final int MIN_CAPACITY = 8;
+
+        /** marks a slot whose queue was removed */
+        private static final ChannelQueue REMOVED = new ChannelQueue();
+
+        static {
+            REMOVED.number = -1;
+        }
+
+        private ChannelQueue[] slots = new ChannelQueue[MIN_CAPACITY];
+
+        /** number of queues in the table */
+        private int size = 0;
+
+        /** number of slots in use, queues and tombstones */
+        private int used = 0;
+
+        ChannelQueue get(int number)
+        {
+            int mask = slots.length - 1;
+
+            for (int i = index(number, mask); ; i = (i + 1) & mask) {
+                ChannelQueue q = slots[i];
+
+                if (q == null) {
+                    return null;
+                }
+
+                if (q.number == number && q != REMOVED) {
+                    return q;
+                }
+            }
+        }
+
+        /**
+         * Adds <code>queue</code>, there must be no queue for its channel.
+         */
+        void put(ChannelQueue queue)
+        {
+            if ((used + 1) * 4 > slots.length * 3) {
+                rebuild(size + 1);
+            }
+
+            int mask = slots.length - 1;
+            int i = index(queue.number, mask);
+
+            while (slots[i] != null && slots[i] != REMOVED) {
+                i = (i + 1) & mask;
+            }
+
+            if (slots[i] == null) {
+                ++used;
+            }
+            slots[i] = queue;
+            ++size;
+        }
+
+        void remove(int number)
+        {
+            int mask = slots.length - 1;
+
+            for (int i = index(number, mask); ; i = (i + 1) & mask) {
+                ChannelQueue q = slots[i];
+
+                if (q == null) {
+                    return;
+                }
+
+                if (q.number == number && q != REMOVED) {
+                    slots[i] = REMOVED;
+                    --size;
+                    return;
+                }
+            }
+        }
+
+        void clear()
+        {
+            slots = new ChannelQueue[MIN_CAPACITY];
+            size = 0;
+            used = 0;
+        }
+
+        private void rebuild(int expected)
+        {
+            ChannelQueue[] old = slots;
+            int capacity = MIN_CAPACITY;
+
+            // keep the load factor at or below one half after a rebuild
+            while (capacity < expected * 2) {
+                capacity <<= 1;
+            }
+
+            slots = new ChannelQueue[capacity];
+            used = 0;
+
+            int mask = capacity - 1;
+
+            for (int j = 0; j < old.length; ++j) {
+                if (old[j] == null || old[j] == REMOVED) {
+                    continue;
+                }
+
+                int i = index(old[j].number, mask);
+                while (slots[i] != null) {
+                    i = (i + 1) & mask;
+                }
+
+                slots[i] = old[j];
+                ++used;
+            }
+        }
+
+        private static int index(int number, int mask)
+        {
+            // each peer uses every other channel number, mix the bits so
+            // both odd and even numbers spread over the whole table
+            int h = number * 0x9E3779B9;
+
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
@@ -41,9 +41,17 @@ package org.beepcore.beep.transport.tcp;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 
 import java.net.Socket;
+import java.net.SocketException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import javax.net.ssl.SSLSocket;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -58,12 +66,25 @@ import org.beepcore.beep.core.SessionCredential;
 import org.beepcore.beep.core.SessionTuningProperties;
 import org.beepcore.beep.util.BufferSegment;
 import org.beepcore.beep.util.HeaderParser;
-import org.beepcore.beep.util.StringUtil;
 
 
 /**
  * Provides the TCP transport mapping for BEEP according to RFC 3081.
  *
+ * Frames and SEQ frames from all channels go through one outbound queue
+ * and are written in batches, see {@link FrameWriter}. The batching can be
+ * tuned with the {@link SessionTuningProperties#WRITE_MAX_DELAY} and
+ * {@link SessionTuningProperties#WRITE_MAX_BYTES} properties. If the socket
+ * was created from a blocking <code>SocketChannel</code> batches are
+ * written with gathering writes straight from the frames' buffers,
+ * otherwise they are copied into a single buffer and written to the
+ * socket's <code>OutputStream</code>.
+ *
+ * Received data is read into buffers that are sliced into the frames'
+ * payloads. With the {@link SessionTuningProperties#BUFFER_POOL} property
+ * the buffers come from a shared <code>BufferPool</code> and are reused
+ * once the payloads have been consumed.
+ *
  * @author Eric Dixon
  * @author Huston Franklin
  * @author Jay Kint
@@ -73,33 +94,35 @@ import org.beepcore.beep.util.StringUtil;
 public class TCPSession extends SessionImpl {
 
     // Constants
-    private static final char[] MESSAGE_TYPE_SEQ = new char[] {'S', 'E', 'Q'};
     private static final int MAX_RECEIVE_BUFFER_SIZE = 64 * 1024;
     private static final String TCP_MAPPING = "TCP Mapping";
-    private static final String CRLF = "\r\n";
-    private static final int MIN_SEQ_HEADER_SIZE = (3        // msg type
-                                                    + 1      // space
-                                                    + 1      // channel number
-                                                    + 1      // space
-                                                    + 1      // acknum
-                                                    + 1      // space
-                                                    + 1      // window
-                                                    + CRLF.length());
 
     private static final int CHANNEL_START_ODD = 1;
     private static final int CHANNEL_START_EVEN = 2;
 
+    private static final long CLOSE_FLUSH_TIMEOUT = 5000;
+
 
     // Instance Data
     private Log log = LogFactory.getLog(this.getClass());
 
-    private byte headerBuffer[] = new byte[Frame.MAX_HEADER_SIZE];
-    private byte[] outputBuf = new byte[0];
-    private Object writerLock;
+    private FrameDecoder decoder;
+    private FrameWriter writer;
     private Socket socket;
-    private boolean running;
+    private int maxFrameSize = SessionTuningProperties.DEFAULT_MAX_FRAME_SIZE;
     private static int THREAD_COUNT = 0;
     private static final String THREAD_NAME = "TCPSession Thread #";
+
+    /*
+     * There is at most one reader thread. disableIO lets it stop after
+     * the frame it is processing. Channel zero also stops it by returning
+     * false from postFrame and then calls enableIO, possibly before the
+     * reader has seen the false, so enableCount tells the reader whether
+     * IO was enabled again in the meantime.
+     */
+    private Object ioLock = new Object();
+    private volatile boolean running;
+    private int enableCount = 0;
     private Thread thread;
 
     /**
@@ -132,13 +155,64 @@ public class TCPSession extends SessionImpl {
                        SessionCredential localCred, SessionCredential peerCred,
                        SessionTuningProperties tuning, String servername)
             throws BEEPException
+    {
+        this(sock, registry, firstChannel, localCred, peerCred, tuning,
+             servername, null, null,
+             (peerCred != null) || (localCred != null) || (tuning != null));
+    }
+
+    /**
+     * @param decoder the decoder of the session being reset, holding
+     * any data read past the frame that caused the reset, or
+     * <code>null</code>.
+     * @param writer the writer of the session being reset if the socket
+     * is the same, or <code>null</code>.
+     * @param reset <code>true</code> if called for a tuning reset or
+     * by {@link #createInitiatorAsync}, in which case the greeting is
+     * not waited for.
+     */
+    private TCPSession(Socket sock, ProfileRegistry registry, int firstChannel,
+                       SessionCredential localCred, SessionCredential peerCred,
+                       SessionTuningProperties tuning, String servername,
+                       FrameDecoder decoder, FrameWriter writer,
+                       boolean reset)
+            throws BEEPException
     {
 	super(registry, firstChannel, localCred, peerCred, tuning, servername);
 
         socket = sock;
-        writerLock = new Object();
 
-        if ((peerCred != null) || (localCred != null) || (tuning != null)) {
+        try {
+            maxFrameSize = chooseMaxFrameSize(sock.getSendBufferSize(),
+                                              sock instanceof SSLSocket);
+        } catch (SocketException x) {
+            log.debug("Unable to get the socket's send buffer size");
+        }
+
+        if (writer == null) {
+            this.writer = new FrameWriter(sock, tuning);
+        } else {
+            this.writer = writer;
+        }
+
+        if (decoder == null) {
+            this.decoder =
+                new FrameDecoder(new DecoderListener(),
+                                 FrameDecoder.DEFAULT_BUFFER_SIZE,
+                                 tuning == null ? null : tuning.getBufferPool());
+        } else {
+            this.decoder = decoder;
+            decoder.setListener(new DecoderListener());
+        }
+
+        // frames are batched by the writer, Nagle would only delay them
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (Exception x) {
+            log.debug("Socket doesn't support disabling Nagle's algorithm");
+        }
+
+        if (reset) {
             tuningInit();
         } else {
             init();
@@ -189,6 +263,79 @@ public class TCPSession extends SessionImpl {
         return createInitiator(sock, registry, null);
     }
 
+    /**
+     * Creates a TCPSession for a Socket that was created by
+     * initiating a connection.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param servername
+     * @param tuning transport settings such as
+     * {@link SessionTuningProperties#WRITE_MAX_DELAY}
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession createInitiator(Socket sock,
+                                             ProfileRegistry registry,
+                                             String servername,
+                                             SessionTuningProperties tuning)
+	throws BEEPException
+    {
+        return new TCPSession(sock, (ProfileRegistry) registry.clone(),
+                              CHANNEL_START_ODD, null, null, tuning,
+                              servername, null, null, false);
+    }
+
+    /**
+     * Creates a TCPSession for a Socket that was created by
+     * initiating a connection, without waiting for the peer's greeting.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param servername
+     * @param tuning transport settings such as
+     * {@link SessionTuningProperties#WRITE_MAX_DELAY}
+     *
+     * @return a future completed with the session once the peer's
+     * greeting has been received, or failed with a
+     * <code>BEEPException</code> if the session could not be started or
+     * was terminated before the greeting arrived. The session is
+     * terminated if the greeting has not arrived within the time
+     * <code>createInitiator</code> waits for it.
+     */
+    public static CompletableFuture<Session>
+        createInitiatorAsync(Socket sock, ProfileRegistry registry,
+                             String servername,
+                             SessionTuningProperties tuning)
+    {
+        return createInitiatorAsync(sock, registry, servername, tuning,
+                                    MAX_GREETING_WAIT);
+    }
+
+    static CompletableFuture<Session>
+        createInitiatorAsync(Socket sock, ProfileRegistry registry,
+                             String servername,
+                             SessionTuningProperties tuning,
+                             long greetingTimeout)
+    {
+        try {
+            TCPSession session =
+                new TCPSession(sock, (ProfileRegistry) registry.clone(),
+                               CHANNEL_START_ODD, null, null, tuning,
+                               servername, null, null, true);
+
+            return session.getGreetingFuture(greetingTimeout);
+        } catch (BEEPException e) {
+            CompletableFuture<Session> failed =
+                new CompletableFuture<Session>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
     /**
      * Creates a TCPSession for a Socket that was created by
      * listening and accepting a connection.
@@ -208,14 +355,56 @@ public class TCPSession extends SessionImpl {
                               CHANNEL_START_EVEN, null, null, null, null);
     }
 
+    /**
+     * Creates a TCPSession for a Socket that was created by
+     * listening and accepting a connection.
+     *
+     *
+     * @param sock
+     * @param registry
+     * @param tuning transport settings such as
+     * {@link SessionTuningProperties#WRITE_MAX_DELAY}
+     *
+     * @throws BEEPException
+     *
+     */
+    public static TCPSession createListener(Socket sock,
+                                            ProfileRegistry registry,
+                                            SessionTuningProperties tuning)
+            throws BEEPException
+    {
+        return new TCPSession(sock, (ProfileRegistry) registry.clone(),
+                              CHANNEL_START_EVEN, null, null, tuning, null,
+                              null, null, false);
+    }
+
     // Overrides method in Session
     public synchronized void close() throws BEEPException
     {
         super.close();
 
-        if (socket != null) {
+        closeSocket();
+    }
+
+    // Overrides method in Session
+    public CompletableFuture<Session> closeAsync()
+    {
+        return super.closeAsync().thenApply(new Function<Session, Session>() {
+                public Session apply(Session session) {
+                    closeSocket();
+                    return session;
+                }
+            });
+    }
+
+    private void closeSocket()
+    {
+        writer.flush(CLOSE_FLUSH_TIMEOUT);
+
+        Socket s = socket;
+        if (s != null) {
             try {
-                socket.close();
+                s.close();
             } catch (IOException e) {
             }
 
@@ -228,6 +417,33 @@ public class TCPSession extends SessionImpl {
         return this.socket;
     }
 
+    /**
+     * Returns the number of writes of queued frames to the socket. The
+     * average number of frames or bytes per write is
+     * <code>getFramesWritten()</code> or <code>getBytesWritten()</code>
+     * divided by this.
+     */
+    public long getFlushCount()
+    {
+        return writer.getFlushCount();
+    }
+
+    /**
+     * Returns the number of frames, including SEQ frames, written.
+     */
+    public long getFramesWritten()
+    {
+        return writer.getFrameCount();
+    }
+
+    /**
+     * Returns the number of bytes written.
+     */
+    public long getBytesWritten()
+    {
+        return writer.getByteCount();
+    }
+
     // Overrides method in Session
     public void terminate(String reason)
     {
@@ -240,7 +456,6 @@ public class TCPSession extends SessionImpl {
             }
 
             socket = null;
-            running = false;
         }
     }
 
@@ -256,93 +471,77 @@ public class TCPSession extends SessionImpl {
     // Implementation of method declared in Session
     protected void disableIO()
     {
-        running = false;
+        synchronized (ioLock) {
+            running = false;
+        }
     }
 
     // Implementation of method declared in Session
     protected void enableIO()
     {
-        running = false;
-        thread = null;
+        synchronized (ioLock) {
+            running = true;
+            ++enableCount;
 
-        if (thread == null) {
-            String threadName;
+            if (thread == null) {
+                String threadName;
 
-            synchronized (THREAD_NAME) {
-                threadName = new String(THREAD_NAME + THREAD_COUNT++);
-            }
+                synchronized (THREAD_NAME) {
+                    threadName = new String(THREAD_NAME + THREAD_COUNT++);
+                }
 
-            thread = new Thread(threadName)
-                {
-                    public void run() {
-                        processNextFrame();
-                    }
-                };
+                thread = new Thread(threadName)
+                    {
+                        public void run() {
+                            processNextFrame();
+                        }
+                    };
 
-            thread.setDaemon(true);
-            thread.start();
+                thread.setDaemon(true);
+                thread.start();
+            }
         }
     }
 
     // Implementation of method declared in Session
     protected int getMaxFrameSize()
     {
-        /**
-         * @todo - test this and find an optimal frame size, key it up
-         * to approximate ethernet packet size, less header, trailer
-         */
-        return 1400;
+        return maxFrameSize;
     }
 
     /**
-     * Generates a header, then writes the header, payload, and
-     * trailer to the wire.
+     * Queues the header, payload, and trailer to be written to the
+     * wire. The frame may still be queued when this returns if another
+     * thread is writing, if more than one batch is queued or if called by
+     * the reader thread. Frames of different channels are not
+     * necessarily written in the order they were queued, see
+     * <code>FrameWriter</code>.
      *
      * @param f the Frame to send.
      * @return boolean true of the frame was sent, false otherwise.
      *
      * @throws BEEPException
-     *
-     * @todo make this one write operation later.
      */
     protected void sendFrame(Frame f) throws BEEPException
     {
         try {
+            Channel channel = f.getChannel();
 
-            OutputStream os = socket.getOutputStream();
-
-            synchronized (writerLock) {
-                /* Inspite of the extra data copy if is faster to have
-                 * a single call to write() (at least with the JVMs we
-                 * have tested with).
-                 */
+            // before the write, file regions are released once written
+            if (log.isTraceEnabled()) {
                 BufferSegment[] bs = f.getBytes();
-
-                int n = 0;
-                for (int i=0; i<bs.length; ++i) {
-                    n += bs[i].getLength();
-                }
-
-                if (n > outputBuf.length) {
-                    outputBuf = new byte[n];
+                StringBuffer sb = new StringBuffer();
+                for (int i = 0; i < bs.length; ++i) {
+                    sb.append(new String(bs[i].getData(), bs[i].getOffset(),
+                                         bs[i].getLength()));
                 }
+                log.trace("Writing the following\n" + sb.toString());
+            }
 
-                int off = 0;
-
-                for (int i=0; i<bs.length; ++i) {
-                    System.arraycopy(bs[i].getData(), bs[i].getOffset(),
-                                     outputBuf, off, bs[i].getLength());
-
-                    off += bs[i].getLength();
-                }
-
-                os.write(outputBuf, 0, n);
-                os.flush();
-
-                if (log.isTraceEnabled()) {
-                    log.trace("Wrote the following\n" +
-                              new String(outputBuf, 0, n));
-                }
+            if (isReaderThread()) {
+                writer.post(f, channel.getNumber(), channel.getWeight());
+            } else {
+                writer.write(f, channel.getNumber(), channel.getWeight());
             }
         } catch (IOException e) {
             throw new BEEPException(e);
@@ -351,6 +550,25 @@ public class TCPSession extends SessionImpl {
         }
     }
 
+    protected void channelClosing(Channel channel)
+    {
+        writer.expedite(channel.getNumber());
+    }
+
+    protected void holdWrites()
+    {
+        writer.hold();
+    }
+
+    protected void releaseWrites() throws BEEPException
+    {
+        try {
+            writer.release();
+        } catch (IOException e) {
+            throw new BEEPException(e);
+        }
+    }
+
     // Implementation of method declared in Session
     protected Session reset(SessionCredential localCred,
                             SessionCredential peerCred,
@@ -378,7 +596,10 @@ public class TCPSession extends SessionImpl {
         Session newSession = new TCPSession(s, reg,
                                             (isInitiator() ? CHANNEL_START_ODD:
                                              CHANNEL_START_EVEN),
-                                            localCred, peerCred, tuning, null);
+                                            localCred, peerCred, tuning, null,
+                                            (s == socket ? decoder : null),
+                                            (s == socket ? writer : null),
+                                            true);
 
         this.fireSessionReset(newSession);
 
@@ -401,28 +622,34 @@ public class TCPSession extends SessionImpl {
                                                 int currentAvail)
             throws BEEPException
     {
-        StringBuffer sb = new StringBuffer(Frame.MAX_HEADER_SIZE);
-
-        sb.append(MESSAGE_TYPE_SEQ);
-        sb.append(' ');
-        sb.append(this.getChannelNumberAsString(channel));
-        sb.append(' ');
-        sb.append(Long.toString(currentSeq));
-        sb.append(' ');
-        sb.append(Integer.toString(currentAvail));
-        sb.append(CRLF);
+        logSEQ(channel, currentSeq, currentAvail);
 
         try {
-            if (log.isDebugEnabled()) {
-                log.debug("Wrote: " + sb.toString());
+            if (isReaderThread()) {
+                writer.postSEQ(channel.getNumber(), currentSeq, currentAvail);
+            } else {
+                writer.writeSEQ(channel.getNumber(), currentSeq,
+                                currentAvail);
             }
+        } catch (IOException x) {
+            throw new BEEPException("Unable to send SEQ", x);
+        }
 
-            OutputStream os = socket.getOutputStream();
+        return true;
+    }
 
-            synchronized (writerLock) {
-                os.write(StringUtil.stringBufferToAscii(sb));
-                os.flush();
-            }
+    /**
+     * Queues the SEQ frame to be written with the next frame.
+     */
+    protected boolean queueMyReceiveBufferSize(Channel channel,
+                                               long currentSeq,
+                                               int currentAvail)
+            throws BEEPException
+    {
+        logSEQ(channel, currentSeq, currentAvail);
+
+        try {
+            writer.queueSEQ(channel.getNumber(), currentSeq, currentAvail);
         } catch (IOException x) {
             throw new BEEPException("Unable to send SEQ", x);
         }
@@ -430,66 +657,98 @@ public class TCPSession extends SessionImpl {
         return true;
     }
 
+    /**
+     * Returns <code>true</code> if called by the reader thread, which
+     * leaves its frames to the writer task. If it blocked writing to a
+     * peer whose reader is blocked writing too neither would read again.
+     */
+    private boolean isReaderThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    private void logSEQ(Channel channel, long currentSeq, int currentAvail)
+    {
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote: SEQ " + channel.getNumber() + " " + currentSeq +
+                      " " + currentAvail);
+        }
+    }
+
     private void processNextFrame()
     {
-        running = true;
-        
+        Socket socket = this.socket;
+
         if (socket == null) {
-            running = false;
+            readerExiting();
             return;
         }
 
         try {
-            InputStream is = socket.getInputStream();
+            InputStream is = (socket.getChannel() != null ?
+                              new SocketChannelInputStream(socket.getChannel()) :
+                              socket.getInputStream());
 
-            while (running) {
-                if (log.isTraceEnabled()) {
-                    log.trace("Processing next frame");
+            while (true) {
+                int enabled;
+
+                synchronized (ioLock) {
+                    if (running == false) {
+                        thread = null;
+                        break;
+                    }
+                    enabled = enableCount;
                 }
 
-                int amountRead;
-                headerBuffer = new byte[Frame.MAX_HEADER_SIZE];
+                if (decoder.hasRemaining() == false) {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Reading next frames");
+                    }
 
-                try {
-                    do {
-                        amountRead =
-                            is.read(headerBuffer, 0, MIN_SEQ_HEADER_SIZE);
+                    int amountRead;
 
-                        if (amountRead == -1) {
-                            throw new SessionAbortedException();
+                    try {
+                        amountRead = decoder.read(is);
+                    } catch (IOException e) {
+                        if (running) {
+                            throw e;
                         }
-                    } while (amountRead == 0);
 
-                } catch (java.net.SocketException e) {
-                    if (running) {
-                        throw e;
+                        // socket closed intentionally (session closing)
+                        // so just return, a socket created from a channel
+                        // reports this as an AsynchronousCloseException
+                        readerExiting();
+                        return;
                     }
 
-                    // socket closed intentionally (session closing)
-                    // so just return
-                    return;
+                    if (amountRead == -1) {
+                        throw new SessionAbortedException();
+                    }
                 }
 
-                if (headerBuffer[0] == (byte) MESSAGE_TYPE_SEQ[0]) {
-                    processSEQFrame(headerBuffer, amountRead, is);
-                    continue;
-                } else {
-                    if (processCoreFrame(headerBuffer, amountRead, is) == false)
-                    {
-                        break;
+                if (decoder.decode() == false) {
+                    // Stop reading unless IO was enabled again while the
+                    // frame was being processed.
+                    synchronized (ioLock) {
+                        if (enabled == enableCount) {
+                            running = false;
+                        }
                     }
                 }
             }
         } catch (IOException e) {
             log.error(e);
 
-            socket = null;
+            this.socket = null;
 
+            readerExiting();
             terminate(e.getMessage());
         } catch (SessionAbortedException e) {
+            readerExiting();
             terminate("Session aborted by remote peer.");
         } catch (Throwable e) {
             log.error(e);
+            readerExiting();
             terminate(e.getMessage());
         }
 
@@ -499,229 +758,77 @@ public class TCPSession extends SessionImpl {
         }
     }
 
-    private boolean processCoreFrame(byte[] headerBuffer, int amountRead,
-                                     InputStream is)
-        throws SessionAbortedException, BEEPException, IOException
+    /**
+     * Called by the reader thread when the session will not be read
+     * anymore.
+     */
+    private void readerExiting()
     {
-        int headerLength = 0;
-        int amountToRead = Frame.MIN_FRAME_SIZE - amountRead;
-
-    headerFound:
-        while (true) {
-            int tokenCount = 6;
-
-            try {
-                int n = is.read(headerBuffer, amountRead, amountToRead);
-
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
-
-                if (n == 0) {
-                    continue;
-                }
-
-                amountRead += n;
-
-            } catch (java.net.SocketException e) {
-                if (running) {
-                    throw e;
-                }
-
-                // socket closed intentionally (session closing)
-                // so just return
-                return false;
-            }
-
-            while (headerLength < amountRead) {
-                if (headerBuffer[headerLength] == '\n') {
-                    if (headerLength == 0 ||
-                        headerBuffer[headerLength - 1] != '\r')
-                    {
-                        throw new BEEPException("Malformed BEEP header");
-                    }
-
-                    ++headerLength;
-                    break headerFound;
-                }
-
-                if (headerBuffer[headerLength] == ' ') {
-                    if (tokenCount > 1) { // This is for ANS frames
-                        --tokenCount;
-                    }
-                }
-
-                ++headerLength;
-            }
-
-            if (headerLength > Frame.MAX_HEADER_SIZE) {
-                throw new BEEPException("Malformed BEEP header, no CRLF");
-            }
-
-            /* 2 = 1 for the min token size and 1 is for the separator ' '
-             * or "\r\n"
-             * amountToRead = (tokenCount * 2) + Frame.TRAILER.length();
-             */
-            /* TLH: changed amountToRead for header to be 1 byte at a time
-             * Temporary fix. Found issues when using tokenCount * 2,
-             * where 1st byte of ANS was accidentally read from NUL header
-             * causing Malformed BEEP Header exception
-             */
-            amountToRead = 1;
-        }
-
-        if (log.isTraceEnabled()) {
-            log.trace(new String(headerBuffer, 0, headerLength));
+        synchronized (ioLock) {
+            running = false;
+            thread = null;
         }
 
-        Frame f = super.createFrame(headerBuffer,
-                                    headerLength - CRLF.length());
-        byte[] payload = new byte[f.getSize()];
-
-        int count = amountRead - headerLength;
-        if (count > payload.length) {
-            System.arraycopy(headerBuffer, headerLength, payload, 0,
-                             payload.length);
-            count -= payload.length;
-            
-            for (int i = 0; i < Frame.TRAILER.length(); ++i) {
-                int b;
-                if (count > 0) {
-                    b = headerBuffer[headerLength + payload.length + i];
-                    --count;
-                } else {
-                    b = is.read();
-
-                    if (b == -1) {
-                        throw new SessionAbortedException();
-                    }
-                }
-
-                if (((byte) b) != ((byte) Frame.TRAILER.charAt(i))) {
-                    throw new BEEPException("Malformed BEEP frame, "
-                                            + "invalid trailer");
-                }
-            }
-        } else {
-            System.arraycopy(headerBuffer, headerLength, payload, 0, count);
+        decoder.release();
+    }
 
-            while (count < payload.length) {
-                int n = is.read(payload, count, payload.length - count);
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
-                count += n;
-            }
+    /**
+     * Hands the decoded frames to the session.
+     */
+    private class DecoderListener implements FrameDecoder.Listener {
 
+        public Frame createFrame(HeaderParser header) throws BEEPException
+        {
             if (log.isTraceEnabled()) {
-                log.trace(new String(payload));
+                log.trace(header.toString());
             }
 
-            for (int i = 0; i < Frame.TRAILER.length(); ++i) {
-                int b = is.read();
-
-                if (b == -1) {
-                    throw new SessionAbortedException();
-                }
+            return TCPSession.super.createFrame(header);
+        }
 
-                if (((byte) b) != ((byte) Frame.TRAILER.charAt(i))) {
-                    throw new BEEPException("Malformed BEEP frame, "
-                                            + "invalid trailer");
-                }
-            }
+        public boolean receiveFrame(Frame f) throws BEEPException
+        {
+            return TCPSession.super.postFrame(f) && running;
         }
 
-        f.addPayload(new BufferSegment(payload));
+        public void receiveSEQ(int channelNum, long ackNum, int window)
+            throws BEEPException
+        {
+            log.debug("Read: SEQ " + channelNum + " " + ackNum + " " +
+                      window);
 
-        return super.postFrame(f);
+            // update the channel with the new receive window size
+            TCPSession.this.updatePeerReceiveBufferSize(channelNum, ackNum,
+                                                        window);
+        }
     }
 
-    private void processSEQFrame(byte[] headerBuffer, int amountRead,
-                                 InputStream is)
-        throws BEEPException, IOException, SessionAbortedException
-    {
-        int headerLength = 0;
-        int tokenCount = 4;
-
-    headerFound:
-        while (true) {
-
-            while (headerLength < amountRead) {
-                if (headerBuffer[headerLength] == '\n') {
-                    if (headerLength == 0 ||
-                        headerBuffer[headerLength - 1] != '\r')
-                    {
-                        throw new BEEPException("Malformed BEEP header");
-                    }
-
-                    ++headerLength;
-                    break headerFound;
-                }
-
-                if (headerBuffer[headerLength] == ' ') {
-                    if (tokenCount > 1) {
-                        --tokenCount;
-                    }
-                }
-
-                ++headerLength;
-            }
-
-            if (headerLength > Frame.MAX_HEADER_SIZE) {
-                throw new BEEPException("Malformed BEEP header, no CRLF");
-            }
-
-            int amountToRead = headerBuffer[headerLength - 1] == '\r' ? 1 :
-                tokenCount * 2;
-            try {
-                /* 2 = 1 for the min token size and 1 is for the separator ' '
-                 * or "\r\n"
-                 */
-                int n = is.read(headerBuffer, amountRead, amountToRead);
-
-                if (n == -1) {
-                    throw new SessionAbortedException();
-                }
-
-                if (n == 0) {
-                    continue;
-                }
-
-                amountRead += n;
-
-            } catch (java.net.SocketException e) {
-                if (running) {
-                    throw e;
-                }
+    private static class SessionAbortedException extends Exception {
+    }
 
-                // socket closed intentionally (session closing)
-                // so just return
-                return;
-            }
-        }
+    /**
+     * Reads directly from the channel. The socket's own input stream
+     * holds the channel's blocking lock while it waits for data, which
+     * would block the writes of a channel backed socket.
+     */
+    private static class SocketChannelInputStream extends InputStream {
+        private SocketChannel channel;
 
-        // Process the header
-        HeaderParser header = new HeaderParser(headerBuffer,
-                                               headerLength - CRLF.length());
-        
-        char[] type = header.parseType();
-        if (java.util.Arrays.equals(type, MESSAGE_TYPE_SEQ) == false) {
-            throw new BEEPException("Malformed BEEP header");
+        SocketChannelInputStream(SocketChannel channel)
+        {
+            this.channel = channel;
         }
 
-        int channelNum = header.parseInt();
-        long ackNum = header.parseUnsignedInt();
-        int window = header.parseInt();
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
 
-        if (header.hasMoreTokens()) {
-            throw new BEEPException("Malformed BEEP Header");
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
         }
-        log.debug("Read: SEQ " + channelNum + " " + ackNum + " " + window);
 
-        // update the channel with the new receive window size
-        this.updatePeerReceiveBufferSize(channelNum, ackNum, window);
-    }
-    
-    private static class SessionAbortedException extends Exception {
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
     }
 }
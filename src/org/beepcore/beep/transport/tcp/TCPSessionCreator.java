@@ -26,9 +26,11 @@ import java.net.ServerSocket;
 import java.net.UnknownHostException;
 
 import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
 
 import org.beepcore.beep.core.BEEPException;
 import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
 
 
 /**
@@ -174,6 +176,66 @@ public class TCPSessionCreator {
         }
     }
 
+    /**
+     * Connects to <code>host</code> and starts a session without waiting
+     * for the peer's greeting. Only the TCP connect is done on the
+     * calling thread.
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     *
+     * @return a future completed with the session once the peer's
+     * greeting has been received, or failed with a
+     * <code>BEEPException</code> if the connection or the greeting
+     * exchange failed. The session is terminated if the greeting has not
+     * arrived within the time <code>initiate</code> waits for it.
+     */
+    public static CompletableFuture<Session>
+        initiateAsync(InetAddress host, int port, ProfileRegistry registry,
+                      String servername)
+    {
+        try {
+            return TCPSession.createInitiatorAsync(new Socket(host, port),
+                                                   registry, servername,
+                                                   null);
+        } catch (IOException x) {
+            CompletableFuture<Session> failed =
+                new CompletableFuture<Session>();
+            failed.completeExceptionally(new BEEPException(x));
+            return failed;
+        }
+    }
+
+    /**
+     * Same as <code>initiateAsync(InetAddress, int, ProfileRegistry,
+     * String)</code> for a host name, which is resolved on the calling
+     * thread.
+     *
+     *
+     * @param host
+     * @param port
+     * @param registry
+     * @param servername
+     */
+    public static CompletableFuture<Session>
+        initiateAsync(String host, int port, ProfileRegistry registry,
+                      String servername)
+    {
+        try {
+            return initiateAsync(InetAddress.getByName(host), port, registry,
+                                 servername);
+        } catch (UnknownHostException x) {
+            CompletableFuture<Session> failed =
+                new CompletableFuture<Session>();
+            failed.completeExceptionally(
+                new BEEPException("Unable to connect, unkown host"));
+            return failed;
+        }
+    }
+
     /**
      * Method listen
      *
@@ -0,0 +1,268 @@
+/*
+ * BufferPool.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A pool of reference counted buffers for received data.
+ *
+ * Buffers are handed out in size classes, powers of two from
+ * <code>MIN_BUFFER_SIZE</code> to <code>MAX_BUFFER_SIZE</code>. Each size
+ * class keeps up to <code>maxPooledBytes</code> worth of released buffers
+ * for reuse, buffers released beyond that and buffers larger than
+ * <code>MAX_BUFFER_SIZE</code> are left to the garbage collector.
+ *
+ * If debug logging is enabled for this class when the pool is created,
+ * the pool remembers where each buffer in use was allocated and logs an
+ * error for buffers that are garbage collected without having been
+ * released.
+ *
+ * @see PooledBuffer
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 512;
+    public static final int MAX_BUFFER_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    private static final int MIN_SHIFT = 9;
+    private static final int SIZE_CLASSES = 9;
+
+    private static Log log = LogFactory.getLog(BufferPool.class);
+
+    private static BufferPool defaultPool = null;
+
+    private final SizeClass[] classes = new SizeClass[SIZE_CLASSES];
+
+    private final boolean leakDetection;
+    private final ReferenceQueue<PooledBuffer> leakQueue;
+    private final Set<LeakReference> leaks;
+
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    public BufferPool()
+    {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param maxPooledBytes the number of bytes of released buffers each
+     * size class keeps for reuse.
+     */
+    public BufferPool(int maxPooledBytes)
+    {
+        for (int i = 0; i < SIZE_CLASSES; ++i) {
+            int size = MIN_BUFFER_SIZE << i;
+
+            classes[i] = new SizeClass(size, Math.max(1, maxPooledBytes / size));
+        }
+
+        leakDetection = log.isDebugEnabled();
+        if (leakDetection) {
+            leakQueue = new ReferenceQueue<PooledBuffer>();
+            leaks = new HashSet<LeakReference>();
+        } else {
+            leakQueue = null;
+            leaks = null;
+        }
+    }
+
+    /**
+     * Returns the pool shared by sessions that enable buffer pooling.
+     */
+    public static synchronized BufferPool getDefault()
+    {
+        if (defaultPool == null) {
+            defaultPool = new BufferPool();
+        }
+
+        return defaultPool;
+    }
+
+    /**
+     * Allocates a buffer of at least <code>size</code> bytes. The caller
+     * holds the buffer's first reference and must release it.
+     */
+    public PooledBuffer allocate(int size)
+    {
+        int c = sizeClass(size);
+        PooledBuffer b = null;
+
+        if (c != -1) {
+            b = classes[c].take();
+        }
+
+        if (b == null) {
+            int capacity = c == -1 ? size : classes[c].size;
+
+            b = new PooledBuffer(new byte[capacity], this, c);
+            allocated.incrementAndGet();
+        } else {
+            reused.incrementAndGet();
+        }
+
+        b.allocated();
+
+        if (leakDetection) {
+            track(b);
+        }
+
+        return b;
+    }
+
+    /**
+     * Returns the number of buffers that had to be created.
+     */
+    public long getAllocatedCount()
+    {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of allocations served with a released buffer.
+     */
+    public long getReusedCount()
+    {
+        return reused.get();
+    }
+
+    void recycle(PooledBuffer b)
+    {
+        if (leakDetection) {
+            untrack(b);
+        }
+
+        if (b.getSizeClass() != -1) {
+            classes[b.getSizeClass()].put(b);
+        }
+    }
+
+    private static int sizeClass(int size)
+    {
+        if (size > MAX_BUFFER_SIZE) {
+            return -1;
+        }
+
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+
+        // index of the smallest power of two holding size
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private void track(PooledBuffer b)
+    {
+        LeakReference ref;
+
+        while ((ref = (LeakReference) leakQueue.poll()) != null) {
+            boolean leaked;
+
+            synchronized (leaks) {
+                leaked = leaks.remove(ref);
+            }
+
+            if (leaked) {
+                log.error("Pooled buffer was not released before it was "
+                          + "garbage collected", ref.allocatedAt);
+            }
+        }
+
+        ref = new LeakReference(b, leakQueue,
+                                new Throwable("Buffer allocated here"));
+        synchronized (leaks) {
+            leaks.add(ref);
+        }
+        b.leak = ref;
+    }
+
+    private void untrack(PooledBuffer b)
+    {
+        LeakReference ref = b.leak;
+
+        if (ref == null) {
+            return;
+        }
+
+        b.leak = null;
+        ref.clear();
+        synchronized (leaks) {
+            leaks.remove(ref);
+        }
+    }
+
+    static class LeakReference extends WeakReference<PooledBuffer> {
+        final Throwable allocatedAt;
+
+        LeakReference(PooledBuffer b, ReferenceQueue<PooledBuffer> q,
+                      Throwable allocatedAt)
+        {
+            super(b, q);
+            this.allocatedAt = allocatedAt;
+        }
+    }
+
+    /**
+     * The released buffers of one size, kept in a stack so taking and
+     * putting back a buffer allocates nothing.
+     */
+    private static class SizeClass {
+        final int size;
+        private final PooledBuffer[] free;
+        private int count = 0;
+
+        SizeClass(int size, int max)
+        {
+            this.size = size;
+            this.free = new PooledBuffer[max];
+        }
+
+        synchronized PooledBuffer take()
+        {
+            if (count == 0) {
+                return null;
+            }
+
+            PooledBuffer b = free[--count];
+            free[count] = null;
+            return b;
+        }
+
+        synchronized void put(PooledBuffer b)
+        {
+            if (count < free.length) {
+                free[count++] = b;
+            }
+        }
+    }
+}
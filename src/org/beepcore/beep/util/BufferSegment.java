@@ -16,12 +16,38 @@
  */
 package org.beepcore.beep.util;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * A <code>BufferSegment</code> represents a BEEP Frame payload and holds
  * the BEEP Frames's Header, Trailer and the message payload.
  *
  * It contains a byte array an offset into the array and the
- * length from the offset.
+ * length from the offset, or a <code>ByteBuffer</code> for data that is
+ * not on the heap, such as a direct or memory-mapped buffer. The
+ * transports write a <code>ByteBuffer</code> backed segment without
+ * copying it onto the heap, use <code>asByteBuffer</code> rather than
+ * <code>getData</code> to read such a segment.
+ *
+ * A segment may also be a region of a file, which is only read when the
+ * segment is written. Transports that write to a
+ * <code>SocketChannel</code> send it with <code>transferTo</code>, so the
+ * data need not pass through the JVM at all.
+ *
+ * A segment of received data may share a <code>PooledBuffer</code> with
+ * other segments, in which case it holds a reference to the buffer until
+ * it is released. The <code>InputDataStream</code> releases the segments
+ * it consumes itself; segments taken from it with
+ * <code>getNextSegment</code> belong to the caller, who should release
+ * them once done with the data so the buffer can be reused. Segments that
+ * are never released are simply garbage collected.
  *
  * @author Huston Franklin
  * @version $Revision: 1.3 $, $Date: 2001/11/23 15:10:56 $
@@ -55,8 +81,93 @@ public class BufferSegment {
         this.length = length;
     }
 
+    /**
+     * Constructor BufferSegment
+     *
+     * @param buffer The pooled buffer containing the BEEP Frame payload,
+     * the segment holds a reference to it until it is released.
+     * @param offset Indicates the begining position of the BEEP Frame
+     * payload in the buffer.
+     * @param length Number of valid bytes in the buffer starting from
+     * <code>offset</code>.
+     */
+    public BufferSegment(PooledBuffer buffer, int offset, int length)
+    {
+        this(buffer.getData(), offset, length);
+        buffer.retain();
+        this.pooled = buffer;
+    }
+
+    /**
+     * Constructor BufferSegment
+     *
+     * @param buffer A buffer containing a BEEP Frame payload between its
+     * position and its limit. The segment shares the buffer's content,
+     * later changes to the buffer's position or limit do not affect it.
+     */
+    public BufferSegment(ByteBuffer buffer)
+    {
+        this.length = buffer.remaining();
+
+        if (buffer.hasArray()) {
+            this.data = buffer.array();
+            this.offset = buffer.arrayOffset() + buffer.position();
+        } else {
+            this.byteBuffer = buffer.slice();
+            this.offset = 0;
+        }
+    }
+
+    /**
+     * Constructor BufferSegment
+     *
+     * @param file The file containing the BEEP Frame payload. The file
+     * must stay open until the segment has been written.
+     * @param position The position of the payload in the file.
+     * @param length Number of bytes of the file starting from
+     * <code>position</code>.
+     */
+    public BufferSegment(FileChannel file, long position, int length)
+    {
+        this.file = file;
+        this.filePosition = position;
+        this.offset = 0;
+        this.length = length;
+    }
+
+    /**
+     * Returns <code>true</code> if the segment is backed by a byte array,
+     * which <code>getData</code> returns without copying.
+     */
+    public boolean hasArray()
+    {
+        return this.byteBuffer == null && this.file == null;
+    }
+
+    /**
+     * Returns <code>true</code> if the segment is a region of a file.
+     */
+    public boolean isFileRegion()
+    {
+        return this.file != null;
+    }
+
+    /**
+     * Returns the byte array holding the segment. For a segment backed by
+     * a <code>ByteBuffer</code> without an array or by a file the data is
+     * copied into a new array, at offset 0.
+     *
+     * @throws UncheckedIOException if the file can not be read.
+     */
     public byte[] getData()
     {
+        if (this.hasArray() == false) {
+            byte[] b = new byte[this.length];
+
+            copyToUnchecked(ByteBuffer.wrap(b));
+            return b;
+        }
+
         return this.data;
     }
 
@@ -65,13 +176,165 @@ public class BufferSegment {
         return this.offset;
     }
 
+    /**
+     * Returns a new <code>ByteBuffer</code> whose position and limit
+     * enclose the segment. The content is shared, not copied, except for
+     * a file region which is read into a new buffer.
+     *
+     * @throws UncheckedIOException if the file can not be read.
+     */
+    public ByteBuffer asByteBuffer()
+    {
+        if (this.file != null) {
+            ByteBuffer b = ByteBuffer.allocate(this.length);
+
+            copyToUnchecked(b);
+            b.flip();
+            return b;
+        }
+
+        if (this.byteBuffer != null) {
+            return this.byteBuffer.duplicate();
+        }
+
+        return ByteBuffer.wrap(this.data, this.offset, this.length);
+    }
+
+    /**
+     * Copies the segment into <code>dst</code> at its position and
+     * advances the position.
+     *
+     * @throws BufferOverflowException if <code>dst</code> has less room
+     * than the length of the segment.
+     * @throws IOException if the segment is a file region and the file
+     * can not be read.
+     */
+    public void copyTo(ByteBuffer dst) throws IOException
+    {
+        if (this.byteBuffer != null) {
+            dst.put(this.byteBuffer.duplicate());
+            return;
+        }
+
+        if (this.file == null) {
+            dst.put(this.data, this.offset, this.length);
+            return;
+        }
+
+        if (dst.remaining() < this.length) {
+            throw new BufferOverflowException();
+        }
+
+        // read into dst itself with its limit moved, not into a duplicate
+        int limit = dst.limit();
+        dst.limit(dst.position() + this.length);
+
+        try {
+            long pos = this.filePosition;
+            while (dst.hasRemaining()) {
+                int n = this.file.read(dst, pos);
+                if (n == -1) {
+                    throw new EOFException("File ended before the segment");
+                }
+                pos += n;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    /**
+     * Writes the whole segment to <code>target</code>, a file region
+     * with <code>FileChannel.transferTo</code>.
+     *
+     * @throws IOException
+     */
+    public void transferTo(WritableByteChannel target) throws IOException
+    {
+        if (this.file == null) {
+            ByteBuffer b = asByteBuffer();
+
+            while (b.hasRemaining()) {
+                target.write(b);
+            }
+            return;
+        }
+
+        long pos = this.filePosition;
+        long end = pos + this.length;
+
+        while (pos < end) {
+            long n = this.file.transferTo(pos, end - pos, target);
+            if (n == 0 && pos >= this.file.size()) {
+                throw new EOFException("File ended before the segment");
+            }
+            pos += n;
+        }
+    }
+
+    /**
+     * Returns a segment for <code>length</code> bytes of this segment
+     * starting at <code>offset</code>, relative to the start of this
+     * segment. The content is shared, not copied. The new segment does
+     * not hold a reference to a pooled buffer.
+     */
+    public BufferSegment slice(int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (this.file != null) {
+            return new BufferSegment(this.file, this.filePosition + offset,
+                                     length);
+        }
+
+        if (this.byteBuffer != null) {
+            ByteBuffer b = this.byteBuffer.duplicate();
+
+            b.position(offset);
+            b.limit(offset + length);
+            return new BufferSegment(b);
+        }
+
+        return new BufferSegment(this.data, this.offset + offset, length);
+    }
+
     public int getLength()
     {
         return this.length;
     }
 
+    /**
+     * Releases the segment's reference to its pooled buffer, if it has
+     * one. The data must not be used after the segment is released.
+     * Releasing a segment more than once has no further effect.
+     */
+    public void release()
+    {
+        PooledBuffer b = this.pooled;
+
+        if (b != null) {
+            this.pooled = null;
+            b.release();
+        }
+    }
+
+    private void copyToUnchecked(ByteBuffer dst)
+    {
+        try {
+            copyTo(dst);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private byte[] data;
     private int offset;
     private int length;
+    private ByteBuffer byteBuffer = null;
+    private FileChannel file = null;
+    private long filePosition;
+    private PooledBuffer pooled = null;
 }
 
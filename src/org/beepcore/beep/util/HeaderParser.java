@@ -37,6 +37,27 @@ public class HeaderParser {
         this.len = len;
     }
 
+    public HeaderParser(byte[] buf, int off, int len) {
+        reset(buf, off, len);
+    }
+
+    /**
+     * Creates a parser without a header, <code>reset</code> sets one.
+     */
+    public HeaderParser() {
+        this.len = 0;
+    }
+
+    /**
+     * Starts parsing the <code>len</code> bytes of <code>buf</code> at
+     * <code>off</code>, so one parser can parse many headers.
+     */
+    public void reset(byte[] buf, int off, int len) {
+        this.buf = buf;
+        this.off = off;
+        this.len = off + len;
+    }
+
     public boolean hasMoreTokens() {
         return off < len;
     }
@@ -111,6 +132,56 @@ public class HeaderParser {
         return c;
     }
 
+    /**
+     * Parses the three character type and returns its index in
+     * <code>types</code>, comparing bytes rather than creating a
+     * <code>String</code>.
+     *
+     * @param types three byte ASCII types, entries may be
+     *              <code>null</code>.
+     *
+     * @return the index of the type or -1 if it is not in
+     *         <code>types</code>.
+     */
+    public int parseType(byte[][] types) throws BEEPException {
+        if (hasMoreTokens() == false) {
+            throw new BEEPException("Malformed BEEP Header");
+        }
+
+        int tl = tokenLength();
+        if (tl != 3) {
+            throw new BEEPException("Malformed BEEP Header");
+        }
+
+        int type = -1;
+
+        for (int i=0; i<types.length; ++i) {
+            byte[] t = types[i];
+
+            if (t != null && t[0] == buf[off] && t[1] == buf[off+1] &&
+                t[2] == buf[off+2])
+            {
+                type = i;
+                break;
+            }
+        }
+
+        findNextToken(tl);
+
+        return type;
+    }
+
+    /**
+     * Returns the part of the header that has not been parsed yet.
+     */
+    public String toString() {
+        if (hasMoreTokens() == false) {
+            return "";
+        }
+
+        return new String(buf, off, len - off);
+    }
+
     private void findNextToken(int previousLength) throws BEEPException {
             
         off += previousLength + 1;
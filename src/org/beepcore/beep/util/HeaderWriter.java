@@ -0,0 +1,233 @@
+/*
+ * HeaderWriter.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Formats BEEP frame headers and SEQ headers (RFC 3080, RFC 3081) as
+ * ASCII directly into a caller supplied buffer, the counterpart of
+ * <code>HeaderParser</code>. Nothing is allocated, so the buffer can be
+ * reused for every frame.
+ *
+ * The buffer must have room for the header, which is at most
+ * <code>Frame.MAX_HEADER_SIZE</code> bytes for a frame header and
+ * <code>MAX_SEQ_HEADER_SIZE</code> bytes for a SEQ header, including the
+ * CRLF.
+ *
+ * @see HeaderParser
+ */
+public class HeaderWriter {
+
+    /** Passed as <code>ansno</code> for frames that are not ANS frames. */
+    public static final int NO_ANSNO = -1;
+
+    public static final int MAX_SEQ_HEADER_SIZE = (3        // SEQ
+                                                   + 1      // space
+                                                   + 10     // channel
+                                                   + 1      // space
+                                                   + 10     // ackno
+                                                   + 1      // space
+                                                   + 10     // window
+                                                   + 2);    // CRLF
+
+    private static final byte[] SEQ = new byte[] {'S', 'E', 'Q'};
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+        100000000L, 1000000000L, 10000000000L
+    };
+
+    private HeaderWriter() {}
+
+    /**
+     * Writes a frame header followed by CRLF.
+     *
+     * @param type the ASCII message type, e.g. <code>MSG</code>.
+     * @param ansno the answer number or <code>NO_ANSNO</code>.
+     *
+     * @return the offset following the header.
+     */
+    public static int writeHeader(byte[] buf, int off, byte[] type,
+                                  int channel, int msgno, boolean last,
+                                  long seqno, int size, int ansno)
+    {
+        for (int i = 0; i < type.length; ++i) {
+            buf[off++] = type[i];
+        }
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, channel);
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, msgno);
+        buf[off++] = ' ';
+        buf[off++] = (byte) (last ? '.' : '*');
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, seqno);
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, size);
+
+        if (ansno != NO_ANSNO) {
+            buf[off++] = ' ';
+            off = writeNumber(buf, off, ansno);
+        }
+
+        buf[off++] = '\r';
+        buf[off++] = '\n';
+
+        return off;
+    }
+
+    /**
+     * Writes a frame header followed by CRLF at the position of
+     * <code>buf</code> and advances the position.
+     *
+     * @see #writeHeader(byte[], int, byte[], int, int, boolean, long, int, int)
+     */
+    public static void writeHeader(ByteBuffer buf, byte[] type, int channel,
+                                   int msgno, boolean last, long seqno,
+                                   int size, int ansno)
+    {
+        if (buf.hasArray()) {
+            int start = buf.arrayOffset() + buf.position();
+            int end = writeHeader(buf.array(), start, type, channel, msgno,
+                                  last, seqno, size, ansno);
+
+            buf.position(buf.position() + (end - start));
+            return;
+        }
+
+        buf.put(type);
+        buf.put((byte) ' ');
+        putNumber(buf, channel);
+        buf.put((byte) ' ');
+        putNumber(buf, msgno);
+        buf.put((byte) ' ');
+        buf.put((byte) (last ? '.' : '*'));
+        buf.put((byte) ' ');
+        putNumber(buf, seqno);
+        buf.put((byte) ' ');
+        putNumber(buf, size);
+
+        if (ansno != NO_ANSNO) {
+            buf.put((byte) ' ');
+            putNumber(buf, ansno);
+        }
+
+        buf.put((byte) '\r');
+        buf.put((byte) '\n');
+    }
+
+    /**
+     * Writes a SEQ header followed by CRLF.
+     *
+     * @return the offset following the header.
+     */
+    public static int writeSEQ(byte[] buf, int off, int channel, long ackno,
+                               int window)
+    {
+        for (int i = 0; i < SEQ.length; ++i) {
+            buf[off++] = SEQ[i];
+        }
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, channel);
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, ackno);
+        buf[off++] = ' ';
+        off = writeNumber(buf, off, window);
+        buf[off++] = '\r';
+        buf[off++] = '\n';
+
+        return off;
+    }
+
+    /**
+     * Writes a SEQ header followed by CRLF at the position of
+     * <code>buf</code> and advances the position.
+     *
+     * @see #writeSEQ(byte[], int, int, long, int)
+     */
+    public static void writeSEQ(ByteBuffer buf, int channel, long ackno,
+                                int window)
+    {
+        if (buf.hasArray()) {
+            int start = buf.arrayOffset() + buf.position();
+            int end = writeSEQ(buf.array(), start, channel, ackno, window);
+
+            buf.position(buf.position() + (end - start));
+            return;
+        }
+
+        buf.put(SEQ);
+        buf.put((byte) ' ');
+        putNumber(buf, channel);
+        buf.put((byte) ' ');
+        putNumber(buf, ackno);
+        buf.put((byte) ' ');
+        putNumber(buf, window);
+        buf.put((byte) '\r');
+        buf.put((byte) '\n');
+    }
+
+    /**
+     * Writes the decimal digits of the non-negative <code>value</code>.
+     *
+     * @return the offset following the digits.
+     */
+    public static int writeNumber(byte[] buf, int off, long value)
+    {
+        int end = off + digits(value);
+
+        int i = end;
+        while (value > Integer.MAX_VALUE) {
+            buf[--i] = (byte) ('0' + (int) (value % 10));
+            value /= 10;
+        }
+
+        // the remaining digits fit in an int, which divides faster
+        int v = (int) value;
+        do {
+            buf[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+
+        return end;
+    }
+
+    private static void putNumber(ByteBuffer buf, long value)
+    {
+        for (int n = digits(value) - 1; n >= 0; --n) {
+            buf.put((byte) ('0' + (int) ((value / POWERS_OF_TEN[n]) % 10)));
+        }
+    }
+
+    private static int digits(long value)
+    {
+        int n = 1;
+
+        while (n < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[n]) {
+            ++n;
+        }
+
+        return n;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * PooledBuffer.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A reference counted buffer allocated from a <code>BufferPool</code>.
+ *
+ * The buffer is returned to its pool when the last reference is
+ * released. Whoever allocates the buffer holds the first reference, each
+ * <code>BufferSegment</code> created on the buffer holds another one
+ * until the segment is released. The data must not be used after the
+ * reference it was reached through has been released, since by then the
+ * buffer may have been handed out again.
+ *
+ * @see BufferPool
+ * @see BufferSegment#release()
+ */
+public class PooledBuffer {
+
+    private final byte[] data;
+    private final BufferPool pool;
+    private final int sizeClass;
+    private final AtomicInteger references = new AtomicInteger();
+
+    /** tracks the buffer while it is in use if leak detection is on */
+    BufferPool.LeakReference leak;
+
+    PooledBuffer(byte[] data, BufferPool pool, int sizeClass)
+    {
+        this.data = data;
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+    }
+
+    public byte[] getData()
+    {
+        return this.data;
+    }
+
+    /**
+     * Returns the number of bytes in the buffer, which may be more than
+     * were asked for.
+     */
+    public int getCapacity()
+    {
+        return this.data.length;
+    }
+
+    /**
+     * Adds a reference to the buffer.
+     */
+    public void retain()
+    {
+        if (references.getAndIncrement() <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("Buffer already released");
+        }
+    }
+
+    /**
+     * Releases a reference to the buffer, the buffer goes back to its
+     * pool once no references are left.
+     */
+    public void release()
+    {
+        int n = references.decrementAndGet();
+
+        if (n == 0) {
+            pool.recycle(this);
+        } else if (n < 0) {
+            references.getAndIncrement();
+            throw new IllegalStateException("Buffer released too often");
+        }
+    }
+
+    int getReferenceCount()
+    {
+        return references.get();
+    }
+
+    int getSizeClass()
+    {
+        return this.sizeClass;
+    }
+
+    /**
+     * Called by the pool when the buffer is handed out.
+     */
+    void allocated()
+    {
+        references.set(1);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * TestChannelTable.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import junit.framework.*;
+
+public class TestChannelTable extends TestCase {
+
+    public TestChannelTable(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testPutGetRemove() {
+        ChannelTable t = new ChannelTable();
+        ChannelImpl zero = new ChannelImpl(null, 0, null);
+        ChannelImpl one = new ChannelImpl(null, 1, null);
+
+        t.put(zero);
+        t.put(one);
+        assertEquals(2, t.size());
+        assertSame(zero, t.get(0));
+        assertSame(one, t.get(1));
+        assertNull(t.get(3));
+        assertNull(t.get(-1));
+
+        assertSame(one, t.remove(1));
+        assertNull(t.remove(1));
+        assertNull(t.get(1));
+        assertSame(zero, t.get(0));
+        assertEquals(1, t.size());
+
+        ChannelImpl other = new ChannelImpl(null, 0, null);
+        t.put(other);
+        assertSame(other, t.get(0));
+        assertEquals(1, t.size());
+
+        t.clear();
+        assertEquals(0, t.size());
+        assertNull(t.get(0));
+    }
+
+    public void testManyChannels() {
+        ChannelTable t = new ChannelTable();
+
+        // odd numbers as an initiator would use them, plus some large ones
+        for (int i = 1; i < 20000; i += 2) {
+            t.put(new ChannelImpl(null, i, null));
+        }
+        t.put(new ChannelImpl(null, Frame.MAX_CHANNEL_NUMBER, null));
+        assertEquals(10001, t.size());
+
+        for (int i = 0; i < 20000; ++i) {
+            ChannelImpl ch = t.get(i);
+            if (i % 2 == 1) {
+                assertEquals(i, ch.getNumber());
+            } else {
+                assertNull(ch);
+            }
+        }
+        assertEquals(Frame.MAX_CHANNEL_NUMBER,
+                     t.get(Frame.MAX_CHANNEL_NUMBER).getNumber());
+
+        // churn so the table is rebuilt with tombstones in it
+        for (int round = 0; round < 5; ++round) {
+            for (int i = 1; i < 20000; i += 4) {
+                assertNotNull(t.remove(i));
+            }
+            for (int i = 1; i < 20000; i += 4) {
+                t.put(new ChannelImpl(null, i, null));
+            }
+        }
+        assertEquals(10001, t.size());
+
+        Set<Integer> numbers = new HashSet<Integer>();
+        Iterator<ChannelImpl> i = t.values().iterator();
+        while (i.hasNext()) {
+            numbers.add(Integer.valueOf(i.next().getNumber()));
+        }
+        assertEquals(10001, numbers.size());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestChannelTable.class);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * TestChannelZeroParser.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.LinkedList;
+
+import org.beepcore.beep.core.serialize.ChannelIndication;
+import org.beepcore.beep.core.serialize.ChannelZeroParser;
+import org.beepcore.beep.core.serialize.CloseElement;
+import org.beepcore.beep.core.serialize.ErrorElement;
+import org.beepcore.beep.core.serialize.GreetingElement;
+import org.beepcore.beep.core.serialize.ProfileElement;
+import org.beepcore.beep.core.serialize.StartElement;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.StringUtil;
+
+import junit.framework.*;
+
+public class TestChannelZeroParser extends TestCase {
+
+    private ChannelZeroParser parser;
+
+    public TestChannelZeroParser(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void setUp() throws BEEPException {
+        parser = new ChannelZeroParser();
+    }
+
+    public void testStart() throws BEEPError {
+        StartElement start = (StartElement) parser.parseIndication(
+            message("<start number='3' serverName='beep.example.com'>" +
+                    "<profile uri='http://a' encoding='base64'>" +
+                    "<![CDATA[ZGF0YQ==]]></profile>" +
+                    "<profile uri='http://b' /></start>"));
+
+        assertEquals(ChannelIndication.START, start.getType());
+        assertEquals(3, start.getChannelNumber());
+        assertEquals("beep.example.com", start.getServerName());
+        assertEquals(2, start.getProfiles().size());
+
+        Object[] profiles = start.getProfiles().toArray();
+
+        ProfileElement a = (ProfileElement) profiles[0];
+        assertEquals("http://a", a.getUri());
+        assertTrue(a.getBase64Encoding());
+        assertEquals("ZGF0YQ==", a.getData());
+
+        ProfileElement b = (ProfileElement) profiles[1];
+        assertEquals("http://b", b.getUri());
+        assertNull(b.getData());
+    }
+
+    public void testSerializedStart() throws BEEPError {
+        LinkedList<ProfileElement> profiles = new LinkedList<ProfileElement>();
+        profiles.add(new ProfileElement("http://a", false, "<x a='1'/>"));
+
+        byte[] b = parser.serializeStart(new StartElement(5, profiles));
+        StartElement start = (StartElement) parser.parseIndication(
+            message(StringUtil.asciiToString(b, 0, b.length)));
+
+        assertEquals(5, start.getChannelNumber());
+        ProfileElement profile =
+            (ProfileElement) start.getProfiles().iterator().next();
+        assertEquals("<x a='1'/>", profile.getData());
+    }
+
+    public void testClose() throws BEEPError {
+        CloseElement close = (CloseElement) parser.parseIndication(
+            message("<close number='7' code='200' xml:lang='en'>" +
+                    "bye &amp; thanks</close>"));
+
+        assertEquals(ChannelIndication.CLOSE, close.getType());
+        assertEquals(7, close.getChannelNumber());
+        assertEquals(200, close.getCode());
+        assertEquals("en", close.getXmlLang());
+        assertEquals("bye & thanks", close.getDiagnostic());
+    }
+
+    public void testBadChannelNumber() {
+        try {
+            parser.parseIndication(message("<close code='200' />"));
+            fail("parsed a close without a number");
+        } catch (BEEPError e) {
+            assertEquals(BEEPError.CODE_PARAMETER_ERROR, e.getCode());
+        }
+    }
+
+    public void testGreeting() throws BEEPException {
+        GreetingElement greeting = parser.parseGreetingConfirmation(
+            message("<greeting features='f'>" +
+                    "<profile uri='http://a' /><profile uri='http://b' />" +
+                    "</greeting>"));
+
+        assertEquals("f", greeting.getFeatures());
+        assertEquals(2, greeting.getProfiles().size());
+        assertEquals("http://b", greeting.getProfiles().toArray()[1]);
+    }
+
+    public void testReplies() throws BEEPException {
+        ProfileElement profile = parser.parseStartConfirmation(
+            message("<profile uri='http://a'>data</profile>"));
+        assertEquals("http://a", profile.getUri());
+        assertEquals("data", profile.getData());
+
+        parser.parseCloseConfirmation(message("<ok />"));
+
+        ErrorElement error = parser.parseError(
+            message("<error code='550'>no</error>"));
+        assertEquals(550, error.getCode());
+        assertEquals("no", error.getDiagnostic());
+    }
+
+    public void testMalformed() {
+        try {
+            parser.parseIndication(message("<start number='1'><profile"));
+            fail("parsed malformed XML");
+        } catch (BEEPError e) {
+            assertEquals(BEEPError.CODE_GENERAL_SYNTAX_ERROR, e.getCode());
+        }
+    }
+
+    public void testExternalEntity() {
+        try {
+            StartElement start = (StartElement) parser.parseIndication(
+                message("<!DOCTYPE start [<!ENTITY x SYSTEM " +
+                        "'file:///etc/passwd'>]>" +
+                        "<start number='1'><profile uri='http://a'>&x;" +
+                        "</profile></start>"));
+            ProfileElement profile =
+                (ProfileElement) start.getProfiles().iterator().next();
+            assertNull(profile.getData());
+        } catch (BEEPError e) {
+            assertEquals(BEEPError.CODE_GENERAL_SYNTAX_ERROR, e.getCode());
+        }
+    }
+
+    private static InputDataStream message(String xml) {
+        String s = MimeHeaders.CONTENT_TYPE + ": " +
+            MimeHeaders.BEEP_XML_CONTENT_TYPE + "\r\n\r\n" + xml;
+
+        return new InputDataStream(
+            new BufferSegment(StringUtil.stringToAscii(s)), true);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestChannelZeroParser.class);
+    }
+}
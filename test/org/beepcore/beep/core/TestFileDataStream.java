@@ -16,77 +16,160 @@
  */
 package org.beepcore.beep.core;
 
-/*
 import java.io.File;
-import java.io.FileReader;
-import java.io.InputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.Enumeration;
+import java.io.RandomAccessFile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import java.nio.channels.FileChannel;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import org.beepcore.beep.util.BufferSegment;
 
 import junit.framework.*;
-*/
 
-public class TestFileDataStream /*extends TestDataStream*/ {
-/*
-    static public String filename;
+public class TestFileDataStream extends TestCase {
+    protected static final String CONTENT =
+        "12345678901234567890x2345678901234567890";
+
+    protected File file;
+    protected FileOutputDataStream data;
+    protected byte[] message;
 
     public TestFileDataStream(String name) {
         super(name);
     }
 
     public static void main (String[] args) {
-        if( args.length == 0 )
-        {
-          System.out.println("Missing command line parameter: <filename>");
-          return;
-        }
-        filename = args[0];
         junit.textui.TestRunner.run (suite());
     }
 
-    protected void setUp()
-        throws UnsupportedEncodingException, BEEPException, IOException {
+    public void testGetNextSegment() throws IOException {
+        assertEquals(new String(message), read(data, message.length));
+    }
+
+    public void testGetNextSegmentFragments() throws IOException {
+        assertEquals(new String(message), read(data, 7));
+    }
+
+    public void testFileRegions() throws IOException {
+        // the first segment holds only the headers
+        BufferSegment b = data.getNextSegment(message.length);
+        assertFalse(b.isFileRegion());
 
-        Channel channel = new Channel("0", "0", null, null);
+        b = data.getNextSegment(10);
+        assertTrue(b.isFileRegion());
+        assertEquals("1234567890", new String(b.getData(), b.getOffset(),
+                                              b.getLength()));
+    }
 
-        File f = new File( filename );
-        int size = (int)f.length();
-        char[] chars = new char[size];
-        FileReader fr = new FileReader(f);
-        fr.read( chars );
-        String s = new String( chars );
-        data = new FileDataStream(f);
+    public void testRegion() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            OutputDataStream ds =
+                new FileOutputDataStream(null, fc, 20, 5);
 
-        String EH1 = "EntityHeader1";
-        String h1 = "header1";
-        String EH2 = "EntityHeader2";
-        String h2 = "header2";
-        String ct = "ContentType1";
-        String te = "TransferEncoding1";
+            assertEquals("x2345", read(ds, 2));
+            assertEquals(0, fc.position());
+
+            // the caller's channel is left open
+            assertTrue(fc.isOpen());
+        } finally {
+            raf.close();
+        }
+    }
 
-        data.setHeader( EH1, h1 );
-        data.setHeader( EH2, h2 );
-        data.setContentType( ct );
-        data.setTransferEncoding( te );
+    public void testEmptyFile() throws IOException {
+        File empty = File.createTempFile("beep", ".dat");
+        try {
+            OutputDataStream ds = new FileOutputDataStream(empty);
 
-        headers.put( EH1, h1 );
-        headers.put( EH2, h2 );
-        headers.put( DataStream.CONTENT_TYPE, ct );
-        headers.put( DataStream.CONTENT_TRANSFER_ENCODING, te );
+            assertTrue(ds.availableSegment());
+            assertEquals("\r\n", read(ds, 100));
+            assertFalse(ds.availableSegment());
+        } finally {
+            empty.delete();
+        }
+    }
 
-        StringBuffer messageBuffer = new StringBuffer();
+    public void testFileClosedWhenSent() throws IOException {
+        long open = openFiles();
 
-        messageBuffer.append(serializeHeaders());
+        for (int i = 0; i < 20; ++i) {
+            read(new FileOutputDataStream(file), 7);
+        }
 
-        dataOffset = messageBuffer.length();
+        assertEquals(open, openFiles());
+    }
+
+    public void testFileClosedWhenDiscarded() throws IOException {
+        long open = openFiles();
+
+        FileOutputDataStream ds = new FileOutputDataStream(file);
+        ds.getNextSegment(100);
+        BufferSegment region = ds.getNextSegment(10);
+        assertEquals(open + 1, openFiles());
+
+        ds.discard();
+        assertEquals(open + 1, openFiles());
+
+        // the region handed out still needs the file until it is written
+        region.release();
+        assertEquals(open, openFiles());
+    }
+
+    /**
+     * Reads the stream like a transport, releasing each segment once it
+     * is written.
+     */
+    protected String read(OutputDataStream ds, int maxLength) {
+        StringBuffer sb = new StringBuffer();
+
+        while (ds.isComplete() == false || ds.availableSegment()) {
+            BufferSegment b = ds.getNextSegment(maxLength);
+            assertTrue(b.getLength() <= maxLength);
+            sb.append(new String(b.getData(), b.getOffset(), b.getLength()));
+            b.release();
+        }
+
+        return sb.toString();
+    }
+
+    private static long openFiles() {
+        OperatingSystemMXBean os =
+            ManagementFactory.getOperatingSystemMXBean();
+
+        if (os instanceof UnixOperatingSystemMXBean == false) {
+            return 0;
+        }
+
+        return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+    }
+
+    protected void setUp() throws IOException, BEEPException {
+        file = File.createTempFile("beep", ".dat");
+
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(CONTENT.getBytes("UTF-8"));
+        fos.close();
+
+        data = new FileOutputDataStream(file);
+        data.setHeaderValue("EntityHeader1", "header1");
+
+        message = ("EntityHeader1: header1\r\n\r\n" + CONTENT)
+            .getBytes("UTF-8");
+    }
 
-        messageBuffer.append(s);
-        message = messageBuffer.toString().getBytes("UTF8");
+    protected void tearDown() {
+        file.delete();
     }
 
     public static Test suite() {
         return new TestSuite(TestFileDataStream.class);
     }
-*/
 }
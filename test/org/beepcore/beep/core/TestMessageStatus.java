@@ -0,0 +1,91 @@
+/*
+ * TestMessageStatus.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.*;
+
+public class TestMessageStatus extends TestCase {
+
+    public TestMessageStatus(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testReply() throws Exception {
+        MessageStatus status =
+            new MessageStatus(null, Message.MESSAGE_TYPE_MSG, 1,
+                              new OutputDataStream(), null);
+        CompletableFuture<MessageStatus> sent =
+            status.getSent().toCompletableFuture();
+
+        status.setMessageStatus(MessageStatus.MESSAGE_STATUS_SENT);
+        assertFalse(sent.isDone());
+        status.completeSent();
+        assertSame(status, sent.get());
+
+        // ANS replies do not complete the exchange
+        status.replyReceived(new MessageImpl(null, 1, 0, null));
+        assertFalse(status.getReply().isDone());
+
+        Message nul = new MessageImpl(null, 1, null, Message.MESSAGE_TYPE_NUL);
+        status.replyReceived(nul);
+        assertSame(nul, status.getReply().get());
+
+        // too late to fail
+        status.fail(new BEEPException("closed"));
+        assertSame(nul, status.getReply().get());
+    }
+
+    public void testFail() throws InterruptedException {
+        MessageStatus status =
+            new MessageStatus(null, Message.MESSAGE_TYPE_MSG, 1,
+                              new OutputDataStream(), null);
+
+        status.fail(new BEEPException("closed"));
+
+        try {
+            status.getReply().get();
+            fail("reply completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof BEEPException);
+        }
+        assertTrue(status.getSent().toCompletableFuture()
+                   .isCompletedExceptionally());
+    }
+
+    public void testNoReplyForReplies() {
+        MessageStatus status =
+            new MessageStatus(null, Message.MESSAGE_TYPE_RPY, 1,
+                              new OutputDataStream());
+
+        assertNull(status.getReply());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestMessageStatus.class);
+    }
+}
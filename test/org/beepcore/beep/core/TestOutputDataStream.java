@@ -0,0 +1,143 @@
+/*
+ * TestOutputDataStream.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestOutputDataStream extends TestCase {
+
+    public TestOutputDataStream(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testWritability() {
+        final StringBuffer changes = new StringBuffer();
+        OutputDataStream ds = new OutputDataStream();
+
+        ds.setWritabilityListener(new WritabilityListener() {
+                public void writabilityChanged(OutputDataStream stream,
+                                               boolean writable)
+                {
+                    changes.append(writable ? 'w' : 'f');
+                }
+            }, 100, 50);
+
+        ds.add(new BufferSegment(new byte[60]));
+        assertTrue(ds.isWritable());
+        ds.add(new BufferSegment(new byte[60]));
+        assertFalse(ds.isWritable());
+        ds.add(new BufferSegment(new byte[60]));
+        assertEquals(180, ds.getQueuedBytes());
+
+        ds.getNextSegment(100);
+        ds.getNextSegment(100);
+        assertFalse(ds.isWritable());
+
+        // part of a segment counts once it is sent
+        ds.getNextSegment(10);
+        assertTrue(ds.isWritable());
+        assertEquals(50, ds.getQueuedBytes());
+
+        assertEquals("fw", changes.toString());
+    }
+
+    public void testHeadersNotCounted() {
+        OutputDataStream ds =
+            new OutputDataStream(new MimeHeaders(),
+                                 new BufferSegment(new byte[10]));
+        ds.setComplete();
+
+        int sent = 0;
+        while (ds.availableSegment()) {
+            sent += ds.getNextSegment(1000).getLength();
+        }
+
+        assertTrue(sent > 10);
+        assertEquals(0, ds.getQueuedBytes());
+    }
+
+    /**
+     * A producer adding while the stream is writable and a sender taking
+     * segments must never leave the stream unwritable with nothing
+     * queued, and the notifications must alternate.
+     */
+    public void testConcurrentWritability() throws Exception {
+        final int segments = 200000;
+        final OutputDataStream ds = new OutputDataStream();
+        final boolean[] last = new boolean[] {true};
+        final StringBuffer errors = new StringBuffer();
+
+        ds.setWritabilityListener(new WritabilityListener() {
+                public void writabilityChanged(OutputDataStream stream,
+                                               boolean writable)
+                {
+                    if (writable == last[0]) {
+                        errors.append("repeated " + writable + "\n");
+                    }
+                    last[0] = writable;
+                }
+            }, 64, 16);
+
+        Thread sender = new Thread() {
+                public void run() {
+                    while (ds.isComplete() == false ||
+                           ds.availableSegment())
+                    {
+                        if (ds.availableSegment()) {
+                            ds.getNextSegment(7);
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+        sender.start();
+
+        long deadline = System.currentTimeMillis() + 30000;
+        for (int i = 0; i < segments; ++i) {
+            while (ds.isWritable() == false) {
+                if (System.currentTimeMillis() > deadline) {
+                    ds.setComplete();
+                    fail("stalled after " + i + " segments with " +
+                         ds.getQueuedBytes() + " bytes queued");
+                }
+                Thread.yield();
+            }
+            ds.add(new BufferSegment(new byte[8]));
+        }
+        ds.setComplete();
+        sender.join();
+
+        assertEquals("", errors.toString());
+        assertEquals(0, ds.getQueuedBytes());
+        assertTrue(ds.isWritable());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestOutputDataStream.class);
+    }
+}
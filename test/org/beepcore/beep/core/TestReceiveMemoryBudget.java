@@ -0,0 +1,110 @@
+/*
+ * TestReceiveMemoryBudget.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestReceiveMemoryBudget extends TestCase {
+
+    public TestReceiveMemoryBudget(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testAccounting() {
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(100000);
+        ReceiveMemoryBudget.Account a = budget.newAccount();
+        ReceiveMemoryBudget.Account b = budget.newAccount();
+
+        a.add(1000);
+        a.add(500);
+        b.add(200);
+        assertEquals(1700, budget.getBuffered());
+        assertEquals(2, budget.getSessionCount());
+
+        a.release(1500);
+        assertEquals(200, budget.getBuffered());
+        assertEquals(1, budget.getSessionCount());
+    }
+
+    public void testNoPressure() {
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(100000);
+        ReceiveMemoryBudget.Account a = budget.newAccount();
+        a.addChannel();
+
+        a.add(49999);
+        assertEquals(65536, budget.getWindow(a, 65536));
+        assertEquals(0, budget.getThrottleCount());
+    }
+
+    public void testFairShares() {
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(100000);
+        ReceiveMemoryBudget.Account hog = budget.newAccount();
+        ReceiveMemoryBudget.Account small = budget.newAccount();
+        ReceiveMemoryBudget.Account idle = budget.newAccount();
+
+        hog.addChannel();
+        small.addChannel();
+        small.addChannel();
+        idle.addChannel();
+
+        hog.add(60000);
+        small.add(10000);
+
+        // the hog is over its share of half the limit
+        assertEquals(0, budget.getWindow(hog, 4096));
+
+        // each session is entitled to half of the limit, the global limit
+        // leaves 30000, split between two channels
+        assertEquals(15000, budget.getWindow(small, 65536));
+
+        // an idle session counts as a third session
+        assertEquals(30000, budget.getWindow(idle, 65536));
+        assertEquals(4096, budget.getWindow(idle, 4096));
+
+        assertEquals(3, budget.getThrottleCount());
+    }
+
+    public void testWake() {
+        ReceiveMemoryBudget budget = new ReceiveMemoryBudget(160000);
+        ReceiveMemoryBudget.Account a = budget.newAccount();
+
+        a.add(100000);
+
+        // nothing to wake
+        assertFalse(a.release(10));
+
+        budget.waitForMemory(new ChannelImpl(null, 1, null));
+
+        // a sixteenth of the limit must be freed, or less than half used
+        assertFalse(a.release(9000));
+        assertTrue(a.release(1000));
+        assertFalse(a.release(9000));
+        assertTrue(a.release(11000));
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestReceiveMemoryBudget.class);
+    }
+}
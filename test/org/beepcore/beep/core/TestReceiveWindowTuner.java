@@ -0,0 +1,144 @@
+/*
+ * TestReceiveWindowTuner.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.*;
+
+public class TestReceiveWindowTuner extends TestCase {
+    protected static final long MS = 1000000;
+
+    protected AtomicLong sessionGrowth;
+    protected long now;
+
+    public TestReceiveWindowTuner(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testRoundTripTime() {
+        ReceiveWindowTuner t = newTuner(1024 * 1024, 1024 * 1024);
+
+        // data the peer could send before the SEQ does not end the probe
+        t.frameReceived(1000, now);
+        t.windowAdvertised(4096, now);
+        t.frameReceived(3096, now += 10 * MS);
+        assertEquals(0, t.getRoundTripTime());
+
+        t.frameReceived(100, now += 30 * MS);
+        assertEquals(40 * MS, t.getRoundTripTime());
+    }
+
+    public void testGrowsWhileWindowLimited() {
+        ReceiveWindowTuner t = newTuner(1024 * 1024, 1024 * 1024);
+        measureRtt(t, 40 * MS);
+
+        // the application consumes a full window every round trip
+        for (int i = 0; i < 4; ++i) {
+            int window = t.getTarget();
+
+            now += 40 * MS;
+            assertTrue(t.bytesConsumed(window, now));
+            assertEquals(window * 2, t.getTarget());
+        }
+
+        assertEquals(t.getTarget() - 4096, sessionGrowth.get());
+    }
+
+    public void testCeilings() {
+        ReceiveWindowTuner t = newTuner(16 * 1024, 1024 * 1024);
+        measureRtt(t, 40 * MS);
+
+        t.bytesConsumed(1024 * 1024, now += 40 * MS);
+        assertEquals(16 * 1024, t.getTarget());
+
+        ReceiveWindowTuner t2 = newTuner(1024 * 1024, 20 * 1024);
+        measureRtt(t2, 40 * MS);
+
+        t2.bytesConsumed(1024 * 1024, now += 40 * MS);
+        assertEquals(4096 + 20 * 1024 - 12 * 1024, t2.getTarget());
+        assertEquals(20 * 1024, sessionGrowth.get());
+
+        t.release();
+        assertEquals(20 * 1024 - 12 * 1024, sessionGrowth.get());
+    }
+
+    public void testShrinks() {
+        ReceiveWindowTuner t = newTuner(1024 * 1024, 1024 * 1024);
+        measureRtt(t, 10 * MS);
+
+        t.bytesConsumed(64 * 1024, now += 10 * MS);
+        assertEquals(128 * 1024, t.getTarget());
+
+        // a slow consumer halves the window each round trip
+        assertFalse(t.bytesConsumed(1000, now += 10 * MS));
+        assertEquals(64 * 1024, t.getTarget());
+        t.bytesConsumed(1000, now += 10 * MS);
+        assertEquals(32 * 1024, t.getTarget());
+
+        for (int i = 0; i < 10; ++i) {
+            t.bytesConsumed(10, now += 10 * MS);
+        }
+        assertEquals(4096, t.getTarget());
+        assertEquals(0, sessionGrowth.get());
+    }
+
+    public void testWindowCoversAllowance() {
+        ReceiveWindowTuner t = newTuner(1024 * 1024, 1024 * 1024);
+        measureRtt(t, 10 * MS);
+
+        t.bytesConsumed(64 * 1024, now += 10 * MS);
+        t.windowAdvertised(128 * 1024, now);
+        t.bytesConsumed(1000, now += 10 * MS);
+
+        // the peer may still send the window it was given
+        assertEquals(64 * 1024, t.getTarget());
+        assertEquals(128 * 1024 + 500, t.getWindow(500));
+
+        t.frameReceived(100 * 1024, now);
+        assertEquals(64 * 1024, t.getWindow(500));
+    }
+
+    protected ReceiveWindowTuner newTuner(int max, int sessionMax) {
+        return new ReceiveWindowTuner(4096, max, sessionGrowth, sessionMax,
+                                      now);
+    }
+
+    protected void measureRtt(ReceiveWindowTuner t, long rtt) {
+        t.frameReceived(4096, now);
+        t.windowAdvertised(4096, now);
+        t.frameReceived(1, now += rtt);
+        t.bytesConsumed(4097, now);
+    }
+
+    protected void setUp() {
+        sessionGrowth = new AtomicLong();
+        now = 1000 * MS;
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestReceiveWindowTuner.class);
+    }
+}
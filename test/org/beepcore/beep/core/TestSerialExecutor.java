@@ -0,0 +1,218 @@
+/*
+ * TestSerialExecutor.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.*;
+
+public class TestSerialExecutor extends TestCase {
+
+    private ExecutorService pool;
+
+    public TestSerialExecutor(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    protected void tearDown() {
+        pool.shutdownNow();
+    }
+
+    public void testOrder() throws InterruptedException {
+        final int tasks = 1000;
+        final List<Integer> order = new ArrayList<Integer>();
+        final AtomicInteger running = new AtomicInteger();
+        final boolean[] overlapped = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(tasks);
+
+        SerialExecutor serial = new SerialExecutor(pool, null);
+
+        for (int i = 0; i < tasks; ++i) {
+            final Integer n = Integer.valueOf(i);
+
+            serial.execute(new Runnable() {
+                    public void run() {
+                        if (running.incrementAndGet() != 1) {
+                            overlapped[0] = true;
+                        }
+                        synchronized (order) {
+                            order.add(n);
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertFalse(overlapped[0]);
+
+        for (int i = 0; i < tasks; ++i) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    public void testFailedTask() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        SerialExecutor serial = new SerialExecutor(pool, null);
+
+        serial.execute(new Runnable() {
+                public void run() {
+                    throw new IllegalStateException("expected");
+                }
+            });
+        serial.execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testCallerRuns() throws BEEPException {
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setDispatchExecutor(SessionTuningProperties.DISPATCH_CALLER);
+
+        final Thread[] ran = new Thread[1];
+        new SerialExecutor(tuning.getDispatchExecutor(), null).execute(
+            new Runnable() {
+                public void run() {
+                    ran[0] = Thread.currentThread();
+                }
+            });
+
+        assertSame(Thread.currentThread(), ran[0]);
+    }
+
+    public void testFixedPoolShared() throws BEEPException {
+        Hashtable<String, Object> properties =
+            new Hashtable<String, Object>();
+        SessionTuningProperties tuning =
+            new SessionTuningProperties(properties);
+        tuning.setDispatchExecutor(SessionTuningProperties.DISPATCH_FIXED);
+        tuning.setDispatchThreads(2);
+
+        assertSame(tuning.getDispatchExecutor(),
+                   tuning.getDispatchExecutor());
+
+        // the caller's table is left as it was set
+        assertEquals(SessionTuningProperties.DISPATCH_FIXED,
+                     properties.get(SessionTuningProperties.DISPATCH_EXECUTOR));
+    }
+
+    public void testFixedPoolQueueFull() throws Exception {
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setDispatchExecutor(SessionTuningProperties.DISPATCH_FIXED);
+        tuning.setDispatchThreads(1);
+        tuning.setDispatchQueue(1);
+
+        Executor executor = tuning.getDispatchExecutor();
+        final CountDownLatch block = new CountDownLatch(1);
+        final Thread[] ran = new Thread[1];
+
+        try {
+            // one task takes the thread, the next one the queue
+            for (int i = 0; i < 2; ++i) {
+                executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                block.await();
+                            } catch (InterruptedException e) {
+                            }
+                        }
+                    });
+            }
+
+            executor.execute(new Runnable() {
+                    public void run() {
+                        ran[0] = Thread.currentThread();
+                    }
+                });
+
+            assertSame(Thread.currentThread(), ran[0]);
+        } finally {
+            block.countDown();
+        }
+    }
+
+    public void testNamedExecutorShared() throws BEEPException {
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setDispatchExecutor(DirectExecutor.class.getName());
+
+        Executor executor = tuning.getDispatchExecutor();
+
+        assertTrue(executor instanceof DirectExecutor);
+        assertSame(executor, tuning.getDispatchExecutor());
+
+        tuning.setDispatchExecutor(DirectExecutor.class.getName());
+        assertNotSame(executor, tuning.getDispatchExecutor());
+    }
+
+    public void testVirtual() throws InterruptedException {
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setDispatchExecutor(SessionTuningProperties.DISPATCH_VIRTUAL);
+
+        Executor executor;
+        try {
+            executor = tuning.getDispatchExecutor();
+        } catch (BEEPException e) {
+            // only available from Java 21 on
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        new SerialExecutor(executor, null).execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    public static class DirectExecutor implements Executor {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestSerialExecutor.class);
+    }
+}
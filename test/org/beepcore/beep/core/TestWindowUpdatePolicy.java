@@ -0,0 +1,124 @@
+/*
+ * TestWindowUpdatePolicy.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.core;
+
+import junit.framework.*;
+
+public class TestWindowUpdatePolicy extends TestCase {
+
+    public TestWindowUpdatePolicy(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testThreshold() {
+        WindowUpdatePolicy p = WindowUpdatePolicy.threshold(50);
+
+        assertFalse(p.isUpdateDue(2047, 4096));
+        assertTrue(p.isUpdateDue(2048, 4096));
+        assertTrue(p.isUpdateDueBeforeMessage(1, 4096));
+        assertEquals(0, p.getMaxDelay());
+        assertFalse(p.isPiggybacked());
+    }
+
+    public void testQuantum() {
+        WindowUpdatePolicy p = WindowUpdatePolicy.quantum(16384);
+
+        assertFalse(p.isUpdateDue(16383, 1024 * 1024));
+        assertTrue(p.isUpdateDue(16384, 1024 * 1024));
+        assertFalse(p.isUpdateDueBeforeMessage(100, 1024 * 1024));
+
+        // never waits for more than half a small window
+        assertTrue(p.isUpdateDue(2048, 4096));
+    }
+
+    public void testDelayed() {
+        WindowUpdatePolicy p = WindowUpdatePolicy.delayed(25, 10);
+
+        assertFalse(p.isUpdateDue(1023, 4096));
+        assertTrue(p.isUpdateDue(1024, 4096));
+        assertFalse(p.isUpdateDueBeforeMessage(100, 4096));
+        assertEquals(10, p.getMaxDelay());
+    }
+
+    public void testPiggyback() {
+        WindowUpdatePolicy p = WindowUpdatePolicy.piggyback(50);
+
+        assertTrue(p.isUpdateDue(2048, 4096));
+        assertTrue(p.isUpdateDueBeforeMessage(1, 4096));
+        assertTrue(p.isPiggybacked());
+    }
+
+    public void testTuningProperties() throws BEEPException {
+        SessionTuningProperties tuning = new SessionTuningProperties();
+
+        assertTrue(tuning.getWindowUpdatePolicy().isUpdateDue(2048, 4096));
+
+        tuning.setWindowUpdatePolicy(
+            SessionTuningProperties.WINDOW_UPDATE_QUANTUM_POLICY);
+        tuning.setWindowUpdateQuantum(1000);
+        assertTrue(tuning.getWindowUpdatePolicy().isUpdateDue(1000,
+                                                              65536));
+
+        tuning.setWindowUpdatePolicy(
+            SessionTuningProperties.WINDOW_UPDATE_DELAYED_POLICY);
+        tuning.setWindowUpdateDelay(5);
+        assertEquals(5, tuning.getWindowUpdatePolicy().getMaxDelay());
+
+        tuning.setWindowUpdatePolicy(Never.class.getName());
+        assertTrue(tuning.getWindowUpdatePolicy() instanceof Never);
+
+        tuning.setWindowUpdatePolicy("no.such.Policy");
+        try {
+            tuning.getWindowUpdatePolicy();
+            fail("Unknown policy accepted");
+        } catch (BEEPException e) {
+        }
+
+        tuning.setWindowUpdatePolicy(
+            SessionTuningProperties.WINDOW_UPDATE_THRESHOLD_POLICY);
+        tuning.setWindowUpdateThreshold(0);
+        try {
+            tuning.getWindowUpdatePolicy();
+            fail("Invalid threshold accepted");
+        } catch (BEEPException e) {
+        }
+
+        // a value that is not a number falls back to the default
+        tuning.setProperty(SessionTuningProperties.WINDOW_UPDATE_THRESHOLD,
+                           "half");
+        assertTrue(tuning.getWindowUpdatePolicy().isUpdateDue(2048, 4096));
+        assertFalse(tuning.getWindowUpdatePolicy().isUpdateDue(2047, 4096));
+    }
+
+    public static class Never extends WindowUpdatePolicy {
+        public boolean isUpdateDue(int freed, int window) {
+            return false;
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestWindowUpdatePolicy.class);
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * TestNIOSession.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.nio;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.InputDataStreamAdapter;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageStatus;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.TuningProfile;
+import org.beepcore.beep.profile.echo.EchoProfile;
+
+import junit.framework.*;
+
+public class TestNIOSession extends TestCase {
+
+    private static final String URI = "http://example.org/beep/nio-test";
+    private static final String RESET_URI =
+        "http://example.org/beep/nio-reset";
+    private static final long WAIT = 10000;
+
+    public TestNIOSession(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testEcho() throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(EchoProfile.ECHO_URI,
+                                         new EchoProfile(), null);
+
+        final NIOSession[] peer = new NIOSession[1];
+        Thread acceptor = new Thread() {
+                public void run() {
+                    try {
+                        peer[0] = NIOSession.createListener(server.accept(),
+                                                            registry);
+                    } catch (Exception e) {
+                    }
+                }
+            };
+        acceptor.start();
+
+        NIOSession session = NIOSession.createInitiator(
+            SocketChannel.open(server.socket().getLocalSocketAddress()),
+            new ProfileRegistry());
+
+        acceptor.join(WAIT);
+        assertNotNull(peer[0]);
+
+        try {
+            assertTrue(session.getPeerSupportedProfiles()
+                       .contains(EchoProfile.ECHO_URI));
+
+            Channel channel = session.startChannel(EchoProfile.ECHO_URI);
+
+            // larger than the window, so it takes several frames and SEQs
+            byte[] data = new byte[100 * 1024];
+            for (int i = 0; i < data.length; ++i) {
+                data[i] = (byte) ('a' + i % 26);
+            }
+
+            MessageStatus status =
+                channel.sendMSG(new ByteOutputDataStream(data));
+            Message reply =
+                status.getReply().get(WAIT, TimeUnit.MILLISECONDS);
+
+            assertEquals(Message.MESSAGE_TYPE_RPY, reply.getMessageType());
+
+            InputDataStreamAdapter in =
+                reply.getDataStream().getInputStream();
+            for (int i = 0; i < data.length; ++i) {
+                assertEquals(data[i], (byte) in.read());
+            }
+            assertEquals(-1, in.read());
+
+            session.close();
+            assertEquals(Session.SESSION_STATE_CLOSED, session.getState());
+        } finally {
+            terminate(session);
+            terminate(peer[0]);
+            server.close();
+        }
+    }
+
+    /**
+     * The peer's greeting after the tuning reset is sent right behind the
+     * reply to the start, while reading is disabled. It has to be kept
+     * for the new session rather than dropped or given to the old one.
+     */
+    public void testInputKeptAcrossReset() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        SocketChannel sock = SocketChannel.open(
+            new InetSocketAddress("localhost", server.getLocalPort()));
+        RawPeer peer = new RawPeer(server.accept());
+
+        NIOSession session = null;
+        Session reset = null;
+
+        try {
+            peer.send(peer.greeting(URI));
+            session = NIOSession.createInitiator(sock, new ProfileRegistry());
+            assertEquals("RPY", peer.read().type);
+
+            final NIOSession s = session;
+            final ResetProfile tuning = new ResetProfile();
+            final Channel[] started = new Channel[1];
+            Thread starter = new Thread() {
+                    public void run() {
+                        try {
+                            started[0] =
+                                tuning.startChannel(s, URI, false, null, null);
+                        } catch (BEEPException e) {
+                        }
+                    }
+                };
+            starter.start();
+
+            RawFrame start = peer.read();
+            assertEquals("MSG", start.type);
+            assertEquals(0, start.channel);
+
+            // in one write, so it normally arrives in the same read
+            String rpy = peer.frame("RPY", 0, start.msgno,
+                                    "<profile uri='" + URI + "' />");
+            peer.restart();
+            peer.send(rpy + peer.greeting(RESET_URI));
+
+            starter.join(WAIT);
+            assertNotNull(started[0]);
+
+            reset = tuning.reset(session);
+            awaitActive(reset);
+
+            assertTrue(reset.getPeerSupportedProfiles().contains(RESET_URI));
+            assertFalse(reset.getPeerSupportedProfiles().contains(URI));
+
+            RawFrame greeting = peer.read();
+            assertEquals("RPY", greeting.type);
+            assertEquals(0, greeting.msgno);
+        } finally {
+            if (reset != null) {
+                terminate(reset);
+            } else if (session != null) {
+                terminate(session);
+            }
+            peer.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Writes more than the socket takes while the peer is not reading.
+     * The rest is queued and written by the selector loop, behind it the
+     * data of later writes.
+     */
+    public void testPartialWrite() throws Exception {
+        ServerSocket server = new ServerSocket();
+        server.setReceiveBufferSize(8192);
+        server.bind(new InetSocketAddress("localhost", 0));
+
+        SocketChannel sock = SocketChannel.open();
+        sock.socket().setSendBufferSize(8192);
+        sock.connect(server.getLocalSocketAddress());
+
+        Socket in = server.accept();
+        NIOConnection connection = new NIOConnection(sock);
+
+        try {
+            byte[] a = new byte[4 * 1024 * 1024];
+            for (int i = 0; i < a.length; ++i) {
+                a[i] = (byte) i;
+            }
+            byte[] b = "written last".getBytes("US-ASCII");
+
+            ByteBuffer first = ByteBuffer.wrap(a);
+            ByteBuffer second = ByteBuffer.wrap(b);
+
+            connection.write(new ByteBuffer[] {first});
+            assertTrue(first.hasRemaining());
+
+            // queued behind the first without writing any of it
+            connection.write(new ByteBuffer[] {second});
+            assertEquals(b.length, second.remaining());
+
+            DataInputStream is = new DataInputStream(in.getInputStream());
+            byte[] read = new byte[a.length];
+            is.readFully(read);
+            for (int i = 0; i < a.length; ++i) {
+                if (read[i] != a[i]) {
+                    fail("Wrong byte at " + i);
+                }
+            }
+
+            read = new byte[b.length];
+            is.readFully(read);
+            assertEquals("written last", new String(read, "US-ASCII"));
+
+            connection.flush(WAIT);
+            assertFalse(first.hasRemaining());
+            assertFalse(second.hasRemaining());
+        } finally {
+            connection.close();
+            in.close();
+            server.close();
+        }
+    }
+
+    private static void awaitActive(Session s) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+
+        while (s.getState() != Session.SESSION_STATE_ACTIVE) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Session state is " + s.getState());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void terminate(Session s) {
+        if (s != null &&
+            s.getState() != Session.SESSION_STATE_CLOSED &&
+            s.getState() != Session.SESSION_STATE_ABORTED)
+        {
+            s.terminate("test done");
+        }
+    }
+
+    /**
+     * Resets the session as a tuning profile would once it is tuned.
+     */
+    private static class ResetProfile extends TuningProfile {
+        Session reset(Session session) throws BEEPException {
+            return reset(session, null, null, new SessionTuningProperties(),
+                         null, null);
+        }
+    }
+
+    private static class RawFrame {
+        String type;
+        int channel;
+        int msgno;
+        String payload;
+    }
+
+    /**
+     * A peer speaking BEEP through a plain socket, so the test decides
+     * how frames are split across writes.
+     */
+    private static class RawPeer {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private HashMap<Integer, Long> seqnos = new HashMap<Integer, Long>();
+
+        RawPeer(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        String greeting(String uri) {
+            return frame("RPY", 0, 0,
+                         "<greeting><profile uri='" + uri + "' /></greeting>");
+        }
+
+        /**
+         * Returns a frame with an XML payload on <code>channel</code>.
+         */
+        String frame(String type, int channel, int msgno, String xml) {
+            String payload = "Content-Type: application/beep+xml\r\n\r\n" +
+                xml;
+            Integer key = Integer.valueOf(channel);
+            Long seqno = seqnos.get(key);
+            long seq = seqno == null ? 0 : seqno.longValue();
+
+            seqnos.put(key, Long.valueOf(seq + payload.length()));
+
+            return type + " " + channel + " " + msgno + " . " + seq + " " +
+                payload.length() + "\r\n" + payload + "END\r\n";
+        }
+
+        /**
+         * Starts the sequence numbers over for a new session.
+         */
+        void restart() {
+            seqnos.clear();
+        }
+
+        void send(String frames) throws IOException {
+            out.write(frames.getBytes("US-ASCII"));
+            out.flush();
+        }
+
+        /**
+         * Reads the next frame other than a SEQ.
+         */
+        RawFrame read() throws IOException {
+            while (true) {
+                StringTokenizer header = new StringTokenizer(readLine());
+                RawFrame f = new RawFrame();
+
+                f.type = header.nextToken();
+                if (f.type.equals("SEQ")) {
+                    continue;
+                }
+
+                f.channel = Integer.parseInt(header.nextToken());
+                f.msgno = Integer.parseInt(header.nextToken());
+                header.nextToken();
+                header.nextToken();
+
+                byte[] payload = new byte[Integer.parseInt(header.nextToken())];
+                in.readFully(payload);
+                f.payload = new String(payload, "US-ASCII");
+
+                assertEquals("END", readLine());
+
+                return f;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuffer sb = new StringBuffer();
+
+            while (true) {
+                int c = in.read();
+                if (c == -1) {
+                    throw new IOException("Connection closed");
+                }
+                if (c == '\n') {
+                    return sb.toString().trim();
+                }
+                sb.append((char) c);
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestNIOSession.class);
+    }
+}
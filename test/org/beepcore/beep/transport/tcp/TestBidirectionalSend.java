@@ -0,0 +1,216 @@
+/*
+ * TestBidirectionalSend.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ByteOutputDataStream;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.ReplyListener;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+
+import junit.framework.*;
+
+/**
+ * Both peers send large replies over sockets with small send buffers, so
+ * both send buffers fill. The reader threads send the frames a SEQ lets
+ * go and the SEQs for the replies they discard, if either blocked
+ * writing them while the other did too neither session would read again.
+ */
+public class TestBidirectionalSend extends TestCase {
+
+    private static final String URI = "http://example.org/beep/bulk-test";
+    private static final long WAIT = 30000;
+
+    private static final int CHANNELS = 8;
+    private static final int MESSAGES = 8;
+    private static final int REPLY_SIZE = 256 * 1024;
+    private static final int WINDOW = 64 * 1024;
+    private static final int SOCKET_BUFFER = 4096;
+
+    private ServerSocket server;
+    private TCPSession session;
+    private TCPSession peer;
+
+    public TestBidirectionalSend(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void setUp() throws Exception {
+        final ProfileRegistry registry = registry();
+
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress("localhost", 0));
+
+        Thread acceptor = new Thread() {
+                public void run() {
+                    try {
+                        Socket s = server.accept();
+
+                        s.setSendBufferSize(SOCKET_BUFFER);
+                        peer = TCPSession.createListener(s, registry,
+                                                         tuning());
+                    } catch (Exception e) {
+                    }
+                }
+            };
+        acceptor.start();
+
+        Socket s = new Socket();
+        s.setSendBufferSize(SOCKET_BUFFER);
+        s.connect(server.getLocalSocketAddress());
+
+        session = TCPSession.createInitiator(s, registry(), null, tuning());
+
+        acceptor.join(WAIT);
+        assertNotNull(peer);
+    }
+
+    protected void tearDown() throws Exception {
+        session.terminate("test done");
+        peer.terminate("test done");
+        server.close();
+    }
+
+    public void testLargeRepliesBothWays() throws Exception {
+        CountDownLatch done = new CountDownLatch(2 * CHANNELS * MESSAGES);
+
+        Channel[] channels = new Channel[2 * CHANNELS];
+        for (int i = 0; i < CHANNELS; ++i) {
+            channels[2 * i] = session.startChannel(URI);
+            channels[2 * i + 1] = peer.startChannel(URI);
+        }
+
+        Discarder discarder = new Discarder(done);
+        for (int j = 0; j < MESSAGES; ++j) {
+            for (int i = 0; i < channels.length; ++i) {
+                channels[i].sendMSG(new StringOutputDataStream("msg"),
+                                    discarder);
+            }
+        }
+
+        assertTrue("replies stalled, " + done.getCount() + " missing",
+                   done.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(Session.SESSION_STATE_ACTIVE, session.getState());
+        assertEquals(Session.SESSION_STATE_ACTIVE, peer.getState());
+    }
+
+    private static SessionTuningProperties tuning() {
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWindowSize(WINDOW);
+
+        return tuning;
+    }
+
+    private static ProfileRegistry registry() {
+        ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(URI, new BulkProfile(), null);
+
+        return registry;
+    }
+
+    /**
+     * Discards the replies on the reader thread, which sends a SEQ for
+     * every frame of them that arrives.
+     */
+    private static class Discarder implements ReplyListener {
+        private final CountDownLatch done;
+
+        Discarder(CountDownLatch done)
+        {
+            this.done = done;
+        }
+
+        public void receiveRPY(Message message)
+        {
+            message.getDataStream().close();
+            done.countDown();
+        }
+
+        public void receiveERR(Message message)
+        {
+            message.getDataStream().close();
+        }
+
+        public void receiveANS(Message message)
+        {
+            message.getDataStream().close();
+        }
+
+        public void receiveNUL(Message message)
+        {
+        }
+    }
+
+    /**
+     * Replies to every MSG with <code>REPLY_SIZE</code> bytes.
+     */
+    private static class BulkProfile
+        implements StartChannelListener, RequestHandler
+    {
+        private final byte[] reply = new byte[REPLY_SIZE];
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            message.getDataStream().close();
+
+            try {
+                message.sendRPY(new ByteOutputDataStream(reply));
+            } catch (BEEPException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestBidirectionalSend.class);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * TestFrameDecoder.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Frame;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionCredential;
+import org.beepcore.beep.core.SessionImpl;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.BufferPool;
+import org.beepcore.beep.util.BufferSegment;
+import org.beepcore.beep.util.HeaderParser;
+
+import junit.framework.*;
+
+public class TestFrameDecoder extends TestCase {
+    protected byte[] stream;
+    protected List<Frame> frames = new ArrayList<Frame>();
+    protected List<String> seqs = new ArrayList<String>();
+    protected int stopAfter = -1;
+
+    public TestFrameDecoder(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testReadStream() throws Exception {
+        FrameDecoder d = new FrameDecoder(new Listener());
+        InputStream is = new ByteArrayInputStream(stream);
+
+        while (d.read(is) != -1) {
+            assertTrue(d.decode());
+        }
+
+        checkFrames();
+    }
+
+    public void testReadStreamSmallBuffer() throws Exception {
+        // frames larger than the buffer arrive in several segments
+        FrameDecoder d = new FrameDecoder(new Listener(), 16);
+        InputStream is = new TrickleInputStream(stream, 5);
+
+        while (d.read(is) != -1) {
+            assertTrue(d.decode());
+            assertFalse(d.hasRemaining());
+        }
+
+        checkFrames();
+    }
+
+    public void testDecodeByteBuffers() throws Exception {
+        int[] sizes = {1, 7, stream.length};
+
+        for (int s = 0; s < sizes.length; ++s) {
+            FrameDecoder d = new FrameDecoder(new Listener());
+            frames.clear();
+            seqs.clear();
+
+            for (int off = 0; off < stream.length; off += sizes[s]) {
+                int len = Math.min(sizes[s], stream.length - off);
+                ByteBuffer b = ByteBuffer.wrap(stream, off, len);
+
+                assertTrue(d.decode(b));
+                assertFalse(b.hasRemaining());
+            }
+
+            checkFrames();
+        }
+    }
+
+    public void testStop() throws Exception {
+        stopAfter = 1;
+
+        FrameDecoder d = new FrameDecoder(new Listener());
+        ByteBuffer b = ByteBuffer.wrap(stream);
+
+        assertFalse(d.decode(b));
+        assertEquals(1, frames.size());
+        assertTrue(b.hasRemaining());
+
+        stopAfter = -1;
+        assertTrue(d.decode(b));
+        assertFalse(b.hasRemaining());
+
+        checkFrames();
+    }
+
+    public void testStopStream() throws Exception {
+        stopAfter = 1;
+
+        FrameDecoder d = new FrameDecoder(new Listener());
+        InputStream is = new ByteArrayInputStream(stream);
+
+        assertEquals(stream.length, d.read(is));
+        assertFalse(d.decode());
+        assertTrue(d.hasRemaining());
+
+        stopAfter = -1;
+        assertTrue(d.decode());
+        assertFalse(d.hasRemaining());
+
+        checkFrames();
+    }
+
+    public void testPooledBuffers() throws Exception {
+        BufferPool pool = new BufferPool();
+        FrameDecoder d = new FrameDecoder(new Listener(), 16, pool);
+        InputStream is = new TrickleInputStream(stream, 5);
+
+        while (d.read(is) != -1) {
+            assertTrue(d.decode());
+        }
+
+        checkFrames();
+
+        long allocated = pool.getAllocatedCount();
+
+        // the buffers are only reused once every payload is released
+        d.release();
+        for (int i = 0; i < frames.size(); ++i) {
+            Frame f = frames.get(i);
+            for (int j = 0; j < f.getPayloadCount(); ++j) {
+                f.getPayload(j).release();
+            }
+        }
+
+        frames.clear();
+        seqs.clear();
+        d.decode(ByteBuffer.wrap(stream));
+        checkFrames();
+        assertEquals(allocated, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    public void testInvalidTrailer() throws Exception {
+        FrameDecoder d = new FrameDecoder(new Listener());
+        byte[] bad = "MSG 0 1 . 0 3\r\nabcEDN\r\n".getBytes("US-ASCII");
+
+        try {
+            d.decode(ByteBuffer.wrap(bad));
+            fail("invalid trailer accepted");
+        } catch (BEEPException e) {
+        }
+    }
+
+    public void testMissingCR() throws Exception {
+        FrameDecoder d = new FrameDecoder(new Listener());
+        byte[] bad = "MSG 0 1 . 0 3\nabcEND\r\n".getBytes("US-ASCII");
+
+        try {
+            d.decode(ByteBuffer.wrap(bad));
+            fail("header without CR accepted");
+        } catch (BEEPException e) {
+        }
+    }
+
+    protected void checkFrames() {
+        assertEquals(3, frames.size());
+        assertEquals("hello", payload(frames.get(0)));
+        assertEquals("", payload(frames.get(1)));
+        assertEquals("abcdefghijklmnopqrstuvwxyz0123456789",
+                     payload(frames.get(2)));
+
+        assertEquals(1, seqs.size());
+        assertEquals("0 5 4096", seqs.get(0));
+    }
+
+    protected String payload(Frame f) {
+        StringBuffer sb = new StringBuffer();
+
+        for (int i = 0; i < f.getPayloadCount(); ++i) {
+            BufferSegment b = f.getPayload(i);
+            sb.append(new String(b.getData(), b.getOffset(), b.getLength()));
+        }
+
+        return sb.toString();
+    }
+
+    protected void setUp() throws Exception {
+        String s = "MSG 0 1 . 0 5\r\nhelloEND\r\n" +
+            "SEQ 0 5 4096\r\n" +
+            "RPY 0 2 . 5 0\r\nEND\r\n" +
+            "ANS 0 3 * 5 36 0\r\n" +
+            "abcdefghijklmnopqrstuvwxyz0123456789END\r\n";
+
+        stream = s.getBytes("US-ASCII");
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFrameDecoder.class);
+    }
+
+    /**
+     * A session without a transport, so the frames are created the way
+     * <code>TCPSession</code> creates them, on channel zero.
+     */
+    class Listener extends SessionImpl implements FrameDecoder.Listener {
+        Listener() throws BEEPException
+        {
+            super(new ProfileRegistry(), 1, null, null, null, null);
+
+            // creates channel zero without waiting for a greeting
+            tuningInit();
+        }
+
+        public Frame createFrame(HeaderParser header) throws BEEPException
+        {
+            return super.createFrame(header);
+        }
+
+        public boolean receiveFrame(Frame f) {
+            frames.add(f);
+            return frames.size() != stopAfter;
+        }
+
+        public void receiveSEQ(int channelNumber, long ackno, int window) {
+            seqs.add(channelNumber + " " + ackno + " " + window);
+        }
+
+        protected void disableIO() {}
+
+        protected void enableIO() {}
+
+        protected int getMaxFrameSize()
+        {
+            return 4096;
+        }
+
+        protected Session reset(SessionCredential localCred,
+                                SessionCredential peerCred,
+                                SessionTuningProperties tuning,
+                                ProfileRegistry registry, Object argument)
+        {
+            return this;
+        }
+
+        protected void sendFrame(Frame f) {}
+
+        protected boolean updateMyReceiveBufferSize(Channel channel,
+                                                    long currentSeq,
+                                                    int currentAvail)
+        {
+            return true;
+        }
+    }
+
+    static class TrickleInputStream extends ByteArrayInputStream {
+        private int max;
+
+        TrickleInputStream(byte[] b, int max) {
+            super(b);
+            this.max = max;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, max));
+        }
+    }
+}
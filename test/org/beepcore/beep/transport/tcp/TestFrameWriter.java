@@ -0,0 +1,231 @@
+/*
+ * TestFrameWriter.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.util.BufferSegment;
+
+import junit.framework.*;
+
+public class TestFrameWriter extends TestCase {
+
+    private static final int FRAME_SIZE = FrameWriter.QUANTUM;
+
+    private ServerSocket server;
+    private Socket out;
+    private Socket in;
+    private FrameWriter writer;
+
+    public TestFrameWriter(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void setUp() throws IOException {
+        server = new ServerSocket(0);
+        out = new Socket("localhost", server.getLocalPort());
+        in = server.accept();
+
+        // hold the first write back until all frames are queued
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWriteMaxDelay(500);
+        tuning.setWriteMaxBytes(1024 * 1024);
+
+        writer = new FrameWriter(out, tuning);
+    }
+
+    protected void tearDown() throws IOException {
+        in.close();
+        out.close();
+        server.close();
+    }
+
+    public void testWeightedRoundRobin() throws Exception {
+        startWriting('a', 1, 2);
+
+        write('b', 1, 2);
+        write('c', 1, 2);
+        write('d', 1, 2);
+        write('x', 2, 1);
+        write('y', 2, 1);
+        write('z', 2, 1);
+        write('0', 0, 1);
+
+        assertEquals("0abxcdyz", read(8));
+    }
+
+    public void testExpedite() throws Exception {
+        startWriting('a', 1, 1);
+
+        write('x', 2, 1);
+        write('y', 2, 1);
+        write('b', 1, 1);
+        writer.expedite(2);
+        write('0', 0, 1);
+
+        assertEquals("xy0ab", read(5));
+    }
+
+    public void testHold() throws Exception {
+        writer.hold();
+        writer.hold();
+
+        write('a', 1, 1);
+        write('b', 2, 1);
+        write('0', 0, 1);
+
+        writer.release();
+        assertEquals(0, writer.getFrameCount());
+        assertEquals(0, in.getInputStream().available());
+
+        writer.release();
+        assertEquals("0ab", read(3));
+        writer.flush(1000);
+        assertEquals(1, writer.getFlushCount());
+    }
+
+    public void testManyChannels() throws Exception {
+        writer.hold();
+
+        // more channels than fit the initial table
+        for (int i = 0; i < 12; ++i) {
+            write((char) ('a' + i), i * 2 + 1, 1);
+            write((char) ('a' + i), i * 2 + 1, 1);
+        }
+
+        // the channel's queue is dropped and a new one added behind the
+        // others
+        writer.expedite(3);
+        write('B', 3, 1);
+
+        Thread t = new Thread() {
+                public void run() {
+                    try {
+                        writer.release();
+                    } catch (IOException e) {
+                    }
+                }
+            };
+        t.start();
+
+        assertEquals("bb" + "acdefghijklB" + "acdefghijkl", read(25));
+        t.join();
+    }
+
+    /**
+     * Array backed segments are staged and direct buffers gathered
+     * between them, the bytes must still come out in order.
+     */
+    public void testGatheringWrite() throws Exception {
+        SocketChannel sc = SocketChannel.open(server.getLocalSocketAddress());
+        Socket peer = server.accept();
+        FrameWriter gathering = new FrameWriter(sc.socket(), null);
+
+        try {
+            ByteBuffer direct = ByteBuffer.allocateDirect(3);
+            direct.put("def".getBytes("US-ASCII"));
+            direct.flip();
+
+            // larger than the staging buffer
+            byte[] large = new byte[100 * 1024];
+            for (int i = 0; i < large.length; ++i) {
+                large[i] = (byte) ('a' + i % 26);
+            }
+
+            gathering.queueSEQ(1, 2, 3);
+            gathering.write(new BufferSegment[] {
+                    new BufferSegment("abc".getBytes("US-ASCII")),
+                    new BufferSegment(direct),
+                    new BufferSegment("ghi".getBytes("US-ASCII")),
+                    new BufferSegment(large),
+                    new BufferSegment("jkl".getBytes("US-ASCII"))
+                }, 1, 1);
+
+            String expected = "SEQ 1 2 3\r\nabcdefghi" +
+                new String(large, "US-ASCII") + "jkl";
+            byte[] b = new byte[expected.length()];
+
+            new DataInputStream(peer.getInputStream()).readFully(b);
+            assertEquals(expected, new String(b, "US-ASCII"));
+            assertEquals(2, gathering.getFrameCount());
+        } finally {
+            peer.close();
+            sc.close();
+        }
+    }
+
+    private void startWriting(final char c, final int channel,
+                              final int weight)
+        throws InterruptedException
+    {
+        Thread t = new Thread() {
+                public void run() {
+                    try {
+                        write(c, channel, weight);
+                    } catch (IOException e) {
+                    }
+                }
+            };
+        t.start();
+
+        // let it become the writer and wait for more frames
+        Thread.sleep(100);
+    }
+
+    private void write(char c, int channel, int weight) throws IOException {
+        byte[] b = new byte[FRAME_SIZE];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) c;
+        }
+
+        writer.write(new BufferSegment[] { new BufferSegment(b) },
+                     channel, weight);
+    }
+
+    private String read(int frames) throws IOException {
+        DataInputStream is = new DataInputStream(in.getInputStream());
+        StringBuffer sb = new StringBuffer();
+        byte[] b = new byte[FRAME_SIZE];
+
+        for (int i = 0; i < frames; ++i) {
+            is.readFully(b);
+            sb.append((char) b[0]);
+        }
+
+        return sb.toString();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestFrameWriter.class);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * TestGreetingTimeout.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.io.InputStream;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+
+import junit.framework.*;
+
+/**
+ * An initiator started without waiting for the greeting gives up on a
+ * peer that accepts the connection but never greets.
+ */
+public class TestGreetingTimeout extends TestCase {
+
+    private static final long TIMEOUT = 500;
+    private static final long WAIT = 10000;
+
+    public TestGreetingTimeout(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testSilentPeer() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        Socket silent = null;
+
+        try {
+            long start = System.currentTimeMillis();
+
+            CompletableFuture<Session> greeted =
+                TCPSession.createInitiatorAsync(
+                    new Socket("localhost", server.getLocalPort()),
+                    new ProfileRegistry(), null, null, TIMEOUT);
+
+            silent = server.accept();
+
+            try {
+                greeted.get(WAIT, TimeUnit.MILLISECONDS);
+                fail("greeted by a silent peer");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(),
+                           e.getCause() instanceof BEEPException);
+            }
+            assertTrue(System.currentTimeMillis() - start >= TIMEOUT);
+
+            // the session is gone, only its greeting was sent
+            silent.setSoTimeout((int) WAIT);
+            InputStream is = silent.getInputStream();
+            while (is.read() != -1) {
+            }
+        } finally {
+            if (silent != null) {
+                silent.close();
+            }
+            server.close();
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestGreetingTimeout.class);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * TestReplyOrder.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.MessageStatus;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.ReplyListener;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+
+import junit.framework.*;
+
+/**
+ * Replies to pipelined MSGs are sent in the reverse order and must
+ * still reach the peer in the order of the MSGs. Even MSGs are answered
+ * with two ANS and a NUL, odd ones with a RPY.
+ */
+public class TestReplyOrder extends TestCase {
+
+    private static final String URI = "http://example.org/beep/order-test";
+    private static final long WAIT = 10000;
+
+    private ServerSocket server;
+    private TCPSession session;
+    private TCPSession peer;
+    private OrderProfile profile;
+
+    public TestReplyOrder(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void setUp() throws Exception {
+        profile = new OrderProfile();
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(URI, profile, null);
+
+        server = new ServerSocket(0);
+
+        Thread acceptor = new Thread() {
+                public void run() {
+                    try {
+                        peer = TCPSession.createListener(server.accept(),
+                                                         registry);
+                    } catch (Exception e) {
+                    }
+                }
+            };
+        acceptor.start();
+
+        session = TCPSession.createInitiator(
+            new Socket("localhost", server.getLocalPort()),
+            new ProfileRegistry());
+
+        acceptor.join(WAIT);
+        assertNotNull(peer);
+    }
+
+    protected void tearDown() throws Exception {
+        session.terminate("test done");
+        peer.terminate("test done");
+        server.close();
+    }
+
+    public void testRepliesInOrder() throws Exception {
+        profile.depth = 4;
+        profile.batch = 4;
+
+        Channel channel = session.startChannel(URI);
+        Recorder recorder = send(channel, 8);
+
+        recorder.await();
+        recorder.assertInOrder();
+        assertEquals(4, profile.maxHeld);
+    }
+
+    public void testDepthChangedWhileQueued() throws Exception {
+        profile.depth = 1;
+        profile.batch = 3;
+
+        Channel channel = session.startChannel(URI);
+        Recorder recorder = send(channel, 3);
+
+        // the first MSG is held, the others wait for it to be replied to
+        assertTrue(profile.received.await(WAIT, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < recorder.sent.size(); ++i) {
+            ((MessageStatus) recorder.sent.get(i)).getSent()
+                .toCompletableFuture().get(WAIT, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(200);
+        assertEquals(1, profile.maxHeld);
+
+        profile.channel.setPipelineDepth(3);
+
+        recorder.await();
+        recorder.assertInOrder();
+        assertEquals(3, profile.maxHeld);
+    }
+
+    public void testPiggybackedMSG() throws Exception {
+        profile.depth = 2;
+        profile.batch = 2;
+
+        Channel channel = session.startChannel(URI, false, "piggybacked");
+        assertTrue(profile.piggybacked);
+
+        // the piggybacked MSG no longer counts against the pipeline
+        Recorder recorder = send(channel, 4);
+
+        recorder.await();
+        recorder.assertInOrder();
+        assertEquals(2, profile.maxHeld);
+    }
+
+    private static Recorder send(Channel channel, int count)
+        throws BEEPException
+    {
+        Recorder recorder = new Recorder(count);
+
+        for (int i = 0; i < count; ++i) {
+            recorder.sent.add(
+                channel.sendMSG(new StringOutputDataStream("msg"), recorder));
+        }
+
+        return recorder;
+    }
+
+    /**
+     * Records the replies as they are received.
+     */
+    private static class Recorder implements ReplyListener {
+        final List<MessageStatus> sent = new ArrayList<MessageStatus>();
+        final List<String> replies = new LinkedList<String>();
+        final CountDownLatch done;
+
+        Recorder(int count)
+        {
+            done = new CountDownLatch(count);
+        }
+
+        void await() throws InterruptedException
+        {
+            assertTrue(done.await(WAIT, TimeUnit.MILLISECONDS));
+        }
+
+        void assertInOrder()
+        {
+            List<String> expected = new LinkedList<String>();
+
+            for (int i = 0; i < sent.size(); ++i) {
+                int msgno = sent.get(i).getMsgno();
+
+                if (msgno % 2 == 0) {
+                    expected.add("ANS " + msgno);
+                    expected.add("ANS " + msgno);
+                    expected.add("NUL " + msgno);
+                } else {
+                    expected.add("RPY " + msgno);
+                }
+            }
+
+            synchronized (replies) {
+                assertEquals(expected, replies);
+            }
+        }
+
+        private void record(String type, Message message)
+        {
+            // a NUL has no payload
+            if (message.getDataStream() != null) {
+                message.getDataStream().close();
+            }
+
+            synchronized (replies) {
+                replies.add(type + " " + message.getMsgno());
+            }
+        }
+
+        public void receiveRPY(Message message)
+        {
+            record("RPY", message);
+            done.countDown();
+        }
+
+        public void receiveERR(Message message)
+        {
+            record("ERR", message);
+            done.countDown();
+        }
+
+        public void receiveANS(Message message)
+        {
+            record("ANS", message);
+        }
+
+        public void receiveNUL(Message message)
+        {
+            record("NUL", message);
+            done.countDown();
+        }
+    }
+
+    /**
+     * The peer's profile, which holds MSGs until <code>batch</code> have
+     * been received and then replies to them, last first.
+     */
+    private static class OrderProfile
+        implements StartChannelListener, RequestHandler
+    {
+        volatile int depth;
+        volatile int batch;
+        volatile int maxHeld = 0;
+        volatile boolean piggybacked = false;
+        volatile Channel channel;
+        final CountDownLatch received = new CountDownLatch(1);
+        private final List<MessageMSG> held = new ArrayList<MessageMSG>();
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+        {
+            this.channel = channel;
+            channel.setRequestHandler(this);
+            channel.setPipelineDepth(depth);
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            message.getDataStream().close();
+
+            try {
+                if (message.getMsgno() == Message.PIGGYBACKED_MSGNO) {
+                    piggybacked = true;
+                    message.sendRPY(new StringOutputDataStream("piggybacked"));
+                    return;
+                }
+
+                MessageMSG[] replies;
+
+                synchronized (held) {
+                    held.add(message);
+                    maxHeld = Math.max(maxHeld, held.size());
+
+                    if (held.size() < batch) {
+                        received.countDown();
+                        return;
+                    }
+
+                    replies = held.toArray(new MessageMSG[held.size()]);
+                    held.clear();
+                }
+
+                for (int i = replies.length - 1; i >= 0; --i) {
+                    reply(replies[i]);
+                }
+            } catch (BEEPException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+            }
+        }
+
+        private static void reply(MessageMSG message) throws BEEPException
+        {
+            if (message.getMsgno() % 2 == 0) {
+                message.sendANS(new StringOutputDataStream("ans"));
+                message.sendANS(new StringOutputDataStream("ans"));
+                message.sendNUL();
+            } else {
+                message.sendRPY(new StringOutputDataStream("rpy"));
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestReplyOrder.class);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * TestSessionClose.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.BEEPError;
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.CloseChannelException;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.StartChannelListener;
+
+import junit.framework.*;
+
+public class TestSessionClose extends TestCase {
+
+    private static final String URI = "http://example.org/beep/close-test";
+    private static final long WAIT = 10000;
+
+    private ServerSocket server;
+    private TCPSession session;
+    private TCPSession peer;
+    private CloseProfile profile;
+
+    public TestSessionClose(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void setUp() throws Exception {
+        profile = new CloseProfile();
+
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(URI, profile, null);
+
+        server = new ServerSocket(0);
+
+        Thread acceptor = new Thread() {
+                public void run() {
+                    try {
+                        peer = TCPSession.createListener(server.accept(),
+                                                         registry);
+                    } catch (Exception e) {
+                    }
+                }
+            };
+        acceptor.start();
+
+        session = TCPSession.createInitiator(
+            new Socket("localhost", server.getLocalPort()),
+            new ProfileRegistry());
+
+        acceptor.join(WAIT);
+        assertNotNull(peer);
+    }
+
+    protected void tearDown() throws Exception {
+        profile.block.countDown();
+        terminate(session);
+        terminate(peer);
+        server.close();
+    }
+
+    private static void terminate(Session s) {
+        if (s.getState() != Session.SESSION_STATE_CLOSED &&
+            s.getState() != Session.SESSION_STATE_ABORTED)
+        {
+            s.terminate("test done");
+        }
+    }
+
+    public void testCloseAsync() throws Exception {
+        Channel[] channels = session.startChannels(URI, 3, null);
+        assertEquals(3, channels.length);
+
+        assertSame(session,
+                   session.closeAsync().get(WAIT, TimeUnit.MILLISECONDS));
+
+        assertEquals(Session.SESSION_STATE_CLOSED, session.getState());
+        for (int i = 0; i < channels.length; ++i) {
+            assertEquals(Channel.STATE_CLOSED, channels[i].getState());
+        }
+        assertEquals(3, profile.closed);
+    }
+
+    public void testCloseRefused() throws Exception {
+        session.startChannel(URI);
+        profile.refuse = true;
+
+        try {
+            session.closeAsync().get(WAIT, TimeUnit.MILLISECONDS);
+            fail("closed a session the peer refused to close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(),
+                       e.getCause() instanceof BEEPError);
+        }
+
+        assertEquals(Session.SESSION_STATE_ACTIVE, session.getState());
+
+        // the session is usable again
+        profile.refuse = false;
+        session.startChannel(URI);
+        session.close(WAIT);
+        assertEquals(Session.SESSION_STATE_CLOSED, session.getState());
+    }
+
+    public void testCloseTimeout() throws Exception {
+        session.startChannel(URI);
+        profile.blocking = true;
+
+        long start = System.currentTimeMillis();
+        try {
+            session.close(200);
+            fail("close did not time out");
+        } catch (BEEPException e) {
+        }
+
+        assertTrue(System.currentTimeMillis() - start < WAIT);
+        assertEquals(Session.SESSION_STATE_ABORTED, session.getState());
+    }
+
+    public void testNoStartWhileClosing() throws Exception {
+        session.startChannel(URI);
+        profile.blocking = true;
+
+        CompletableFuture<Session> closed = session.closeAsync();
+        assertTrue(profile.closing.await(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(Session.SESSION_STATE_CLOSE_PENDING, session.getState());
+
+        try {
+            session.startChannel(URI);
+            fail("started a channel while the session was closing");
+        } catch (BEEPException e) {
+        }
+
+        profile.block.countDown();
+        assertSame(session, closed.get(WAIT, TimeUnit.MILLISECONDS));
+        assertEquals(Session.SESSION_STATE_CLOSED, session.getState());
+    }
+
+    /**
+     * The peer's profile, which can refuse or hold up channel closes.
+     */
+    private static class CloseProfile implements StartChannelListener {
+        volatile boolean refuse = false;
+        volatile boolean blocking = false;
+        volatile int closed = 0;
+        final CountDownLatch closing = new CountDownLatch(1);
+        final CountDownLatch block = new CountDownLatch(1);
+
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+        {
+        }
+
+        public void closeChannel(Channel channel)
+            throws CloseChannelException
+        {
+            closing.countDown();
+
+            if (refuse) {
+                throw new CloseChannelException(
+                    BEEPError.CODE_REQUESTED_ACTION_NOT_TAKEN2, "busy");
+            }
+
+            if (blocking) {
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                }
+            }
+
+            ++closed;
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestSessionClose.class);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * TestWriteDelay.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.transport.tcp;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Channel;
+import org.beepcore.beep.core.Message;
+import org.beepcore.beep.core.MessageMSG;
+import org.beepcore.beep.core.ProfileRegistry;
+import org.beepcore.beep.core.ReplyListener;
+import org.beepcore.beep.core.RequestHandler;
+import org.beepcore.beep.core.Session;
+import org.beepcore.beep.core.SessionTuningProperties;
+import org.beepcore.beep.core.StartChannelListener;
+import org.beepcore.beep.core.StringOutputDataStream;
+
+import junit.framework.*;
+
+/**
+ * With a <code>WRITE_MAX_DELAY</code> the writer waits for more frames
+ * before it writes. A producer sending while it holds the channel's lock,
+ * as <code>ChannelImpl</code> does while it sends frames, must not wait
+ * with it, nor must another producer waiting for that lock.
+ */
+public class TestWriteDelay extends TestCase {
+
+    private static final String URI = "http://example.org/beep/delay-test";
+    private static final int DELAY = 1000;
+    private static final long WAIT = 10000;
+
+    private ServerSocket server;
+    private TCPSession session;
+    private TCPSession peer;
+
+    public TestWriteDelay(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    protected void tearDown() throws Exception {
+        if (session != null) {
+            session.terminate("test done");
+        }
+        if (peer != null) {
+            peer.terminate("test done");
+        }
+        server.close();
+    }
+
+    public void testProducerDoesNotWait() throws Exception {
+        send(false);
+    }
+
+    public void testAsyncProducerDoesNotWait() throws Exception {
+        send(true);
+    }
+
+    private void send(boolean async) throws Exception {
+        connect(async);
+
+        final Channel channel = session.startChannel(URI);
+        final Counter replies = new Counter(2);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final long[] other = new long[1];
+
+        Thread producer = new Thread() {
+                public void run() {
+                    try {
+                        locked.await();
+
+                        long start = System.currentTimeMillis();
+                        channel.sendMSG(new StringOutputDataStream("b"),
+                                        replies);
+                        other[0] = System.currentTimeMillis() - start;
+                    } catch (Exception e) {
+                        other[0] = Long.MAX_VALUE;
+                    }
+                }
+            };
+        producer.start();
+
+        long start = System.currentTimeMillis();
+        synchronized (channel) {
+            locked.countDown();
+            channel.sendMSG(new StringOutputDataStream("a"), replies);
+
+            // let the other producer block on the lock
+            Thread.sleep(50);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        producer.join(WAIT);
+
+        assertTrue("held the lock for " + elapsed + "ms", elapsed < DELAY / 2);
+        assertTrue("other producer took " + other[0] + "ms",
+                   other[0] < DELAY / 2);
+
+        // the writer still writes both MSGs once the delay is over
+        assertTrue(replies.done.await(WAIT, TimeUnit.MILLISECONDS));
+    }
+
+    private void connect(boolean async) throws Exception {
+        final ProfileRegistry registry = new ProfileRegistry();
+        registry.addStartChannelListener(URI, new EchoProfile(), null);
+
+        server = new ServerSocket(0);
+
+        Thread acceptor = new Thread() {
+                public void run() {
+                    try {
+                        peer = TCPSession.createListener(server.accept(),
+                                                         registry);
+                    } catch (Exception e) {
+                    }
+                }
+            };
+        acceptor.start();
+
+        SessionTuningProperties tuning = new SessionTuningProperties();
+        tuning.setWriteMaxDelay(DELAY);
+        tuning.setWriteMaxBytes(1024 * 1024);
+        tuning.setSendAsync(async);
+
+        session = TCPSession.createInitiator(
+            new Socket("localhost", server.getLocalPort()),
+            new ProfileRegistry(), null, tuning);
+
+        acceptor.join(WAIT);
+        assertNotNull(peer);
+    }
+
+    private static class Counter implements ReplyListener {
+        final CountDownLatch done;
+
+        Counter(int count)
+        {
+            done = new CountDownLatch(count);
+        }
+
+        public void receiveRPY(Message message)
+        {
+            message.getDataStream().close();
+            done.countDown();
+        }
+
+        public void receiveERR(Message message)
+        {
+            message.getDataStream().close();
+        }
+
+        public void receiveANS(Message message)
+        {
+            message.getDataStream().close();
+        }
+
+        public void receiveNUL(Message message)
+        {
+        }
+    }
+
+    private static class EchoProfile
+        implements StartChannelListener, RequestHandler
+    {
+        public boolean advertiseProfile(Session session) {
+            return true;
+        }
+
+        public void startChannel(Channel channel, String encoding,
+                                 String data)
+        {
+            channel.setRequestHandler(this);
+        }
+
+        public void closeChannel(Channel channel) {
+        }
+
+        public void receiveMSG(MessageMSG message)
+        {
+            message.getDataStream().close();
+
+            try {
+                message.sendRPY(new StringOutputDataStream("rpy"));
+            } catch (BEEPException e) {
+                message.getChannel().getSession().terminate(e.getMessage());
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestWriteDelay.class);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * TestBufferPool.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+import junit.framework.*;
+
+public class TestBufferPool extends TestCase {
+
+    public TestBufferPool(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testSizeClasses() {
+        BufferPool pool = new BufferPool();
+
+        assertEquals(BufferPool.MIN_BUFFER_SIZE,
+                     pool.allocate(1).getCapacity());
+        assertEquals(1024, pool.allocate(513).getCapacity());
+        assertEquals(1024, pool.allocate(1024).getCapacity());
+        assertEquals(64 * 1024, pool.allocate(64 * 1024).getCapacity());
+        assertEquals(BufferPool.MAX_BUFFER_SIZE + 1,
+                     pool.allocate(BufferPool.MAX_BUFFER_SIZE + 1)
+                     .getCapacity());
+    }
+
+    public void testReuse() {
+        BufferPool pool = new BufferPool();
+
+        PooledBuffer b = pool.allocate(4000);
+        b.release();
+
+        assertSame(b, pool.allocate(3000));
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getReusedCount());
+
+        // larger than any size class, never pooled
+        PooledBuffer big = pool.allocate(BufferPool.MAX_BUFFER_SIZE * 2);
+        big.release();
+        assertNotSame(big, pool.allocate(BufferPool.MAX_BUFFER_SIZE * 2));
+    }
+
+    public void testSegmentsHoldReferences() {
+        BufferPool pool = new BufferPool();
+        PooledBuffer b = pool.allocate(100);
+
+        BufferSegment s1 = new BufferSegment(b, 0, 10);
+        BufferSegment s2 = new BufferSegment(b, 10, 10);
+        assertEquals(3, b.getReferenceCount());
+
+        b.release();
+        s1.release();
+        s1.release();
+        assertEquals(1, b.getReferenceCount());
+        assertNotSame(b, pool.allocate(100));
+
+        s2.release();
+        assertEquals(0, b.getReferenceCount());
+        assertSame(b, pool.allocate(100));
+
+        // releasing a segment without a pooled buffer does nothing
+        new BufferSegment(new byte[10]).release();
+    }
+
+    public void testReleaseTooOften() {
+        PooledBuffer b = new BufferPool().allocate(100);
+
+        b.release();
+        try {
+            b.release();
+            fail("released twice");
+        } catch (IllegalStateException e) {
+        }
+
+        try {
+            b.retain();
+            fail("retained after release");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testMaxPooled() {
+        BufferPool pool = new BufferPool(2048);
+        PooledBuffer[] b = new PooledBuffer[3];
+
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = pool.allocate(1024);
+        }
+        for (int i = 0; i < b.length; ++i) {
+            b[i].release();
+        }
+
+        // only two 1024 byte buffers are kept
+        pool.allocate(1024);
+        pool.allocate(1024);
+        pool.allocate(1024);
+        assertEquals(4, pool.getAllocatedCount());
+        assertEquals(2, pool.getReusedCount());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestBufferPool.class);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * TestBufferSegment.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.*;
+
+public class TestBufferSegment extends TestCase {
+    protected static final byte[] DATA = "0123456789".getBytes();
+
+    public TestBufferSegment(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testHeapByteBuffer() {
+        ByteBuffer b = ByteBuffer.wrap(DATA);
+        b.position(2);
+
+        BufferSegment s = new BufferSegment(b);
+        assertTrue(s.hasArray());
+        assertSame(DATA, s.getData());
+        assertEquals(2, s.getOffset());
+        assertEquals(8, s.getLength());
+        assertEquals("23456789", string(s));
+    }
+
+    public void testDirectByteBuffer() {
+        ByteBuffer b = ByteBuffer.allocateDirect(DATA.length);
+        b.put(DATA);
+        b.flip();
+        b.position(1);
+
+        BufferSegment s = new BufferSegment(b);
+
+        // moving the original buffer does not affect the segment
+        b.position(5);
+
+        assertFalse(s.hasArray());
+        assertEquals(9, s.getLength());
+        assertEquals("123456789", string(s));
+        assertEquals("123456789", new String(s.getData(), s.getOffset(),
+                                             s.getLength()));
+
+        ByteBuffer v = s.asByteBuffer();
+        assertTrue(v.isDirect());
+        assertEquals(9, v.remaining());
+    }
+
+    public void testSlice() {
+        ByteBuffer d = ByteBuffer.allocateDirect(DATA.length);
+        d.put(DATA);
+        d.flip();
+
+        BufferSegment[] segments = {
+            new BufferSegment(DATA, 1, 9), new BufferSegment(d.slice())
+        };
+
+        for (int i = 0; i < segments.length; ++i) {
+            BufferSegment s = segments[i].slice(2, 3);
+            assertEquals(segments[i].hasArray(), s.hasArray());
+            assertEquals(3, s.getLength());
+            assertEquals(i == 0 ? "345" : "234", string(s));
+
+            assertEquals(0, segments[i].slice(segments[i].getLength(), 0)
+                         .getLength());
+
+            try {
+                segments[i].slice(1, segments[i].getLength());
+                fail("slice past the end");
+            } catch (IndexOutOfBoundsException e) {
+            }
+        }
+    }
+
+    public void testFileRegion() throws IOException {
+        File f = File.createTempFile("beep", ".dat");
+        RandomAccessFile raf = null;
+
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write(DATA);
+            fos.close();
+
+            raf = new RandomAccessFile(f, "r");
+            BufferSegment s = new BufferSegment(raf.getChannel(), 2, 6);
+
+            assertTrue(s.isFileRegion());
+            assertFalse(s.hasArray());
+            assertEquals("234567", string(s));
+            assertEquals("45", string(s.slice(2, 2)));
+
+            ByteBuffer b = ByteBuffer.allocate(8);
+            b.put((byte) '-');
+            s.copyTo(b);
+            assertEquals(7, b.position());
+            assertEquals("-234567", new String(b.array(), 0, 7));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            s.transferTo(Channels.newChannel(out));
+            assertEquals("234567", out.toString());
+
+            // the region extends past the end of the file
+            try {
+                new BufferSegment(raf.getChannel(), 8, 4)
+                    .copyTo(ByteBuffer.allocate(4));
+                fail("read past the end of the file");
+            } catch (IOException e) {
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+            f.delete();
+        }
+    }
+
+    protected String string(BufferSegment s) {
+        ByteBuffer b = s.asByteBuffer();
+        byte[] bytes = new byte[b.remaining()];
+
+        b.get(bytes);
+        return new String(bytes);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestBufferSegment.class);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * TestHeaderParser.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+import org.beepcore.beep.core.BEEPException;
+import org.beepcore.beep.core.Message;
+
+import junit.framework.*;
+
+public class TestHeaderParser extends TestCase {
+
+    /** the message types indexed as frames index them */
+    private static final byte[][] TYPES = new byte[6][];
+
+    static {
+        TYPES[Message.MESSAGE_TYPE_UNK] = "UNK".getBytes();
+        TYPES[Message.MESSAGE_TYPE_MSG] = "MSG".getBytes();
+        TYPES[Message.MESSAGE_TYPE_RPY] = "RPY".getBytes();
+        TYPES[Message.MESSAGE_TYPE_ERR] = "ERR".getBytes();
+        TYPES[Message.MESSAGE_TYPE_ANS] = "ANS".getBytes();
+        TYPES[Message.MESSAGE_TYPE_NUL] = "NUL".getBytes();
+    }
+
+    public TestHeaderParser(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testParseType() throws Exception {
+        for (int i = 0; i < TYPES.length; ++i) {
+            String type = new String(TYPES[i]);
+            HeaderParser p = parser(type + " 1 2 . 3 4");
+
+            assertEquals(type, i, p.parseType(TYPES));
+            assertRest(p);
+        }
+    }
+
+    public void testParseUnknownType() throws Exception {
+        String[] unknown = {"FOO", "MSX", "XSG", "msg", "SEQ"};
+
+        for (int i = 0; i < unknown.length; ++i) {
+            HeaderParser p = parser(unknown[i] + " 1 2 . 3 4");
+
+            assertEquals(unknown[i], -1, p.parseType(TYPES));
+
+            // the type is skipped all the same
+            assertRest(p);
+        }
+    }
+
+    public void testParseTypeSkipsNull() throws Exception {
+        byte[][] types = {null, "RPY".getBytes(), null};
+
+        assertEquals(1, parser("RPY 1 2 . 3 4").parseType(types));
+        assertEquals(-1, parser("MSG 1 2 . 3 4").parseType(types));
+    }
+
+    public void testParseTypeLength() throws Exception {
+        String[] malformed = {
+            "MS 1 2 . 3 4", "MSGS 1 2 . 3 4", " MSG 1 2 . 3 4", ""
+        };
+
+        for (int i = 0; i < malformed.length; ++i) {
+            try {
+                parser(malformed[i]).parseType(TYPES);
+                fail("parsed '" + malformed[i] + "'");
+            } catch (BEEPException e) {
+            }
+        }
+    }
+
+    /**
+     * A header in the middle of a buffer is parsed without reading the
+     * bytes around it.
+     */
+    public void testOffset() throws Exception {
+        String header = "ANS 5 7 * 4294967295 11 13";
+        byte[] b = ("NUL 9 9 . 9 9" + header + " 99 99").getBytes("US-ASCII");
+        int off = b.length - header.length() - " 99 99".length();
+
+        HeaderParser p = new HeaderParser(b, off, header.length());
+
+        assertEquals(Message.MESSAGE_TYPE_ANS, p.parseType(TYPES));
+        assertEquals(5, p.parseInt());
+        assertEquals(7, p.parseInt());
+        assertFalse(p.parseLast());
+        assertEquals(4294967295L, p.parseUnsignedInt());
+        assertEquals(11, p.parseInt());
+        assertTrue(p.hasMoreTokens());
+        assertEquals(13, p.parseInt());
+        assertFalse(p.hasMoreTokens());
+    }
+
+    public void testOffsetMissingToken() throws Exception {
+        byte[] b = "xxMSG 1 2yy".getBytes("US-ASCII");
+        HeaderParser p = new HeaderParser(b, 2, 7);
+
+        assertEquals(Message.MESSAGE_TYPE_MSG, p.parseType(TYPES));
+        assertEquals(1, p.parseInt());
+        assertEquals(2, p.parseInt());
+        assertFalse(p.hasMoreTokens());
+
+        try {
+            p.parseLast();
+            fail("parsed past the end of the header");
+        } catch (BEEPException e) {
+        }
+    }
+
+    /**
+     * One parser parses header after header, each from where reset
+     * puts it regardless of how much of the previous one was parsed.
+     */
+    public void testReset() throws Exception {
+        byte[] b = "xMSG 1 2 . 3 4ySEQ 5 6 7".getBytes("US-ASCII");
+        HeaderParser p = new HeaderParser();
+
+        assertFalse(p.hasMoreTokens());
+
+        p.reset(b, 1, 13);
+        assertEquals(Message.MESSAGE_TYPE_MSG, p.parseType(TYPES));
+        assertEquals(1, p.parseInt());
+
+        p.reset(b, 15, 9);
+        assertEquals("SEQ 5 6 7", p.toString());
+        assertEquals(-1, p.parseType(TYPES));
+        assertEquals(5, p.parseInt());
+        assertEquals(6, p.parseUnsignedInt());
+        assertEquals(7, p.parseInt());
+        assertFalse(p.hasMoreTokens());
+
+        p.reset(b, 1, 13);
+        p.parseType(TYPES);
+        assertRest(p);
+    }
+
+    private static HeaderParser parser(String header) throws Exception {
+        byte[] b = header.getBytes("US-ASCII");
+
+        return new HeaderParser(b, b.length);
+    }
+
+    /**
+     * Parses the rest of a header ending in <code>1 2 . 3 4</code>.
+     */
+    private static void assertRest(HeaderParser p) throws BEEPException {
+        assertEquals(1, p.parseInt());
+        assertEquals(2, p.parseInt());
+        assertTrue(p.parseLast());
+        assertEquals(3, p.parseUnsignedInt());
+        assertEquals(4, p.parseInt());
+        assertFalse(p.hasMoreTokens());
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestHeaderParser.class);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * TestHeaderWriter.java
+ *
+ * Copyright (c) 2014 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.beepcore.beep.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.*;
+
+public class TestHeaderWriter extends TestCase {
+    protected static final byte[] MSG = {'M', 'S', 'G'};
+    protected static final byte[] ANS = {'A', 'N', 'S'};
+
+    public TestHeaderWriter(String name) {
+        super(name);
+    }
+
+    public static void main (String[] args) {
+        junit.textui.TestRunner.run (suite());
+    }
+
+    public void testWriteHeader() {
+        byte[] b = new byte[100];
+
+        int n = HeaderWriter.writeHeader(b, 3, MSG, 1, 0, true, 0, 10,
+                                         HeaderWriter.NO_ANSNO);
+        assertEquals("MSG 1 0 . 0 10\r\n", new String(b, 3, n - 3));
+
+        n = HeaderWriter.writeHeader(b, 0, ANS, Integer.MAX_VALUE, 9, false,
+                                     4294967295L, 1000, 0);
+        assertEquals("ANS 2147483647 9 * 4294967295 1000 0\r\n",
+                     new String(b, 0, n));
+    }
+
+    public void testWriteByteBuffer() {
+        ByteBuffer[] bufs = {
+            ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100)
+        };
+
+        for (int i = 0; i < bufs.length; ++i) {
+            ByteBuffer b = bufs[i];
+
+            b.put((byte) 'x');
+            HeaderWriter.writeHeader(b, ANS, 12, 345, true, 6789, 0, 10);
+            b.flip();
+            b.get();
+
+            byte[] header = new byte[b.remaining()];
+            b.get(header);
+            assertEquals("ANS 12 345 . 6789 0 10\r\n", new String(header));
+        }
+    }
+
+    public void testWriteSEQ() {
+        byte[] b = new byte[HeaderWriter.MAX_SEQ_HEADER_SIZE];
+
+        int n = HeaderWriter.writeSEQ(b, 0, Integer.MAX_VALUE, 4294967295L,
+                                      Integer.MAX_VALUE);
+        assertEquals(HeaderWriter.MAX_SEQ_HEADER_SIZE, n);
+        assertEquals("SEQ 2147483647 4294967295 2147483647\r\n",
+                     new String(b, 0, n));
+    }
+
+    public void testWriteSEQByteBuffer() {
+        ByteBuffer[] bufs = {
+            ByteBuffer.allocate(100), ByteBuffer.allocateDirect(100)
+        };
+
+        for (int i = 0; i < bufs.length; ++i) {
+            ByteBuffer b = bufs[i];
+
+            b.put((byte) 'x');
+            HeaderWriter.writeSEQ(b, 3, 4294967295L, 4096);
+            b.flip();
+            b.get();
+
+            byte[] header = new byte[b.remaining()];
+            b.get(header);
+            assertEquals("SEQ 3 4294967295 4096\r\n", new String(header));
+        }
+    }
+
+    public void testParse() throws Exception {
+        byte[] b = new byte[100];
+        long[] values = {0, 1, 9, 10, 99, 100, 65535, 2147483647L,
+                         4294967295L};
+
+        for (int i = 0; i < values.length; ++i) {
+            int n = HeaderWriter.writeSEQ(b, 0, 0, values[i], 0);
+            HeaderParser p = new HeaderParser(b, 0, n - 2);
+
+            p.parseType();
+            assertEquals(0, p.parseInt());
+            assertEquals(values[i], p.parseUnsignedInt());
+            assertEquals(0, p.parseInt());
+            assertFalse(p.hasMoreTokens());
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestHeaderWriter.class);
+    }
+}